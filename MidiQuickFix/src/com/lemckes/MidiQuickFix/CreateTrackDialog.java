@@ -22,6 +22,7 @@
  **************************************************************/
 package com.lemckes.MidiQuickFix;
 
+import com.lemckes.MidiQuickFix.util.EditHistory;
 import com.lemckes.MidiQuickFix.util.MqfSequence;
 import com.lemckes.MidiQuickFix.util.RegexDocumentFilter;
 import com.lemckes.MidiQuickFix.util.TraceDialog;
@@ -69,11 +70,21 @@ public class CreateTrackDialog extends javax.swing.JDialog {
     }
 
     private void createTrack() {
-        Track track = mSequence.createTrack((Integer)indexField.getValue());
-        track.add(getTrackName());
-        track.add(getPatch());
-        track.add(getVolume());
-        track.add(getPan());
+        int index = (Integer)indexField.getValue();
+        // The track is recorded with its events when the edit ends.
+        EditHistory history = mSequence.getHistory();
+        history.beginEdit();
+        try {
+            Track track = mSequence.createTrack(index);
+            for (MidiEvent me : new MidiEvent[]{
+                getTrackName(), getPatch(), getVolume(), getPan()}) {
+                if (track.add(me)) {
+                    mSequence.eventInserted(index, me);
+                }
+            }
+        } finally {
+            history.endEdit();
+        }
         mTrackCreated = true;
     }
 
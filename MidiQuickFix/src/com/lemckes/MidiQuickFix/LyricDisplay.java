@@ -29,6 +29,7 @@ import com.lemckes.MidiQuickFix.util.FontSelectionEvent;
 import com.lemckes.MidiQuickFix.util.FontSelectionListener;
 import com.lemckes.MidiQuickFix.util.MqfProperties;
 import com.lemckes.MidiQuickFix.util.MqfSequence;
+import com.lemckes.MidiQuickFix.util.SongInfo;
 import com.lemckes.MidiQuickFix.util.StringConverter;
 import com.lemckes.MidiQuickFix.util.TraceDialog;
 import com.lemckes.MidiQuickFix.util.UiStrings;
@@ -72,6 +73,11 @@ public class LyricDisplay
     static final long serialVersionUID = 4418719983394376657L;
     private final TreeMap<Long, String> mWords = new TreeMap<>();
     private final TreeMap<Long, WordPlace> mPlaces = new TreeMap<>();
+    /**
+     * Whether any of the words changes the charset, in which case
+     * the words cannot be decoded without those before them.
+     */
+    private boolean mHasCharsetChange;
     private Sequencer mSequencer;
     private MqfSequence mSequence;
     private FontSelector mFontSelector;
@@ -240,9 +246,8 @@ public class LyricDisplay
         mSequence = seq;
         trackSelectCombo.removeItemListener(this);
         trackSelectCombo.removeAllItems();
-        Track[] tracks = mSequence.getTracks();
         boolean needLyrics = true;
-        for (int i = 0; i < tracks.length; ++i) {
+        for (int i = 0; i < mSequence.getTrackCount(); ++i) {
             if (mSequence.getTrackHasLyrics(i)) {
                 mSequence.showTrackLyrics(i, needLyrics);
                 needLyrics = false;
@@ -256,21 +261,53 @@ public class LyricDisplay
 
     public void rebuild() {
         mWords.clear();
-        mPlaces.clear();
+        mHasCharsetChange = false;
+        findLyrics(0, Long.MAX_VALUE);
+        placeWords();
+        displayText();
+    }
 
+    /**
+     * Update the words between two ticks after they have been edited.
+     * Only the lyric events in the range are decoded again.
+     *
+     * @param fromTick the first tick that may have changed
+     * @param toTick the last tick that may have changed
+     */
+    public void rebuild(long fromTick, long toTick) {
+        if (mHasCharsetChange) {
+            rebuild();
+            return;
+        }
+        mWords.subMap(fromTick, true, toTick, true).clear();
+        findLyrics(fromTick, toTick);
+        placeWords();
+        displayText();
+    }
+
+    /**
+     * Find the words in the shown tracks between two ticks.
+     */
+    private void findLyrics(long fromTick, long toTick) {
         if (mSequence != null) {
-            Track[] tracks = mSequence.getTracks();
-            for (int i = 0; i < tracks.length; ++i) {
+            for (int i = 0; i < mSequence.getTrackCount(); ++i) {
                 if (mSequence.getTrackHasLyrics(i)) {
 
                     boolean show = mSequence.trackLyricsShown(i);
                     if (show) {
-                        findLyrics(tracks[i]);
+                        // Only decode the tracks that are shown.
+                        findLyrics(mSequence.getTrack(i), fromTick, toTick);
                     }
                 }
             }
         }
+    }
 
+    /**
+     * Work out where each word goes in the text.
+     */
+    private void placeWords() {
+        mPlaces.clear();
         int wordstart = 0;
         for (Entry<Long, String> e : mWords.entrySet()) {
             String word = e.getValue();
@@ -280,7 +317,6 @@ public class LyricDisplay
             mPlaces.put(e.getKey(), new WordPlace(wordstart + start, trimLen));
             wordstart += word.length();
         }
-        displayText();
     }
 
     public void displayText() {
@@ -329,9 +365,20 @@ public class LyricDisplay
         }
     }
 
-    private void findLyrics(Track t) {
+    private void findLyrics(Track t, long fromTick, long toTick) {
         StringConverter.resetDefaultCharset();
-        for (int i = 0; i < t.size(); ++i) {
+        // Find the first event at or after fromTick.
+        int low = 0;
+        int high = t.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (t.get(mid).getTick() < fromTick) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i = low; i < t.size() && t.get(i).getTick() <= toTick; ++i) {
             MidiMessage mess = t.get(i).getMessage();
             long tick = t.get(i).getTick();
             if (mess.getStatus() == MetaMessage.META) {
@@ -399,6 +446,7 @@ public class LyricDisplay
         Matcher m = charsetPattern.matcher(lyric);
         if (m.find() && m.groupCount() > 0) {
             String cSet = m.group(1);
+            mHasCharsetChange = true;
             boolean wasSet = StringConverter.setCharsetName(cSet);
             if (!wasSet) {
                 TraceDialog.addTrace("Failed to set characterSet " + cSet);
@@ -407,21 +455,7 @@ public class LyricDisplay
     }
 
     private void checkForSongInfo(String lyric) {
-        int patternFlags = Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
-        Pattern songInfoPattern
-            = Pattern.compile("\\{\\#(.*?)\\}", patternFlags);
-        Matcher m = songInfoPattern.matcher(lyric);
-        while (m.find()) {
-            for (int i = 1; i <= m.groupCount(); ++i) {
-                String info = m.group(i);
-                String[] keyValue = info.split("=");
-                if (keyValue.length > 1) {
-                    String key = keyValue[0].trim();
-                    String value = keyValue[1].trim();
-                    mSequence.putSongInfo(key, value);
-                }
-            }
-        }
+        SongInfo.findSongInfo(lyric, mSequence::putSongInfo);
     }
 
     /**
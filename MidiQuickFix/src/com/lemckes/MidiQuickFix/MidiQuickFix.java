@@ -26,23 +26,34 @@ package com.lemckes.MidiQuickFix;
 
 import com.formdev.flatlaf.FlatLightLaf;
 import com.formdev.flatlaf.FlatDarkLaf;
+import com.lemckes.MidiQuickFix.components.MidiFilePreview;
 import com.lemckes.MidiQuickFix.components.TempoSlider;
+import com.lemckes.MidiQuickFix.components.pianoroll.PianoRollPanel;
 import com.lemckes.MidiQuickFix.util.BarBeatTick;
+import com.lemckes.MidiQuickFix.util.BatchProcessor;
+import com.lemckes.MidiQuickFix.util.EditHistory;
 import com.lemckes.MidiQuickFix.util.Formats;
 import com.lemckes.MidiQuickFix.util.LoopSliderEvent;
 import com.lemckes.MidiQuickFix.util.LoopSliderListener;
+import com.lemckes.MidiQuickFix.util.MidiFile;
 import com.lemckes.MidiQuickFix.util.MidiFileFilter;
 import com.lemckes.MidiQuickFix.util.MidiSeqPlayer;
 import com.lemckes.MidiQuickFix.util.MidiUtils;
 import com.lemckes.MidiQuickFix.util.MqfProperties;
 import com.lemckes.MidiQuickFix.util.MqfSequence;
 import com.lemckes.MidiQuickFix.util.PlayController;
+import com.lemckes.MidiQuickFix.util.Quantiser;
 import com.lemckes.MidiQuickFix.util.RecentFiles;
+import com.lemckes.MidiQuickFix.util.SequenceChange;
+import com.lemckes.MidiQuickFix.util.SequenceChangeBus;
+import com.lemckes.MidiQuickFix.util.SequenceChangeListener;
+import com.lemckes.MidiQuickFix.util.SmfWriter;
 import com.lemckes.MidiQuickFix.util.SoundbankFileFilter;
 import com.lemckes.MidiQuickFix.util.TraceDialog;
 import com.lemckes.MidiQuickFix.util.TracksChangedEvent;
 import com.lemckes.MidiQuickFix.util.TracksChangedListener;
 import com.lemckes.MidiQuickFix.util.Transposer;
+import com.lemckes.MidiQuickFix.util.TransposingReceiver;
 import com.lemckes.MidiQuickFix.util.UiStrings;
 import java.awt.Color;
 import java.awt.Cursor;
@@ -52,6 +63,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
 import java.util.Arrays;
 import java.util.Properties;
@@ -64,14 +76,12 @@ import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MetaEventListener;
 import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiChannel;
-import javax.sound.midi.MidiEvent;
-import javax.sound.midi.MidiMessage;
 import javax.sound.midi.MidiSystem;
 import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Sequence;
 import javax.sound.midi.Sequencer;
 import javax.sound.midi.Soundbank;
 import javax.sound.midi.Synthesizer;
-import javax.sound.midi.Track;
 import javax.swing.JFileChooser;
 import javax.swing.JFormattedTextField;
 import javax.swing.JFrame;
@@ -93,16 +103,10 @@ import javax.swing.event.TableModelListener;
 public class MidiQuickFix
     extends JFrame
     implements MidiSeqPlayer, LoopSliderListener, TableModelListener,
-    TracksChangedListener
+    TracksChangedListener, SequenceChangeListener
 {
 
     static final long serialVersionUID = -3768776503290924603L;
-    /**
-     * Flag if we need to work around the bug in 1.4.2
-     * that does not allow us to update the values of a
-     * ShortEvent.
-     */
-    static boolean VERSION_1_4_2_BUG;
     private static String mJavaVersion;
     /**
      * The system synthesizer.
@@ -116,6 +120,15 @@ public class MidiQuickFix
      * The default sequencer.
      */
     private Sequencer mSequencer;
+    /**
+     * Transposes the notes played by the sequencer to audition a transpose.
+     */
+    private TransposingReceiver mTransposingReceiver;
+    /**
+     * The play state to go back to after auditioning a transpose,
+     * or null if playing was not started to audition a transpose.
+     */
+    private PlayController.PlayState mStateBeforeAudition = null;
     /**
      * The sequence from the current file.
      */
@@ -144,6 +157,10 @@ public class MidiQuickFix
      * True if the sequence has been modified.
      */
     private boolean mSequenceModified = false;
+    /**
+     * The last save that was started, null if there has been no save.
+     */
+    private SwingWorker<Long, Void> mPendingSave;
     /**
      * The current tempo
      */
@@ -156,7 +173,15 @@ public class MidiQuickFix
     private TrackSummaryPanel mTrackSummaryPanel;
     private TrackSummaryTable mTrackSummary;
     private TrackMixerPanel mTrackMixer;
+    private PianoRollPanel mPianoRoll;
     private LyricDisplay mLyricDisplay;
+    /**
+     * Passes the edits to the sequence on to the views,
+     * once for a series of edits.
+     */
+    private final SequenceChangeBus mChangeBus = new SequenceChangeBus();
+    private final javax.swing.JMenuItem mUndoMenuItem = new javax.swing.JMenuItem();
+    private final javax.swing.JMenuItem mRedoMenuItem = new javax.swing.JMenuItem();
     private AboutDialog mAboutDialog = null;
     private TransposeDialog mTransposeDialog;
     private PlayController mPlayController;
@@ -229,7 +254,9 @@ public class MidiQuickFix
                     UiStrings.getString("opening_sequencer")); // NOI18N
                 if (!mSequencer.isOpen()) {
                     mSequencer.open(); // This call blocks the process...
-                    mSequencer.getTransmitter().setReceiver(mSynth.getReceiver());
+                    mTransposingReceiver
+                        = new TransposingReceiver(mSynth.getReceiver());
+                    mSequencer.getTransmitter().setReceiver(mTransposingReceiver);
                 }
                 startDialog.splash.addStageMessage(
                     UiStrings.getString("sequencer_opened")); // NOI18N
@@ -238,6 +265,7 @@ public class MidiQuickFix
             mPlayController = new PlayController(mSequencer);
 
             initComponents();
+            addUndoMenuItems();
 
             tempoAdjustField.setValue(1.0f);
             tempoAdjustField.addPropertyChangeListener("value", // NOI18N
@@ -285,6 +313,7 @@ public class MidiQuickFix
             MidiFileFilter midiFilter = new MidiFileFilter();
             sequenceChooser.addChoosableFileFilter(midiFilter);
             sequenceChooser.setFileFilter(midiFilter);
+            new MidiFilePreview(sequenceChooser);
 
             mRecentFiles = new RecentFiles();
             mRecentFiles.fromPropertyString(
@@ -328,6 +357,10 @@ public class MidiQuickFix
             editorPanel.add(mTrackEditor);
             mTrackEditor.addTableChangeListener(this);
 
+            mPianoRoll = new PianoRollPanel();
+            pianoRollPanel.add(mPianoRoll);
+            mPianoRoll.setSequencer(mSequencer);
+
             mTrackMixer = new TrackMixerPanel();
             trackMixerPanel.add(mTrackMixer);
 
@@ -336,6 +369,12 @@ public class MidiQuickFix
 
             mLyricDisplay.setSequencer(mSequencer);
 
+            mTrackEditor.setChangeBus(mChangeBus);
+            mChangeBus.addSequenceChangeListener(mTrackEditor);
+            mChangeBus.addSequenceChangeListener(mPianoRoll);
+            mChangeBus.addSequenceChangeListener(mTrackMixer);
+            mChangeBus.addSequenceChangeListener(this);
+
             pack();
             setLocationRelativeTo(null);
 
@@ -542,6 +581,10 @@ public class MidiQuickFix
 
     @Override
     public void loopPointChanged(LoopSliderEvent evt) {
+        if (mSequencer.getSequence() != mSeq) {
+            // The loop points are set when the sequence is played.
+            return;
+        }
         long inPoint = evt.getInPoint();
         long outPoint = evt.getOutPoint();
         if (inPoint >= 0) {
@@ -576,7 +619,7 @@ public class MidiQuickFix
                 try {
                     setBusy(true);
                     // Construct an MqfSequence object
-                    seq = new MqfSequence(MidiSystem.getSequence(file));
+                    seq = MidiFile.openSequenceFile(file);
 
                     // Remember the file name for later
                     mFileName = file.getName();
@@ -636,9 +679,11 @@ public class MidiQuickFix
             positionSlider.reset();
             positionSlider.setBarBeatTick(new BarBeatTick(mSeq));
 
-            // Assign the sequence to the sequencer.
+            // The sequence is given to the sequencer when it is played
+            // so that lazily loaded tracks are not decoded until needed.
+            // Release the previous sequence.
             try {
-                mSequencer.setSequence(mSeq);
+                mSequencer.setSequence((Sequence)null);
             } catch (InvalidMidiDataException e) {
                 trace("Exception in buildNewSequence() : " + e);
             }
@@ -651,6 +696,10 @@ public class MidiQuickFix
                 mTrackSummaryPanel.setSequence(mSeq);
             }
 
+            if (mPianoRoll != null) {
+                mPianoRoll.setSequence(mSeq);
+            }
+
             if (mTrackMixer != null) {
                 mTrackMixer.setSequence(mSeq);
                 mTrackMixer.setSequencer(mSequencer);
@@ -660,6 +709,12 @@ public class MidiQuickFix
 
             mLyricDisplay.setSequence(mSeq);
 
+            // The views have been given the whole sequence.
+            mChangeBus.setSequence(mSeq);
+            // Start recording the edits.
+            mSeq.getHistory();
+            updateUndoMenuItems();
+
             mSequenceModified = false;
 
             setTitle(mFileName);
@@ -672,22 +727,14 @@ public class MidiQuickFix
 
     @Override
     public void tracksChanged(TracksChangedEvent changeEvent) {
-        // TRACK_CHANGED should only update the LyricDisplay
+        // TRACK_CHANGED does not change the structure of the sequence
         if (changeEvent.getChangeType()
             != TracksChangedEvent.TrackChangeType.TRACK_CHANGED) {
-            if (mTrackEditor != null) {
-                mTrackEditor.setSequence(mSeq);
-            }
-
-            if (mTrackSummaryPanel != null) {
-                mTrackSummaryPanel.setSequence(mSeq);
-            }
             mSequenceModified = true;
         }
-
-        if (mLyricDisplay != null) {
-            mLyricDisplay.rebuild();
-        }
+        // The sequence has recorded the change, the views are
+        // updated when the bus passes it on.
+        mChangeBus.post();
     }
 
     private void openFile(String fileToOpen) {
@@ -742,7 +789,14 @@ public class MidiQuickFix
             javax.swing.JMenuItem menuItem = new javax.swing.JMenuItem();
 
             menuItem.setText(filename);
-            menuItem.setToolTipText(pathname);
+            String toolTip = pathname;
+            try {
+                toolTip += "  " // NOI18N
+                    + MidiFilePreview.summarise(MidiFile.probe(new File(pathname)));
+            } catch (InvalidMidiDataException | IOException ex) {
+                // Just show the path.
+            }
+            menuItem.setToolTipText(toolTip);
             menuItem.setActionCommand(pathname);
             openRecentMenu.add(menuItem);
             menuItem.addActionListener((java.awt.event.ActionEvent evt) -> {
@@ -788,6 +842,10 @@ public class MidiQuickFix
      */
     private boolean checkForSave(java.awt.event.WindowEvent evt) {
         boolean continueAction = true;
+        // Let a save that is still being written finish first.
+        if (!waitForSave(mPendingSave)) {
+            mSequenceModified = true;
+        }
         if (mSequenceModified) {
             int answer = JOptionPane.showConfirmDialog(this,
                 UiStrings.getString("check_save"),
@@ -796,7 +854,8 @@ public class MidiQuickFix
             switch (answer) {
                 case JOptionPane.YES_OPTION:
                     java.io.File myMidiFile = new java.io.File(mFilePath);
-                    saveAs(myMidiFile);
+                    // Don't continue until the file has been written.
+                    continueAction = waitForSave(saveAs(myMidiFile));
                     break;
                 case JOptionPane.NO_OPTION:
                     // Do nothing
@@ -813,48 +872,75 @@ public class MidiQuickFix
 
     /**
      * Save the current sequence to the given file.
+     * The sequence is encoded in the event thread, so that the file holds
+     * the sequence as it was when the save was requested, and the encoded
+     * buffers are written by a SwingWorker so that the UI remains
+     * responsive while large files are saved.
+     * Saves are written in the order in which they were requested.
      *
      * @param file The file to which the sequence is to be saved.
+     * @return the worker that is saving the file.
      */
-    public void saveFile(java.io.File file) {
-        try {
-            // Make sure that the Sequencer has the latest version of the Sequence.
-            mSequencer.setSequence(mSeq);
-
-            // Save the Sequence object
-            int types[] = MidiSystem.getMidiFileTypes(mSeq);
-
-            // Default to type 1
-            int type = 1;
-
-            if (types.length > 0) {
-                // Use the simplest supported type
-                Arrays.sort(types);
-                type = types[0];
+    public SwingWorker<Long, Void> saveFile(final java.io.File file) {
+        final MqfSequence seq = mSeq;
+        // The tick zero events are written in the order that
+        // inserting them in the editor gives.
+        final ByteBuffer[] buffers = SmfWriter.encode(seq, true);
+        // The buffers hold every edit made so far, any edits made
+        // while they are written will set this again.
+        mSequenceModified = false;
+        final SwingWorker<Long, Void> previous = mPendingSave;
+        setBusy(true);
+        final SwingWorker<Long, Void> worker
+            = new SwingWorker<Long, Void>()
+        {
+            @Override
+            public Long doInBackground() throws IOException {
+                if (previous != null) {
+                    try {
+                        previous.get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        // The earlier save reports its own errors.
+                    }
+                }
+                return SmfWriter.write(buffers, file);
             }
-            int bytesWritten = MidiSystem.write(mSeq, type, file);
-            mSequenceModified = false;
 
-            // Remember the file name for later
-            mFileName = file.getName();
-            mFilePath = file.getCanonicalPath();
-            setTitle(mFileName);
-        } catch (IOException e) {
-            trace("IOException in saveFile(java.io.File file) : "
-                + e.getLocalizedMessage());
-            showDialog(UiStrings.getString("file_save_error")
-                + UiStrings.getString("file_save_permission"),
-                UiStrings.getString("file_io_error"),
-                JOptionPane.ERROR_MESSAGE);
-        } catch (InvalidMidiDataException e) {
-            trace(
-                "InvalidMidiDataException in saveFile(java.io.File file) : "
-                + e.getLocalizedMessage());
-            showDialog(UiStrings.getString("file_create_error")
-                + UiStrings.getString("file_save_invalid"),
-                UiStrings.getString("file_invalid_data"),
-                JOptionPane.ERROR_MESSAGE);
-        }
+            @Override
+            public void done() {
+                setBusy(false);
+                // Another sequence may have been opened since.
+                boolean current = mSeq == seq;
+                try {
+                    get();
+                    if (current) {
+                        // Remember the file name for later
+                        mFileName = file.getName();
+                        mFilePath = file.getCanonicalPath();
+                        setTitle(mFileName);
+                    }
+                } catch (InterruptedException ex) {
+                    // don't care
+                } catch (ExecutionException | IOException e) {
+                    if (current) {
+                        mSequenceModified = true;
+                    }
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    trace("IOException in saveFile(java.io.File file) : "
+                        + cause.getLocalizedMessage());
+                    showDialog(UiStrings.getString("file_save_error")
+                        + UiStrings.getString("file_save_permission"),
+                        UiStrings.getString("file_io_error"),
+                        JOptionPane.ERROR_MESSAGE);
+                }
+                if (mPendingSave == this) {
+                    mPendingSave = null;
+                }
+            }
+        };
+        mPendingSave = worker;
+        worker.execute();
+        return worker;
     }
 
     /**
@@ -862,15 +948,40 @@ public class MidiQuickFix
      *
      * @param file If not null the given file will be selected
      * as the default.
+     * @return the worker that is saving the file, or null if the user
+     * cancelled the save.
      */
-    private void saveAs(java.io.File file) {
+    private SwingWorker<Long, Void> saveAs(java.io.File file) {
         if (file != null) {
             sequenceChooser.setSelectedFile(file);
         }
 
         int save = sequenceChooser.showSaveDialog(this);
         if (save == JFileChooser.APPROVE_OPTION) {
-            saveFile(sequenceChooser.getSelectedFile());
+            return saveFile(sequenceChooser.getSelectedFile());
+        }
+        return null;
+    }
+
+    /**
+     * Wait for a save to complete.
+     *
+     * @param saver the worker that is saving the file, may be null
+     * @return false if the save failed
+     */
+    private boolean waitForSave(SwingWorker<Long, Void> saver) {
+        if (saver == null) {
+            return true;
+        }
+        try {
+            saver.get();
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException ex) {
+            // done() reports the error
+            return false;
         }
     }
 
@@ -901,36 +1012,17 @@ public class MidiQuickFix
 
 //        debugTiming("setInfoLabels()");
         // Get the info from META events at tick zero.
-        boolean foundTimeSig = false;
-        boolean foundTempo = false;
-        boolean foundKeySig = false;
-        for (Track track : mSeq.getTracks()) {
-            // Stop if we have found all the fields we need.
-            if (foundTimeSig && foundTempo && foundKeySig) {
-                break;
-            }
-            int eventCount = track.size() - 1;
-            for (int eventIndex = 0; eventIndex < eventCount; ++eventIndex) {
-                MidiEvent ev = track.get(eventIndex);
-                MidiMessage mess = ev.getMessage();
-                long tick = ev.getTick();
-                if (tick > 0) {
-                    break;
-                }
-                if (mess.getStatus() == MetaMessage.META) {
-                    Object[] str = MetaEvent.getMetaStrings((MetaMessage)mess);
-                    if (str[0].equals("M:TimeSignature")) {
-                        setTimeSigField(str[2].toString());
-                        foundTimeSig = true;
-                    } else if (str[0].equals("M:Tempo")) {
-                        setTempoLabel(str[2].toString());
-                        foundTempo = true;
-                    } else if (str[0].equals("M:KeySignature")) {
-                        setKeySigField(str[2].toString());
-                        foundKeySig = true;
-                    }
-                }
-            }
+        MetaMessage timeSig = mSeq.findTickZeroMeta(MetaEvent.TIME_SIGNATURE);
+        if (timeSig != null) {
+            setTimeSigField(MetaEvent.getMetaStrings(timeSig)[2].toString());
+        }
+        MetaMessage tempo = mSeq.findTickZeroMeta(MetaEvent.TEMPO);
+        if (tempo != null) {
+            setTempoLabel(MetaEvent.getMetaStrings(tempo)[2].toString());
+        }
+        MetaMessage keySig = mSeq.findTickZeroMeta(MetaEvent.KEY_SIGNATURE);
+        if (keySig != null) {
+            setKeySigField(MetaEvent.getMetaStrings(keySig)[2].toString());
         }
     }
 
@@ -977,25 +1069,34 @@ public class MidiQuickFix
     private void doTranspose() {
         if (mTransposeDialog == null) {
             mTransposeDialog = new TransposeDialog(this, true);
+            mTransposeDialog.addChangeListener((ChangeEvent e) -> {
+                auditionTranspose();
+            });
         }
         // Reset the transpose dialog to zero
         mTransposeDialog.setTransposeBy(0);
         mTransposeDialog.pack();
         mTransposeDialog.setLocationRelativeTo(transposeButton);
         mTransposeDialog.setVisible(true);
+
+        endAudition();
+        boolean running = mSequencer.isRunning();
         if (mTransposeDialog.getReturnStatus() == TransposeDialog.RET_OK) {
-            boolean running = mSequencer.isRunning();
             if (running) {
                 mSequencer.stop();
             }
+            // The sequence itself is transposed now so stop transposing
+            // what is played. Nothing was changed by auditioning so a
+            // cancel has nothing to undo.
+            if (mTransposingReceiver != null) {
+                mTransposingReceiver.setTransposition(0, false);
+            }
             boolean overflowed
                 = Transposer.transpose(
                     mSeq,
                     mTransposeDialog.getTransposeBy(),
                     mTransposeDialog.getDoDrums());
-            mTrackEditor.setSequence(mSeq);
-            mTrackSummaryPanel.setSequence(mSeq);
-            setInfoLabels();
+            mChangeBus.post();
             mSequenceModified = true;
 
             if (overflowed) {
@@ -1008,7 +1109,56 @@ public class MidiQuickFix
             if (running) {
                 mSequencer.start();
             }
+        } else if (mTransposingReceiver != null) {
+            mTransposingReceiver.setTransposition(0, false);
+        }
+    }
+
+    /**
+     * Play the sequence transposed by the settings of the transpose dialog
+     * while it is open, starting to play if it is not already playing.
+     */
+    private void auditionTranspose() {
+        if (mTransposingReceiver == null || !mTransposeDialog.isVisible()) {
+            return;
+        }
+        boolean audition = mTransposeDialog.getAudition();
+        mTransposingReceiver.setTransposition(
+            audition ? mTransposeDialog.getTransposeBy() : 0,
+            mTransposeDialog.getDoDrums());
+        PlayController.PlayState state = mPlayController.getPlayState();
+        if (audition && (state == PlayController.PlayState.STOPPED
+            || state == PlayController.PlayState.PAUSED)) {
+            mStateBeforeAudition = state;
+            if (state == PlayController.PlayState.PAUSED) {
+                mPlayController.pause();
+            } else {
+                mPlayController.play();
+            }
+        } else if (!audition) {
+            endAudition();
+        }
+    }
+
+    /**
+     * Go back to playing the sequence, in the play state from before
+     * auditioning a transpose or a quantise.
+     */
+    private void endAudition() {
+        if (mSeq != null && mSequencer.getSequence() != null
+            && mSequencer.getSequence() != mSeq) {
+            try {
+                setSequencerSequence(mSeq);
+            } catch (InvalidMidiDataException imde) {
+                trace("Exception in endAudition " + imde); // NOI18N
+            }
+        }
+        if (mStateBeforeAudition == PlayController.PlayState.PAUSED) {
+            mPlayController.pause();
+        } else if (mStateBeforeAudition == PlayController.PlayState.STOPPED) {
+            mPlayController.stop();
         }
+        mStateBeforeAudition = null;
     }
 
     /**
@@ -1024,30 +1174,93 @@ public class MidiQuickFix
         if (e.getColumn() != TableModelEvent.ALL_COLUMNS
             || e.getFirstRow() != TableModelEvent.HEADER_ROW) {
             mSequenceModified = true;
-            boolean wasPlaying
-                = (mPlayController.getPlayState() == PlayController.PlayState.PLAYING);
-            if (wasPlaying) {
-                mTimer.stop();
-                mPlayController.pause();
+            mChangeBus.post();
+        }
+    }
+
+    /**
+     * Bring the summary, the sequencer and the lyrics up to date with
+     * the edits in the change. Only the parts that the edits affect are
+     * updated and playback carries on.
+     *
+     * @param change the parts of the sequence that have been edited
+     */
+    @Override
+    public void sequenceChanged(SequenceChange change) {
+        // The sequence has already updated its TrackInfo for the edit.
+        if (change.isTracksChanged()) {
+            // There is a row for each track.
+            mTrackSummaryPanel.setSequence(mSeq);
+        } else {
+            for (int track : change.getChangedTracks()) {
+                mTrackSummary.trackInfoChanged(track);
             }
-            mTrackSummary.setSequence(mSeq);
-            try {
+        }
+        try {
+            // Only refresh the sequencer if it has this sequence,
+            // otherwise it is given the sequence when it is played.
+            // Setting the same sequence again makes the sequencer re-read
+            // the tracks and tempo map and find its place in each track,
+            // without stopping or rewinding.
+            if (mSequencer.getSequence() == mSeq
+                && change.needsResync(mSequencer.getTickPosition())) {
                 mSequencer.setSequence(mSeq);
-                if (e.getColumn() == 5 || e.getColumn() == TableModelEvent.ALL_COLUMNS) {
-                    mLyricDisplay.rebuild();
-                }
-            } catch (javax.sound.midi.InvalidMidiDataException imde) {
-                trace("Exception in tableChanged " + imde.getLocalizedMessage()); // NOI18N
-                showDialog(UiStrings.getString("edit_sequence_error")
-                    + UiStrings.getString("edit_sequence_invalid"),
-                    UiStrings.getString("file_invalid_data"),
-                    JOptionPane.ERROR_MESSAGE);
-            }
-            if (wasPlaying) {
-                mTimer.start();
-                mPlayController.play();
             }
+        } catch (javax.sound.midi.InvalidMidiDataException imde) {
+            trace("Exception in sequenceChanged " + imde.getLocalizedMessage()); // NOI18N
+            showDialog(UiStrings.getString("edit_sequence_error")
+                + UiStrings.getString("edit_sequence_invalid"),
+                UiStrings.getString("file_invalid_data"),
+                JOptionPane.ERROR_MESSAGE);
+        }
+        if (change.isLyricsChanged()) {
+            mLyricDisplay.rebuild(change.getFromTick(), change.getToTick());
         }
+        // The length, tempo or signatures may have been changed.
+        setInfoLabels();
+        updateUndoMenuItems();
+    }
+
+    /**
+     * Put the Undo and Redo items at the top of the Sequence menu.
+     */
+    private void addUndoMenuItems() {
+        mUndoMenuItem.setText(UiStrings.getString("undo")); // NOI18N
+        mUndoMenuItem.setAccelerator(KeyStroke.getKeyStroke(
+            java.awt.event.KeyEvent.VK_Z, java.awt.event.InputEvent.CTRL_DOWN_MASK));
+        mUndoMenuItem.addActionListener(evt -> undoEdit(false));
+        mRedoMenuItem.setText(UiStrings.getString("redo")); // NOI18N
+        mRedoMenuItem.setAccelerator(KeyStroke.getKeyStroke(
+            java.awt.event.KeyEvent.VK_Y, java.awt.event.InputEvent.CTRL_DOWN_MASK));
+        mRedoMenuItem.addActionListener(evt -> undoEdit(true));
+        sequenceMenu.insert(mUndoMenuItem, 0);
+        sequenceMenu.insert(mRedoMenuItem, 1);
+        sequenceMenu.insertSeparator(2);
+        updateUndoMenuItems();
+    }
+
+    private void updateUndoMenuItems() {
+        mUndoMenuItem.setEnabled(mSeq != null && mSeq.getHistory().canUndo());
+        mRedoMenuItem.setEnabled(mSeq != null && mSeq.getHistory().canRedo());
+    }
+
+    /**
+     * Undo the last edit, or redo the last edit that was undone.
+     * The views are brought up to date by the change bus like any
+     * other edit.
+     */
+    private void undoEdit(boolean redo) {
+        if (mSeq == null) {
+            return;
+        }
+        EditHistory history = mSeq.getHistory();
+        boolean done = redo ? history.redo() : history.undo();
+        if (done) {
+            mSequenceModified = true;
+        }
+        // A failed edit clears the history but may have changed some tracks.
+        mChangeBus.post();
+        updateUndoMenuItems();
     }
 
     private void showSongInfo() {
@@ -1059,12 +1272,82 @@ public class MidiQuickFix
     }
 
     private void showQuantiseDialog() {
-//        QuantiseDialog.analyseSequence(mSequence);
-//        mLyricDisplay.setSequence(mSequence);
-//        mTrackEditor.setSequence(mSequence);
-//        mSequenceModified=true;
-//        mTrackSummary.setSequence(mSequence);
-//        new QuantiseDialog(mSeq, this, false).setVisible(true);
+        if (mSeq == null) {
+            return;
+        }
+        QuantiseDialog dialog = new QuantiseDialog(mSeq, this, true);
+        dialog.addChangeListener((ChangeEvent e) -> {
+            auditionQuantise(dialog);
+        });
+        dialog.setVisible(true);
+
+        endAudition();
+        if (dialog.getReturnStatus() == QuantiseDialog.RET_OK) {
+            boolean running = mSequencer.isRunning();
+            if (running) {
+                mSequencer.stop();
+            }
+            int moved = Quantiser.quantiseToGrid(
+                mSeq, dialog.getSelectedTracks(), dialog.getGridTicks());
+            if (moved > 0) {
+                mChangeBus.post();
+                mSequenceModified = true;
+            }
+            if (running) {
+                mSequencer.start();
+            }
+        }
+    }
+
+    /**
+     * Play a quantised copy of the sequence while the quantise dialog is
+     * open, starting to play if it is not already playing.
+     * Nothing in the sequence itself is changed.
+     */
+    private void auditionQuantise(QuantiseDialog dialog) {
+        if (!dialog.isVisible()) {
+            return;
+        }
+        if (!dialog.getAudition() || dialog.getSelectedTracks().length == 0) {
+            endAudition();
+            return;
+        }
+        PlayController.PlayState state = mPlayController.getPlayState();
+        if (mStateBeforeAudition == null
+            && (state == PlayController.PlayState.STOPPED
+            || state == PlayController.PlayState.PAUSED)) {
+            mStateBeforeAudition = state;
+            if (state == PlayController.PlayState.PAUSED) {
+                mPlayController.pause();
+            } else {
+                mPlayController.play();
+            }
+        }
+        try {
+            setSequencerSequence(Quantiser.quantisedCopy(
+                mSeq, dialog.getSelectedTracks(), dialog.getGridTicks()));
+        } catch (InvalidMidiDataException imde) {
+            trace("Exception in auditionQuantise " + imde); // NOI18N
+            endAudition();
+        }
+    }
+
+    /**
+     * Give the sequencer a sequence to play from the place that it
+     * has reached, keeping the tracks that are muted.
+     *
+     * @param seq the sequence to play, mSeq or a copy of it
+     * @throws InvalidMidiDataException if the sequencer cannot play it
+     */
+    private void setSequencerSequence(Sequence seq)
+        throws InvalidMidiDataException {
+        long position = mSequencer.getTickPosition();
+        mSequencer.setSequence(seq);
+        for (int i = 0; i < mSeq.getTrackCount(); ++i) {
+            mSequencer.setTrackMute(i, mSeq.isTrackMuted(i));
+        }
+        loop(mPlayController.isLooping());
+        mSequencer.setTickPosition(position);
     }
 
     public void setLookAndFeel(String lafName) {
@@ -1098,7 +1381,16 @@ public class MidiQuickFix
     @Override
     public void play() {
         try {
-            mSequencer.setSequence(mSeq);
+            if (mSequencer.getSequence() != mSeq) {
+                mSequencer.setSequence(mSeq);
+                // Apply the settings made before the sequence was played.
+                for (int i = 0; i < mSeq.getTrackCount(); ++i) {
+                    mSequencer.setTrackMute(i, mSeq.isTrackMuted(i));
+                }
+                loop(mPlayController.isLooping());
+            } else {
+                mSequencer.setSequence(mSeq);
+            }
         } catch (InvalidMidiDataException imde) {
             trace("Exception in play() " + imde); // NOI18N
             showDialog(UiStrings.getString("play_sequence_error")
@@ -1153,6 +1445,10 @@ public class MidiQuickFix
     @Override
     public void loop(boolean loop) {
         positionSlider.setIsLooping(loop);
+        if (mSequencer.getSequence() != mSeq) {
+            // The loop is set when the sequence is played.
+            return;
+        }
         if (loop) {
             long inPoint = positionSlider.getLoopInPoint();
             long outPoint = positionSlider.getLoopOutPoint();
@@ -1274,6 +1570,7 @@ public class MidiQuickFix
         detailsTabbedPane = new javax.swing.JTabbedPane();
         summaryPanel = new javax.swing.JPanel();
         editorPanel = new javax.swing.JPanel();
+        pianoRollPanel = new javax.swing.JPanel();
         trackMixerPanel = new javax.swing.JPanel();
         lyricsPanel = new javax.swing.JPanel();
         topPanel = new javax.swing.JPanel();
@@ -1488,6 +1785,9 @@ public class MidiQuickFix
         editorPanel.setLayout(new javax.swing.BoxLayout(editorPanel, javax.swing.BoxLayout.LINE_AXIS));
         detailsTabbedPane.addTab(UiStrings.getString("track_editor"), editorPanel); // NOI18N
 
+        pianoRollPanel.setLayout(new java.awt.BorderLayout());
+        detailsTabbedPane.addTab(UiStrings.getString("piano_roll"), pianoRollPanel); // NOI18N
+
         trackMixerPanel.setLayout(new java.awt.BorderLayout());
         detailsTabbedPane.addTab(UiStrings.getString("track_mixer"), trackMixerPanel); // NOI18N
 
@@ -1599,7 +1899,6 @@ public class MidiQuickFix
         quantiseMenuItem.setMnemonic(java.util.ResourceBundle.getBundle("com/lemckes/MidiQuickFix/Bundle").getString("QuantiseMenuItem.mnemonic").charAt(0));
         java.util.ResourceBundle bundle1 = java.util.ResourceBundle.getBundle("com/lemckes/MidiQuickFix/Bundle"); // NOI18N
         quantiseMenuItem.setText(bundle1.getString("QuantiseMenuItem.text")); // NOI18N
-        quantiseMenuItem.setEnabled(false);
         quantiseMenuItem.addActionListener(new java.awt.event.ActionListener() {
             public void actionPerformed(java.awt.event.ActionEvent evt) {
                 quantiseMenuItemActionPerformed(evt);
@@ -1720,7 +2019,7 @@ public class MidiQuickFix
     }//GEN-LAST:event_preferencesMenuItemActionPerformed
 
     private void quantiseMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_quantiseMenuItemActionPerformed
-        //  showQuantiseDialog();
+        showQuantiseDialog();
     }//GEN-LAST:event_quantiseMenuItemActionPerformed
 
     private void reloadMenuitemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_reloadMenuitemActionPerformed
@@ -1736,7 +2035,13 @@ public class MidiQuickFix
      *
      * @param args The command line arguments
      */
-    public static void main(String args[]) {
+    public static void main(String args[]) throws Exception {
+        if (args.length > 0 && args[0].equals("--batch")) { // NOI18N
+            // Process files without creating the user interface.
+            BatchProcessor.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         MqfProperties.readProperties();
 
         // Install FlatLaf look and feel
@@ -1778,7 +2083,6 @@ public class MidiQuickFix
         Properties p = System.getProperties();
         // p.list(System.out);
         mJavaVersion = p.getProperty("java.version", "No java.version found"); // NOI18N
-        VERSION_1_4_2_BUG = mJavaVersion.substring(0, 5).equals("1.4.2"); // NOI18N
 
         // Disable renaming files in the file chooser
         UIManager.put("FileChooser.readOnly", Boolean.TRUE);
@@ -1836,6 +2140,7 @@ public class MidiQuickFix
     private javax.swing.JMenuBar menuBar;
     private javax.swing.JMenuItem openMenuItem;
     private javax.swing.JMenu openRecentMenu;
+    private javax.swing.JPanel pianoRollPanel;
     private javax.swing.JPanel playControlPanel;
     private com.lemckes.MidiQuickFix.components.LoopSlider positionSlider;
     private javax.swing.JMenuItem preferencesMenuItem;
@@ -26,7 +26,7 @@ package com.lemckes.MidiQuickFix;
  * Convert between Midi note numbers and textual note names.
  * todo This probably should be i18n'd.
  */
-class NoteNames {
+public class NoteNames {
 
     static final double[] limits = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
     static final String[] sharpNames = {
@@ -42,7 +42,7 @@ class NoteNames {
     static java.text.ChoiceFormat cf =
         new java.text.ChoiceFormat(limits, sharpNames);
 
-    static String getNoteName(int note, boolean flats) {
+    public static String getNoteName(int note, boolean flats) {
 
         if (flats) {
             cf.setChoices(limits, flatNames);
@@ -28,17 +28,19 @@ package com.lemckes.MidiQuickFix;
 import com.lemckes.MidiQuickFix.components.histogram.QHist;
 import com.lemckes.MidiQuickFix.components.histogram.QHistBackground;
 import com.lemckes.MidiQuickFix.components.histogram.QHistChart;
-import com.lemckes.MidiQuickFix.util.Formats;
 import com.lemckes.MidiQuickFix.util.MqfSequence;
+import com.lemckes.MidiQuickFix.util.QuantiseAnalysis;
+import com.lemckes.MidiQuickFix.util.UiStrings;
 import com.lemckes.j2di.ICanvas;
 import com.lemckes.j2di.ICanvasScrollPane;
 import java.awt.Frame;
+import java.text.MessageFormat;
 import java.util.ArrayList;
-import javax.sound.midi.MetaMessage;
-import javax.sound.midi.MidiEvent;
-import javax.sound.midi.ShortMessage;
-import javax.sound.midi.Track;
+import java.util.Arrays;
+import java.util.List;
 import javax.swing.JCheckBox;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 /**
  * Allow the user to quantise a sequence
@@ -47,22 +49,31 @@ public class QuantiseDialog
     extends javax.swing.JDialog
 {
 
+    /**
+     * A return status code - returned if Cancel button has been pressed
+     */
+    public static final int RET_CANCEL = 0;
+    /**
+     * A return status code - returned if OK button has been pressed
+     */
+    public static final int RET_OK = 1;
+
     private final MqfSequence mSequence;
-    private ArrayList<String> mTrackNames;
-    private ArrayList<ArrayList<Integer>> mNoteOnEventOffsets;
-    private ArrayList<ArrayList<Integer>> mNoteOffEventOffsets;
-    private ArrayList<ArrayList<Integer>> mLyricEventOffsets;
-    private final ArrayList<QHist> mNoteOnHistograms;
-    private final ArrayList<QHist> mNoteOffHistograms;
-    private final ArrayList<QHist> mLyricHistograms;
+    private final QuantiseAnalysis mAnalysis;
     private final ICanvas mChart;
+    private final ArrayList<QHistChart> mCharts = new ArrayList<>(8);
     private final QHistBackground mBackground;
     private final ArrayList<JCheckBox> mCheckBoxes = new ArrayList<>(8);
+    private final List<ChangeListener> mChangeListeners = new ArrayList<>();
+    private int mGridTicks;
+    private int returnStatus = RET_CANCEL;
 
     /**
-     * Create a new QuantiseDialog for the given Sequence
+     * Create a new QuantiseDialog for the given Sequence.
+     * The sequence is analysed once, changing the quantise level or the
+     * tracks only redraws the histograms and the preview of the moves.
      *
-     * @param seq the sequence in which to create the track
+     * @param seq the sequence to quantise
      * @param parent
      * @param modal
      */
@@ -74,338 +85,150 @@ public class QuantiseDialog
         mChart = chartPane.getCanvas();
 
         mSequence = seq;
-
-        mNoteOnHistograms
-            = new ArrayList<>(mSequence.getTracks().length);
-        mNoteOffHistograms
-            = new ArrayList<>(mSequence.getTracks().length);
-        mLyricHistograms
-            = new ArrayList<>(mSequence.getTracks().length);
-
-        analyseSequence(seq);
+        mAnalysis = new QuantiseAnalysis(seq);
 
         createTrackCheckBoxes();
 
-        mBackground = new QHistBackground(mNoteOnHistograms.get(0));
+        mBackground = new QHistBackground(new QHist());
 //        mChart.add(mBackground);
 
         mainPanel.add(chartPane);
 
+        quarterNoteButton.setSelected(true);
+        setQuantiseLevel(1);
+
         pack();
         setLocationRelativeTo(parent);
     }
 
-//    private void createTrackRadioButtons() {
-//        for (int i = 0; i < mSequence.getTracks().length; ++i) {
-//            JRadioButton trackRadio = new JRadioButton();
-//            trackRadioGroup.add(trackRadio);
-//            trackRadio.setText(Integer.toString(i));
-//            trackRadio.setName("trackRadio_" + i); // NOI18N
-//            trackRadio.addActionListener(new java.awt.event.ActionListener() {
-//                @Override
-//                public void actionPerformed(java.awt.event.ActionEvent evt) {
-//                    JRadioButton rb = (JRadioButton)evt.getSource();
-//                    if (rb.isSelected()) {
-//                        drawChart(Integer.parseInt(rb.getText()));
-//                    }
-//                }
-//            });
-//            trackRadioPanel.add(trackRadio);
-//        }
-//    }
     private void createTrackCheckBoxes() {
-        for (int i = 0; i < mSequence.getTracks().length; ++i) {
+        for (int i = 0; i < mAnalysis.getTrackCount(); ++i) {
             JCheckBox trackCheck = new JCheckBox();
             trackCheck.setText(Integer.toString(i));
             trackCheck.setName("trackCheck_" + i); // NOI18N
             trackCheck.addActionListener((java.awt.event.ActionEvent evt) -> {
-                drawSelectedTrackCharts();
+                quantiseChanged();
             });
-            trackCheck.setToolTipText(mTrackNames.get(i));
+            trackCheck.setToolTipText(mSequence.getTrackName(i));
+            // Start with the tracks that have something to quantise.
+            trackCheck.setSelected(
+                mAnalysis.getMoves(new int[]{i}, 1).getEventCount() > 0);
             mCheckBoxes.add(trackCheck);
             trackRadioPanel.add(trackCheck);
         }
     }
 
-    private void drawSelectedTrackCharts() {
-
-        // Work out the dimensions for the chart
-        double maxVal = 0;
-        int numValues = 0;
-        for (JCheckBox cb : mCheckBoxes) {
-            if (cb.isSelected()) {
-                int trackNum = Integer.parseInt(cb.getText());
-
-                // Find the maximum number of values in the data
-                numValues = (int)Math.max(
-                    numValues, mNoteOnHistograms.get(trackNum).getNumValues());
-
-                boolean noteOnEnabled = !mNoteOnEventOffsets.isEmpty()
-                    && noteOnToggle.isSelected();
-                boolean noteOffEnabled = !mNoteOffEventOffsets.isEmpty()
-                    && noteOffToggle.isSelected();
-                boolean lyricEnabled = !mLyricEventOffsets.isEmpty()
-                    && lyricToggle.isSelected();
-
-                if (noteOnEnabled) {
-                    maxVal = mNoteOnHistograms.get(trackNum).getMaxValue();
-                }
-                if (noteOffEnabled) {
-                    maxVal = Math.max(maxVal,
-                        mNoteOffHistograms.get(trackNum).getMaxValue());
-                }
-                if (lyricEnabled) {
-                    maxVal = Math.max(maxVal,
-                        mLyricHistograms.get(trackNum).getMaxValue());
-                }
-            }
-        }
-//        BucketAxis xaxis = (BucketAxis)mChart.getXAxis();
-//        xaxis.setNumberOfBlocksVisible(numValues);
-//        xaxis.setTotalNumberOfBlocks(numValues);
-//        ContinuousAxis yaxis = (ContinuousAxis)mChart.getYAxis();
-//        yaxis.setMaxValue(maxVal);
-//        yaxis.setVisibleSize(maxVal);
-
-        for (JCheckBox cb : mCheckBoxes) {
-            if (cb.isSelected()) {
-                drawChart(Integer.parseInt(cb.getText()));
-            }
-        }
+    /**
+     * Set the grid from the number of notes in a beat.
+     *
+     * @param notesPerBeat the notes in a beat, 1.5 for quarter note triplets
+     */
+    private void setQuantiseLevel(double notesPerBeat) {
+        mGridTicks = Math.max(1,
+            (int)(mAnalysis.getResolution() / notesPerBeat));
+        mBackground.setQuantiseLevel(notesPerBeat);
+        quantiseChanged();
     }
 
-    private void drawChart(int trackNum) {
-        System.out.println("Drawing chart for track " + trackNum);
-//        mChart.clearChart();
-//        BucketAxis xaxis = (BucketAxis)mChart.getXAxis();
-//        xaxis.setNumberOfBlocksVisible(mNoteOnHistograms.get(trackNum).size());
-//        xaxis.setTotalNumberOfBlocks(mNoteOnHistograms.get(trackNum).size());
-//
-        boolean noteOnEnabled = !mNoteOnEventOffsets.isEmpty()
-            && noteOnToggle.isSelected();
-        boolean noteOffEnabled = !mNoteOffEventOffsets.isEmpty()
-            && noteOffToggle.isSelected();
-        boolean lyricEnabled = !mLyricEventOffsets.isEmpty()
-            && lyricToggle.isSelected();
-
-//        double maxVal = 0;
-//        if (noteOnEnabled) {
-//            maxVal =mNoteOnHistograms.get(trackNum).getMaxValue();
-//        }
-//        if (noteOffEnabled) {
-//            maxVal = Math.max(maxVal,mNoteOffHistograms.get(trackNum).getMaxValue());
-//        }
-//        if (lyricEnabled) {
-//            maxVal = Math.max(maxVal,mLyricHistograms.get(trackNum).getMaxValue());
-//        }
-        int width = mChart.getWidth();
-        int height = mChart.getHeight();
-        if (noteOnEnabled) {
-            mChart.add(new QHistChart(mNoteOnHistograms.get(trackNum), width, height));
-        }
-        if (noteOffEnabled) {
-            mChart.add(new QHistChart(mNoteOffHistograms.get(trackNum), width, height));
-        }
-        if (lyricEnabled) {
-            mChart.add(new QHistChart(mLyricHistograms.get(trackNum), width, height));
-        }
+    /**
+     * Redraw the histograms and the preview for the current grid and
+     * tracks, and tell the listeners so that they can audition them.
+     */
+    private void quantiseChanged() {
+        drawSelectedTrackCharts();
+        int[] tracks = getSelectedTracks();
+        QuantiseAnalysis.Moves moves = mAnalysis.getMoves(tracks, mGridTicks);
+        previewLabel.setText(MessageFormat.format(
+            UiStrings.getString("QuantiseDialog.preview"),
+            moves.getMovedCount(), moves.getEventCount(),
+            moves.getMaxTicks(), moves.getAverageTicks()));
+        okButton.setEnabled(tracks.length > 0);
+        fireStateChanged();
     }
 
-    private void quantiseSequence(MqfSequence mSequence, int quantiseLevel) {
-        int resolution = mSequence.getResolution();
-        int tickRounding = resolution / quantiseLevel;
-        
-        int trackNum = 0;
-        for (Track t : mSequence.getTracks()) {
-            int noteOnIndex = 0;
-            int noteOffIndex = 0;
-            int lyricIndex = 0;
-
-            int offset = 0;
-
-            for (int i = 0; i < t.size(); ++i) {
-                MidiEvent ev = t.get(i);
-                long tick = ev.getTick();
-                if (ev.getMessage() instanceof ShortMessage) {
-                    ShortMessage sm = (ShortMessage)ev.getMessage();
-                    int n = sm.getCommand();
-                    switch (n) {
-                        case ShortMessage.NOTE_ON:
-                            int velocity = sm.getData2();
-                            if (velocity != 0) {
-                                offset = mNoteOnEventOffsets.get(trackNum).get(noteOnIndex++);
-                            } else {
-                                offset = mNoteOffEventOffsets.get(trackNum).get(noteOffIndex++);
-                            }
-                            break;
-                        case ShortMessage.NOTE_OFF:
-                            offset = mNoteOffEventOffsets.get(trackNum).get(noteOffIndex++);
-                            break;
-                        default:
-                        // Ignore
-                    }
-                } else if (ev.getMessage() instanceof MetaMessage) {
-                    MetaMessage mm = (MetaMessage)ev.getMessage();
-                    if (mm.getType() == MetaEvent.LYRIC) {
-                        offset = mLyricEventOffsets.get(trackNum).get(lyricIndex++);
-                    }
-                }
+    private void drawSelectedTrackCharts() {
+        for (QHistChart chart : mCharts) {
+            mChart.remove(chart);
+        }
+        mCharts.clear();
 
-                int adjustment = offset % tickRounding;
-                if (adjustment > tickRounding / 2) {
-                    adjustment = adjustment - tickRounding;
-                }
-                if (adjustment != 0) {
-                    ev.setTick(tick - adjustment);
+        int[] types = {
+            noteOnToggle.isSelected() ? QuantiseAnalysis.NOTE_ON : -1,
+            noteOffToggle.isSelected() ? QuantiseAnalysis.NOTE_OFF : -1,
+            lyricToggle.isSelected() ? QuantiseAnalysis.LYRIC : -1
+        };
+        int width = mChart.getWidth();
+        int height = mChart.getHeight();
+        for (int trackNum : getSelectedTracks()) {
+            for (int type : types) {
+                if (type >= 0) {
+                    QHist hist = new QHist(
+                        mAnalysis.getGridCounts(trackNum, type, mGridTicks));
+                    QHistChart chart = new QHistChart(hist, width, height);
+                    mCharts.add(chart);
+                    mChart.add(chart);
                 }
             }
-            trackNum++;
         }
+        mChart.repaint();
     }
 
-    private void analyseSequence(MqfSequence mSequence) {
-        int ticksPerBeat = mSequence.getResolution();
-        int quantiseLevel = Math.round(ticksPerBeat / 1f);
-        int sixtyfourths = quantiseLevel / 12;
-        System.out.println("ticksPerBeat  = " + ticksPerBeat);
-        System.out.println("quantiseLevel = " + quantiseLevel);
-        System.out.println("sixtyfourths = " + sixtyfourths);
-
-        int numTracks = mSequence.getTracks().length;
+    /**
+     * @return the number of ticks between the points of the grid
+     */
+    public int getGridTicks() {
+        return mGridTicks;
+    }
 
-        mTrackNames = new ArrayList<>(numTracks);
-        for (int i = 0; i < numTracks; ++i) {
-            mTrackNames.add("Track " + i);
+    /**
+     * @return the indexes of the tracks to quantise
+     */
+    public int[] getSelectedTracks() {
+        int[] tracks = new int[mCheckBoxes.size()];
+        int count = 0;
+        for (int i = 0; i < mCheckBoxes.size(); ++i) {
+            if (mCheckBoxes.get(i).isSelected()) {
+                tracks[count++] = i;
+            }
         }
+        return Arrays.copyOf(tracks, count);
+    }
 
-        mNoteOnEventOffsets = new ArrayList<>(numTracks);
-        mNoteOffEventOffsets = new ArrayList<>(numTracks);
-        mLyricEventOffsets = new ArrayList<>(numTracks);
-        int trackNum = 0;
-        for (Track t : mSequence.getTracks()) {
-            ArrayList<Integer> trackNoteOnEventOffsets
-                = new ArrayList<>(t.size() / 2);
-            mNoteOnEventOffsets.add(trackNoteOnEventOffsets);
-            ArrayList<Integer> trackNoteOffEventOffsets
-                = new ArrayList<>(t.size() / 2);
-            mNoteOffEventOffsets.add(trackNoteOffEventOffsets);
-            ArrayList<Integer> trackLyricEventOffsets
-                = new ArrayList<>(t.size() / 2);
-            mLyricEventOffsets.add(trackLyricEventOffsets);
-
-            // Collect the offsets for all the NOTE_ON, NOTE_OFF and LYRIC events
-            // for this track
-            for (int i = 0; i < t.size(); ++i) {
-                MidiEvent ev = t.get(i);
-                long tick = ev.getTick();
-                int offset = (int)(tick % quantiseLevel);
-                boolean oddOffset = false;
-                if (offset > 0) {
-                    oddOffset = !(offset % sixtyfourths == 0);
-                }
+    /**
+     * @return true if the quantised tracks should be played
+     * while the dialog is open
+     */
+    public boolean getAudition() {
+        return auditionCheckBox.isSelected();
+    }
 
-                if (ev.getMessage() instanceof ShortMessage) {
-                    ShortMessage sm = (ShortMessage)ev.getMessage();
-                    int n = sm.getCommand();
-                    switch (n) {
-                        case ShortMessage.NOTE_ON:
-                            if (oddOffset) {
-                                System.out.println("Odd Offset:" + offset + " - Track:" + trackNum
-                                    + ", Tick:" + Formats.formatTicks(tick, quantiseLevel, true));
-                            }
-                            int velocity = sm.getData2();
-                            if (velocity != 0) {
-                                trackNoteOnEventOffsets.add(offset);
-                            } else {
-                                trackNoteOffEventOffsets.add(offset);
-                            }
-                            break;
-                        case ShortMessage.NOTE_OFF:
-                            if (oddOffset) {
-                                System.out.println("Odd Offset:" + offset + " - Track:" + trackNum
-                                    + ", Tick:" + Formats.formatTicks(tick, quantiseLevel, true));
-                            }
-                            trackNoteOffEventOffsets.add(offset);
-                            break;
-                        default:
-                        // Ignore
-                    }
-                } else if (ev.getMessage() instanceof MetaMessage) {
-                    MetaMessage mm = (MetaMessage)ev.getMessage();
-                    if (mm.getType() == MetaEvent.LYRIC) {
-                        if (oddOffset) {
-                            System.out.println("Odd Offset:" + offset + " - Track:" + trackNum
-                                + ", Tick:" + Formats.formatTicks(tick, quantiseLevel, true));
-                        }
-                        trackLyricEventOffsets.add(offset);
-                    }
-                    if (mm.getType() == MetaEvent.TRACK_NAME) {
-                        mTrackNames.set(trackNum,
-                            (String)MetaEvent.getMetaStrings((MetaMessage)mm)[2]);
-                    }
-                }
-            }
-            System.out.println("NOTE_ONs  = " + trackNoteOnEventOffsets.size());
-            System.out.println("NOTE_OFFs = " + trackNoteOffEventOffsets.size());
-            System.out.println("LYRICs    = " + trackLyricEventOffsets.size());
-
-            // Count the number of events for each offset for this track
-            QHist trackNoteOnHistograms = new QHist();
-            QHist trackNoteOffHistograms = new QHist();
-            QHist trackLyricHistograms = new QHist();
-            if (mNoteOnEventOffsets.size() > 0) {
-                mNoteOnHistograms.add(trackNoteOnHistograms);
-                // Initialise the histogram to zeros
-                for (int i = 0; i < quantiseLevel; ++i) {
-                    trackNoteOnHistograms.put(i, 0);
-                }
-                // Count the NOTE_ON events for each offset
-                for (int i : trackNoteOnEventOffsets) {
-                    trackNoteOnHistograms.put(i, trackNoteOnHistograms.get(i) + 1);
-                }
-            }
-            if (mNoteOnEventOffsets.size() > 0) {
-                mNoteOffHistograms.add(trackNoteOffHistograms);
-                // Initialise the histogram to zeros
-                for (int i = 0; i < quantiseLevel; ++i) {
-                    trackNoteOffHistograms.put(i, 0);
-                }
-                // Count the NOTE_OFF events for each offset
-                for (int i : trackNoteOffEventOffsets) {
-                    trackNoteOffHistograms.put(i, trackNoteOffHistograms.get(i) + 1);
-                }
+    /**
+     * Listen for changes to the grid, the tracks or the audition setting.
+     *
+     * @param l the listener
+     */
+    public void addChangeListener(ChangeListener l) {
+        mChangeListeners.add(l);
+    }
 
-            }
-            if (mNoteOnEventOffsets.size() > 0) {
-                mLyricHistograms.add(trackLyricHistograms);
-                // Initialise the histogram to zeros
-                for (int i = 0; i < quantiseLevel; ++i) {
-                    trackLyricHistograms.put(i, 0);
-                }
-                // Count the LYRIC events for each offset
-                for (int i : trackLyricEventOffsets) {
-                    trackLyricHistograms.put(i, trackLyricHistograms.get(i) + 1);
-                }
-            }
+    public void removeChangeListener(ChangeListener l) {
+        mChangeListeners.remove(l);
+    }
 
-            System.out.println("Histograms ");
-            System.out.println("Offset\tON\tOFF");
-            for (int i = 0; i < quantiseLevel; ++i) {
-                if (trackNoteOnHistograms.get(i) > 0
-                    || trackNoteOffHistograms.get(i) > 0
-                    || trackLyricHistograms.get(i) > 0) {
-                    System.out.println(
-                        i + "\t"
-                        + trackNoteOnHistograms.get(i) + "\t"
-                        + trackNoteOffHistograms.get(i) + "\t"
-                        + trackLyricHistograms.get(i));
-                }
-            }
-            System.out.println("END track " + trackNum);
-            trackNum++;
+    private void fireStateChanged() {
+        ChangeEvent e = new ChangeEvent(this);
+        for (ChangeListener l : mChangeListeners) {
+            l.stateChanged(e);
         }
     }
 
+    /**
+     * @return the return status of this dialog - one of RET_OK or RET_CANCEL
+     */
+    public int getReturnStatus() {
+        return returnStatus;
+    }
+
     /**
      * Parse an integer from a string, returning zero if the string
      * does not represent a valid integer.
@@ -424,7 +247,8 @@ public class QuantiseDialog
         return i;
     }
 
-    private void doClose() {
+    private void doClose(int retStatus) {
+        returnStatus = retStatus;
         setVisible(false);
         dispose();
     }
@@ -461,6 +285,8 @@ public class QuantiseDialog
         noteOffToggle = new javax.swing.JToggleButton();
         lyricToggle = new javax.swing.JToggleButton();
         jPanel2 = new javax.swing.JPanel();
+        previewLabel = new javax.swing.JLabel();
+        auditionCheckBox = new javax.swing.JCheckBox();
         buttonPanel = new javax.swing.JPanel();
         okButton = new javax.swing.JButton();
         cancelButton = new javax.swing.JButton();
@@ -626,6 +452,19 @@ public class QuantiseDialog
         jPanel2.setName("jPanel2"); // NOI18N
         jPanel2.setLayout(new java.awt.FlowLayout(java.awt.FlowLayout.TRAILING));
 
+        previewLabel.setName("previewLabel"); // NOI18N
+        jPanel2.add(previewLabel);
+
+        auditionCheckBox.setText(bundle.getString("QuantiseDialog.auditionCheckBox.text")); // NOI18N
+        auditionCheckBox.setToolTipText(bundle.getString("QuantiseDialog.auditionCheckBox.toolTipText")); // NOI18N
+        auditionCheckBox.setName("auditionCheckBox"); // NOI18N
+        auditionCheckBox.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                auditionCheckBoxActionPerformed(evt);
+            }
+        });
+        jPanel2.add(auditionCheckBox);
+
         buttonPanel.setName("buttonPanel"); // NOI18N
         buttonPanel.setLayout(new java.awt.GridLayout(1, 0, 5, 0));
 
@@ -655,12 +494,11 @@ public class QuantiseDialog
     }// </editor-fold>//GEN-END:initComponents
 
     private void okButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_okButtonActionPerformed
-        quantiseSequence(mSequence, (int)mBackground.getQuantiseLevel());
-        doClose();
+        doClose(RET_OK);
     }//GEN-LAST:event_okButtonActionPerformed
 
     private void cancelButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cancelButtonActionPerformed
-        doClose();
+        doClose(RET_CANCEL);
     }//GEN-LAST:event_cancelButtonActionPerformed
 
     private void noteOnToggleActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_noteOnToggleActionPerformed
@@ -677,44 +515,57 @@ public class QuantiseDialog
 
     private void quarterNoteButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_quarterNoteButtonActionPerformed
         if (quarterNoteButton.isSelected()) {
-            mBackground.setQuantiseLevel(1);
+            setQuantiseLevel(1);
         }
     }//GEN-LAST:event_quarterNoteButtonActionPerformed
 
     private void eighthNoteButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_eighthNoteButtonActionPerformed
         if (eighthNoteButton.isSelected()) {
-            mBackground.setQuantiseLevel(2);
+            setQuantiseLevel(2);
         }
     }//GEN-LAST:event_eighthNoteButtonActionPerformed
 
     private void sixteenthNoteButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_sixteenthNoteButtonActionPerformed
         if (sixteenthNoteButton.isSelected()) {
-            mBackground.setQuantiseLevel(4);
+            setQuantiseLevel(4);
         }
     }//GEN-LAST:event_sixteenthNoteButtonActionPerformed
 
     private void thirtysecondNoteButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_thirtysecondNoteButtonActionPerformed
         if (thirtysecondNoteButton.isSelected()) {
-            mBackground.setQuantiseLevel(8);
+            setQuantiseLevel(8);
         }
     }//GEN-LAST:event_thirtysecondNoteButtonActionPerformed
 
     private void quarterTripletButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_quarterTripletButtonActionPerformed
-        // TODO add your handling code here:
+        if (quarterTripletButton.isSelected()) {
+            setQuantiseLevel(1.5);
+        }
     }//GEN-LAST:event_quarterTripletButtonActionPerformed
 
     private void eighthTripletButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_eighthTripletButtonActionPerformed
-        // TODO add your handling code here:
+        if (eighthTripletButton.isSelected()) {
+            setQuantiseLevel(3);
+        }
     }//GEN-LAST:event_eighthTripletButtonActionPerformed
 
     private void sixteenthTripletButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_sixteenthTripletButtonActionPerformed
-        // TODO add your handling code here:
+        if (sixteenthTripletButton.isSelected()) {
+            setQuantiseLevel(6);
+        }
     }//GEN-LAST:event_sixteenthTripletButtonActionPerformed
 
     private void thirtysecondTripletButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_thirtysecondTripletButtonActionPerformed
-        // TODO add your handling code here:
+        if (thirtysecondTripletButton.isSelected()) {
+            setQuantiseLevel(12);
+        }
     }//GEN-LAST:event_thirtysecondTripletButtonActionPerformed
+
+    private void auditionCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_auditionCheckBoxActionPerformed
+        fireStateChanged();
+    }//GEN-LAST:event_auditionCheckBoxActionPerformed
     // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JCheckBox auditionCheckBox;
     private javax.swing.JPanel buttonPanel;
     private javax.swing.JButton cancelButton;
     private javax.swing.JToggleButton eighthNoteButton;
@@ -728,6 +579,7 @@ public class QuantiseDialog
     private javax.swing.JToggleButton noteOffToggle;
     private javax.swing.JToggleButton noteOnToggle;
     private javax.swing.JButton okButton;
+    private javax.swing.JLabel previewLabel;
     private javax.swing.ButtonGroup quantiseButtonGroup;
     private javax.swing.JLabel quantiseLevelLabel;
     private javax.swing.JPanel quantiseLevelPanel;
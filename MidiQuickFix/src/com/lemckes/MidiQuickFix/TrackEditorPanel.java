@@ -25,10 +25,16 @@
 package com.lemckes.MidiQuickFix;
 
 import static com.lemckes.MidiQuickFix.ShortEvent.isChannelMessage;
+import com.lemckes.MidiQuickFix.util.TrackTransform;
 import com.lemckes.MidiQuickFix.util.TrackUpdateUtils;
+import com.lemckes.MidiQuickFix.util.EditHistory;
 import com.lemckes.MidiQuickFix.util.EventCreationEvent;
 import com.lemckes.MidiQuickFix.util.EventCreationListener;
+import com.lemckes.MidiQuickFix.util.EventFilter;
 import com.lemckes.MidiQuickFix.util.MqfSequence;
+import com.lemckes.MidiQuickFix.util.SequenceChange;
+import com.lemckes.MidiQuickFix.util.SequenceChangeBus;
+import com.lemckes.MidiQuickFix.util.SequenceChangeListener;
 import com.lemckes.MidiQuickFix.util.TraceDialog;
 import com.lemckes.MidiQuickFix.util.UiStrings;
 import javax.sound.midi.InvalidMidiDataException;
@@ -39,6 +45,8 @@ import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Track;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JOptionPane;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import javax.swing.event.TableModelListener;
@@ -48,7 +56,8 @@ import javax.swing.event.TableModelListener;
  */
 public class TrackEditorPanel
     extends javax.swing.JPanel
-    implements EventCreationListener, ListSelectionListener
+    implements EventCreationListener, ListSelectionListener,
+    SequenceChangeListener
 {
 
     private static final long serialVersionUID = -3117013688244779503L;
@@ -56,7 +65,10 @@ public class TrackEditorPanel
     private int mCurrentTrack;
     private String mKeySig;
     private CreateEventDialog mCreateEventDialog;
+    private SequenceChangeBus mChangeBus;
     private final TrackTable trackTable;
+    private EventFilter mFilter;
+    private java.awt.Color mFilterForeground;
 
     /**
      * Creates new form TrackEditorPanel
@@ -66,6 +78,45 @@ public class TrackEditorPanel
         trackTable = new TrackTable();
         tableScrollPane.setViewportView(trackTable);
         trackTable.getSelectionModel().addListSelectionListener(this);
+        mFilterForeground = filterField.getForeground();
+        filterField.getDocument().addDocumentListener(new DocumentListener()
+        {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                applyFilter();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                applyFilter();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                applyFilter();
+            }
+        });
+    }
+
+    /**
+     * Show only the events that pass the filter in the filter field.
+     * While the text can not be understood the field is shown in red
+     * and the previous filter stays in use.
+     */
+    private void applyFilter() {
+        if (mSeq == null) {
+            return;
+        }
+        try {
+            mFilter = EventFilter.parse(filterField.getText(), mSeq);
+            filterField.setForeground(mFilterForeground);
+            filterField.setToolTipText(UiStrings.getString("filter_tooltip")); // NOI18N
+        } catch (IllegalArgumentException ex) {
+            filterField.setForeground(java.awt.Color.RED);
+            filterField.setToolTipText(ex.getMessage());
+            return;
+        }
+        trackTable.setFilter(mFilter);
     }
 
     @Override
@@ -85,9 +136,9 @@ public class TrackEditorPanel
         mSeq = seq;
         boolean haveTracks = false;
         if (mSeq != null) {
-            int numTracks = mSeq.getTracks().length;
+            int numTracks = mSeq.getTrackCount();
             if (numTracks > 0) {
-                setTrackComboModel(mSeq.getTracks());
+                setTrackComboModel(mSeq);
                 mCurrentTrack = 0;
                 trackSelector.setSelectedIndex(mCurrentTrack);
                 haveTracks = true;
@@ -95,6 +146,39 @@ public class TrackEditorPanel
         }
         trackSelector.setEnabled(haveTracks);
         showNotesCheck.setEnabled(haveTracks);
+        filterField.setEnabled(haveTracks);
+        // The bars of the filter depend on the sequence.
+        applyFilter();
+    }
+
+    /**
+     * Set the bus that the edits made by the TrackUpdateUtils are
+     * posted to. The table is refreshed when the bus passes them on.
+     * @param bus the change bus
+     */
+    public void setChangeBus(SequenceChangeBus bus) {
+        mChangeBus = bus;
+    }
+
+    @Override
+    public void sequenceChanged(SequenceChange change) {
+        if (mSeq == null) {
+            return;
+        }
+        if (change.isTracksChanged()) {
+            // Keep showing the same track if it still exists.
+            int numTracks = mSeq.getTrackCount();
+            if (numTracks > 0) {
+                int track = Math.min(mCurrentTrack, numTracks - 1);
+                setTrackComboModel(mSeq);
+                trackSelector.setSelectedIndex(track);
+            }
+            trackSelector.setEnabled(numTracks > 0);
+            showNotesCheck.setEnabled(numTracks > 0);
+            filterField.setEnabled(numTracks > 0);
+        } else if (change.getChangedTracks().contains(mCurrentTrack)) {
+            trackTable.trackChangedElsewhere();
+        }
     }
 
     public String getCurrentTrackTitle() {
@@ -103,37 +187,23 @@ public class TrackEditorPanel
 
     /**
      * Populate the entries in the track selector combo with
-     * the track number and track names from the tracks array.
+     * the track number and track names from the sequence.
+     * The names come from the TrackInfo so the tracks are not decoded.
      */
-    void setTrackComboModel(Track[] tracks) {
+    void setTrackComboModel(MqfSequence seq) {
         // Update the track selector combobox model
-        String[] trackList = new String[tracks.length];
-        for (int i = 0; i < tracks.length; ++i) {
+        String[] trackList = new String[seq.getTrackCount()];
+        for (int i = 0; i < trackList.length; ++i) {
             trackList[i] = Integer.toString(i);
-            Track t = tracks[i];
-            int count = t.size() - 1;
-            long startTick = 0;
-            if (count > 0) {
-                startTick = t.get(0).getTick();
-            }
-            for (int j = 0; j < count; ++j) {
-                MidiEvent ev = t.get(j);
-                MidiMessage mess = ev.getMessage();
-                // Don't bother looking at events after the first tick.
-                if (ev.getTick() > startTick) {
-                    break;
-                }
-                if (mess.getStatus() == MetaMessage.META) {
-                    int type = ((MetaMessage)mess).getType();
-                    Object[] str = MetaEvent.getMetaStrings((MetaMessage)mess);
-                    if (type == MetaEvent.TRACK_NAME) {
-                        trackList[i] += " - " + str[2];
-                    } else if (type == MetaEvent.KEY_SIGNATURE) {
-                        mKeySig = (String)str[2];
-                    }
-                }
+            String name = seq.getTrackName(i);
+            if (name != null) {
+                trackList[i] += " - " + name;
             }
         }
+        MetaMessage keySig = seq.findTickZeroMeta(MetaEvent.KEY_SIGNATURE);
+        if (keySig != null) {
+            mKeySig = (String)MetaEvent.getMetaStrings(keySig)[2];
+        }
         trackSelector.setModel(new DefaultComboBoxModel<>(trackList));
     }
 
@@ -145,10 +215,11 @@ public class TrackEditorPanel
         mCurrentTrack = trackNum;
         if (mSeq != null) {
             trackTable.setTrack(
-                mSeq.getTracks()[mCurrentTrack],
-                mSeq.getResolution(),
+                mSeq,
+                mCurrentTrack,
                 showNotesCheck.isSelected(),
                 KeySignatures.isInFlats(mKeySig));
+            trackTable.setFilter(mFilter);
                 }
             }
 
@@ -183,19 +254,26 @@ public class TrackEditorPanel
         mCreateEventDialog.setIsInFlats(KeySignatures.isInFlats(mKeySig));
     }
 
-    public void convertNoteOn() {
-        TrackUpdateUtils.convertNoteOnZeroToNoteOff(mSeq.getTracks()[mCurrentTrack]);
-        trackTable.trackModified();
-    }
-
-    public void setNoteOnVelocity(int velocity) {
-        TrackUpdateUtils.setNoteOnVelocity(mSeq.getTracks()[mCurrentTrack], velocity);
-        trackTable.trackModified();
-    }
-
-    public void adjustNoteOnVelocity(float factor) {
-        TrackUpdateUtils.adjustNoteOnVelocity(mSeq.getTracks()[mCurrentTrack], factor);
-        trackTable.trackModified();
+    /**
+     * Apply a TrackTransform to the current track, or to all the tracks
+     * at once, as one edit.
+     *
+     * @param transform the changes to make
+     * @param allTracks if <code>true</code> every track is changed
+     * @return the number of events changed by each stage
+     */
+    public TrackTransform.Result transformTracks(TrackTransform transform,
+        boolean allTracks) {
+        TrackTransform.Result result = allTracks
+            ? transform.apply(mSeq)
+            : transform.apply(mSeq, mCurrentTrack);
+        // The transform has analysed the changed tracks.
+        if (mChangeBus == null) {
+            trackTable.trackChangedElsewhere();
+        } else {
+            mChangeBus.post();
+        }
+        return result;
     }
 
     public void convertText() {
@@ -210,8 +288,8 @@ public class TrackEditorPanel
         }
         if (trackTable.getSelectedRowCount() > 0) {
             int[] rows = trackTable.getSelectedRows();
-            TrackUpdateUtils.convertTextToLyric(mSeq.getTracks()[mCurrentTrack], rows);
-            trackTable.trackModified();
+            TrackUpdateUtils.convertTextToLyric(mSeq, mCurrentTrack, rows);
+            trackEdited();
         }
     }
 
@@ -227,14 +305,23 @@ public class TrackEditorPanel
         }
         if (trackTable.getSelectedRowCount() > 0) {
             int[] rows = trackTable.getSelectedRows();
-            TrackUpdateUtils.addSpaceToLyric(mSeq.getTracks()[mCurrentTrack], rows);
-            trackTable.trackModified();
+            TrackUpdateUtils.addSpaceToLyric(mSeq, mCurrentTrack, rows);
+            trackEdited();
         }
     }
 
-    public void removeNotes() {
-        TrackUpdateUtils.removeNotesFromTrack(mSeq.getTracks()[mCurrentTrack]);
-        trackTable.trackModified();
+    /**
+     * Record that the current track has been changed by one of the
+     * TrackUpdateUtils. The table is refreshed once the bus passes the
+     * change on, so a series of edits only refreshes it once.
+     */
+    private void trackEdited() {
+        if (mChangeBus == null) {
+            trackTable.trackModified();
+        } else {
+            mSeq.trackChanged(mCurrentTrack);
+            mChangeBus.post();
+        }
     }
 
     public void shiftEvents(long targetTick) {
@@ -245,14 +332,26 @@ public class TrackEditorPanel
                 JOptionPane.ERROR_MESSAGE);
         } else {
             int[] rows = trackTable.getSelectedRows();
-            TrackUpdateUtils.shiftEvents(mSeq.getTracks()[mCurrentTrack], rows, targetTick);
-            trackTable.trackModified();
+            TrackUpdateUtils.shiftEvents(mSeq, mCurrentTrack, rows, targetTick);
+            trackEdited();
         }
     }
 
     public void splitTrack() {
+        // Undo the new tracks together.
+        EditHistory history = mSeq.getHistory();
+        history.beginEdit();
+        try {
+            splitChannels();
+        } finally {
+            history.endEdit();
+        }
+        trackTable.trackModified();
+    }
+
+    private void splitChannels() {
         Track t[] = new Track[17];
-        Track originalTrack = mSeq.getTracks()[mCurrentTrack];
+        Track originalTrack = mSeq.getTrack(mCurrentTrack);
 
         // First create the control track to take all the non-channel events
         t[0] = mSeq.createTrack();
@@ -277,6 +376,8 @@ public class TrackEditorPanel
             }
         }
 
+        int firstNewTrack = mSeq.getTrackCount() - t.length;
+
         // Now copy the events to their new track
         for (int i = 0; i < originalTrack.size(); ++i) {
             MidiEvent ev = originalTrack.get(i);
@@ -293,8 +394,9 @@ public class TrackEditorPanel
                 t[0].add(ev);
             }
         }
-
-        trackTable.trackModified();
+        for (int i = 0; i < t.length; ++i) {
+            mSeq.trackChanged(firstNewTrack + i);
+        }
     }
 
     /**
@@ -318,6 +420,9 @@ public class TrackEditorPanel
         trackSelectorPanel = new javax.swing.JPanel();
         trackLabel = new javax.swing.JLabel();
         trackSelector = new javax.swing.JComboBox<>();
+        filterPanel = new javax.swing.JPanel();
+        filterLabel = new javax.swing.JLabel();
+        filterField = new javax.swing.JTextField();
 
         setLayout(new java.awt.GridBagLayout());
 
@@ -404,6 +509,18 @@ public class TrackEditorPanel
 
         trackPanel.add(trackSelectorPanel, java.awt.BorderLayout.WEST);
 
+        filterPanel.setLayout(new java.awt.FlowLayout(java.awt.FlowLayout.CENTER, 5, 0));
+
+        filterLabel.setText(UiStrings.getString("filter")); // NOI18N
+        filterPanel.add(filterLabel);
+
+        filterField.setColumns(16);
+        filterField.setToolTipText(UiStrings.getString("filter_tooltip")); // NOI18N
+        filterField.setEnabled(false);
+        filterPanel.add(filterField);
+
+        trackPanel.add(filterPanel, java.awt.BorderLayout.CENTER);
+
         gridBagConstraints = new java.awt.GridBagConstraints();
         gridBagConstraints.gridx = 0;
         gridBagConstraints.gridy = 0;
@@ -444,6 +561,9 @@ public class TrackEditorPanel
     private javax.swing.JPanel buttonPanel;
     private javax.swing.JPanel controlPanel;
     private javax.swing.JButton deleteButton;
+    private javax.swing.JTextField filterField;
+    private javax.swing.JLabel filterLabel;
+    private javax.swing.JPanel filterPanel;
     private javax.swing.JButton insertButton;
     private javax.swing.JButton moreButton;
     private javax.swing.JCheckBox showNotesCheck;
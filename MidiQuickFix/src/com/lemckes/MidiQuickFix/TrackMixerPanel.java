@@ -23,6 +23,8 @@
 package com.lemckes.MidiQuickFix;
 
 import com.lemckes.MidiQuickFix.util.MqfSequence;
+import com.lemckes.MidiQuickFix.util.SequenceChange;
+import com.lemckes.MidiQuickFix.util.SequenceChangeListener;
 import com.lemckes.MidiQuickFix.util.TraceDialog;
 import com.lemckes.MidiQuickFix.util.UiStrings;
 import java.awt.EventQueue;
@@ -41,6 +43,7 @@ import javax.swing.event.EventListenerList;
  */
 public class TrackMixerPanel
     extends javax.swing.JPanel
+    implements SequenceChangeListener
 {
 
     private MqfSequence mSequence;
@@ -70,6 +73,18 @@ public class TrackMixerPanel
         });
     }
 
+    /**
+     * There is a row for each track, so the rows are only rebuilt
+     * when tracks have been added or removed.
+     * @param change the parts of the sequence that have been changed
+     */
+    @Override
+    public void sequenceChanged(SequenceChange change) {
+        if (mSequence != null && change.isTracksChanged()) {
+            rebuild();
+        }
+    }
+
     private void rebuild() {
 
         mainPanel.removeAll();
@@ -116,7 +131,7 @@ public class TrackMixerPanel
         mainPanel.add(volumeLabel, gridBagConstraints);
 
         int gridY = 0;
-        for (int i = 0; i < mSequence.getTracks().length; ++i) {
+        for (int i = 0; i < mSequence.getTrackCount(); ++i) {
 
             // Do not bother if the track has no notes
             if (mSequence.trackHasNotes(i)) {
@@ -217,7 +232,7 @@ public class TrackMixerPanel
 
     private void masterVolumeChanged(int volume) {
         final MidiChannel[] channels = MidiQuickFix.getSynth().getChannels();
-        for (int i = 0; i < mSequence.getTracks().length; ++i) {
+        for (int i = 0; i < mSequence.getTrackCount(); ++i) {
             // Do not bother if the track has no notes
             if (mSequence.trackHasNotes(i)) {
                 int newVolume = (int)(mSequence.getTrackVolume(i) * (volume / 100.0));
@@ -229,6 +244,10 @@ public class TrackMixerPanel
 
     private void muteChanged(int trackIndex, boolean muted) {
         mSequence.muteTrack(trackIndex, muted);
+        if (mSequencer.getSequence() != mSequence) {
+            // The mute is applied when the sequence is played.
+            return;
+        }
         mSequencer.setTrackMute(trackIndex, mSequence.isTrackMuted(trackIndex));
         boolean actuallyMuted = mSequencer.getTrackMute(trackIndex);
         if (muted) {
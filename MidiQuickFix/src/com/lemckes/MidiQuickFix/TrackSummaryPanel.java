@@ -24,6 +24,7 @@
  */
 package com.lemckes.MidiQuickFix;
 
+import com.lemckes.MidiQuickFix.util.EditHistory;
 import com.lemckes.MidiQuickFix.util.MqfSequence;
 import com.lemckes.MidiQuickFix.util.TracksChangedEvent;
 import com.lemckes.MidiQuickFix.util.TracksChangedEvent.TrackChangeType;
@@ -102,10 +103,20 @@ public class TrackSummaryPanel
 
     private void copyTrack() {
         int row = mTrackSummaryTable.getSelectedRow();
+        EditHistory history = mSequence.getHistory();
+        history.beginEdit();
+        try {
+            copyTrack(row);
+        } finally {
+            history.endEdit();
+        }
+        fireTracksChanged(TrackChangeType.TRACK_ADDED);
+    }
+
+    private void copyTrack(int row) {
         Track newTrack = mSequence.createTrack(row + 1);
 
-        Track[] tracks = mSequence.getTracks();
-        Track originalTrack = tracks[row];
+        Track originalTrack = mSequence.getTrack(row);
         for (int i = 0; i < originalTrack.size(); ++i) {
             MidiEvent oldEvent = originalTrack.get(i);
             MidiMessage oldMess = oldEvent.getMessage();
@@ -131,7 +142,7 @@ public class TrackSummaryPanel
             MidiEvent newEvent = new MidiEvent(newMess, oldEvent.getTick());
             newTrack.add(newEvent);
         }
-        fireTracksChanged(TrackChangeType.TRACK_ADDED);
+        mSequence.trackChanged(row + 1);
     }
 
     private void deleteTracks() {
@@ -145,8 +156,15 @@ public class TrackSummaryPanel
                 JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE);
             if (reply == JOptionPane.OK_OPTION) {
                 Arrays.sort(selectedRows);
-                for (int track = numRows - 1; track >= 0; --track) {
-                    mSequence.deleteTrack(mSequence.getTracks()[selectedRows[track]]);
+                // Undo the deletes together.
+                EditHistory history = mSequence.getHistory();
+                history.beginEdit();
+                try {
+                    for (int track = numRows - 1; track >= 0; --track) {
+                        mSequence.deleteTrack(mSequence.getTrack(selectedRows[track]));
+                    }
+                } finally {
+                    history.endEdit();
                 }
                 fireTracksChanged(TrackChangeType.TRACK_DELETED);
             }
@@ -70,6 +70,34 @@ public class TrackSummaryTable
         TableColumnWidthSetter.setColumnWidths(this, widths, true);
     }
 
+    /**
+     * Refresh the rows after the info about the tracks has been changed
+     * by an edit. The model is kept so the selection is not lost.
+     */
+    public void trackInfoChanged() {
+        if (getModel() instanceof TrackSummaryTableModel) {
+            TrackSummaryTableModel model = (TrackSummaryTableModel)getModel();
+            if (model.getRowCount() > 0) {
+                model.fireTableRowsUpdated(0, model.getRowCount() - 1);
+            }
+        }
+    }
+
+    /**
+     * Refresh the row of one track after its info has been changed
+     * by an edit.
+     *
+     * @param trackIndex the index of the track
+     */
+    public void trackInfoChanged(int trackIndex) {
+        if (getModel() instanceof TrackSummaryTableModel) {
+            TrackSummaryTableModel model = (TrackSummaryTableModel)getModel();
+            if (trackIndex < model.getRowCount()) {
+                model.fireTableRowsUpdated(trackIndex, trackIndex);
+            }
+        }
+    }
+
     /**
      * This method is called from within the constructor to
      * initialize the form.
@@ -108,7 +108,7 @@ public class TrackSummaryTableModel
 
     @Override
     public int getRowCount() {
-        return mSequence.getTracks().length;
+        return mSequence.getTrackCount();
     }
 
     @Override
@@ -22,11 +22,14 @@
  **************************************************************/
 package com.lemckes.MidiQuickFix;
 
+import com.lemckes.MidiQuickFix.util.EventFilter;
+import com.lemckes.MidiQuickFix.util.MqfSequence;
 import com.lemckes.MidiQuickFix.util.TableColumnWidthSetter;
 import java.awt.Dimension;
 import java.awt.Rectangle;
+import java.util.Collection;
+import java.util.function.Predicate;
 import javax.sound.midi.MidiEvent;
-import javax.sound.midi.Track;
 import javax.swing.DefaultCellEditor;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JComboBox;
@@ -46,7 +49,7 @@ public class TrackTable extends javax.swing.JTable {
     /** Creates a new TrackTable */
     public TrackTable() {
         initComponents();
-        updateModel(new TrackTableModel(null, 96, true, true));
+        updateModel(new TrackTableModel(null, 0, true, true));
         // Position, Event, Note, Value, Patch, Text, Channel
         Dimension pd = getPreferredSize();
         setPreferredScrollableViewportSize(pd);
@@ -54,16 +57,16 @@ public class TrackTable extends javax.swing.JTable {
 
     /**
      * Set the track that is displayed in the Track Table
-     * @param track the track to display
-     * @param resolution the tick resolution of the track
+     * @param seq the sequence that contains the track
+     * @param trackIndex the index of the track to display
      * @param showNotes if <code>false</code> then NOTE_ON/OFF events are not displayed
      * @param inFlats determines whether notes are displayed as flats or sharps
      */
-    public void setTrack(Track track, int resolution,
+    public void setTrack(MqfSequence seq, int trackIndex,
                          boolean showNotes, boolean inFlats) {
         updateModel(
-            new TrackTableModel(track,
-            resolution,
+            new TrackTableModel(seq,
+            trackIndex,
             showNotes,
             inFlats));
         scrollRectToVisible(new Rectangle(0,0,1,1));
@@ -73,6 +76,18 @@ public class TrackTable extends javax.swing.JTable {
         ((TrackTableModel)getModel()).trackModified();
     }
 
+    /**
+     * Refresh the table if the track has been changed by something
+     * other than the table
+     */
+    public void trackChangedElsewhere() {
+        if (isEditing())
+        {
+            getCellEditor().cancelCellEditing();
+        }
+        ((TrackTableModel)getModel()).trackChangedElsewhere();
+    }
+
     /**
      * Set whether notes are displayed or not
      * @param show if <code>true</code> notes are shown
@@ -86,6 +101,21 @@ public class TrackTable extends javax.swing.JTable {
         }
     }
 
+    /**
+     * Show only the events that pass a filter
+     * @param filter the filter, or null to show all the events
+     */
+    public void setFilter(EventFilter filter) {
+        TableModel model = getModel();
+        if (model instanceof TrackTableModel) {
+            if (isEditing())
+            {
+                getCellEditor().cancelCellEditing();
+            }
+            ((TrackTableModel)model).setFilter(filter);
+        }
+    }
+
     @Override
     public void tableChanged(TableModelEvent e) {
         super.tableChanged(e);
@@ -127,6 +157,30 @@ public class TrackTable extends javax.swing.JTable {
         ((TrackTableModel)getModel()).deleteEvents(rows);
     }
 
+    /**
+     * Delete all the events that match the filter
+     * @param filter returns true for the events to be deleted
+     */
+    public void deleteEvents(Predicate<MidiEvent> filter) {
+        if (isEditing())
+        {
+            getCellEditor().cancelCellEditing();
+        }
+        ((TrackTableModel)getModel()).deleteEvents(filter);
+    }
+
+    /**
+     * Insert the given events in the track
+     * @param events the events to be inserted
+     */
+    public void insertEvents(Collection<MidiEvent> events) {
+        if (isEditing())
+        {
+            getCellEditor().cancelCellEditing();
+        }
+        ((TrackTableModel)getModel()).insertEvents(events);
+    }
+
     /**
      * Insert the given event in the track
      * @param event the event to be inserted
@@ -23,12 +23,22 @@
 package com.lemckes.MidiQuickFix;
 
 import static com.lemckes.MidiQuickFix.ShortEvent.isChannelMessage;
+import com.lemckes.MidiQuickFix.util.EditHistory;
+import com.lemckes.MidiQuickFix.util.EventFilter;
 import com.lemckes.MidiQuickFix.util.Formats;
+import com.lemckes.MidiQuickFix.util.MessageRewriter;
+import com.lemckes.MidiQuickFix.util.MqfSequence;
+import com.lemckes.MidiQuickFix.util.StringConverter;
+import com.lemckes.MidiQuickFix.util.TickZeroOrder;
+import com.lemckes.MidiQuickFix.util.TrackEventIndex;
 import com.lemckes.MidiQuickFix.util.TraceDialog;
 import com.lemckes.MidiQuickFix.util.UiStrings;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiEvent;
@@ -43,18 +53,47 @@ import javax.swing.table.DefaultTableModel;
  */
 class TrackTableModel extends DefaultTableModel {
     static final long serialVersionUID = 5464614685967695539L;
+    /** The Sequence that contains the Track. */
+    transient MqfSequence mSequence;
+    /** The index of the Track in the Sequence. */
+    int mTrackIndex;
     /** The Track that is being displayed. */
     transient Track mTrack;
+    /** The version of the Track that the rows were built from. */
+    int mTrackVersion;
     /** The Ticks/Beat resolution of this track. */
     int mResolution;
     /** Whether to display notes as flats. */
     boolean mInFlats = true;
     /** Whether to show the NOTE_ON/NOTE_OFF events. */
     boolean mShowNotes;
-    /** The number of NOTE_ON/NOTE_OFF events in this track. */
-    int mNumNotes;
-    /** Maps table row to track index when mShowNotes is false. */
-    ArrayList<Integer> mNoNotesRowMap;
+    /** The filter of the events shown, null to show them all. */
+    EventFilter mFilter;
+    /**
+     * The index used to apply mFilter, built when it is first needed
+     * after the track has been changed in bulk.
+     */
+    transient TrackEventIndex mEventIndex;
+    /**
+     * Maps table row to track index when mShowNotes is false
+     * or mFilter is set.
+     */
+    RowMap mRowMap = new RowMap();
+    /**
+     * Deleting more rows than this rebuilds the Track in one pass
+     * rather than removing the events one at a time.
+     */
+    static final int BULK_EDIT_ROWS = 32;
+    /** The maximum number of rows held in mRowCache. */
+    static final int ROW_CACHE_SIZE = 2048;
+    /**
+     * The formatted column values of recently displayed rows,
+     * keyed by event identity.
+     * Every column of a row is rendered from a single decode of the event.
+     */
+    transient RowCache mRowCache = new RowCache(ROW_CACHE_SIZE);
+    /** The charset that the cached text values were decoded with. */
+    transient Charset mRowCacheCharset = StringConverter.getCharset();
 
     /**
      * Enum to hold info for each column in the table
@@ -97,55 +136,221 @@ class TrackTableModel extends DefaultTableModel {
         ColumnInfo.CHANNEL
     };
 
-    TrackTableModel(Track t, int res, boolean showNotes, boolean inFlats) {
-        mTrack = t;
-        mResolution = res;
+    /**
+     * Create a model to display and edit a Track.
+     * Edits are passed to the sequence so that it can keep its
+     * information about the Track up to date.
+     *
+     * @param seq the sequence containing the Track, or null for no Track
+     * @param trackIndex the index of the Track in the sequence
+     * @param showNotes whether to show the NOTE_ON/NOTE_OFF events
+     * @param inFlats whether to display notes as flats
+     */
+    TrackTableModel(MqfSequence seq, int trackIndex, boolean showNotes, boolean inFlats) {
+        mSequence = seq;
+        mTrackIndex = trackIndex;
+        mTrack = seq == null ? null : seq.getTrack(trackIndex);
+        mTrackVersion = seq == null ? 0 : seq.getTrackVersion(trackIndex);
+        mResolution = seq == null ? 96 : seq.getResolution();
         mInFlats = inFlats;
         mShowNotes = showNotes;
-        mNumNotes = 0;
 
         if (mTrack != null) {
-            buildNoNotesRowMap();
-        } else {
-            mNoNotesRowMap = new ArrayList<>(4);
+            buildRowMap();
         }
     }
 
+    /**
+     * Show only the events that pass a filter.
+     * The events are found with a TrackEventIndex which is then kept
+     * up to date as the track is edited. An event that is edited so that
+     * it no longer passes stays in view until the filter is set again.
+     *
+     * @param filter the filter, or null to show all the events
+     */
+    public void setFilter(EventFilter filter) {
+        mFilter = filter == null || filter.passesAll() ? null : filter;
+        if (mFilter == null) {
+            mEventIndex = null;
+        }
+        if (mTrack != null) {
+            buildRowMap();
+        }
+        fireTableDataChanged();
+    }
+
+    public EventFilter getFilter() {
+        return mFilter;
+    }
+
     /**
      * Called when a track is changed programmatically for instance
      * by one of the methods in TrackUpdateUtils
      */
     public void trackModified() {
-        buildNoNotesRowMap();
+        if (mSequence != null) {
+            mSequence.trackChanged(mTrackIndex);
+        }
+        reloadTrack();
+    }
+
+    /**
+     * Called when the track may have been changed by something other
+     * than this model, for instance by the Transposer.
+     * The rows are only rebuilt if the track has been changed since
+     * they were built.
+     *
+     * @return true if the rows were rebuilt
+     */
+    public boolean trackChangedElsewhere() {
+        if (mSequence == null
+            || mTrackIndex >= mSequence.getTrackCount()
+            || mSequence.getTrackVersion(mTrackIndex) == mTrackVersion) {
+            return false;
+        }
+        reloadTrack();
+        return true;
+    }
+
+    private void reloadTrack() {
+        if (mSequence != null) {
+            mTrack = mSequence.getTrack(mTrackIndex);
+        }
+        // Any event may have been changed.
+        mRowCache.clear();
+        rowsChanged();
+    }
+
+    /**
+     * Called when events have been added to or removed from the track.
+     */
+    private void rowsChanged() {
+        if (mSequence != null) {
+            mTrackVersion = mSequence.getTrackVersion(mTrackIndex);
+        }
+        mEventIndex = null;
+        buildRowMap();
         fireTableDataChanged();
     }
 
     /**
-     * Build the mNoNotesRowMap vector. When mShowNotes is false
+     * Build the mRowMap. When mShowNotes is false or there is a filter
      * this provides the mapping from table row to the index of
      * the event in the track.
      */
-    private void buildNoNotesRowMap() {
-        mNumNotes = 0;
-        mNoNotesRowMap = new ArrayList<>(mTrack.size());
+    private void buildRowMap() {
+        mRowMap.clear();
+        if (mFilter != null) {
+            if (mEventIndex == null) {
+                mEventIndex = new TrackEventIndex(mTrack);
+            }
+            mEventIndex.select(mTrack, mFilter,
+                mShowNotes ? 0 : EventFilter.NOTES, mRowMap::add);
+            return;
+        }
         for (int i = 0; i < mTrack.size(); ++i) {
-            MidiMessage mess = mTrack.get(i).getMessage();
-            if (mess instanceof ShortMessage) {
-                int cmd = ((ShortMessage)mess).getCommand();
-                if (cmd == ShortMessage.NOTE_OFF
-                    || cmd == ShortMessage.NOTE_ON) {
-                    mNumNotes++;
-                } else {
-                    mNoNotesRowMap.add(i);
-                }
+            if (!isNote(mTrack.get(i))) {
+                mRowMap.add(i);
+            }
+        }
+    }
+
+    /**
+     * @return true if table rows are mapped to track indexes by mRowMap
+     */
+    private boolean isMapped() {
+        return !mShowNotes || mFilter != null;
+    }
+
+    /**
+     * @return true if an event that has been inserted is not shown
+     */
+    private boolean isHidden(MidiEvent event) {
+        if (mFilter != null) {
+            return !mFilter.test(event) || (!mShowNotes && isNote(event));
+        }
+        return isNote(event);
+    }
+
+    /**
+     * Update mRowMap and mEventIndex for an event inserted in the track
+     * and tell the listeners if it is shown.
+     */
+    private void rowInserted(int index, MidiEvent event) {
+        if (mEventIndex != null) {
+            mEventIndex.eventInserted(index, event);
+        }
+        boolean hidden = isHidden(event);
+        mRowMap.eventInserted(index, hidden);
+        if (!isMapped() || !hidden) {
+            int row = getRowForTrackIndex(index);
+            fireTableRowsInserted(row, row);
+        }
+    }
+
+    /**
+     * @return true if the event is hidden when notes are not shown
+     */
+    static boolean isNote(MidiEvent event) {
+        MidiMessage mess = event.getMessage();
+        if (mess instanceof ShortMessage) {
+            int cmd = ((ShortMessage)mess).getCommand();
+            return cmd == ShortMessage.NOTE_OFF || cmd == ShortMessage.NOTE_ON;
+        }
+        return false;
+    }
+
+    /**
+     * Get the table row that displays the event at a track index.
+     *
+     * @param trackIndex the index of the event in the track
+     * @return the row, or the row that would display the event
+     * if it is hidden
+     */
+    private int getRowForTrackIndex(int trackIndex) {
+        return isMapped() ? mRowMap.findRow(trackIndex) : trackIndex;
+    }
+
+    /**
+     * Find the index of an event in the track.
+     * The events should be in tick order so the event is looked for
+     * among the events with the same tick. If the order has been
+     * disturbed the whole track is searched.
+     *
+     * @param event the event to find
+     * @return the index of the event, or -1 if it is not in the track
+     */
+    private int indexOfEvent(MidiEvent event) {
+        long tick = event.getTick();
+        // Find the first event after the tick.
+        int low = 0;
+        int high = mTrack.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mTrack.get(mid).getTick() <= tick) {
+                low = mid + 1;
             } else {
-                mNoNotesRowMap.add(i);
+                high = mid;
+            }
+        }
+        for (int i = low - 1; i >= 0 && mTrack.get(i).getTick() == tick; --i) {
+            if (mTrack.get(i) == event) {
+                return i;
+            }
+        }
+        for (int i = mTrack.size() - 1; i >= 0; --i) {
+            if (mTrack.get(i) == event) {
+                return i;
             }
         }
+        return -1;
     }
 
     public void setShowNotes(boolean show) {
         mShowNotes = show;
+        if (mFilter != null && mTrack != null) {
+            buildRowMap();
+        }
         fireTableStructureChanged();
     }
 
@@ -153,10 +358,10 @@ class TrackTableModel extends DefaultTableModel {
     public int getRowCount() {
         if (mTrack == null) {
             return 0;
-        } else if (mShowNotes) {
-            return mTrack.size();
+        } else if (isMapped()) {
+            return mRowMap.size();
         } else {
-            return mTrack.size() - mNumNotes;
+            return mTrack.size();
         }
     }
 
@@ -165,13 +370,18 @@ class TrackTableModel extends DefaultTableModel {
         return columnOrder.length;
     }
 
-    private MidiEvent getEventForRow(int row) {
+    private int getTrackIndexForRow(int row) {
         int eventIndex = row;
         // Adjust the index if notes are not being displayed
-        if (!mShowNotes) {
-            eventIndex = mNoNotesRowMap.get(row);
+        // or the events are filtered.
+        if (isMapped()) {
+            eventIndex = mRowMap.get(row);
         }
-        return mTrack.get(eventIndex);
+        return eventIndex;
+    }
+
+    private MidiEvent getEventForRow(int row) {
+        return mTrack.get(getTrackIndexForRow(row));
     }
 
     public long getTickForRow(int row) {
@@ -180,34 +390,42 @@ class TrackTableModel extends DefaultTableModel {
 
     @Override
     public Object getValueAt(int row, int column) {
-        Object result = "";
-        MidiEvent event = getEventForRow(row);
-        MidiMessage mess = event.getMessage();
-        long tick = event.getTick();
-        switch (columnOrder[column]) {
-            case BEAT_TICK:
-                result = Formats.formatBeatsTicks(tick, mResolution, true);
-                break;
-            case EVENT_NAME:
-                result = getMessageArray(mess)[0];
-                break;
-            case NOTE:
-                result = getMessageArray(mess)[1];
-                break;
-            case VALUE:
-                result = getMessageArray(mess)[2];
-                break;
-            case PATCH:
-                result = getMessageArray(mess)[3];
-                break;
-            case TEXT:
-                result = getMessageArray(mess)[4];
-                break;
-            case CHANNEL:
-                result = getMessageArray(mess)[5];
-                break;
+        return getRowValues(getEventForRow(row))[columnOrder[column].getIndex()];
+    }
+
+    /**
+     * Get the values of all the columns for an event,
+     * indexed by ColumnInfo.getIndex().
+     * The values are cached so that the event is only decoded once
+     * however many of its cells are painted.
+     *
+     * @param event the event
+     * @return the column values
+     */
+    Object[] getRowValues(MidiEvent event) {
+        // Text events are decoded with the current charset,
+        // which a lyric event can change.
+        Charset charset = StringConverter.getCharset();
+        if (charset != mRowCacheCharset) {
+            mRowCache.clear();
+            mRowCacheCharset = charset;
         }
-        return result;
+        Object[] values = mRowCache.get(event);
+        if (values == null) {
+            values = new Object[ColumnInfo.values().length];
+            values[ColumnInfo.BEAT_TICK.getIndex()]
+                = Formats.formatBeatsTicks(event.getTick(), mResolution, true);
+            // "0 Event", "1 Note", "2 Value", "3 Patch", "4 Text", "5 Channel"
+            Object[] message = getMessageArray(event.getMessage());
+            values[ColumnInfo.EVENT_NAME.getIndex()] = message[0];
+            values[ColumnInfo.NOTE.getIndex()] = message[1];
+            values[ColumnInfo.VALUE.getIndex()] = message[2];
+            values[ColumnInfo.PATCH.getIndex()] = message[3];
+            values[ColumnInfo.TEXT.getIndex()] = message[4];
+            values[ColumnInfo.CHANNEL.getIndex()] = message[5];
+            mRowCache.put(event, values);
+        }
+        return values;
     }
 
     @Override
@@ -271,11 +489,20 @@ class TrackTableModel extends DefaultTableModel {
             return;
         }
 
-        MidiEvent ev = getEventForRow(row);
+        int index = getTrackIndexForRow(row);
+        MidiEvent ev = mTrack.get(index);
         MidiMessage mess = ev.getMessage();
         switch (columnOrder[column]) {
             case BEAT_TICK:
+                long oldTick = ev.getTick();
                 ev.setTick(Formats.parseBeatsTicks(value.toString(), mResolution));
+                mSequence.getHistory().tickChanged(
+                    mTrackIndex, index, oldTick, ev.getTick());
+                mRowCache.remove(ev);
+                if (mEventIndex != null) {
+                    mEventIndex.eventChanged(index, ev);
+                }
+                mSequence.eventTickChanged(mTrackIndex, index, ev, oldTick);
                 fireTableCellUpdated(row, column);
                 break;
             case EVENT_NAME:
@@ -290,9 +517,9 @@ class TrackTableModel extends DefaultTableModel {
                     // int d1 = sm.getData1() & 0xff;
                     int d2 = sm.getData2() & 0xff;
                     try {
-                        updateMessage(ev, command, channel,
+                        updateMessage(index, ev, command, channel,
                             NoteNames.getNoteNumber((String)value), d2);
-                        fireTableDataChanged();
+                        fireRowChanged(row);
                     } catch (InvalidMidiDataException e) {
                         TraceDialog.addTrace(
                             "Error: TrackTableModel.setValueAt NOTE column. " + // NOI18N
@@ -340,8 +567,8 @@ class TrackTableModel extends DefaultTableModel {
                     }
 
                     try {
-                        updateMessage(ev, command, channel, d1, d2);
-                        fireTableDataChanged();
+                        updateMessage(index, ev, command, channel, d1, d2);
+                        fireRowChanged(row);
                     } catch (InvalidMidiDataException e) {
                         TraceDialog.addTrace(
                             "Error: TrackTableModel.setValueAt VALUE column. " + // NOI18N
@@ -359,8 +586,8 @@ class TrackTableModel extends DefaultTableModel {
                     int d2 =
                         InstrumentNames.getInstance().getInstrumentBank((String)value) & 0xff;
                     try {
-                        updateMessage(ev, command, channel, d1, d2);
-                        fireTableDataChanged();
+                        updateMessage(index, ev, command, channel, d1, d2);
+                        fireRowChanged(row);
                     } catch (InvalidMidiDataException e) {
                         TraceDialog.addTrace("Error: setValueAt - PATCH column. " + // NOI18N
                             e.getMessage());
@@ -370,7 +597,15 @@ class TrackTableModel extends DefaultTableModel {
             case TEXT:
                 if (mess instanceof MetaMessage) {
                     MetaMessage mm = (MetaMessage)mess;
+                    MidiMessage oldMess = (MidiMessage)mm.clone();
                     MetaEvent.setMetaData(mm, value.toString(), mResolution);
+                    mSequence.getHistory().messageChanged(
+                        mTrackIndex, index, oldMess, mm);
+                    mRowCache.remove(ev);
+                    if (mEventIndex != null) {
+                        mEventIndex.eventChanged(index, ev);
+                    }
+                    mSequence.eventMessageChanged(mTrackIndex, ev, oldMess);
                     fireTableCellUpdated(row, column);
                 }
                 break;
@@ -388,8 +623,8 @@ class TrackTableModel extends DefaultTableModel {
                         int d2 = sm.getData2();
 
                         try {
-                            updateMessage(ev, command, channel, d1, d2);
-                            fireTableDataChanged();
+                            updateMessage(index, ev, command, channel, d1, d2);
+                            fireRowChanged(row);
                         } catch (InvalidMidiDataException e) {
                             TraceDialog.addTrace(
                                 "Error: setValueAt - CHANNEL column. " + e.getMessage()); // NOI18N
@@ -400,215 +635,212 @@ class TrackTableModel extends DefaultTableModel {
         }
     }
 
-    private void updateMessage(
+    /**
+     * Tell the listeners that the message of the event in a row was changed.
+     */
+    private void fireRowChanged(int row) {
+        fireTableRowsUpdated(row, row);
+    }
+
+    /**
+     * Change the message of the event at <code>index</code>
+     * in the track.
+     */
+    private void updateMessage(int index,
         MidiEvent ev, int command, int channel, int d1, int d2)
         throws InvalidMidiDataException {
-
-        try {
-            if (MidiQuickFix.VERSION_1_4_2_BUG) {
-                // HACK to fix BUG where data2 is set to data1 in jdk 1.4.2
-                //
-                // Create a new message, set its values to those of
-                // the old message, remove the old message and
-                // add the new message.
-                ShortMessage sm = new ShortMessage();
-                sm.setMessage(command, channel, d1, d2);
-                MidiEvent newEv = new MidiEvent(sm, ev.getTick());
-                mTrack.remove(ev);
-                mTrack.add(newEv);
-
-                // Need to rebuild the map of non-note events.
-                // The remove()/add() calls may have re-ordered the events.
-                buildNoNotesRowMap();
-
-                //End ugly HACK
-            } else {
-                ShortMessage mess = (ShortMessage)ev.getMessage();
-                mess.setMessage(command, channel, d1, d2);
-            }
-        } catch (InvalidMidiDataException e) {
-            throw (e);
+        ShortMessage mess = (ShortMessage)ev.getMessage();
+        MidiMessage oldMess = (MidiMessage)mess.clone();
+        mess.setMessage(command, channel, d1, d2);
+        mSequence.getHistory().shortMessageChanged(mTrackIndex, index,
+            EditHistory.pack((ShortMessage)oldMess), mess);
+        mRowCache.remove(ev);
+        if (mEventIndex != null) {
+            mEventIndex.eventChanged(index, ev);
         }
+        mSequence.eventMessageChanged(mTrackIndex, ev, oldMess);
     }
 
+    /**
+     * Remove the events in the given rows from the track.
+     * A rows deleted event is fired for each run of adjacent rows.
+     *
+     * @param rows the rows to delete
+     */
     public void deleteEvents(int[] rows) {
-        ArrayList<MidiEvent> events = new ArrayList<>(rows.length);
-        for (int i = 0; i < rows.length; ++i) {
-            events.add(getEventForRow(rows[i]));
+        if (rows.length > BULK_EDIT_ROWS) {
+            int[] indexes = new int[rows.length];
+            for (int i = 0; i < rows.length; ++i) {
+                indexes[i] = getTrackIndexForRow(rows[i]);
+            }
+            Arrays.sort(indexes);
+            trackRebuilt(mSequence.removeEvents(mTrackIndex, indexes));
+            return;
         }
 
-        for (MidiEvent e : events) {
-            mTrack.remove(e);
+        int[] sortedRows = rows.clone();
+        Arrays.sort(sortedRows);
+        MidiEvent[] events = new MidiEvent[sortedRows.length];
+        int[] indexes = new int[sortedRows.length];
+        for (int i = 0; i < sortedRows.length; ++i) {
+            indexes[i] = getTrackIndexForRow(sortedRows[i]);
+            events[i] = mTrack.get(indexes[i]);
         }
-        trackModified();
-    }
 
-    public void insertEvent(MidiEvent event) {
-        mTrack.add(event);
-        if (event.getTick() == 0) {
-            sortTickZeroEvents();
+        int count = 0;
+        for (int i = 0; i < events.length; ++i) {
+            if (mTrack.remove(events[i])) {
+                mRowCache.remove(events[i]);
+                // The events removed so far were all before this one.
+                mSequence.eventDeleted(
+                    mTrackIndex, indexes[i] - count, events[i]);
+                sortedRows[count] = sortedRows[i];
+                indexes[count] = indexes[i];
+                events[count] = events[i];
+                ++count;
+            }
+        }
+        mSequence.getHistory().eventsDeleted(mTrackIndex, indexes, events, count);
+        mRowMap.eventsRemoved(indexes, count);
+        if (mEventIndex != null) {
+            mEventIndex.eventsRemoved(indexes, count);
+        }
+
+        // Work backwards so that the earlier rows are not moved.
+        int last = count - 1;
+        while (last >= 0) {
+            int first = last;
+            while (first > 0 && sortedRows[first - 1] == sortedRows[first] - 1) {
+                --first;
+            }
+            fireTableRowsDeleted(sortedRows[first], sortedRows[last]);
+            last = first - 1;
         }
-        trackModified();
     }
 
     /**
-     * Make sure that all the events that occur at tick zero
-     * are sorted in a suitable order.<br>
-     * The order is :
-     * <ol>
-     * <li>MetaMessage.TRACK_NAME</li>
-     * <li>MetaMessage.TEXT</li>
-     * <li>MetaMessage.COPYRIGHT</li>
-     * <li>Other MetaMessages</li>
-     * <li>System Exclusive messages</li>
-     * <li>ShortMessage System messages</li>
-     * <li>Other ShortMessages</li>
-     * <li>MetaMessage.KEY_SIGNATURE</li>
-     * <li>MetaMessage.TIME_SIGNATURE</li>
-     * <li>MetaMessage.TEMPO</li>
-     * <li>ShortMessage.PROGRAM_CHANGE</li>
-     * <li>ShortMessage.NOTE_ON</li>
-     * <li>ShortMessage.NOTE_OFF (or NOTE_ON/0)</li>
-     * <li>MetaMessage.LYRIC</li>
-     * <li>Anything else ...</li>
-     * </ol>
+     * Remove all the events that match the filter from the track.
+     *
+     * @param filter returns true for the events to remove
      */
-    private void sortTickZeroEvents() {
-        final int TRACK_NAME_PRIORITY = 101;
-        final int TEXT_PRIORITY = 102;
-        final int COPYRIGHT_PRIORITY = 103;
-        final int OTHER_META_PRIORITY = 200;
-        final int SYSEX_PRIORITY = 210;
-        final int SHORT_SYSTEM_PRIORITY = 301;
-        final int OTHER_SHORT_PRIORITY = 302;
-        final int KEY_SIGNATURE_PRIORITY = 401;
-        final int TIME_SIGNATURE_PRIORITY = 402;
-        final int TEMPO_PRIORITY = 403;
-        final int PROGRAM_CHANGE_PRIORITY = 501;
-        final int NOTE_ON_PRIORITY = 511;
-        final int NOTE_OFF_PRIORITY = 512;
-        final int LYRIC_PRIORITY = 521;
-        final int OTHER_PRIORITY = Integer.MAX_VALUE;
-
-        Comparator<MidiEvent> comparator = new Comparator<MidiEvent>() {
-            @Override
-            public int compare(MidiEvent o1, MidiEvent o2) {
-                return getSortPriority(o1) - getSortPriority(o2);
-            }
-
-            private int getSortPriority(MidiEvent me) {
-                int priority = OTHER_PRIORITY;
-                MidiMessage mess = me.getMessage();
-                if (mess instanceof MetaMessage) {
-                    MetaMessage mm = (MetaMessage)mess;
-                    int type = mm.getType();
-                    switch (type) {
-                        case MetaEvent.TRACK_NAME:
-                            priority = TRACK_NAME_PRIORITY;
-                            break;
-                        case MetaEvent.TEXT:
-                            priority = TEXT_PRIORITY;
-                            break;
-                        case MetaEvent.COPYRIGHT:
-                            priority = COPYRIGHT_PRIORITY;
-                            break;
-                        case MetaEvent.KEY_SIGNATURE:
-                            priority = KEY_SIGNATURE_PRIORITY;
-                            break;
-                        case MetaEvent.TIME_SIGNATURE:
-                            priority = TIME_SIGNATURE_PRIORITY;
-                            break;
-                        case MetaEvent.TEMPO:
-                            priority = TEMPO_PRIORITY;
-                            break;
-                        case MetaEvent.LYRIC:
-                            priority = LYRIC_PRIORITY;
-                            break;
-                        default:
-                            priority = OTHER_META_PRIORITY;
-                    }
-                } else if (mess instanceof SysexMessage) {
-                    priority = SYSEX_PRIORITY;
-                } else if (mess instanceof ShortMessage) {
-                    ShortMessage sm = (ShortMessage)mess;
-                    int command = sm.getCommand() & 0xff;
-                    if (isChannelMessage(sm)) {
-                        switch (command) {
-                            case ShortMessage.PROGRAM_CHANGE:
-                                priority = PROGRAM_CHANGE_PRIORITY;
-                                break;
-                            case ShortMessage.NOTE_ON:
-                                if (sm.getData2() != 0) {
-                                    priority = NOTE_ON_PRIORITY;
-                                } else {
-                                    priority = NOTE_OFF_PRIORITY;
-                                }
-                                break;
-                            case ShortMessage.NOTE_OFF:
-                                priority = NOTE_OFF_PRIORITY;
-                                break;
-                            default:
-                                priority = OTHER_SHORT_PRIORITY;
-                        }
-                    } else {
-                        // ShortMessage System messages
-                        priority = SHORT_SYSTEM_PRIORITY;
-                    }
-                }
-                return priority;
-            }
-        };
+    public void deleteEvents(Predicate<MidiEvent> filter) {
+        trackRebuilt(mSequence.removeEvents(mTrackIndex, filter));
+    }
 
-        // Collect all the events that occur at tick zero into a new list
-        ArrayList<MidiEvent> tickZeroEvents = new ArrayList<>(64);
-        for (int i = 0; i < mTrack.size(); ++i) {
-            MidiEvent me = mTrack.get(i);
-            if (me.getTick() == 0) {
-                tickZeroEvents.add(me);
-            } else {
+    /**
+     * Add many events to the track in a single pass.
+     *
+     * @param events the events to add
+     */
+    public void insertEvents(Collection<MidiEvent> events) {
+        mTrack = mSequence.addEvents(mTrackIndex, events);
+        for (MidiEvent event : events) {
+            if (event.getTick() == 0) {
+                mTrack = mSequence.orderTickZeroEvents(mTrackIndex);
                 break;
             }
         }
+        rowsChanged();
+    }
+
+    /**
+     * Display a track that has been rebuilt by a bulk edit.
+     * A single table changed event is fired.
+     */
+    private void trackRebuilt(Track track) {
+        mTrack = track;
+        rowsChanged();
+    }
 
-        // Remove all the events at tick zero
-        for (MidiEvent me : tickZeroEvents) {
-            mTrack.remove(me);
+    /**
+     * Add an event to the track.
+     * The other rows keep their cached values, only their
+     * positions in the table change.
+     *
+     * @param event the event to add
+     */
+    public void insertEvent(MidiEvent event) {
+        if (event.getTick() == 0) {
+            insertTickZeroEvent(event);
+            return;
+        }
+        int oldSize = mTrack.size();
+        long oldLength = mTrack.ticks();
+        if (!mTrack.add(event)) {
+            return;
+        }
+        mSequence.eventInserted(mTrackIndex, event);
+        int index = indexOfEvent(event);
+        if (index >= 0) {
+            mSequence.getHistory().eventInserted(mTrackIndex, index, event);
+        }
+        if (index < 0 || mTrack.size() != oldSize + 1) {
+            // The track has replaced a missing End of Track event.
+            rowsChanged();
+            return;
+        }
+        rowInserted(index, event);
+        if (mTrack.ticks() != oldLength) {
+            // The End of Track event has moved.
+            int eotIndex = mTrack.size() - 1;
+            MidiEvent eot = mTrack.get(eotIndex);
+            mRowCache.remove(eot);
+            if (mEventIndex != null) {
+                mEventIndex.eventChanged(eotIndex, eot);
+            }
+            int row = getRowForTrackIndex(eotIndex);
+            boolean shown = row < getRowCount()
+                && getTrackIndexForRow(row) == eotIndex;
+            if (mFilter != null && shown == isHidden(eot)) {
+                // It has moved into or out of the filter's tick range.
+                buildRowMap();
+                fireTableDataChanged();
+            } else if (shown) {
+                fireTableRowsUpdated(row, row);
+            }
         }
+    }
 
-        //Sort the events and put them back in order.
-        Collections.sort(tickZeroEvents, comparator);
-        for (MidiEvent me : tickZeroEvents) {
-            mTrack.add(me);
+    /**
+     * Add an event at tick zero straight into its place among
+     * the other tick zero events.
+     *
+     * @param event the event to add
+     * @see TickZeroOrder
+     */
+    private void insertTickZeroEvent(MidiEvent event) {
+        int oldSize = mTrack.size();
+        Track ordered = mSequence.orderTickZeroEvents(mTrackIndex);
+        int index = mSequence.insertTickZeroEvent(mTrackIndex, event);
+        boolean reordered = ordered != mTrack;
+        mTrack = mSequence.getTrack(mTrackIndex);
+        if (reordered || mTrack.size() != oldSize + 1) {
+            rowsChanged();
+            return;
         }
+        // The other events are unchanged so their rows stay cached.
+        mTrackVersion = mSequence.getTrackVersion(mTrackIndex);
+        rowInserted(index, event);
     }
 
+    /**
+     * Set the channel of all the channel messages in the track.
+     * The messages are rewritten in place in a single pass and
+     * every row keeps its place.
+     *
+     * @param channel the new channel
+     */
     void setTrackChannel(int channel) {
-        /**
-         * BUG - This will not work with the call to updateMessage() in Java 1.4.2
-         * because the position of the events in the track may be changed
-         * and some events missed.
-         * This will be fixed when the Java setMessage() bug is fixed.
-         */
-        for (int i = 0; i < mTrack.size(); ++i) {
-            MidiEvent ev = mTrack.get(i);
-            MidiMessage mess = ev.getMessage();
-            if (mess instanceof ShortMessage) {
-                if (isChannelMessage((ShortMessage)mess)) {
-                    ShortMessage sm = (ShortMessage)mess;
-                    int command = sm.getCommand();
-                    // int channel = sm.getChannel();
-                    int d1 = sm.getData1();
-                    int d2 = sm.getData2();
-                    try {
-                        updateMessage(ev, command, channel, d1, d2);
-                    } catch (InvalidMidiDataException e) {
-                        TraceDialog.addTrace("Error: setTrackChannel. " + // NOI18N
-                            e.getMessage());
-                    }
-                }
-            }
+        if (MessageRewriter.setChannel(mSequence, mTrackIndex, channel) == 0) {
+            return;
+        }
+        mTrackVersion = mSequence.getTrackVersion(mTrackIndex);
+        mRowCache.clear();
+        // The channels in the index are out of date.
+        mEventIndex = null;
+        if (getRowCount() > 0) {
+            fireTableRowsUpdated(0, getRowCount() - 1);
         }
-        fireTableDataChanged();
     }
 
     Object[] getMessageArray(MidiMessage mess) {
@@ -660,4 +892,134 @@ class TrackTableModel extends DefaultTableModel {
     public String getColumnName(int columnIndex) {
         return columnOrder[columnIndex].getName();
     }
+
+    /**
+     * A least recently used cache of row values.
+     * MidiEvent does not override equals() so the events are
+     * compared by identity.
+     */
+    static class RowCache extends LinkedHashMap<MidiEvent, Object[]>
+    {
+
+        static final long serialVersionUID = -4032585317417738816L;
+
+        private final int mMaxRows;
+
+        RowCache(int maxRows) {
+            super(maxRows * 4 / 3 + 1, 0.75f, true);
+            mMaxRows = maxRows;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<MidiEvent, Object[]> eldest) {
+            return size() > mMaxRows;
+        }
+    }
+
+    /**
+     * The track indexes of the events that are shown, in ascending
+     * order, so that row n of the table with notes hidden or a filter
+     * set displays the event at index get(n) in the track.
+     * The indexes are kept in a primitive array and adjusted in place
+     * as events are inserted and removed.
+     */
+    static class RowMap
+    {
+
+        private int[] mIndexes = new int[64];
+        private int mSize;
+
+        int size() {
+            return mSize;
+        }
+
+        int get(int row) {
+            if (row >= mSize) {
+                throw new IndexOutOfBoundsException(
+                    "Row " + row + " of " + mSize); // NOI18N
+            }
+            return mIndexes[row];
+        }
+
+        void clear() {
+            mSize = 0;
+        }
+
+        /**
+         * Append a track index, which must be greater than all the
+         * indexes already in the map.
+         */
+        void add(int trackIndex) {
+            if (mSize == mIndexes.length) {
+                mIndexes = Arrays.copyOf(mIndexes, mSize * 2);
+            }
+            mIndexes[mSize++] = trackIndex;
+        }
+
+        /**
+         * Find the first row whose track index is not less than
+         * the given index.
+         *
+         * @param trackIndex the track index
+         * @return the row, size() if all the indexes are less
+         */
+        int findRow(int trackIndex) {
+            int low = 0;
+            int high = mSize;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mIndexes[mid] < trackIndex) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Update the map for an event inserted in the track.
+         *
+         * @param trackIndex the index at which the event was inserted
+         * @param hidden whether the event is hidden
+         */
+        void eventInserted(int trackIndex, boolean hidden) {
+            int row = findRow(trackIndex);
+            for (int r = row; r < mSize; ++r) {
+                ++mIndexes[r];
+            }
+            if (!hidden) {
+                if (mSize == mIndexes.length) {
+                    mIndexes = Arrays.copyOf(mIndexes, mSize * 2);
+                }
+                System.arraycopy(mIndexes, row, mIndexes, row + 1, mSize - row);
+                mIndexes[row] = trackIndex;
+                ++mSize;
+            }
+        }
+
+        /**
+         * Update the map for events removed from the track.
+         *
+         * @param removed the indexes the events had before any of them
+         * were removed, in ascending order
+         * @param count the number of entries of removed to use
+         */
+        void eventsRemoved(int[] removed, int count) {
+            int out = 0;
+            int r = 0;
+            for (int row = 0; row < mSize; ++row) {
+                int index = mIndexes[row];
+                while (r < count && removed[r] < index) {
+                    ++r;
+                }
+                if (r < count && removed[r] == index) {
+                    continue;
+                }
+                // r events before this one have gone
+                mIndexes[out++] = index - r;
+            }
+            mSize = out;
+        }
+    }
 }
@@ -22,8 +22,11 @@
  **************************************************************/
 package com.lemckes.MidiQuickFix;
 
+import com.lemckes.MidiQuickFix.util.TraceDialog;
+import com.lemckes.MidiQuickFix.util.TrackTransform;
 import com.lemckes.MidiQuickFix.util.UiStrings;
 import java.awt.Component;
+import java.text.MessageFormat;
 import java.text.ParseException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -54,6 +57,19 @@ public class TrackUpdateUtilDialog extends javax.swing.JDialog
         pack();
     }
 
+    /**
+     * Apply the changes to the current track, or to all the tracks,
+     * and show how many events were changed.
+     */
+    private void transformTracks(TrackTransform transform) {
+        TrackTransform.Result result
+            = mEditor.transformTracks(transform, allTracksCheckBox.isSelected());
+        resultLabel.setText(MessageFormat.format(
+            UiStrings.getString("TrackUpdateUtilDialog.result"),
+            result.getTotalChanged(), result.getElapsedNanos() / 1e6));
+        TraceDialog.addTrace(result.toString());
+    }
+
     private void doClose() {
         setVisible(false);
         dispose();
@@ -100,6 +116,8 @@ public class TrackUpdateUtilDialog extends javax.swing.JDialog
         convertTypeZeroLabel = new javax.swing.JLabel();
         convertTypeZeroButton = new javax.swing.JButton();
         jPanel2 = new javax.swing.JPanel();
+        resultLabel = new javax.swing.JLabel();
+        allTracksCheckBox = new javax.swing.JCheckBox();
         buttonPanel = new javax.swing.JPanel();
         cancelButton = new javax.swing.JButton();
 
@@ -413,6 +431,14 @@ public class TrackUpdateUtilDialog extends javax.swing.JDialog
         jPanel2.setName("jPanel2"); // NOI18N
         jPanel2.setLayout(new java.awt.FlowLayout(java.awt.FlowLayout.TRAILING));
 
+        resultLabel.setName("resultLabel"); // NOI18N
+        jPanel2.add(resultLabel);
+
+        allTracksCheckBox.setText(UiStrings.getString("TrackUpdateUtilDialog.allTracksCheckBox.text")); // NOI18N
+        allTracksCheckBox.setToolTipText(UiStrings.getString("TrackUpdateUtilDialog.allTracksCheckBox.toolTipText")); // NOI18N
+        allTracksCheckBox.setName("allTracksCheckBox"); // NOI18N
+        jPanel2.add(allTracksCheckBox);
+
         buttonPanel.setName("buttonPanel"); // NOI18N
         buttonPanel.setLayout(new java.awt.GridLayout(1, 0, 5, 0));
 
@@ -437,7 +463,7 @@ public class TrackUpdateUtilDialog extends javax.swing.JDialog
     }//GEN-LAST:event_cancelButtonActionPerformed
 
     private void convertNoteOnButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_convertNoteOnButtonActionPerformed
-        mEditor.convertNoteOn();
+        transformTracks(new TrackTransform().convertNoteOnZeroToNoteOff());
 }//GEN-LAST:event_convertNoteOnButtonActionPerformed
 
     private void convertTextButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_convertTextButtonActionPerformed
@@ -445,7 +471,7 @@ public class TrackUpdateUtilDialog extends javax.swing.JDialog
 }//GEN-LAST:event_convertTextButtonActionPerformed
 
     private void removeNotesButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_removeNotesButtonActionPerformed
-        mEditor.removeNotes();
+        transformTracks(new TrackTransform().removeNotes());
 }//GEN-LAST:event_removeNotesButtonActionPerformed
 
     private void convertTypeZeroButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_convertTypeZeroButtonActionPerformed
@@ -457,11 +483,17 @@ public class TrackUpdateUtilDialog extends javax.swing.JDialog
     }//GEN-LAST:event_addSpaceButtonActionPerformed
 
     private void adjustNoteOnVelocityButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_adjustNoteOnVelocityButtonActionPerformed
-        mEditor.adjustNoteOnVelocity((Float)(adjustVelocityFactorField.getValue()));
+        try {
+            transformTracks(new TrackTransform()
+                .adjustNoteOnVelocity((Float)(adjustVelocityFactorField.getValue())));
+        } catch (IllegalArgumentException ex) {
+            resultLabel.setText(ex.getMessage());
+        }
     }//GEN-LAST:event_adjustNoteOnVelocityButtonActionPerformed
 
     private void setNoteOnVelocityButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_setNoteOnVelocityButtonActionPerformed
-        mEditor.setNoteOnVelocity((Integer)setVelocitySpinner.getValue());
+        transformTracks(new TrackTransform()
+            .setNoteOnVelocity((Integer)setVelocitySpinner.getValue()));
     }//GEN-LAST:event_setNoteOnVelocityButtonActionPerformed
 
     private void shiftEventsButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_shiftEventsButtonActionPerformed
@@ -480,6 +512,7 @@ public class TrackUpdateUtilDialog extends javax.swing.JDialog
     private javax.swing.JLabel adjustNoteOnVelocityLabel;
     private javax.swing.JFormattedTextField adjustVelocityFactorField;
     private javax.swing.JPanel adjustVelocityPanel;
+    private javax.swing.JCheckBox allTracksCheckBox;
     private javax.swing.JPanel buttonPanel;
     private javax.swing.JButton cancelButton;
     private javax.swing.JButton convertNoteOnButton;
@@ -499,6 +532,7 @@ public class TrackUpdateUtilDialog extends javax.swing.JDialog
     private javax.swing.JSeparator jSeparator7;
     private javax.swing.JPanel mainPanel;
     private javax.swing.JButton removeNotesButton;
+    private javax.swing.JLabel resultLabel;
     private javax.swing.JButton setNoteOnVelocityButton;
     private javax.swing.JLabel setNoteOnVelocityLabel;
     private javax.swing.JPanel setVelocityPanel;
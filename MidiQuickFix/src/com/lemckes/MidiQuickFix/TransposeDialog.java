@@ -36,6 +36,7 @@ import javax.swing.JComponent;
 import javax.swing.JSpinner;
 import javax.swing.JTextField;
 import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 /**
  * Allow the user to transpose the sequence.
@@ -55,6 +56,7 @@ public class TransposeDialog
     public static final int RET_OK = 1;
     private final String mKeyString = UiStrings.getString("key_names_string") + " ";
     private int mTransposeBy = 0;
+    private final List<ChangeListener> mChangeListeners = new ArrayList<>();
 
     /**
      * Creates new form TransposeDialog
@@ -75,6 +77,7 @@ public class TransposeDialog
         semitoneSpinner.addChangeListener((ChangeEvent e) -> {
             mTransposeBy = (Integer)semitoneSpinner.getValue();
             updateToString(mTransposeBy);
+            fireStateChanged();
         });
 
         KeyHighlighter kh1 = new KeyHighlighter();
@@ -132,6 +135,39 @@ public class TransposeDialog
         return doDrumsCheckBox.isSelected();
     }
 
+    /**
+     * Get the setting of the audition checkbox
+     *
+     * @return
+     * <code>true</code> if the sequence should be played transposed
+     * while the dialog is open
+     */
+    public boolean getAudition() {
+        return auditionCheckBox.isSelected();
+    }
+
+    /**
+     * Add a listener that is told when the number of semitones or
+     * the drum or audition settings are changed, so the transposition
+     * can be heard before it is applied.
+     *
+     * @param l the listener
+     */
+    public void addChangeListener(ChangeListener l) {
+        mChangeListeners.add(l);
+    }
+
+    public void removeChangeListener(ChangeListener l) {
+        mChangeListeners.remove(l);
+    }
+
+    private void fireStateChanged() {
+        ChangeEvent e = new ChangeEvent(this);
+        for (ChangeListener l : mChangeListeners) {
+            l.stateChanged(e);
+        }
+    }
+
     /**
      * Get the status of the dialog when it was closed
      *
@@ -159,6 +195,7 @@ public class TransposeDialog
         semitoneSpinner = new javax.swing.JSpinner();
         semitoneLabel = new javax.swing.JLabel();
         doDrumsCheckBox = new javax.swing.JCheckBox();
+        auditionCheckBox = new javax.swing.JCheckBox();
         jPanel3 = new javax.swing.JPanel();
         buttonPanel = new javax.swing.JPanel();
         okButton = new javax.swing.JButton();
@@ -227,6 +264,11 @@ public class TransposeDialog
         doDrumsCheckBox.setText(UiStrings.getString("transpose_drum_channel")); // NOI18N
         doDrumsCheckBox.setToolTipText(UiStrings.getString("transpose_drums_tooltip")); // NOI18N
         doDrumsCheckBox.setBorder(javax.swing.BorderFactory.createEmptyBorder(0, 0, 0, 0));
+        doDrumsCheckBox.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                doDrumsCheckBoxActionPerformed(evt);
+            }
+        });
         gridBagConstraints = new java.awt.GridBagConstraints();
         gridBagConstraints.gridx = 1;
         gridBagConstraints.gridy = 2;
@@ -234,6 +276,21 @@ public class TransposeDialog
         gridBagConstraints.insets = new java.awt.Insets(6, 6, 0, 0);
         mainPanel.add(doDrumsCheckBox, gridBagConstraints);
 
+        auditionCheckBox.setText(UiStrings.getString("transpose_audition")); // NOI18N
+        auditionCheckBox.setToolTipText(UiStrings.getString("transpose_audition_tooltip")); // NOI18N
+        auditionCheckBox.setBorder(javax.swing.BorderFactory.createEmptyBorder(0, 0, 0, 0));
+        auditionCheckBox.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                auditionCheckBoxActionPerformed(evt);
+            }
+        });
+        gridBagConstraints = new java.awt.GridBagConstraints();
+        gridBagConstraints.gridx = 1;
+        gridBagConstraints.gridy = 3;
+        gridBagConstraints.anchor = java.awt.GridBagConstraints.WEST;
+        gridBagConstraints.insets = new java.awt.Insets(6, 6, 0, 0);
+        mainPanel.add(auditionCheckBox, gridBagConstraints);
+
         getContentPane().add(mainPanel, java.awt.BorderLayout.CENTER);
 
         jPanel3.setLayout(new java.awt.FlowLayout(2));
@@ -270,6 +327,14 @@ public class TransposeDialog
         doClose(RET_CANCEL);
     }//GEN-LAST:event_cancelButtonActionPerformed
 
+    private void doDrumsCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_doDrumsCheckBoxActionPerformed
+        fireStateChanged();
+    }//GEN-LAST:event_doDrumsCheckBoxActionPerformed
+
+    private void auditionCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_auditionCheckBoxActionPerformed
+        fireStateChanged();
+    }//GEN-LAST:event_auditionCheckBoxActionPerformed
+
     /**
      * Closes the dialog
      */
@@ -283,6 +348,7 @@ public class TransposeDialog
         dispose();
     }
     // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JCheckBox auditionCheckBox;
     private javax.swing.JPanel buttonPanel;
     private javax.swing.JButton cancelButton;
     private javax.swing.JCheckBox doDrumsCheckBox;
@@ -0,0 +1,164 @@
+/**************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ **************************************************************/
+package com.lemckes.MidiQuickFix.components;
+
+import com.lemckes.MidiQuickFix.util.Formats;
+import com.lemckes.MidiQuickFix.util.MidiFile;
+import com.lemckes.MidiQuickFix.util.UiStrings;
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.IOException;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+
+/**
+ * A JFileChooser accessory that shows a summary of the selected MIDI file.
+ * The summary comes from MidiFile.probe() which is quick enough to
+ * follow the selection as the user moves through a directory.
+ */
+public class MidiFilePreview extends JPanel implements PropertyChangeListener
+{
+
+    static final long serialVersionUID = -2860736126380174514L;
+
+    private final JLabel mTitle = new JLabel();
+    private final JLabel mCopyright = new JLabel();
+    private final JLabel mLength = new JLabel();
+    private final JLabel mTempo = new JLabel();
+    private final JLabel mTimeSig = new JLabel();
+    private final JLabel mKey = new JLabel();
+    private final JLabel mTracks = new JLabel();
+
+    /**
+     * Create a preview and attach it to the chooser.
+     *
+     * @param chooser the chooser whose selection is to be previewed
+     */
+    public MidiFilePreview(JFileChooser chooser) {
+        super(new GridBagLayout());
+        addRow(0, "preview_title", mTitle); // NOI18N
+        addRow(1, "preview_copyright", mCopyright); // NOI18N
+        addRow(2, "duration", mLength); // NOI18N
+        addRow(3, "tempo", mTempo); // NOI18N
+        addRow(4, "timesig", mTimeSig); // NOI18N
+        addRow(5, "key", mKey); // NOI18N
+        addRow(6, "preview_tracks", mTracks); // NOI18N
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.gridy = 7;
+        gbc.weighty = 1.0;
+        add(new JLabel(), gbc);
+
+        chooser.setAccessory(this);
+        chooser.addPropertyChangeListener(
+            JFileChooser.SELECTED_FILE_CHANGED_PROPERTY, this);
+        setFile(chooser.getSelectedFile());
+    }
+
+    private void addRow(int row, String key, JLabel value) {
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.gridy = row;
+        gbc.anchor = GridBagConstraints.FIRST_LINE_END;
+        gbc.insets = new Insets(2, 6, 2, 4);
+        add(new JLabel(UiStrings.getString(key)), gbc);
+        gbc.gridx = 1;
+        gbc.anchor = GridBagConstraints.FIRST_LINE_START;
+        gbc.weightx = 1.0;
+        add(value, gbc);
+    }
+
+    @Override
+    public void propertyChange(PropertyChangeEvent evt) {
+        setFile((File)evt.getNewValue());
+    }
+
+    /**
+     * Show the summary of the given file.
+     *
+     * @param file the file to show, may be null
+     */
+    public void setFile(File file) {
+        MidiFile.Probe probe = null;
+        if (file != null && file.isFile()) {
+            try {
+                probe = MidiFile.probe(file);
+            } catch (InvalidMidiDataException | IOException ex) {
+                probe = null;
+            } catch (RuntimeException ex) {
+                // Any other failure to parse the file means there is
+                // no preview rather than an error on the event thread.
+                probe = null;
+            }
+        }
+        if (probe == null) {
+            clear(file != null && file.isFile()
+                ? UiStrings.getString("preview_not_midi") : ""); // NOI18N
+            return;
+        }
+        mTitle.setText(textOrEmpty(probe.getTitle()));
+        mCopyright.setText(textOrEmpty(probe.getCopyright()));
+        mLength.setText(
+            Formats.formatSeconds(probe.getMicrosecondLength() / 1000000));
+        mTempo.setText(Integer.toString(probe.getBpm()));
+        mTimeSig.setText(textOrEmpty(probe.getTimeSignature()));
+        mKey.setText(textOrEmpty(probe.getKeySignature()));
+        mTracks.setText(Integer.toString(probe.getTrackCount()));
+    }
+
+    private void clear(String title) {
+        mTitle.setText(title);
+        mCopyright.setText("");
+        mLength.setText("");
+        mTempo.setText("");
+        mTimeSig.setText("");
+        mKey.setText("");
+        mTracks.setText("");
+    }
+
+    private static String textOrEmpty(String text) {
+        return text == null ? "" : text.trim();
+    }
+
+    /**
+     * Get a one line summary of the file, for use as a tooltip.
+     *
+     * @param probe the probe of the file
+     * @return the title, length and tempo of the file
+     */
+    public static String summarise(MidiFile.Probe probe) {
+        StringBuilder sb = new StringBuilder();
+        String title = textOrEmpty(probe.getTitle());
+        if (!title.isEmpty()) {
+            sb.append(title).append("  "); // NOI18N
+        }
+        sb.append(Formats.formatSeconds(
+            probe.getMicrosecondLength() / 1000000));
+        sb.append("  ").append(probe.getBpm()).append(" bpm"); // NOI18N
+        return sb.toString();
+    }
+}
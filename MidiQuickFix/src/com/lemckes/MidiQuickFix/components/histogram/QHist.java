@@ -1,40 +1,37 @@
 package com.lemckes.MidiQuickFix.components.histogram;
 
-import java.util.Collections;
-import java.util.Map;
-import java.util.TreeMap;
-
 /**
- *
+ * The number of events at each offset, held as an array
+ * indexed by the offset.
  */
 public class QHist
 {
-    private double mMaxValue = 400;
-    private double mNumValues = 500;
-    private Map<Integer, Integer> mHistogramData =
-            new TreeMap<Integer, Integer>();
+    private int[] mCounts;
+    private int mMaxValue;
 
     public QHist() {
+        this(new int[0]);
     }
 
-    public Map<Integer, Integer> getHistogramData() {
-        return mHistogramData;
+    public QHist(int[] counts) {
+        setCounts(counts);
     }
 
-    public void setHistogramData(Map<Integer, Integer> histogramData) {
-        mHistogramData = histogramData;
-        mMaxValue = Collections.max(mHistogramData.values());
-        mNumValues = mHistogramData.size();
+    public int[] getCounts() {
+        return mCounts;
     }
 
-    public void put(Integer key, Integer value)
-    {
-        mHistogramData.put(key, value);
+    public void setCounts(int[] counts) {
+        mCounts = counts;
+        int max = 0;
+        for (int c : counts) {
+            max = Math.max(max, c);
+        }
+        mMaxValue = max;
     }
 
-    public Integer get(Integer key)
-    {
-        return mHistogramData.get(key);
+    public int get(int offset) {
+        return mCounts[offset];
     }
 
     public double getMaxValue() {
@@ -42,6 +39,6 @@ public class QHist
     }
 
     public double getNumValues() {
-        return mNumValues;
+        return mCounts.length;
     }
 }
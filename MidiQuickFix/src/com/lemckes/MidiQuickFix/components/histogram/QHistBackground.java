@@ -70,8 +70,6 @@ public class QHistBackground
             double width = getBoundingRect().getWidth();
             double step = width / mQuantiseLevel;
 
-            System.err.println("QuantiseRatioGraphic w=" + width + " h=" + height + " step=" + step);
-
             double startX = 0;
             Color c1 = Color.getHSBColor(0.5f, 0.05f, 1.0f);
             Color c2 = Color.getHSBColor(0.75f, 0.05f, 1.0f);
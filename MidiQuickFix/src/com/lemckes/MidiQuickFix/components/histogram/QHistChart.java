@@ -6,8 +6,6 @@ import com.lemckes.j2di.ILayer;
 import com.lemckes.j2di.IShape;
 import java.awt.Graphics;
 import java.awt.geom.Rectangle2D;
-import java.util.Map;
-import java.util.Map.Entry;
 
 /**
  *
@@ -27,17 +25,21 @@ public class QHistChart
 
     private void updateChart() {
         removeAllGroups();
+        // Leave room for the chart of a track with no events.
+        double maxValue = Math.max(1, mHist.getMaxValue());
         setWorldBounds(new Rectangle2D.Double(
-            0, 0, mHist.getNumValues(), mHist.getMaxValue()), true);
+            0, 0, mHist.getNumValues(), maxValue), true);
         setWorldViewSize(new IDimension(
-            mHist.getNumValues(), mHist.getMaxValue()), true);
+            mHist.getNumValues(), maxValue), true);
         mGroup = new IGroup(this);
-        Map<Integer, Integer> data = mHist.getHistogramData();
-//        mBars = new ArrayList<QHistBar>(data.size());
-        for (Entry<Integer, Integer> e : data.entrySet()) {
-            Rectangle2D r = new Rectangle2D.Double(0, 0, 1, e.getValue());
+        int[] counts = mHist.getCounts();
+        for (int offset = 0; offset < counts.length; ++offset) {
+            if (counts[offset] == 0) {
+                continue;
+            }
+            Rectangle2D r = new Rectangle2D.Double(0, 0, 1, counts[offset]);
             QHistBar bar = new QHistBar(r);
-            bar.setPosition(e.getKey(), mHist.getMaxValue() + 1,
+            bar.setPosition(offset, maxValue + 1,
                 IShape.AnchorPoint.BOTTOM_LEFT);
             mGroup.add(bar);
         }
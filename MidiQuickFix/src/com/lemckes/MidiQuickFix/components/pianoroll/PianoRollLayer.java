@@ -0,0 +1,467 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.components.pianoroll;
+
+import com.lemckes.MidiQuickFix.NoteNames;
+import com.lemckes.MidiQuickFix.util.Formats;
+import com.lemckes.MidiQuickFix.util.NoteIndex;
+import com.lemckes.MidiQuickFix.util.UiStrings;
+import com.lemckes.j2di.IDimension;
+import com.lemckes.j2di.IGroup;
+import com.lemckes.j2di.ILayer;
+import com.lemckes.j2di.IRectangle;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.event.MouseEvent;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Rectangle2D;
+import java.text.MessageFormat;
+
+/**
+ * A layer that draws the notes of a track as a piano roll.
+ * <p>
+ * The world is measured in ticks across and in note rows down, with the
+ * highest note at the top. The notes are not made into graphics. They
+ * are found in the NoteIndex of the track and drawn straight into the
+ * part of the layer that is being painted, so the cost of painting
+ * depends on the number of notes that can be seen, not the number in
+ * the track. In the same way the mouse is only given a group for the
+ * note that it is over, which is made when the note is found.
+ */
+public class PianoRollLayer
+    extends ILayer
+{
+
+    /** The number of note rows. */
+    public static final int ROWS = 128;
+
+    private static final int VISIBLE_ROWS = 48;
+    private static final double MIN_VISIBLE_TICKS = 16;
+    /** Grid lines closer than this many pixels are not drawn. */
+    private static final int MIN_GRID_SPACING = 4;
+
+    private static final Color BLACK_KEY_COLOUR = new Color(232, 232, 236);
+    private static final Color OCTAVE_COLOUR = new Color(200, 200, 208);
+    private static final Color BEAT_COLOUR = new Color(222, 222, 222);
+    private static final Color BAR_COLOUR = new Color(168, 168, 168);
+    private static final Color OUTLINE_COLOUR = new Color(40, 40, 90);
+    private static final Color HIGHLIGHT_COLOUR = new Color(255, 150, 40);
+    private static final Color CURSOR_COLOUR = Color.RED;
+    private static final boolean[] BLACK_KEYS = {
+        false, true, false, true, false,
+        false, true, false, true, false, true, false
+    };
+    /** The colour of a note for each velocity. */
+    private static final Color[] VELOCITY_COLOURS = new Color[128];
+
+    static {
+        for (int v = 0; v < VELOCITY_COLOURS.length; ++v) {
+            float f = v / 127.0f;
+            VELOCITY_COLOURS[v]
+                = Color.getHSBColor(0.62f, 0.25f + 0.7f * f, 0.95f - 0.3f * f);
+        }
+    }
+
+    private NoteIndex mNotes;
+    private int mResolution = 480;
+    private int mTicksPerBar = 1920;
+    private double mVisibleTicks;
+    private long mCursorTick = -1;
+    private int mHighlight = -1;
+
+    /**
+     * Create an empty piano roll layer.
+     */
+    public PianoRollLayer() {
+        super(1, 1);
+        setOpaque(true);
+        setBackground(Color.WHITE);
+        add(new NotesGroup(this));
+    }
+
+    /**
+     * Show the notes of a track.
+     *
+     * @param notes the notes
+     * @param resolution the ticks per beat of the sequence
+     * @param ticksPerBar the ticks per bar of the sequence
+     */
+    public void setNotes(NoteIndex notes, int resolution,
+        int ticksPerBar) {
+        // Forget the group of a note of the previous track.
+        if (getCurrentGroup() != null) {
+            groupRemoved(getCurrentGroup());
+        }
+        mNotes = notes;
+        mResolution = Math.max(resolution, 1);
+        mTicksPerBar = Math.max(ticksPerBar, 1);
+        mHighlight = -1;
+        double length = Math.max(notes.getLength(), mTicksPerBar);
+        if (mVisibleTicks <= 0) {
+            mVisibleTicks = mTicksPerBar * 4;
+        }
+        mVisibleTicks = Math.min(mVisibleTicks, length);
+        setWorldBounds(new Rectangle2D.Double(0, 0, length, ROWS), false);
+        setWorldViewSize(new IDimension(mVisibleTicks, VISIBLE_ROWS), true);
+        repaint();
+    }
+
+    /**
+     * @return the notes being shown, or null if there are none
+     */
+    public NoteIndex getNotes() {
+        return mNotes;
+    }
+
+    /**
+     * Set the number of ticks that fill the width of the view.
+     *
+     * @param ticks the number of ticks to show
+     */
+    public void setVisibleTicks(double ticks) {
+        mVisibleTicks = Math.max(MIN_VISIBLE_TICKS,
+            Math.min(ticks, getWorldBounds().width));
+        setWorldViewSize(new IDimension(mVisibleTicks, VISIBLE_ROWS), true);
+    }
+
+    /**
+     * @return the number of ticks that fill the width of the view
+     */
+    public double getVisibleTicks() {
+        return mVisibleTicks;
+    }
+
+    /**
+     * Convert a tick to an x position in the layer.
+     *
+     * @param tick the tick
+     * @return the x position in pixels
+     */
+    public double tickToX(double tick) {
+        AffineTransform at = getTransform();
+        return tick * at.getScaleX() + at.getTranslateX();
+    }
+
+    /**
+     * Convert an x position in the layer to a tick.
+     *
+     * @param x the x position in pixels
+     * @return the tick
+     */
+    public double xToTick(double x) {
+        AffineTransform at = getTransform();
+        return (x - at.getTranslateX()) / at.getScaleX();
+    }
+
+    /**
+     * Convert a note to the y position of the top of its row in the layer.
+     *
+     * @param pitch the note
+     * @return the y position in pixels
+     */
+    public double pitchToY(int pitch) {
+        AffineTransform at = getTransform();
+        return (ROWS - 1 - pitch) * at.getScaleY() + at.getTranslateY();
+    }
+
+    /**
+     * Move the playback cursor, repainting only where it was and
+     * where it is now.
+     *
+     * @param tick the playback position, or -1 to hide the cursor
+     */
+    public void setCursorTick(long tick) {
+        if (tick == mCursorTick) {
+            return;
+        }
+        repaintCursor();
+        mCursorTick = tick;
+        repaintCursor();
+    }
+
+    /**
+     * @return the playback position, or -1 if the cursor is hidden
+     */
+    public long getCursorTick() {
+        return mCursorTick;
+    }
+
+    private void repaintCursor() {
+        if (mCursorTick >= 0) {
+            int x = (int)Math.floor(tickToX(mCursorTick));
+            repaint(x - 1, 0, 3, getHeight());
+        }
+    }
+
+    /**
+     * Highlight a note.
+     *
+     * @param note the number of the note, or -1 for none
+     */
+    void setHighlight(int note) {
+        if (note == mHighlight) {
+            return;
+        }
+        repaintNote(mHighlight);
+        mHighlight = note;
+        repaintNote(mHighlight);
+    }
+
+    private void repaintNote(int note) {
+        if (note >= 0 && mNotes != null) {
+            Rectangle r = noteBounds(note);
+            repaint(r.x - 1, r.y - 1, r.width + 2, r.height + 2);
+        }
+    }
+
+    /**
+     * Get the pixels covered by a note. A note is always at least
+     * one pixel wide and high, however far the view is zoomed out.
+     */
+    private Rectangle noteBounds(int note) {
+        AffineTransform at = getTransform();
+        double sx = at.getScaleX();
+        double sy = at.getScaleY();
+        int x0 = (int)Math.floor(mNotes.getStart(note) * sx
+            + at.getTranslateX());
+        int x1 = (int)Math.floor(mNotes.getEnd(note) * sx
+            + at.getTranslateX());
+        int y0 = (int)Math.floor(
+            (ROWS - 1 - mNotes.getPitch(note)) * sy + at.getTranslateY());
+        int y1 = (int)Math.floor(
+            (ROWS - mNotes.getPitch(note)) * sy + at.getTranslateY());
+        return new Rectangle(x0, y0, Math.max(x1 - x0, 1),
+            Math.max(y1 - y0 - 1, 1));
+    }
+
+    /**
+     * Get the description of a note that is shown when the mouse is over it.
+     */
+    private String describe(int note) {
+        return MessageFormat.format(
+            UiStrings.getString("piano_roll_note_tooltip"),
+            NoteNames.getNoteName(mNotes.getPitch(note), false),
+            mNotes.getVelocity(note),
+            mNotes.getChannel(note),
+            Formats.formatBeatsTicks(
+                mNotes.getStart(note), mResolution, false),
+            mNotes.getEnd(note) - mNotes.getStart(note));
+    }
+
+    /**
+     * Find the note that is drawn in front at the cursor.
+     * The notes are drawn in roughly the order that they start,
+     * so the note that starts last is chosen.
+     */
+    private int findNote(Rectangle2D cursor) {
+        int[] found = {-1};
+        if (mNotes != null) {
+            int highPitch = ROWS - 1 - (int)Math.floor(cursor.getMinY());
+            int lowPitch = ROWS - 1 - (int)Math.floor(cursor.getMaxY());
+            mNotes.findNotes(
+                (long)Math.floor(cursor.getMinX()),
+                (long)Math.ceil(cursor.getMaxX()) + 1,
+                lowPitch, highPitch,
+                n -> found[0] = Math.max(found[0], n));
+        }
+        return found[0];
+    }
+
+    /**
+     * The group that paints the background, the notes and the cursor
+     * and finds the note under the mouse.
+     */
+    private class NotesGroup
+        extends IGroup
+    {
+
+        NotesGroup(ILayer layer) {
+            super(layer);
+        }
+
+        @Override
+        public Rectangle2D getBoundingRect() {
+            return getWorldBounds();
+        }
+
+        @Override
+        public boolean intersects(Rectangle2D rect) {
+            return getWorldBounds().intersects(rect);
+        }
+
+        @Override
+        public boolean contains(double x, double y) {
+            return getWorldBounds().contains(x, y);
+        }
+
+        /**
+         * Paint the part of the piano roll in the clip.
+         * The painting is done in pixels so that the notes are drawn
+         * as whole pixel rectangles, which is much quicker than filling
+         * shapes through the world transform.
+         */
+        @Override
+        public void paint(Graphics g, Rectangle2D clip) {
+            Graphics2D g2 = (Graphics2D)g;
+            AffineTransform saved = g2.getTransform();
+            AffineTransform world = getTransform();
+            AffineTransform pixels = new AffineTransform(saved);
+            try {
+                pixels.concatenate(world.createInverse());
+            } catch (NoninvertibleTransformException nte) {
+                return;
+            }
+            g2.setTransform(pixels);
+
+            Rectangle pixelClip = world.createTransformedShape(clip)
+                .getBounds();
+            int firstRow = Math.max(0, (int)Math.floor(clip.getMinY()));
+            int lastRow = Math.min(ROWS - 1, (int)Math.floor(clip.getMaxY()));
+            paintRows(g2, pixelClip, firstRow, lastRow);
+            paintGrid(g2, pixelClip, clip);
+
+            if (mNotes != null) {
+                mNotes.findNotes(
+                    (long)Math.floor(clip.getMinX()),
+                    (long)Math.ceil(clip.getMaxX()) + 1,
+                    ROWS - 1 - lastRow, ROWS - 1 - firstRow,
+                    n -> paintNote(g2, n));
+                if (mHighlight >= 0) {
+                    paintNote(g2, mHighlight);
+                }
+            }
+
+            if (mCursorTick >= 0) {
+                int x = (int)Math.floor(tickToX(mCursorTick));
+                if (x >= pixelClip.x - 1 && x <= pixelClip.getMaxX()) {
+                    g2.setColor(CURSOR_COLOUR);
+                    g2.fillRect(x, pixelClip.y, 1, pixelClip.height);
+                }
+            }
+
+            g2.setTransform(saved);
+        }
+
+        private void paintRows(Graphics2D g2, Rectangle pixelClip,
+            int firstRow, int lastRow) {
+            for (int row = firstRow; row <= lastRow; ++row) {
+                int pitch = ROWS - 1 - row;
+                int y0 = (int)Math.floor(pitchToY(pitch));
+                int y1 = (int)Math.floor(pitchToY(pitch - 1));
+                if (BLACK_KEYS[pitch % 12]) {
+                    g2.setColor(BLACK_KEY_COLOUR);
+                    g2.fillRect(pixelClip.x, y0, pixelClip.width, y1 - y0);
+                }
+                if (pitch % 12 == 0) {
+                    // The line below each C
+                    g2.setColor(OCTAVE_COLOUR);
+                    g2.fillRect(pixelClip.x, y1 - 1, pixelClip.width, 1);
+                }
+            }
+        }
+
+        private void paintGrid(Graphics2D g2, Rectangle pixelClip,
+            Rectangle2D clip) {
+            double pixelsPerTick = getTransform().getScaleX();
+            boolean showBeats = mResolution * pixelsPerTick >= MIN_GRID_SPACING;
+            int step = showBeats ? mResolution : mTicksPerBar;
+            if (step * pixelsPerTick < MIN_GRID_SPACING) {
+                return;
+            }
+            long tick = (long)Math.floor(clip.getMinX() / step) * step;
+            for (; tick <= clip.getMaxX(); tick += step) {
+                g2.setColor(tick % mTicksPerBar == 0 ? BAR_COLOUR : BEAT_COLOUR);
+                int x = (int)Math.floor(tickToX(tick));
+                g2.fillRect(x, pixelClip.y, 1, pixelClip.height);
+            }
+        }
+
+        private void paintNote(Graphics2D g2, int note) {
+            Rectangle r = noteBounds(note);
+            g2.setColor(note == mHighlight
+                ? HIGHLIGHT_COLOUR : VELOCITY_COLOURS[mNotes.getVelocity(note)]);
+            g2.fillRect(r.x, r.y, r.width, r.height);
+            if (r.width > 3 && r.height > 3) {
+                g2.setColor(OUTLINE_COLOUR);
+                g2.drawRect(r.x, r.y, r.width - 1, r.height - 1);
+            }
+        }
+
+        /**
+         * Give the mouse a group for the note under the cursor.
+         * The group is kept while the mouse stays over the same note.
+         */
+        @Override
+        public IGroup getEventHandler(Rectangle2D.Double cursor) {
+            int note = findNote(cursor);
+            if (note < 0) {
+                return null;
+            }
+            IGroup current = getCurrentGroup();
+            if (current instanceof NoteGroup
+                && ((NoteGroup)current).mNote == note) {
+                return current;
+            }
+            return new NoteGroup(PianoRollLayer.this, note);
+        }
+    }
+
+    /**
+     * The group for the note under the mouse, which highlights the note
+     * and describes it in the tool tip.
+     */
+    private class NoteGroup
+        extends IGroup
+    {
+
+        private final int mNote;
+
+        NoteGroup(ILayer layer, int note) {
+            super(layer);
+            mNote = note;
+            add(new IRectangle(new Rectangle2D.Double(
+                mNotes.getStart(note), ROWS - 1 - mNotes.getPitch(note),
+                Math.max(mNotes.getEnd(note) - mNotes.getStart(note), 1),
+                1)));
+        }
+
+        @Override
+        public void mouseEnter(MouseEvent e) {
+            setHighlight(mNote);
+            setToolTipText(describe(mNote));
+            super.mouseEnter(e);
+        }
+
+        @Override
+        public void mouseExit(MouseEvent e) {
+            if (mHighlight == mNote) {
+                setHighlight(-1);
+            }
+            setToolTipText(null);
+            super.mouseExit(e);
+        }
+    }
+}
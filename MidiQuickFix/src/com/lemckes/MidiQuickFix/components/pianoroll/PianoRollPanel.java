@@ -0,0 +1,348 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.components.pianoroll;
+
+import com.lemckes.MidiQuickFix.util.MqfSequence;
+import com.lemckes.MidiQuickFix.util.NoteIndex;
+import com.lemckes.MidiQuickFix.util.SequenceChange;
+import com.lemckes.MidiQuickFix.util.SequenceChangeListener;
+import com.lemckes.MidiQuickFix.util.UiStrings;
+import com.lemckes.j2di.LayerAttachConstraints;
+import java.awt.Dimension;
+import java.awt.EventQueue;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.MouseWheelEvent;
+import javax.sound.midi.Sequencer;
+import javax.swing.DefaultComboBoxModel;
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Show the notes of a track as a piano roll that can be scrolled and
+ * zoomed, with a cursor that follows the playback.
+ * <p>
+ * The notes are only found again when the track is changed, and then
+ * only if the piano roll is showing.
+ */
+public class PianoRollPanel
+    extends javax.swing.JPanel
+    implements SequenceChangeListener
+{
+
+    /** Move the cursor about 60 times a second. */
+    private static final int CURSOR_DELAY = 16;
+    private static final double ZOOM_STEP = 2.0;
+    /** When following, the view is moved on when the cursor passes
+     * this fraction of its width ... */
+    private static final double FOLLOW_EDGE = 0.9;
+    /** ... so that the cursor is this fraction of the width from the left. */
+    private static final double FOLLOW_MARGIN = 0.1;
+
+    private MqfSequence mSeq;
+    private Sequencer mSequencer;
+    private int mCurrentTrack;
+    /** The track whose notes are in the layer, or -1. */
+    private int mShownTrack = -1;
+    /** The notes need to be found again when the panel is shown. */
+    private boolean mStale;
+    private final PianoRollLayer mLayer;
+    private final Timer mCursorTimer;
+
+    /**
+     * Creates new form PianoRollPanel
+     */
+    public PianoRollPanel() {
+        initComponents();
+
+        mLayer = new PianoRollLayer();
+        LayerAttachConstraints lac = new LayerAttachConstraints();
+        lac.setAttachments(true, true, true, true);
+        rollScrollPane.getCanvas().add(mLayer, lac);
+        mLayer.addMouseWheelListener(this::layerMouseWheelMoved);
+
+        mCursorTimer = new Timer(CURSOR_DELAY, e -> updateCursor());
+
+        addHierarchyListener((HierarchyEvent e) -> {
+            if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0
+                && isShowing() && mStale) {
+                // Wait until the viewport has been laid out.
+                EventQueue.invokeLater(this::showNotes);
+            }
+        });
+    }
+
+    /**
+     * Set the sequencer whose position is shown by the cursor.
+     *
+     * @param sequencer the sequencer
+     */
+    public void setSequencer(Sequencer sequencer) {
+        mSequencer = sequencer;
+        mCursorTimer.start();
+    }
+
+    /**
+     * Set the sequence whose tracks are shown.
+     *
+     * @param seq the sequence
+     */
+    public void setSequence(MqfSequence seq) {
+        mSeq = seq;
+        mShownTrack = -1;
+        boolean haveTracks = mSeq != null && mSeq.getTrackCount() > 0;
+        if (haveTracks) {
+            setTrackComboModel();
+            trackSelector.setSelectedIndex(0);
+        }
+        trackSelector.setEnabled(haveTracks);
+        zoomInButton.setEnabled(haveTracks);
+        zoomOutButton.setEnabled(haveTracks);
+    }
+
+    @Override
+    public void sequenceChanged(SequenceChange change) {
+        if (mSeq == null) {
+            return;
+        }
+        if (change.isTracksChanged()) {
+            // Keep showing the same track if it still exists.
+            int numTracks = mSeq.getTrackCount();
+            mShownTrack = -1;
+            if (numTracks > 0) {
+                setTrackComboModel();
+                trackSelector.setSelectedIndex(
+                    Math.min(mCurrentTrack, numTracks - 1));
+            }
+            trackSelector.setEnabled(numTracks > 0);
+        } else if (change.getChangedTracks().contains(mCurrentTrack)) {
+            showNotes();
+        }
+    }
+
+    /**
+     * Populate the track selector with the track numbers and names.
+     */
+    private void setTrackComboModel() {
+        String[] trackList = new String[mSeq.getTrackCount()];
+        for (int i = 0; i < trackList.length; ++i) {
+            trackList[i] = Integer.toString(i);
+            String name = mSeq.getTrackName(i);
+            if (name != null) {
+                trackList[i] += " - " + name;
+            }
+        }
+        trackSelector.setModel(new DefaultComboBoxModel<>(trackList));
+    }
+
+    private void selectTrack(int trackNum) {
+        if (trackNum >= 0) {
+            mCurrentTrack = trackNum;
+            showNotes();
+        }
+    }
+
+    /**
+     * Find the notes of the current track and show them,
+     * or wait until the panel is showing.
+     */
+    private void showNotes() {
+        if (!isShowing()) {
+            mStale = true;
+            return;
+        }
+        mStale = false;
+        if (mSeq == null || mCurrentTrack >= mSeq.getTrackCount()) {
+            return;
+        }
+        NoteIndex notes = mSeq.getNoteIndex(mCurrentTrack);
+        JViewport viewport = rollScrollPane.getViewport();
+        Point position = viewport.getViewPosition();
+        mLayer.setScreenViewSize(viewport.getExtentSize(), false);
+        mLayer.setNotes(notes, mSeq.getResolution(), mSeq.getTicksPerBar());
+        rollScrollPane.validate();
+        if (mCurrentTrack != mShownTrack) {
+            // Start a new track at the beginning with its notes in view.
+            int middle = notes.size() == 0 ? 60
+                : (notes.getLowestPitch() + notes.getHighestPitch() + 1) / 2;
+            position = new Point(0, (int)mLayer.pitchToY(middle)
+                - viewport.getExtentSize().height / 2);
+            mShownTrack = mCurrentTrack;
+        }
+        viewport.setViewPosition(clampViewPosition(position));
+    }
+
+    /**
+     * Keep a view position inside the layer.
+     */
+    private Point clampViewPosition(Point p) {
+        Dimension extent = rollScrollPane.getViewport().getExtentSize();
+        int maxX = Math.max(0, mLayer.getWidth() - extent.width);
+        int maxY = Math.max(0, mLayer.getHeight() - extent.height);
+        return new Point(Math.max(0, Math.min(p.x, maxX)),
+            Math.max(0, Math.min(p.y, maxY)));
+    }
+
+    /**
+     * Zoom the view across, keeping the tick at a point in the view
+     * where it is.
+     *
+     * @param factor how much to magnify the view
+     * @param anchorX the point, in pixels from the left of the view
+     */
+    private void zoom(double factor, int anchorX) {
+        if (mLayer.getNotes() == null) {
+            return;
+        }
+        JViewport viewport = rollScrollPane.getViewport();
+        Point position = viewport.getViewPosition();
+        double tick = mLayer.xToTick(position.x + anchorX);
+        mLayer.setVisibleTicks(mLayer.getVisibleTicks() / factor);
+        rollScrollPane.validate();
+        position.x = (int)Math.round(mLayer.tickToX(tick)) - anchorX;
+        viewport.setViewPosition(clampViewPosition(position));
+    }
+
+    /**
+     * Zoom with the mouse wheel while the control key is down, otherwise
+     * let the scroll pane scroll.
+     */
+    private void layerMouseWheelMoved(MouseWheelEvent evt) {
+        if (evt.isControlDown()) {
+            Point p = SwingUtilities.convertPoint(
+                mLayer, evt.getPoint(), rollScrollPane.getViewport());
+            zoom(Math.pow(ZOOM_STEP, -evt.getPreciseWheelRotation()), p.x);
+        } else {
+            rollScrollPane.dispatchEvent(
+                SwingUtilities.convertMouseEvent(mLayer, evt, rollScrollPane));
+        }
+    }
+
+    /**
+     * Move the cursor to the sequencer's position and, while playing,
+     * move the view on when the cursor nears its right hand side.
+     */
+    private void updateCursor() {
+        if (mSequencer == null || mLayer.getNotes() == null || !isShowing()) {
+            return;
+        }
+        long tick = mSequencer.getTickPosition();
+        mLayer.setCursorTick(tick);
+        if (followCheck.isSelected() && mSequencer.isRunning()) {
+            JViewport viewport = rollScrollPane.getViewport();
+            Rectangle view = viewport.getViewRect();
+            double x = mLayer.tickToX(tick);
+            if (x < view.x || x >= view.x + view.width * FOLLOW_EDGE) {
+                Point p = new Point(
+                    (int)(x - view.width * FOLLOW_MARGIN), view.y);
+                viewport.setViewPosition(clampViewPosition(p));
+            }
+        }
+    }
+
+    /**
+     * This method is called from within the constructor to initialize the
+     * form. WARNING: Do NOT modify this code. The content of this method is
+     * always regenerated by the Form Editor.
+     */
+    @SuppressWarnings("unchecked")
+    // <editor-fold defaultstate="collapsed" desc="Generated Code">//GEN-BEGIN:initComponents
+    private void initComponents() {
+
+        controlPanel = new javax.swing.JPanel();
+        trackLabel = new javax.swing.JLabel();
+        trackSelector = new javax.swing.JComboBox<>();
+        zoomOutButton = new javax.swing.JButton();
+        zoomInButton = new javax.swing.JButton();
+        followCheck = new javax.swing.JCheckBox();
+        rollScrollPane = new com.lemckes.j2di.ICanvasScrollPane();
+
+        setLayout(new java.awt.BorderLayout());
+
+        controlPanel.setBorder(javax.swing.BorderFactory.createEmptyBorder(3, 0, 6, 0));
+        controlPanel.setLayout(new java.awt.FlowLayout(java.awt.FlowLayout.LEADING, 5, 0));
+
+        trackLabel.setText(UiStrings.getString("track")); // NOI18N
+        controlPanel.add(trackLabel);
+
+        trackSelector.setEnabled(false);
+        trackSelector.setName("trackSelector"); // NOI18N
+        trackSelector.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                trackSelectorActionPerformed(evt);
+            }
+        });
+        controlPanel.add(trackSelector);
+
+        zoomOutButton.setText("-"); // NOI18N
+        zoomOutButton.setToolTipText(UiStrings.getString("zoom_out")); // NOI18N
+        zoomOutButton.setEnabled(false);
+        zoomOutButton.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                zoomOutButtonActionPerformed(evt);
+            }
+        });
+        controlPanel.add(zoomOutButton);
+
+        zoomInButton.setText("+"); // NOI18N
+        zoomInButton.setToolTipText(UiStrings.getString("zoom_in")); // NOI18N
+        zoomInButton.setEnabled(false);
+        zoomInButton.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                zoomInButtonActionPerformed(evt);
+            }
+        });
+        controlPanel.add(zoomInButton);
+
+        followCheck.setSelected(true);
+        followCheck.setText(UiStrings.getString("follow_playback")); // NOI18N
+        controlPanel.add(followCheck);
+
+        add(controlPanel, java.awt.BorderLayout.PAGE_START);
+        add(rollScrollPane, java.awt.BorderLayout.CENTER);
+    }// </editor-fold>//GEN-END:initComponents
+
+    private void trackSelectorActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_trackSelectorActionPerformed
+        selectTrack(trackSelector.getSelectedIndex());
+    }//GEN-LAST:event_trackSelectorActionPerformed
+
+    private void zoomOutButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_zoomOutButtonActionPerformed
+        zoom(1 / ZOOM_STEP, rollScrollPane.getViewport().getWidth() / 2);
+    }//GEN-LAST:event_zoomOutButtonActionPerformed
+
+    private void zoomInButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_zoomInButtonActionPerformed
+        zoom(ZOOM_STEP, rollScrollPane.getViewport().getWidth() / 2);
+    }//GEN-LAST:event_zoomInButtonActionPerformed
+
+    // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JPanel controlPanel;
+    private javax.swing.JCheckBox followCheck;
+    private com.lemckes.j2di.ICanvasScrollPane rollScrollPane;
+    private javax.swing.JLabel trackLabel;
+    private javax.swing.JComboBox<String> trackSelector;
+    private javax.swing.JButton zoomInButton;
+    private javax.swing.JButton zoomOutButton;
+    // End of variables declaration//GEN-END:variables
+}
@@ -26,7 +26,9 @@ public class BarBeatTick
     public BarBeatTick(Sequence seq) {
         mTimeSigChanges = new TreeMap<>();
         mResolution = seq.getResolution();
-        Track t = seq.getTracks()[0];
+        // Only the first track is needed, don't decode any others.
+        Track t = seq instanceof MqfSequence
+            ? ((MqfSequence)seq).getTrack(0) : seq.getTracks()[0];
         int count = t.size() - 1;
         for (int j = 0; j < count; ++j) {
             MidiEvent ev = t.get(j);
@@ -0,0 +1,417 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Track;
+
+/**
+ * Apply the same fixes to many midi files without the user interface.
+ * No Synthesizer, Sequencer or window is created.
+ * <p>
+ * Usage :
+ * <pre>
+ * BatchProcessor [-j threads] [-o outputDir] -op op[,op...] file|dir|glob ...
+ * </pre>
+ * The operations are applied in the order given, a run of noteoff,
+ * velocity, scale-velocity and remove-notes is applied in one pass :
+ * <ul>
+ * <li>transpose=N - transpose by N semitones, not the drums</li>
+ * <li>noteoff - convert NOTE_ONs with zero velocity to NOTE_OFFs</li>
+ * <li>velocity=N - set the velocity of all NOTE_ONs</li>
+ * <li>scale-velocity=F - multiply the velocity of all NOTE_ONs</li>
+ * <li>remove-notes - remove all NOTE_ONs and NOTE_OFFs</li>
+ * <li>quantise=N - quantise notes and lyrics to N divisions of a beat</li>
+ * <li>channel=N - set the channel of all channel messages</li>
+ * <li>map-channel=A:B - move the messages on channel A to channel B</li>
+ * <li>map-program=A:B - change PROGRAM_CHANGEs to program A into program B</li>
+ * </ul>
+ * Each file is written in place, or below <code>outputDir</code>,
+ * with the same atomic replace used when saving from the editor.
+ * The files are processed by a fixed number of workers with a bounded
+ * queue. When the queue is full the thread finding the files processes
+ * the next one itself, so the search can not run far ahead of the work.
+ */
+public class BatchProcessor
+{
+
+    /**
+     * A change to apply to each sequence.
+     */
+    public interface Operation
+    {
+
+        void apply(MqfSequence seq);
+    }
+
+    private final List<Operation> mOperations;
+    private final Path mOutputDir;
+    private final ThreadPoolExecutor mExecutor;
+
+    private final AtomicInteger mFiles = new AtomicInteger();
+    private final AtomicInteger mFailures = new AtomicInteger();
+    private final LongAdder mEvents = new LongAdder();
+    private final LongAdder mBytes = new LongAdder();
+
+    /**
+     * Create a BatchProcessor
+     *
+     * @param operations the operations to apply to each file
+     * @param outputDir the directory to write the results to,
+     * or null to replace the original files
+     * @param threads the number of worker threads
+     */
+    public BatchProcessor(List<Operation> operations, Path outputDir, int threads) {
+        mOperations = operations;
+        mOutputDir = outputDir;
+        mExecutor = new ThreadPoolExecutor(threads, threads,
+            0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(threads * 2),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Process all the midi files that match a file name, directory or glob.
+     * May be called more than once before <code>finish()</code>.
+     *
+     * @param spec the file, directory or glob pattern
+     * @throws IOException if the files can not be listed
+     */
+    public void submit(String spec) throws IOException {
+        int glob = firstGlobChar(spec);
+        if (glob < 0) {
+            Path path = Paths.get(spec);
+            if (Files.isDirectory(path)) {
+                submitTree(path, null);
+            } else {
+                submit(path, path.getParent());
+            }
+        } else {
+            // The directory part before the first glob character
+            // is where the search starts.
+            int sep = Math.max(spec.lastIndexOf('/', glob),
+                spec.lastIndexOf(File.separatorChar, glob));
+            Path base = Paths.get(sep < 0 ? "." : spec.substring(0, sep + 1)); // NOI18N
+            PathMatcher matcher = FileSystems.getDefault()
+                .getPathMatcher("glob:" + spec.substring(sep + 1)); // NOI18N
+            submitTree(base, matcher);
+        }
+    }
+
+    private void submitTree(Path base, PathMatcher matcher) throws IOException {
+        MidiFileFilter filter = new MidiFileFilter();
+        try (Stream<Path> paths = Files.walk(base)) {
+            paths.filter(Files::isRegularFile)
+                .filter(p -> matcher == null
+                    ? filter.accept(p.toFile())
+                    : matcher.matches(base.relativize(p)))
+                .forEach(p -> submit(p, base));
+        }
+    }
+
+    private void submit(Path file, Path base) {
+        mExecutor.execute(() -> process(file, base));
+    }
+
+    /**
+     * Read a file, apply the operations and write the result.
+     */
+    private void process(Path file, Path base) {
+        try {
+            MqfSequence seq = SmfReader.read(file.toFile(), false);
+            for (Operation op : mOperations) {
+                op.apply(seq);
+            }
+
+            Path out = file;
+            if (mOutputDir != null) {
+                Path relative = base == null
+                    ? file.getFileName() : base.relativize(file);
+                out = mOutputDir.resolve(relative);
+                Files.createDirectories(out.getParent());
+            }
+            mBytes.add(SmfWriter.write(seq, out.toFile()));
+
+            for (Track t : seq.getTracks()) {
+                mEvents.add(t.size());
+            }
+            mFiles.incrementAndGet();
+        } catch (InvalidMidiDataException | IOException | RuntimeException ex) {
+            mFailures.incrementAndGet();
+            System.err.println(file + " : " + ex.getMessage()); // NOI18N
+        }
+    }
+
+    /**
+     * Wait for all the submitted files to be processed.
+     */
+    public void finish() throws InterruptedException {
+        mExecutor.shutdown();
+        mExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    public int getFileCount() {
+        return mFiles.get();
+    }
+
+    public int getFailureCount() {
+        return mFailures.get();
+    }
+
+    public long getEventCount() {
+        return mEvents.sum();
+    }
+
+    /**
+     * Create an Operation from its command line form.
+     *
+     * @param spec the operation, for example <code>transpose=-2</code>
+     * @return the Operation
+     * @throws IllegalArgumentException if the operation is not known
+     */
+    public static Operation parseOperation(String spec) {
+        int eq = spec.indexOf('=');
+        String name = eq < 0 ? spec : spec.substring(0, eq);
+        String arg = eq < 0 ? "" : spec.substring(eq + 1);
+        switch (name) {
+            case "transpose": { // NOI18N
+                int semitones = Integer.parseInt(arg);
+                return seq -> Transposer.transpose(seq, semitones);
+            }
+            case "noteoff": // NOI18N
+            case "velocity": // NOI18N
+            case "scale-velocity": // NOI18N
+            case "remove-notes": { // NOI18N
+                TrackTransform transform = new TrackTransform();
+                addStage(transform, spec);
+                return transformTracks(transform);
+            }
+            case "quantise": { // NOI18N
+                int divisions = Integer.parseInt(arg);
+                // Each Track is rebuilt in one pass rather than moving
+                // its events one at a time.
+                return seq -> {
+                    for (int i = 0; i < seq.getTrackCount(); ++i) {
+                        Quantiser.quantise(seq, i, divisions);
+                    }
+                };
+            }
+            case "channel": { // NOI18N
+                int[] channelMap = new int[16];
+                Arrays.fill(channelMap, Integer.parseInt(arg));
+                return seq -> rewriteTracks(seq, channelMap, null);
+            }
+            case "map-channel": { // NOI18N
+                int[] pair = parsePair(arg);
+                int[] channelMap = new int[16];
+                for (int c = 0; c < 16; ++c) {
+                    channelMap[c] = c;
+                }
+                channelMap[pair[0]] = pair[1];
+                return seq -> rewriteTracks(seq, channelMap, null);
+            }
+            case "map-program": { // NOI18N
+                int[] pair = parsePair(arg);
+                int[] programMap = MessageRewriter.programMap(pair[0], pair[1]);
+                return seq -> rewriteTracks(seq, null, programMap);
+            }
+            default:
+                throw new IllegalArgumentException(
+                    "Unknown operation : " + spec); // NOI18N
+        }
+    }
+
+    /**
+     * Create the Operations from their command line form.
+     * Each run of operations that change the events of a Track one at
+     * a time is made into a single TrackTransform, so the run costs one
+     * pass over each Track.
+     *
+     * @param specs the operations separated by commas,
+     * for example <code>noteoff,velocity=90,transpose=2</code>
+     * @return the Operations
+     * @throws IllegalArgumentException if an operation is not known
+     */
+    public static List<Operation> parseOperations(String specs) {
+        List<Operation> operations = new ArrayList<>();
+        TrackTransform transform = new TrackTransform();
+        for (String spec : specs.split(",")) { // NOI18N
+            if (!addStage(transform, spec)) {
+                if (!transform.isEmpty()) {
+                    operations.add(transformTracks(transform));
+                    transform = new TrackTransform();
+                }
+                operations.add(parseOperation(spec));
+            }
+        }
+        if (!transform.isEmpty()) {
+            operations.add(transformTracks(transform));
+        }
+        return operations;
+    }
+
+    /**
+     * Add an operation to a TrackTransform if it is one of those
+     * that change the events of a Track one at a time.
+     *
+     * @return true if the operation was added
+     */
+    private static boolean addStage(TrackTransform transform, String spec) {
+        int eq = spec.indexOf('=');
+        String name = eq < 0 ? spec : spec.substring(0, eq);
+        String arg = eq < 0 ? "" : spec.substring(eq + 1);
+        switch (name) {
+            case "noteoff": // NOI18N
+                transform.convertNoteOnZeroToNoteOff();
+                return true;
+            case "velocity": // NOI18N
+                transform.setNoteOnVelocity(Integer.parseInt(arg));
+                return true;
+            case "scale-velocity": // NOI18N
+                transform.adjustNoteOnVelocity(Float.parseFloat(arg));
+                return true;
+            case "remove-notes": // NOI18N
+                transform.removeNotes();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Transform every Track. A Track from which events are removed
+     * is rebuilt once rather than removing its events one at a time.
+     */
+    private static Operation transformTracks(TrackTransform transform) {
+        return seq -> transform.apply(seq);
+    }
+
+    /**
+     * Rewrite every Track without decoding those that were read lazily.
+     */
+    private static void rewriteTracks(MqfSequence seq,
+        int[] channelMap, int[] programMap) {
+        for (int i = 0; i < seq.getTrackCount(); ++i) {
+            MessageRewriter.rewrite(seq, i, channelMap, programMap);
+        }
+    }
+
+    /**
+     * @return the two numbers of an argument such as <code>3:5</code>
+     */
+    private static int[] parsePair(String arg) {
+        int colon = arg.indexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException(
+                "Expected from:to but got " + arg); // NOI18N
+        }
+        return new int[]{
+            Integer.parseInt(arg.substring(0, colon)),
+            Integer.parseInt(arg.substring(colon + 1))};
+    }
+
+    private static int firstGlobChar(String spec) {
+        for (int i = 0; i < spec.length(); ++i) {
+            if ("*?[{".indexOf(spec.charAt(i)) >= 0) { // NOI18N
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void usage() {
+        System.err.println(
+            "Usage: BatchProcessor [-j threads] [-o outputDir]" // NOI18N
+            + " -op op[,op...] file|dir|glob ...\n" // NOI18N
+            + "  ops: transpose=N noteoff velocity=N" // NOI18N
+            + " scale-velocity=F remove-notes quantise=N channel=N" // NOI18N
+            + " map-channel=A:B map-program=A:B"); // NOI18N
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true"); // NOI18N
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path outputDir = null;
+        List<Operation> operations = new ArrayList<>();
+        List<String> specs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                switch (args[i]) {
+                    case "-j": // NOI18N
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "-o": // NOI18N
+                        outputDir = Paths.get(args[++i]);
+                        break;
+                    case "-op": // NOI18N
+                        operations.addAll(parseOperations(args[++i]));
+                        break;
+                    default:
+                        specs.add(args[i]);
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+            System.err.println(ex.getMessage());
+            usage();
+        }
+        if (operations.isEmpty() || specs.isEmpty() || threads < 1) {
+            usage();
+        }
+
+        long start = System.nanoTime();
+        BatchProcessor processor
+            = new BatchProcessor(operations, outputDir, threads);
+        for (String spec : specs) {
+            processor.submit(spec);
+        }
+        processor.finish();
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+
+        System.out.printf(
+            "%d files, %d failed, %d events, %d bytes in %.2f s%n" // NOI18N
+            + "%.1f files/sec, %.0f events/sec%n", // NOI18N
+            processor.getFileCount(), processor.getFailureCount(),
+            processor.getEventCount(), processor.mBytes.sum(), seconds,
+            processor.getFileCount() / seconds,
+            processor.getEventCount() / seconds);
+        System.exit(processor.getFailureCount() == 0 ? 0 : 1);
+    }
+}
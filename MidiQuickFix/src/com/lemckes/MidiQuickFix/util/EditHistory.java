@@ -0,0 +1,990 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.IntPredicate;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+
+/**
+ * The undo and redo history of the edits made to an MqfSequence.
+ * <p>
+ * An edit is recorded as a delta that can be applied in either direction
+ * rather than as a copy of the sequence. The deltas are held in primitive
+ * arrays, the event indexes and packed short messages in an int[], ticks
+ * in a long[] and the contents of added and removed events in a
+ * PackedTrack, so recording an edit costs a few bytes for each event it
+ * changes. Changes of the same kind to the same track within one edit
+ * are merged into a single record, and a transpose of the whole sequence
+ * is recorded as the number of semitones plus the few events that
+ * transposing back would not restore.
+ * <p>
+ * The oldest edits are discarded when the history uses more than its
+ * memory limit.
+ * <p>
+ * Events are found by their index in the track, so every edit to the
+ * sequence must be recorded, or the history cleared, for the history to
+ * stay in step with the sequence. The records made between beginEdit()
+ * and endEdit() are undone as one edit, any other record is an edit
+ * on its own.
+ *
+ * @see MqfSequence#getHistory()
+ */
+public class EditHistory
+{
+
+    /** The default memory limit in megabytes. */
+    public static final int DEFAULT_MEMORY_LIMIT_MB = 32;
+
+    /** Events added. ints: index; events: the event. */
+    private static final int OP_INSERT = 1;
+    /** Events removed. ints: index; events: the event. */
+    private static final int OP_DELETE = 2;
+    /** Short messages changed. ints: index, old message, new message. */
+    private static final int OP_SHORT = 3;
+    /** Other messages changed. ints: index; events: old, new. */
+    private static final int OP_MESSAGE = 4;
+    /** Ticks changed in place. ints: index; longs: old, new. */
+    private static final int OP_TICK = 5;
+    /** A track created. events: its contents. */
+    private static final int OP_CREATE_TRACK = 6;
+    /** A track deleted. events: its contents. */
+    private static final int OP_DELETE_TRACK = 7;
+    /**
+     * The sequence transposed. ints: semitones, doDrums, then
+     * track, index, old message for each event to fix up.
+     */
+    private static final int OP_TRANSPOSE = 8;
+
+    /**
+     * A record is the op, track index, event count and the start of
+     * its ints, longs and events.
+     */
+    private static final int RECORD_SIZE = 6;
+    /** An edit is the start of its records, ints, longs and events. */
+    private static final int EDIT_SIZE = 4;
+    /** Marks a transpose fix up of a KEY_SIGNATURE. */
+    static final int KEY_SIGNATURE_FIX = 1 << 24;
+
+    private final MqfSequence mSequence;
+    private long mMemoryLimit;
+    private int[] mRecords = new int[RECORD_SIZE * 16];
+    private int mRecordCount;
+    private int[] mInts = new int[64];
+    private int mIntCount;
+    private long[] mLongs = new long[16];
+    private int mLongCount;
+    private final PackedTrack mEvents = new PackedTrack();
+    private int[] mEdits = new int[EDIT_SIZE * 16];
+    private int mEditCount;
+    /** The number of edits that can be undone, the rest can be redone. */
+    private int mUndoCount;
+    /** The nesting of beginEdit() calls. */
+    private int mDepth;
+    /** True while the records of the last edit are being made. */
+    private boolean mEditOpen;
+    /** True while an edit is being undone or redone. */
+    private boolean mApplying;
+
+    /**
+     * Create an empty history.
+     *
+     * @param seq the sequence whose edits are recorded
+     * @param memoryLimit the number of bytes that the history may use
+     */
+    EditHistory(MqfSequence seq, long memoryLimit) {
+        mSequence = seq;
+        mMemoryLimit = memoryLimit;
+    }
+
+    /**
+     * Start an edit. The records made before the matching endEdit()
+     * are undone and redone together. Edits may be nested.
+     */
+    public void beginEdit() {
+        if (!mApplying) {
+            ++mDepth;
+        }
+    }
+
+    /**
+     * Finish an edit started by beginEdit().
+     */
+    public void endEdit() {
+        if (mApplying || mDepth == 0) {
+            return;
+        }
+        --mDepth;
+        if (mDepth == 0 && mEditOpen) {
+            closeEdit();
+        }
+    }
+
+    /**
+     * @return false while an edit is being undone or redone,
+     * when nothing is recorded
+     */
+    public boolean isRecording() {
+        return !mApplying;
+    }
+
+    /**
+     * Record that an event has been added to a track.
+     *
+     * @param trackIndex the index of the track
+     * @param index the index of the event in the track
+     * @param event the event
+     */
+    public void eventInserted(int trackIndex, int index, MidiEvent event) {
+        eventsInserted(trackIndex, new int[]{index}, new MidiEvent[]{event}, 1);
+    }
+
+    /**
+     * Record that events have been added to a track.
+     *
+     * @param trackIndex the index of the track
+     * @param indexes the index of each event in the track after they
+     * were added, in ascending order
+     * @param events the events
+     * @param count the number of events
+     */
+    public void eventsInserted(int trackIndex, int[] indexes,
+        MidiEvent[] events, int count) {
+        addEvents(OP_INSERT, trackIndex, indexes, events, count);
+    }
+
+    /**
+     * Record that an event has been removed from a track.
+     *
+     * @param trackIndex the index of the track
+     * @param index the index the event had in the track
+     * @param event the event
+     */
+    public void eventDeleted(int trackIndex, int index, MidiEvent event) {
+        eventsDeleted(trackIndex, new int[]{index}, new MidiEvent[]{event}, 1);
+    }
+
+    /**
+     * Record that events have been removed from a track.
+     *
+     * @param trackIndex the index of the track
+     * @param indexes the index each event had in the track before
+     * any of them were removed, in ascending order
+     * @param events the events
+     * @param count the number of events
+     */
+    public void eventsDeleted(int trackIndex, int[] indexes,
+        MidiEvent[] events, int count) {
+        addEvents(OP_DELETE, trackIndex, indexes, events, count);
+    }
+
+    private void addEvents(int op, int trackIndex, int[] indexes,
+        MidiEvent[] events, int count) {
+        if (mApplying || count == 0) {
+            return;
+        }
+        int r = startRecord(op, trackIndex, false);
+        ensureInts(count);
+        for (int i = 0; i < count; ++i) {
+            mInts[mIntCount++] = indexes[i];
+            mEvents.addMessage(events[i].getTick(), events[i].getMessage());
+        }
+        mRecords[r * RECORD_SIZE + 2] = count;
+        endRecord();
+    }
+
+    /**
+     * Record that the message of an event has been changed in place.
+     *
+     * @param trackIndex the index of the track
+     * @param index the index of the event in the track
+     * @param oldMessage a copy of the message before it was changed
+     * @param newMessage the changed message
+     */
+    public void messageChanged(int trackIndex, int index,
+        MidiMessage oldMessage, MidiMessage newMessage) {
+        if (mApplying) {
+            return;
+        }
+        if (oldMessage instanceof ShortMessage
+            && newMessage instanceof ShortMessage) {
+            shortMessageChanged(trackIndex, index,
+                pack((ShortMessage)oldMessage), (ShortMessage)newMessage);
+            return;
+        }
+        int r = startRecord(OP_MESSAGE, trackIndex, true);
+        ensureInts(1);
+        mInts[mIntCount++] = index;
+        mEvents.addMessage(0, oldMessage);
+        mEvents.addMessage(0, newMessage);
+        ++mRecords[r * RECORD_SIZE + 2];
+        endRecord();
+    }
+
+    /**
+     * Record that a short message has been changed in place.
+     *
+     * @param trackIndex the index of the track
+     * @param index the index of the event in the track
+     * @param oldMessage the message before it was changed,
+     * as returned by pack()
+     * @param newMessage the changed message
+     */
+    public void shortMessageChanged(int trackIndex, int index,
+        int oldMessage, ShortMessage newMessage) {
+        shortMessageChanged(trackIndex, index, oldMessage, pack(newMessage));
+    }
+
+    /**
+     * Record that a short message has been changed in place.
+     *
+     * @param trackIndex the index of the track
+     * @param index the index of the event in the track
+     * @param oldMessage the message before it was changed,
+     * as returned by pack()
+     * @param newMessage the changed message, as returned by pack()
+     */
+    public void shortMessageChanged(int trackIndex, int index,
+        int oldMessage, int newMessage) {
+        if (mApplying) {
+            return;
+        }
+        int r = startRecord(OP_SHORT, trackIndex, true);
+        ensureInts(3);
+        mInts[mIntCount++] = index;
+        mInts[mIntCount++] = oldMessage;
+        mInts[mIntCount++] = newMessage;
+        ++mRecords[r * RECORD_SIZE + 2];
+        endRecord();
+    }
+
+    /**
+     * Record that the tick of an event has been changed without moving
+     * the event in the track.
+     *
+     * @param trackIndex the index of the track
+     * @param index the index of the event in the track
+     * @param oldTick the tick before it was changed
+     * @param newTick the new tick
+     */
+    public void tickChanged(int trackIndex, int index, long oldTick, long newTick) {
+        if (mApplying) {
+            return;
+        }
+        int r = startRecord(OP_TICK, trackIndex, true);
+        ensureInts(1);
+        mInts[mIntCount++] = index;
+        ensureLongs(2);
+        mLongs[mLongCount++] = oldTick;
+        mLongs[mLongCount++] = newTick;
+        ++mRecords[r * RECORD_SIZE + 2];
+        endRecord();
+    }
+
+    /**
+     * Record that a track has been created.
+     * The events of the track are recorded when the edit ends, so a
+     * track that is filled with events must be created and filled
+     * between beginEdit() and endEdit().
+     *
+     * @param trackIndex the index of the new track
+     */
+    void trackCreated(int trackIndex) {
+        if (mApplying) {
+            return;
+        }
+        int r = startRecord(OP_CREATE_TRACK, trackIndex, false);
+        // The events are not known yet.
+        mRecords[r * RECORD_SIZE + 2] = -1;
+        endRecord();
+    }
+
+    /**
+     * Record that a track is about to be deleted.
+     *
+     * @param trackIndex the index of the track
+     * @param track the track
+     */
+    void trackDeleted(int trackIndex, Track track) {
+        if (mApplying) {
+            return;
+        }
+        int r = startRecord(OP_DELETE_TRACK, trackIndex, false);
+        int size = track.size();
+        for (int i = 0; i < size; ++i) {
+            MidiEvent ev = track.get(i);
+            mEvents.addMessage(ev.getTick(), ev.getMessage());
+        }
+        mRecords[r * RECORD_SIZE + 2] = size;
+        endRecord();
+    }
+
+    /**
+     * Record a transpose of the whole sequence.
+     *
+     * @param semitones the number of semitones
+     * @param doDrums whether channel 9 was transposed
+     * @param fixUps the track, index and old message of each event that
+     * transposing back would not restore, the message is packed as by
+     * pack(), or for a KEY_SIGNATURE as KEY_SIGNATURE_FIX, sharps, minor
+     * @param count the number of fix ups
+     */
+    void transposed(int semitones, boolean doDrums, int[] fixUps, int count) {
+        if (mApplying) {
+            return;
+        }
+        int r = startRecord(OP_TRANSPOSE, -1, false);
+        ensureInts(2 + count * 3);
+        mInts[mIntCount++] = semitones;
+        mInts[mIntCount++] = doDrums ? 1 : 0;
+        System.arraycopy(fixUps, 0, mInts, mIntCount, count * 3);
+        mIntCount += count * 3;
+        mRecords[r * RECORD_SIZE + 2] = count;
+        endRecord();
+    }
+
+    /**
+     * Pack the status and data bytes of a short message into an int.
+     *
+     * @param sm the message
+     * @return the packed message
+     */
+    public static int pack(ShortMessage sm) {
+        return (sm.getStatus() << 16) | (sm.getData1() << 8) | sm.getData2();
+    }
+
+    /**
+     * @return true if there is an edit that can be undone
+     */
+    public boolean canUndo() {
+        return mUndoCount > 0 && !mEditOpen;
+    }
+
+    /**
+     * @return true if there is an undone edit that can be redone
+     */
+    public boolean canRedo() {
+        return mUndoCount < mEditCount && !mEditOpen;
+    }
+
+    /**
+     * Undo the last edit.
+     * If the history is found to be out of step with the sequence
+     * it is cleared.
+     *
+     * @return true if an edit was undone
+     */
+    public boolean undo() {
+        if (!canUndo()) {
+            return false;
+        }
+        if (!apply(mUndoCount - 1, true)) {
+            return false;
+        }
+        --mUndoCount;
+        return true;
+    }
+
+    /**
+     * Redo the last edit that was undone.
+     *
+     * @return true if an edit was redone
+     * @see #undo()
+     */
+    public boolean redo() {
+        if (!canRedo()) {
+            return false;
+        }
+        if (!apply(mUndoCount, false)) {
+            return false;
+        }
+        ++mUndoCount;
+        return true;
+    }
+
+    /**
+     * Discard all the edits.
+     */
+    public void clear() {
+        mRecordCount = 0;
+        mIntCount = 0;
+        mLongCount = 0;
+        mEvents.truncate(0);
+        mEditCount = 0;
+        mUndoCount = 0;
+        mEditOpen = false;
+        compact();
+    }
+
+    /**
+     * @return the number of edits that can be undone
+     */
+    public int getUndoCount() {
+        return mEditOpen ? 0 : mUndoCount;
+    }
+
+    /**
+     * @return the number of edits that can be redone
+     */
+    public int getRedoCount() {
+        return mEditCount - mUndoCount;
+    }
+
+    /**
+     * @return the approximate number of bytes used by the history
+     */
+    public long getMemoryUsed() {
+        return getMemoryUsed(0);
+    }
+
+    /**
+     * @return the number of bytes that the history may use
+     */
+    public long getMemoryLimit() {
+        return mMemoryLimit;
+    }
+
+    /**
+     * Set the number of bytes that the history may use,
+     * discarding the oldest edits if it uses more.
+     *
+     * @param memoryLimit the number of bytes
+     */
+    public void setMemoryLimit(long memoryLimit) {
+        mMemoryLimit = memoryLimit;
+        if (!mEditOpen) {
+            trimToLimit();
+        }
+    }
+
+    /**
+     * Start a record, starting a new edit if there is no open one.
+     * A mergeable record of the same kind as the last one in the edit
+     * is added to that one.
+     *
+     * @return the index of the record
+     */
+    private int startRecord(int op, int trackIndex, boolean mergeable) {
+        if (!mEditOpen) {
+            openEdit();
+        }
+        int last = mRecordCount - 1;
+        if (mergeable && last >= mEdits[(mEditCount - 1) * EDIT_SIZE]
+            && mRecords[last * RECORD_SIZE] == op
+            && mRecords[last * RECORD_SIZE + 1] == trackIndex) {
+            return last;
+        }
+        if ((mRecordCount + 1) * RECORD_SIZE > mRecords.length) {
+            mRecords = Arrays.copyOf(mRecords, mRecords.length * 2);
+        }
+        int o = mRecordCount * RECORD_SIZE;
+        mRecords[o] = op;
+        mRecords[o + 1] = trackIndex;
+        mRecords[o + 2] = 0;
+        mRecords[o + 3] = mIntCount;
+        mRecords[o + 4] = mLongCount;
+        mRecords[o + 5] = mEvents.size();
+        return mRecordCount++;
+    }
+
+    private void endRecord() {
+        if (mDepth == 0) {
+            closeEdit();
+        }
+    }
+
+    private void openEdit() {
+        // A new edit replaces the edits that were undone.
+        removeEditsFrom(mUndoCount);
+        if ((mEditCount + 1) * EDIT_SIZE > mEdits.length) {
+            mEdits = Arrays.copyOf(mEdits, mEdits.length * 2);
+        }
+        int e = mEditCount * EDIT_SIZE;
+        mEdits[e] = mRecordCount;
+        mEdits[e + 1] = mIntCount;
+        mEdits[e + 2] = mLongCount;
+        mEdits[e + 3] = mEvents.size();
+        ++mEditCount;
+        mUndoCount = mEditCount;
+        mEditOpen = true;
+    }
+
+    private void closeEdit() {
+        mEditOpen = false;
+        // Now that the new tracks have been filled record their events.
+        for (int r = mEdits[(mEditCount - 1) * EDIT_SIZE]; r < mRecordCount; ++r) {
+            int o = r * RECORD_SIZE;
+            if (mRecords[o] == OP_CREATE_TRACK && mRecords[o + 2] < 0) {
+                mRecords[o + 2] = 0;
+                mRecords[o + 5] = mEvents.size();
+                if (mRecords[o + 1] < mSequence.getTrackCount()) {
+                    Track track = mSequence.getTrack(mRecords[o + 1]);
+                    for (int i = 0; i < track.size(); ++i) {
+                        MidiEvent ev = track.get(i);
+                        mEvents.addMessage(ev.getTick(), ev.getMessage());
+                    }
+                    mRecords[o + 2] = track.size();
+                }
+            }
+        }
+        trimToLimit();
+    }
+
+    /**
+     * Discard the oldest edits until the history fits in its limit.
+     */
+    private void trimToLimit() {
+        if (getMemoryUsed() <= mMemoryLimit) {
+            return;
+        }
+        int keep = 0;
+        while (keep < mEditCount && getMemoryUsed(keep) > mMemoryLimit) {
+            ++keep;
+        }
+        removeEditsBefore(keep);
+        compact();
+    }
+
+    /**
+     * @return the bytes used by the edits from <code>edit</code> onwards
+     */
+    private long getMemoryUsed(int edit) {
+        if (edit >= mEditCount) {
+            return 0;
+        }
+        int e = edit * EDIT_SIZE;
+        return (mRecordCount - mEdits[e]) * RECORD_SIZE * 4L
+            + (mIntCount - mEdits[e + 1]) * 4L
+            + (mLongCount - mEdits[e + 2]) * 8L
+            + mEvents.getUsedSize(mEdits[e + 3])
+            + (mEditCount - edit) * EDIT_SIZE * 4L;
+    }
+
+    /**
+     * Remove the edits from <code>edit</code> onwards.
+     */
+    private void removeEditsFrom(int edit) {
+        if (edit >= mEditCount) {
+            return;
+        }
+        int e = edit * EDIT_SIZE;
+        mRecordCount = mEdits[e];
+        mIntCount = mEdits[e + 1];
+        mLongCount = mEdits[e + 2];
+        mEvents.truncate(mEdits[e + 3]);
+        mEditCount = edit;
+        mUndoCount = Math.min(mUndoCount, edit);
+    }
+
+    /**
+     * Remove the edits before <code>edit</code>.
+     */
+    private void removeEditsBefore(int edit) {
+        if (edit <= 0) {
+            return;
+        }
+        if (edit >= mEditCount) {
+            clear();
+            return;
+        }
+        int e = edit * EDIT_SIZE;
+        int records = mEdits[e];
+        int ints = mEdits[e + 1];
+        int longs = mEdits[e + 2];
+        int events = mEdits[e + 3];
+
+        mRecordCount -= records;
+        System.arraycopy(mRecords, records * RECORD_SIZE,
+            mRecords, 0, mRecordCount * RECORD_SIZE);
+        for (int o = 0; o < mRecordCount * RECORD_SIZE; o += RECORD_SIZE) {
+            mRecords[o + 3] -= ints;
+            mRecords[o + 4] -= longs;
+            mRecords[o + 5] -= events;
+        }
+        mIntCount -= ints;
+        System.arraycopy(mInts, ints, mInts, 0, mIntCount);
+        mLongCount -= longs;
+        System.arraycopy(mLongs, longs, mLongs, 0, mLongCount);
+        mEvents.removeFirst(events);
+
+        mEditCount -= edit;
+        System.arraycopy(mEdits, e, mEdits, 0, mEditCount * EDIT_SIZE);
+        for (int o = 0; o < mEditCount * EDIT_SIZE; o += EDIT_SIZE) {
+            mEdits[o] -= records;
+            mEdits[o + 1] -= ints;
+            mEdits[o + 2] -= longs;
+            mEdits[o + 3] -= events;
+        }
+        mUndoCount = Math.max(0, mUndoCount - edit);
+    }
+
+    /**
+     * Release the space that is no longer used.
+     */
+    private void compact() {
+        mRecords = Arrays.copyOf(mRecords,
+            Math.max(RECORD_SIZE * 16, mRecordCount * RECORD_SIZE));
+        mInts = Arrays.copyOf(mInts, Math.max(64, mIntCount));
+        mLongs = Arrays.copyOf(mLongs, Math.max(16, mLongCount));
+        mEdits = Arrays.copyOf(mEdits, Math.max(EDIT_SIZE * 16, mEditCount * EDIT_SIZE));
+        mEvents.trimToSize();
+    }
+
+    private void ensureInts(int count) {
+        if (mIntCount + count > mInts.length) {
+            mInts = Arrays.copyOf(mInts,
+                Math.max(mIntCount + count, mInts.length * 2));
+        }
+    }
+
+    private void ensureLongs(int count) {
+        if (mLongCount + count > mLongs.length) {
+            mLongs = Arrays.copyOf(mLongs,
+                Math.max(mLongCount + count, mLongs.length * 2));
+        }
+    }
+
+    /**
+     * Undo or redo an edit.
+     * Each record either applies completely or leaves the sequence alone,
+     * so if one does not match the records already applied are reversed
+     * and the sequence is left as it was before the edit was applied.
+     *
+     * @return false if the history did not match the sequence
+     */
+    private boolean apply(int edit, boolean undo) {
+        int first = mEdits[edit * EDIT_SIZE];
+        int end = edit + 1 < mEditCount
+            ? mEdits[(edit + 1) * EDIT_SIZE] : mRecordCount;
+        Set<Integer> changed = new TreeSet<>();
+        mApplying = true;
+        int applied = 0;
+        try {
+            for (; applied < end - first; ++applied) {
+                applyRecord(undo ? end - 1 - applied : first + applied,
+                    undo, changed);
+            }
+            analyse(changed);
+            return true;
+        } catch (IllegalStateException | IndexOutOfBoundsException
+            | InvalidMidiDataException e) {
+            TraceDialog.addTrace(
+                "The edit history does not match the sequence: " // NOI18N
+                + e.getMessage());
+            try {
+                while (--applied >= 0) {
+                    applyRecord(undo ? end - 1 - applied : first + applied,
+                        !undo, changed);
+                }
+            } catch (IllegalStateException | IndexOutOfBoundsException
+                | InvalidMidiDataException ex) {
+                TraceDialog.addTrace(
+                    "The partly applied edit could not be reversed: " // NOI18N
+                    + ex.getMessage());
+            }
+            analyse(changed);
+            clear();
+            return false;
+        } finally {
+            mApplying = false;
+        }
+    }
+
+    /**
+     * Let the sequence analyse the tracks whose events have been changed
+     * in place.
+     */
+    private void analyse(Set<Integer> changed) {
+        for (int trackIndex : changed) {
+            if (trackIndex < mSequence.getTrackCount()) {
+                mSequence.trackChanged(trackIndex);
+            }
+        }
+        changed.clear();
+    }
+
+    private void applyRecord(int r, boolean undo, Set<Integer> changed)
+        throws InvalidMidiDataException {
+        int o = r * RECORD_SIZE;
+        int op = mRecords[o];
+        int trackIndex = mRecords[o + 1];
+        int count = mRecords[o + 2];
+        int ints = mRecords[o + 3];
+        int longs = mRecords[o + 4];
+        int events = mRecords[o + 5];
+        switch (op) {
+            case OP_INSERT:
+            case OP_DELETE:
+                if ((op == OP_INSERT) == undo) {
+                    removeEvents(trackIndex, count, ints, events);
+                } else {
+                    insertEvents(trackIndex, count, ints, events);
+                }
+                break;
+            case OP_SHORT:
+                setShortMessages(trackIndex, count, ints, undo);
+                changed.add(trackIndex);
+                break;
+            case OP_MESSAGE:
+                setMessages(trackIndex, count, ints, events, undo);
+                changed.add(trackIndex);
+                break;
+            case OP_TICK:
+                setTicks(trackIndex, count, ints, longs, undo);
+                changed.add(trackIndex);
+                break;
+            case OP_CREATE_TRACK:
+            case OP_DELETE_TRACK:
+                // The track indexes are about to change.
+                analyse(changed);
+                if ((op == OP_CREATE_TRACK) == undo) {
+                    if (!mSequence.deleteTrack(mSequence.getTrack(trackIndex))) {
+                        throw new IllegalStateException(
+                            "No track " + trackIndex); // NOI18N
+                    }
+                } else {
+                    Track track = mSequence.createTrack(trackIndex);
+                    for (int i = 0; i < count; ++i) {
+                        track.add(mEvents.getMidiEvent(events + i));
+                    }
+                    mSequence.trackChanged(trackIndex);
+                }
+                break;
+            case OP_TRANSPOSE:
+                analyse(changed);
+                transpose(count, ints, undo);
+                break;
+            default:
+                throw new IllegalStateException("Unknown record " + op); // NOI18N
+        }
+    }
+
+    private void removeEvents(int trackIndex, int count, int ints, int events) {
+        Track track = mSequence.getTrack(trackIndex);
+        int[] indexes = new int[count];
+        BitSet found = new BitSet();
+        for (int i = 0; i < count; ++i) {
+            MidiEvent expected = mEvents.getMidiEvent(events + i);
+            int index = findEvent(track, mInts[ints + i],
+                at -> !found.get(at) && isSameEvent(track.get(at), expected));
+            found.set(index);
+            indexes[i] = index;
+        }
+        Arrays.sort(indexes);
+        mSequence.removeEvents(trackIndex, indexes);
+    }
+
+    private void insertEvents(int trackIndex, int count, int ints, int events) {
+        int[] indexes = Arrays.copyOfRange(mInts, ints, ints + count);
+        MidiEvent[] added = new MidiEvent[count];
+        for (int i = 0; i < count; ++i) {
+            added[i] = mEvents.getMidiEvent(events + i);
+        }
+        mSequence.insertEvents(trackIndex, indexes, added);
+    }
+
+    private void setShortMessages(int trackIndex, int count, int ints,
+        boolean undo) throws InvalidMidiDataException {
+        Track track = mSequence.getTrack(trackIndex);
+        int[] found = new int[count];
+        int n = 0;
+        try {
+            for (; n < count; ++n) {
+                int at = ints + (undo ? count - 1 - n : n) * 3;
+                int from = mInts[at + (undo ? 2 : 1)];
+                int to = mInts[at + (undo ? 1 : 2)];
+                found[n] = findEvent(track, mInts[at], i -> {
+                    MidiMessage mm = track.get(i).getMessage();
+                    return mm instanceof ShortMessage
+                        && pack((ShortMessage)mm) == from;
+                });
+                setShortMessage(track.get(found[n]), to);
+            }
+        } catch (IllegalStateException e) {
+            // Put back the messages this record has already changed.
+            while (--n >= 0) {
+                int at = ints + (undo ? count - 1 - n : n) * 3;
+                setShortMessage(track.get(found[n]), mInts[at + (undo ? 2 : 1)]);
+            }
+            throw e;
+        }
+    }
+
+    private static void setShortMessage(MidiEvent event, int packed)
+        throws InvalidMidiDataException {
+        ((ShortMessage)event.getMessage()).setMessage(
+            (packed >> 16) & 0xff, (packed >> 8) & 0xff, packed & 0xff);
+    }
+
+    private void setMessages(int trackIndex, int count, int ints, int events,
+        boolean undo) throws InvalidMidiDataException {
+        Track track = mSequence.getTrack(trackIndex);
+        int[] found = new int[count];
+        int n = 0;
+        try {
+            for (; n < count; ++n) {
+                int i = undo ? count - 1 - n : n;
+                byte[] from = mEvents.getMidiEvent(
+                    events + i * 2 + (undo ? 1 : 0)).getMessage().getMessage();
+                MidiMessage to = mEvents.getMidiEvent(
+                    events + i * 2 + (undo ? 0 : 1)).getMessage();
+                found[n] = findEvent(track, mInts[ints + i],
+                    at -> Arrays.equals(track.get(at).getMessage().getMessage(), from));
+                setMessage(track.get(found[n]).getMessage(), to);
+            }
+        } catch (IllegalStateException e) {
+            // Put back the messages this record has already changed.
+            while (--n >= 0) {
+                int i = undo ? count - 1 - n : n;
+                setMessage(track.get(found[n]).getMessage(), mEvents.getMidiEvent(
+                    events + i * 2 + (undo ? 1 : 0)).getMessage());
+            }
+            throw e;
+        }
+    }
+
+    private void setTicks(int trackIndex, int count, int ints, int longs,
+        boolean undo) {
+        Track track = mSequence.getTrack(trackIndex);
+        int[] found = new int[count];
+        int n = 0;
+        try {
+            for (; n < count; ++n) {
+                int i = undo ? count - 1 - n : n;
+                long from = mLongs[longs + i * 2 + (undo ? 1 : 0)];
+                long to = mLongs[longs + i * 2 + (undo ? 0 : 1)];
+                found[n] = findEvent(track, mInts[ints + i],
+                    at -> track.get(at).getTick() == from);
+                track.get(found[n]).setTick(to);
+            }
+        } catch (IllegalStateException e) {
+            // Put back the ticks this record has already changed.
+            while (--n >= 0) {
+                int i = undo ? count - 1 - n : n;
+                track.get(found[n]).setTick(mLongs[longs + i * 2 + (undo ? 1 : 0)]);
+            }
+            throw e;
+        }
+    }
+
+    private void transpose(int count, int ints, boolean undo)
+        throws InvalidMidiDataException {
+        int semitones = mInts[ints];
+        boolean doDrums = mInts[ints + 1] != 0;
+        if (!undo) {
+            // Transposing is repeatable, there is nothing to fix up.
+            Transposer.transpose(mSequence, semitones, doDrums);
+            return;
+        }
+        // Check the events to fix up before transposing anything,
+        // transposing does not change the kind of any message.
+        MidiMessage[] fixes = new MidiMessage[count];
+        for (int i = 0; i < count; ++i) {
+            int at = ints + 2 + i * 3;
+            MidiMessage mm = mSequence.getTrack(mInts[at])
+                .get(mInts[at + 1]).getMessage();
+            boolean keySignature = (mInts[at + 2] & KEY_SIGNATURE_FIX) != 0;
+            if (keySignature ? !(mm instanceof MetaMessage)
+                : !(mm instanceof ShortMessage)) {
+                throw new IllegalStateException(
+                    "No transposed event " + mInts[at + 1]); // NOI18N
+            }
+            fixes[i] = mm;
+        }
+        Transposer.transpose(mSequence, -semitones, doDrums);
+        // Put back the notes that were moved by octaves to stay in range
+        // and the key signatures that changed between sharps and flats.
+        for (int i = count - 1; i >= 0; --i) {
+            int at = ints + 2 + i * 3;
+            int old = mInts[at + 2];
+            if ((old & KEY_SIGNATURE_FIX) != 0) {
+                byte[] data = {(byte)(old >> 8), (byte)old};
+                ((MetaMessage)fixes[i]).setMessage(MetaEvent.KEY_SIGNATURE, data, 2);
+            } else {
+                ((ShortMessage)fixes[i]).setMessage(
+                    (old >> 16) & 0xff, (old >> 8) & 0xff, old & 0xff);
+            }
+            mSequence.trackChanged(mInts[at]);
+        }
+    }
+
+    /**
+     * Find an event by its index, allowing for the events having been put
+     * in a different order, for instance when the tick zero events are
+     * sorted or a track with events moved out of tick order is rebuilt.
+     * The nearest matching event is taken.
+     *
+     * @return the index of the event
+     * @throws IllegalStateException if there is no matching event
+     */
+    private static int findEvent(Track track, int index, IntPredicate matches) {
+        int size = track.size();
+        int at = Math.max(0, Math.min(index, size - 1));
+        for (int d = 0; at - d >= 0 || at + d < size; ++d) {
+            if (at - d >= 0 && matches.test(at - d)) {
+                return at - d;
+            }
+            if (d > 0 && at + d < size && matches.test(at + d)) {
+                return at + d;
+            }
+        }
+        throw new IllegalStateException("No matching event at " + index); // NOI18N
+    }
+
+    private static boolean isSameEvent(MidiEvent ev, MidiEvent expected) {
+        return ev.getTick() == expected.getTick()
+            && Arrays.equals(ev.getMessage().getMessage(),
+                expected.getMessage().getMessage());
+    }
+
+    /**
+     * Copy the contents of one message into another of the same kind.
+     */
+    private static void setMessage(MidiMessage mm, MidiMessage to)
+        throws InvalidMidiDataException {
+        if (mm instanceof MetaMessage && to instanceof MetaMessage) {
+            byte[] data = ((MetaMessage)to).getData();
+            ((MetaMessage)mm).setMessage(
+                ((MetaMessage)to).getType(), data, data.length);
+        } else if (mm instanceof SysexMessage && to instanceof SysexMessage) {
+            byte[] bytes = to.getMessage();
+            ((SysexMessage)mm).setMessage(bytes, bytes.length);
+        } else if (mm instanceof ShortMessage && to instanceof ShortMessage) {
+            ShortMessage sm = (ShortMessage)to;
+            ((ShortMessage)mm).setMessage(
+                sm.getStatus(), sm.getData1(), sm.getData2());
+        } else {
+            throw new IllegalStateException("Message kind changed"); // NOI18N
+        }
+    }
+}
@@ -0,0 +1,496 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import com.lemckes.MidiQuickFix.NoteNames;
+import java.util.BitSet;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+/**
+ * Select the events of a Track by their type, channel, controller number,
+ * note, velocity, tick and META text.
+ * <p>
+ * Each criterion that is set only passes the events that have that
+ * property, for instance setting a note range hides the META events.
+ * The criteria that are not set pass every event.
+ * A TrackEventIndex can find the events that pass a filter without
+ * testing every event in the Track.
+ *
+ * @see TrackEventIndex
+ * @see #parse(String, int, int)
+ */
+public class EventFilter implements Predicate<MidiEvent>
+{
+
+    /** NOTE_ON and NOTE_OFF events. */
+    public static final int NOTES = 1;
+    /** CONTROL_CHANGE events. */
+    public static final int CONTROLLERS = 1 << 1;
+    /** PROGRAM_CHANGE events. */
+    public static final int PROGRAMS = 1 << 2;
+    /** PITCH_BEND events. */
+    public static final int PITCH_BENDS = 1 << 3;
+    /** CHANNEL_PRESSURE and POLY_PRESSURE events. */
+    public static final int PRESSURES = 1 << 4;
+    /** META events. */
+    public static final int META = 1 << 5;
+    /** System Exclusive events. */
+    public static final int SYSEX = 1 << 6;
+    /** ShortMessage System events. */
+    public static final int SYSTEM = 1 << 7;
+    /** The number of types. */
+    public static final int TYPE_COUNT = 8;
+    /** All the types. */
+    public static final int ALL_TYPES = (1 << TYPE_COUNT) - 1;
+    /** All the channels. */
+    public static final int ALL_CHANNELS = 0xffff;
+
+    private int mTypes = ALL_TYPES;
+    private int mChannels = ALL_CHANNELS;
+    private BitSet mControllers;
+    private int mLowNote = -1;
+    private int mHighNote = -1;
+    private int mLowVelocity = -1;
+    private int mHighVelocity = -1;
+    private long mFromTick = 0;
+    private long mToTick = Long.MAX_VALUE;
+    private Pattern mTextPattern;
+
+    /**
+     * Create a filter that passes every event.
+     */
+    public EventFilter() {
+    }
+
+    /**
+     * Get the type of a message.
+     *
+     * @param mess the message
+     * @return one of NOTES, CONTROLLERS, ... SYSTEM
+     */
+    public static int getType(MidiMessage mess) {
+        if (mess instanceof MetaMessage) {
+            return META;
+        } else if (mess instanceof SysexMessage) {
+            return SYSEX;
+        }
+        int status = mess.getStatus();
+        if (status >= 0xf0) {
+            return SYSTEM;
+        }
+        switch (status & 0xf0) {
+            case ShortMessage.NOTE_ON:
+            case ShortMessage.NOTE_OFF:
+                return NOTES;
+            case ShortMessage.CONTROL_CHANGE:
+                return CONTROLLERS;
+            case ShortMessage.PROGRAM_CHANGE:
+                return PROGRAMS;
+            case ShortMessage.PITCH_BEND:
+                return PITCH_BENDS;
+            default:
+                return PRESSURES;
+        }
+    }
+
+    /**
+     * @param types the types to pass, a combination of NOTES,
+     * CONTROLLERS, ... SYSTEM
+     */
+    public void setTypes(int types) {
+        mTypes = types & ALL_TYPES;
+    }
+
+    public int getTypes() {
+        return mTypes;
+    }
+
+    /**
+     * @param channels the channels to pass, bit n set for channel n,
+     * or ALL_CHANNELS to pass every event
+     */
+    public void setChannels(int channels) {
+        mChannels = channels & ALL_CHANNELS;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /**
+     * @param controllers the controller numbers to pass,
+     * or null to pass every event
+     */
+    public void setControllers(BitSet controllers) {
+        mControllers = controllers == null ? null : (BitSet)controllers.clone();
+    }
+
+    /**
+     * @return a copy of the controller numbers to pass,
+     * or null if every event passes
+     */
+    public BitSet getControllers() {
+        return mControllers == null ? null : (BitSet)mControllers.clone();
+    }
+
+    /**
+     * Pass only the notes and poly pressure events within a range of notes.
+     *
+     * @param low the lowest note to pass, or -1 to pass every event
+     * @param high the highest note to pass
+     */
+    public void setNoteRange(int low, int high) {
+        mLowNote = low;
+        mHighNote = high;
+    }
+
+    /**
+     * Pass only the notes within a range of velocities.
+     *
+     * @param low the lowest velocity to pass, or -1 to pass every event
+     * @param high the highest velocity to pass
+     */
+    public void setVelocityRange(int low, int high) {
+        mLowVelocity = low;
+        mHighVelocity = high;
+    }
+
+    /**
+     * Pass only the events within a range of ticks.
+     *
+     * @param from the first tick to pass
+     * @param to the tick after the last tick to pass
+     */
+    public void setTickRange(long from, long to) {
+        mFromTick = from;
+        mToTick = to;
+    }
+
+    public long getFromTick() {
+        return mFromTick;
+    }
+
+    public long getToTick() {
+        return mToTick;
+    }
+
+    /**
+     * Pass only the META events whose text contains a match for
+     * the pattern.
+     *
+     * @param pattern the pattern, or null to pass every event
+     */
+    public void setTextPattern(Pattern pattern) {
+        mTextPattern = pattern;
+    }
+
+    public Pattern getTextPattern() {
+        return mTextPattern;
+    }
+
+    /**
+     * @return true if the filter has criteria that a TrackEventIndex
+     * can not answer, so each candidate event must be tested
+     */
+    public boolean hasEventCriteria() {
+        return mLowNote >= 0 || mLowVelocity >= 0 || mTextPattern != null;
+    }
+
+    /**
+     * @return true if every event passes
+     */
+    public boolean passesAll() {
+        return mTypes == ALL_TYPES && mChannels == ALL_CHANNELS
+            && mControllers == null && !hasEventCriteria()
+            && mFromTick <= 0 && mToTick == Long.MAX_VALUE;
+    }
+
+    @Override
+    public boolean test(MidiEvent event) {
+        long tick = event.getTick();
+        if (tick < mFromTick || tick >= mToTick) {
+            return false;
+        }
+        MidiMessage mess = event.getMessage();
+        int type = getType(mess);
+        if ((mTypes & type) == 0) {
+            return false;
+        }
+        if (type == META) {
+            return mChannels == ALL_CHANNELS && mControllers == null
+                && mLowNote < 0 && mLowVelocity < 0
+                && (mTextPattern == null
+                || mTextPattern.matcher(getText((MetaMessage)mess)).find());
+        }
+        if (mTextPattern != null || type == SYSEX || type == SYSTEM) {
+            return mTextPattern == null && mChannels == ALL_CHANNELS
+                && mControllers == null && mLowNote < 0 && mLowVelocity < 0;
+        }
+        ShortMessage sm = (ShortMessage)mess;
+        if ((mChannels & (1 << sm.getChannel())) == 0) {
+            return false;
+        }
+        if (mControllers != null
+            && (type != CONTROLLERS || !mControllers.get(sm.getData1()))) {
+            return false;
+        }
+        if (mLowNote >= 0) {
+            boolean hasNote = type == NOTES
+                || sm.getCommand() == ShortMessage.POLY_PRESSURE;
+            if (!hasNote || sm.getData1() < mLowNote
+                || sm.getData1() > mHighNote) {
+                return false;
+            }
+        }
+        if (mLowVelocity >= 0) {
+            if (type != NOTES || sm.getData2() < mLowVelocity
+                || sm.getData2() > mHighVelocity) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the text of a META event as it is shown in the track editor
+     */
+    static String getText(MetaMessage mess) {
+        return String.valueOf(MetaEvent.getMetaStrings(mess)[2]);
+    }
+
+    /**
+     * Create a filter from its text form.
+     * The text is a list of criteria separated by spaces, all of which
+     * must be met. Numbers may be given as a single value, a range
+     * <code>a-b</code> or a list <code>a,b,c-d</code>.
+     * <ul>
+     * <li>note, cc, program, bend, pressure, meta, sysex, system -
+     * the types of event to show</li>
+     * <li>ccN - controller N, for instance <code>cc7,11</code></li>
+     * <li>ch=N - the channels, as shown in the table</li>
+     * <li>note=A-B - the notes, as numbers or names such as C4</li>
+     * <li>vel=A-B - the note velocities</li>
+     * <li>tick=A-B, beat=A-B, bar=A-B - the position,
+     * beats and bars counting from 1</li>
+     * <li>/regex/ or text=regex - META events with matching text</li>
+     * </ul>
+     * For example <code>cc7,11 ch=3 bar=20-40</code>.
+     *
+     * @param spec the text form of the filter
+     * @param resolution the ticks per beat of the sequence
+     * @param ticksPerBar the ticks per bar of the sequence
+     * @return the filter
+     * @throws IllegalArgumentException if the text can not be understood
+     */
+    public static EventFilter parse(String spec, int resolution,
+        int ticksPerBar) {
+        EventFilter filter = new EventFilter();
+        int types = 0;
+        String rest = spec.trim();
+        while (!rest.isEmpty()) {
+            String token;
+            if (rest.startsWith("/")) { // NOI18N
+                int end = rest.indexOf('/', 1);
+                if (end < 0) {
+                    throw new IllegalArgumentException(
+                        "Missing / after " + rest); // NOI18N
+                }
+                token = rest.substring(0, end + 1);
+                rest = rest.substring(end + 1).trim();
+                filter.mTextPattern = compile(token.substring(1, end));
+                continue;
+            }
+            int space = rest.indexOf(' ');
+            token = space < 0 ? rest : rest.substring(0, space);
+            rest = space < 0 ? "" : rest.substring(space + 1).trim(); // NOI18N
+
+            int eq = token.indexOf('=');
+            String name = (eq < 0 ? token : token.substring(0, eq)).toLowerCase();
+            String arg = eq < 0 ? "" : token.substring(eq + 1); // NOI18N
+            if (eq < 0 && name.startsWith("cc") && name.length() > 2) { // NOI18N
+                arg = name.substring(2);
+                name = "cc"; // NOI18N
+            }
+            switch (name) {
+                case "note": // NOI18N
+                    if (arg.isEmpty()) {
+                        types |= NOTES;
+                    } else {
+                        int[] range = parseRange(arg, true);
+                        filter.setNoteRange(range[0], range[1]);
+                    }
+                    break;
+                case "cc": // NOI18N
+                    types |= CONTROLLERS;
+                    if (!arg.isEmpty()) {
+                        filter.mControllers = parseList(arg, 127);
+                    }
+                    break;
+                case "program": // NOI18N
+                    types |= PROGRAMS;
+                    break;
+                case "bend": // NOI18N
+                    types |= PITCH_BENDS;
+                    break;
+                case "pressure": // NOI18N
+                    types |= PRESSURES;
+                    break;
+                case "meta": // NOI18N
+                    types |= META;
+                    break;
+                case "sysex": // NOI18N
+                    types |= SYSEX;
+                    break;
+                case "system": // NOI18N
+                    types |= SYSTEM;
+                    break;
+                case "ch": { // NOI18N
+                    BitSet channels = parseList(arg, 15);
+                    filter.mChannels = (int)channels.toLongArray()[0];
+                    break;
+                }
+                case "vel": { // NOI18N
+                    int[] range = parseRange(arg, false);
+                    filter.setVelocityRange(range[0], range[1]);
+                    break;
+                }
+                case "tick": { // NOI18N
+                    long[] range = parseTicks(arg, 1, 0);
+                    filter.setTickRange(range[0], range[1]);
+                    break;
+                }
+                case "beat": { // NOI18N
+                    long[] range = parseTicks(arg, resolution, 1);
+                    filter.setTickRange(range[0], range[1]);
+                    break;
+                }
+                case "bar": { // NOI18N
+                    long[] range = parseTicks(arg, ticksPerBar, 1);
+                    filter.setTickRange(range[0], range[1]);
+                    break;
+                }
+                case "text": // NOI18N
+                    filter.mTextPattern = compile(arg);
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                        "Unknown filter : " + token); // NOI18N
+            }
+        }
+        if (types != 0) {
+            filter.mTypes = types;
+        }
+        return filter;
+    }
+
+    /**
+     * Create a filter from its text form, with the bars measured in
+     * the time signature at the start of the sequence.
+     *
+     * @param spec the text form of the filter
+     * @param seq the sequence that the filter is for
+     * @return the filter
+     * @throws IllegalArgumentException if the text can not be understood
+     * @see #parse(String, int, int)
+     */
+    public static EventFilter parse(String spec, MqfSequence seq) {
+        return parse(spec, seq.getResolution(), seq.getTicksPerBar());
+    }
+
+    private static Pattern compile(String regex) {
+        try {
+            return Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+        } catch (PatternSyntaxException ex) {
+            throw new IllegalArgumentException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Parse a number or a note name.
+     */
+    private static int parseValue(String value, boolean isNote) {
+        if (isNote && !value.isEmpty() && !Character.isDigit(value.charAt(0))) {
+            try {
+                return NoteNames.getNoteNumber(value);
+            } catch (RuntimeException ex) {
+                throw new IllegalArgumentException(
+                    "Invalid note : " + value, ex); // NOI18N
+            }
+        }
+        return Integer.parseInt(value);
+    }
+
+    /**
+     * Parse <code>a</code> or <code>a-b</code>.
+     */
+    private static int[] parseRange(String arg, boolean isNote) {
+        int dash = arg.indexOf('-', 1);
+        int low = parseValue(dash < 0 ? arg : arg.substring(0, dash), isNote);
+        int high = dash < 0 ? low : parseValue(arg.substring(dash + 1), isNote);
+        if (low < 0 || high > 127 || low > high) {
+            throw new IllegalArgumentException(
+                "Invalid range : " + arg); // NOI18N
+        }
+        return new int[]{low, high};
+    }
+
+    /**
+     * Parse <code>a,b,c-d</code>.
+     */
+    private static BitSet parseList(String arg, int max) {
+        BitSet values = new BitSet(max + 1);
+        for (String part : arg.split(",")) { // NOI18N
+            int[] range = parseRange(part, false);
+            if (range[1] > max) {
+                throw new IllegalArgumentException(
+                    "Invalid value : " + part); // NOI18N
+            }
+            values.set(range[0], range[1] + 1);
+        }
+        return values;
+    }
+
+    /**
+     * Parse a range of positions in units of the given number of ticks.
+     *
+     * @return the first tick and the tick after the range
+     */
+    private static long[] parseTicks(String arg, long unit, int first) {
+        int dash = arg.indexOf('-', 1);
+        long low = Long.parseLong(dash < 0 ? arg : arg.substring(0, dash));
+        long high = dash < 0 ? low : Long.parseLong(arg.substring(dash + 1));
+        if (low < first || low > high) {
+            throw new IllegalArgumentException(
+                "Invalid range : " + arg); // NOI18N
+        }
+        return new long[]{(low - first) * unit, (high - first + 1) * unit};
+    }
+}
@@ -0,0 +1,248 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import java.util.Arrays;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Rewrite the channel and program numbers of the channel messages
+ * in a Track.
+ * <p>
+ * The messages are changed in place in a single pass, so the events
+ * keep their places in the Track. A Track that has not been decoded
+ * is rewritten in its packed form without decoding it. The Track is
+ * analysed once when all the messages have been changed and the changes
+ * are recorded as one edit in the sequence's EditHistory.
+ */
+public class MessageRewriter
+{
+
+    /**
+     * Cannot create a new instance of MessageRewriter
+     */
+    private MessageRewriter() {
+    }
+
+    /**
+     * Set the channel of all the channel messages in a Track.
+     *
+     * @param seq the sequence
+     * @param trackIndex the index of the Track
+     * @param channel the new channel, 0 to 15
+     * @return the number of messages that were changed
+     */
+    public static int setChannel(MqfSequence seq, int trackIndex, int channel) {
+        int[] channelMap = new int[16];
+        Arrays.fill(channelMap, channel);
+        return rewrite(seq, trackIndex, channelMap, null);
+    }
+
+    /**
+     * Move the channel messages on one channel to another.
+     *
+     * @param seq the sequence
+     * @param trackIndex the index of the Track
+     * @param from the channel to change
+     * @param to the new channel
+     * @return the number of messages that were changed
+     */
+    public static int mapChannel(MqfSequence seq, int trackIndex,
+        int from, int to) {
+        int[] channelMap = identity(16);
+        channelMap[from] = to;
+        return rewrite(seq, trackIndex, channelMap, null);
+    }
+
+    /**
+     * Change the program numbers of the PROGRAM_CHANGE messages.
+     *
+     * @param seq the sequence
+     * @param trackIndex the index of the Track
+     * @param programMap the new program for each of the 128 programs
+     * @return the number of messages that were changed
+     */
+    public static int remapPrograms(MqfSequence seq, int trackIndex,
+        int[] programMap) {
+        return rewrite(seq, trackIndex, null, programMap);
+    }
+
+    /**
+     * Rewrite the channel messages of a Track.
+     *
+     * @param seq the sequence
+     * @param trackIndex the index of the Track
+     * @param channelMap the new channel for each of the 16 channels,
+     * or null to keep the channels
+     * @param programMap the new program for each of the 128 programs,
+     * or null to keep the programs
+     * @return the number of messages that were changed
+     */
+    public static int rewrite(MqfSequence seq, int trackIndex,
+        int[] channelMap, int[] programMap) {
+        EditHistory history = seq.getHistory();
+        int changed = 0;
+        history.beginEdit();
+        try {
+            PackedTrack packed = seq.getPackedTrack(trackIndex);
+            if (packed != null) {
+                changed = rewrite(packed, channelMap, programMap,
+                    history, trackIndex);
+            } else {
+                changed = rewrite(seq.getTrack(trackIndex), channelMap,
+                    programMap, history, trackIndex);
+            }
+        } finally {
+            history.endEdit();
+        }
+        if (changed > 0) {
+            seq.trackChanged(trackIndex);
+        }
+        return changed;
+    }
+
+    /**
+     * Rewrite the channel messages of a Track that is not part of
+     * a sequence. Nothing is recorded.
+     *
+     * @param track the Track
+     * @param channelMap the new channel for each channel, or null
+     * @param programMap the new program for each program, or null
+     * @return the number of messages that were changed
+     * @see #rewrite(MqfSequence, int, int[], int[])
+     */
+    public static int rewrite(Track track, int[] channelMap, int[] programMap) {
+        return rewrite(track, channelMap, programMap, null, -1);
+    }
+
+    private static int rewrite(Track track, int[] channelMap,
+        int[] programMap, EditHistory history, int trackIndex) {
+        int changed = 0;
+        int size = track.size();
+        for (int e = 0; e < size; ++e) {
+            MidiMessage mm = track.get(e).getMessage();
+            if (!(mm instanceof ShortMessage)) {
+                continue;
+            }
+            ShortMessage sm = (ShortMessage)mm;
+            int status = sm.getStatus();
+            int data1 = sm.getData1();
+            int newStatus = mapStatus(status, channelMap);
+            int newData1 = mapData1(status, data1, programMap);
+            if (newStatus != status || newData1 != data1) {
+                int old = EditHistory.pack(sm);
+                try {
+                    sm.setMessage(newStatus, newData1, sm.getData2());
+                } catch (InvalidMidiDataException ex) {
+                    // The channel and program are checked by mapStatus()
+                    // and mapData1() so the message is still valid.
+                    throw new IllegalStateException(ex);
+                }
+                if (history != null) {
+                    history.shortMessageChanged(trackIndex, e, old, sm);
+                }
+                ++changed;
+            }
+        }
+        return changed;
+    }
+
+    private static int rewrite(PackedTrack packed, int[] channelMap,
+        int[] programMap, EditHistory history, int trackIndex) {
+        int changed = 0;
+        int size = packed.size();
+        for (int e = 0; e < size; ++e) {
+            if (packed.getKind(e) != PackedTrack.KIND_SHORT) {
+                continue;
+            }
+            int status = packed.getStatus(e);
+            int data1 = packed.getData1(e);
+            int data2 = packed.getData2(e);
+            int newStatus = mapStatus(status, channelMap);
+            int newData1 = mapData1(status, data1, programMap);
+            if (newStatus != status || newData1 != data1) {
+                packed.setShort(e, newStatus, newData1, data2);
+                if (history != null) {
+                    history.shortMessageChanged(trackIndex, e,
+                        (status << 16) | (data1 << 8) | data2,
+                        (newStatus << 16) | (newData1 << 8) | data2);
+                }
+                ++changed;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return the status byte with its channel mapped
+     */
+    private static int mapStatus(int status, int[] channelMap) {
+        if (channelMap == null || status < 0x80 || status >= 0xf0) {
+            return status;
+        }
+        int channel = channelMap[status & 0x0f];
+        if (channel < 0 || channel > 15) {
+            throw new IllegalArgumentException(
+                "Invalid channel " + channel); // NOI18N
+        }
+        return (status & 0xf0) | channel;
+    }
+
+    /**
+     * @return the first data byte with the program of a
+     * PROGRAM_CHANGE mapped
+     */
+    private static int mapData1(int status, int data1, int[] programMap) {
+        if (programMap == null
+            || (status & 0xf0) != ShortMessage.PROGRAM_CHANGE) {
+            return data1;
+        }
+        int program = programMap[data1];
+        if (program < 0 || program > 127) {
+            throw new IllegalArgumentException(
+                "Invalid program " + program); // NOI18N
+        }
+        return program;
+    }
+
+    private static int[] identity(int size) {
+        int[] map = new int[size];
+        for (int i = 0; i < size; ++i) {
+            map[i] = i;
+        }
+        return map;
+    }
+
+    /**
+     * @return a program map that changes only <code>from</code>
+     * to <code>to</code>
+     */
+    public static int[] programMap(int from, int to) {
+        int[] map = identity(128);
+        map[from] = to;
+        return map;
+    }
+}
@@ -22,9 +22,19 @@
  ************************************************************* */
 package com.lemckes.MidiQuickFix.util;
 
+import com.lemckes.MidiQuickFix.KeySignatures;
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.io.File;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import javax.sound.midi.InvalidMidiDataException;
-import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
 
 /**
  * Get a javax.sound.midi.Sequence from a file
@@ -40,7 +50,314 @@ public class MidiFile
 
     static public MqfSequence openSequenceFile(java.io.File file)
         throws InvalidMidiDataException, IOException {
-        // Construct a Sequence object
-        return new MqfSequence(MidiSystem.getSequence(file));
+        // Construct a Sequence object, decoding the tracks when they are
+        // first used unless lazy loading has been turned off.
+        boolean lazy = MqfProperties.getBooleanProperty(
+            MqfProperties.LAZY_LOADING, true);
+        return SmfReader.read(file, lazy);
+    }
+
+    /**
+     * Read the summary information about a Standard MIDI File without
+     * building a Sequence.
+     * Only the MThd chunk and the meta events are looked at, the
+     * channel events are skipped over without creating any objects.
+     * This is quick enough to be used while browsing a directory.
+     *
+     * @param file the file to probe
+     * @return the summary information
+     * @throws InvalidMidiDataException if the file is not a Standard MIDI File
+     * @throws IOException if the file cannot be read
+     */
+    static public Probe probe(File file)
+        throws InvalidMidiDataException, IOException {
+        return probe(SmfReader.mapFile(file));
+    }
+
+    /**
+     * Read the summary information about a Standard MIDI File.
+     * The buffer's position is advanced past the data that was read.
+     *
+     * @param buffer the data, starting with the MThd chunk
+     * @return the summary information
+     * @throws InvalidMidiDataException if the data is not a valid MIDI file
+     * @see #probe(File)
+     */
+    static public Probe probe(ByteBuffer buffer)
+        throws InvalidMidiDataException {
+        try {
+            if (buffer.remaining() < 14
+                || buffer.getInt() != SmfReader.MTHD) {
+                throw new InvalidMidiDataException("Missing MThd header"); // NOI18N
+            }
+            int headerLength = buffer.getInt();
+            if (headerLength < 6 || headerLength > buffer.remaining()) {
+                throw new InvalidMidiDataException(
+                    "Invalid MThd length " + headerLength); // NOI18N
+            }
+            int headerEnd = buffer.position() + headerLength;
+            Probe probe = new Probe();
+            probe.mType = buffer.getShort() & 0xffff;
+            int numTracks = buffer.getShort() & 0xffff;
+            int timing = buffer.getShort() & 0xffff;
+            buffer.position(headerEnd);
+            probe.mDivisionType = SmfReader.getDivisionType(timing);
+            probe.mResolution = SmfReader.getResolution(timing);
+
+            List<ByteBuffer> chunks
+                = SmfReader.findTrackChunks(buffer, numTracks);
+            ProbeHandler handler = new ProbeHandler(probe);
+            for (ByteBuffer chunk : chunks) {
+                handler.startTrack();
+                SmfReader.parseTrack(chunk, handler);
+                probe.mTickLength
+                    = Math.max(probe.mTickLength, handler.mTick);
+            }
+            probe.mMicrosecondLength
+                = probe.estimateMicroseconds(handler.mTempos);
+            return probe;
+        } catch (BufferUnderflowException e) {
+            throw new InvalidMidiDataException(
+                "Unexpected end of MIDI data"); // NOI18N
+        }
+    }
+
+    /**
+     * The summary information read by {@link MidiFile#probe(File)}.
+     * The title, copyright, signatures and track names are taken from
+     * the meta events at tick zero, the tempo is the tempo at tick zero
+     * and the length allows for any tempo changes.
+     */
+    public static class Probe
+    {
+
+        int mType;
+        float mDivisionType;
+        int mResolution;
+        String mTitle;
+        String mCopyright;
+        int mMicrosecondsPerQuarter = -1;
+        String mTimeSignature;
+        String mKeySignature;
+        final List<String> mTrackNames = new ArrayList<>();
+        long mTickLength;
+        long mMicrosecondLength;
+
+        Probe() {
+        }
+
+        /**
+         * @return the MIDI file type, 0, 1 or 2
+         */
+        public int getType() {
+            return mType;
+        }
+
+        /**
+         * @return the division type as used by Sequence
+         */
+        public float getDivisionType() {
+            return mDivisionType;
+        }
+
+        /**
+         * @return the ticks per quarter note or ticks per frame
+         */
+        public int getResolution() {
+            return mResolution;
+        }
+
+        /**
+         * @return the name of the first track, or null if it has none
+         */
+        public String getTitle() {
+            return mTitle;
+        }
+
+        /**
+         * @return the first copyright notice, or null if there is none
+         */
+        public String getCopyright() {
+            return mCopyright;
+        }
+
+        /**
+         * @return the tempo at tick zero in beats per minute,
+         * 120 if the file does not set the tempo
+         */
+        public int getBpm() {
+            if (mMicrosecondsPerQuarter <= 0) {
+                return 120;
+            }
+            return (int)(60000000L / mMicrosecondsPerQuarter);
+        }
+
+        /**
+         * @return the time signature at tick zero as "n/d",
+         * or null if there is none
+         */
+        public String getTimeSignature() {
+            return mTimeSignature;
+        }
+
+        /**
+         * @return the key signature at tick zero as returned by
+         * KeySignatures.getKeyName(), or null if there is none
+         */
+        public String getKeySignature() {
+            return mKeySignature;
+        }
+
+        /**
+         * @return the number of tracks
+         */
+        public int getTrackCount() {
+            return mTrackNames.size();
+        }
+
+        /**
+         * @return the name of each track, null for unnamed tracks
+         */
+        public List<String> getTrackNames() {
+            return Collections.unmodifiableList(mTrackNames);
+        }
+
+        /**
+         * @return the length of the longest track in ticks
+         */
+        public long getTickLength() {
+            return mTickLength;
+        }
+
+        /**
+         * @return the estimated playing time in microseconds
+         */
+        public long getMicrosecondLength() {
+            return mMicrosecondLength;
+        }
+
+        /**
+         * Convert the tick length to microseconds using the tempo map.
+         * This is the same calculation as MqfSequence.getMicrosecondLength().
+         */
+        long estimateMicroseconds(TreeMap<Long, Integer> tempos) {
+            if (mDivisionType != Sequence.PPQ) {
+                return (long)(mTickLength * 1000000.0
+                    / (mDivisionType * mResolution));
+            }
+            if (mResolution == 0) {
+                return 0;
+            }
+            double micros = 0;
+            long tick = 0;
+            int mpq = 500000; // The default of 120 bpm
+            for (Map.Entry<Long, Integer> tempo : tempos.entrySet()) {
+                long changeTick = Math.min(tempo.getKey(), mTickLength);
+                micros += (changeTick - tick) * (double)mpq / mResolution;
+                tick = changeTick;
+                mpq = tempo.getValue();
+            }
+            micros += (mTickLength - tick) * (double)mpq / mResolution;
+            return (long)micros;
+        }
+    }
+
+    /**
+     * Collects the probe information from the meta events of each track.
+     * Channel and sysex events are ignored.
+     */
+    private static class ProbeHandler implements SmfReader.TrackHandler
+    {
+
+        private final Probe mProbe;
+        /** The tempo changes, the first track wins at the same tick. */
+        final TreeMap<Long, Integer> mTempos = new TreeMap<>();
+        long mTick;
+        private boolean mNamed;
+
+        ProbeHandler(Probe probe) {
+            mProbe = probe;
+        }
+
+        void startTrack() {
+            mTick = 0;
+            mNamed = false;
+            mProbe.mTrackNames.add(null);
+        }
+
+        @Override
+        public void shortEvent(long tick, int status, int data1, int data2) {
+            mTick = tick;
+        }
+
+        @Override
+        public void metaEvent(long tick, int type, ByteBuffer chunk, int length) {
+            mTick = tick;
+            if (type == MetaEvent.TEMPO) {
+                if (length == 3) {
+                    int mpq = ((chunk.get() & 0xff) << 16)
+                        | ((chunk.get() & 0xff) << 8) | (chunk.get() & 0xff);
+                    mTempos.putIfAbsent(tick, mpq);
+                    if (tick == 0 && mProbe.mMicrosecondsPerQuarter < 0) {
+                        mProbe.mMicrosecondsPerQuarter = mpq;
+                    }
+                }
+                return;
+            }
+            if (tick != 0) {
+                return;
+            }
+            switch (type) {
+                case MetaEvent.TRACK_NAME:
+                    if (!mNamed) {
+                        mNamed = true;
+                        String name = getText(chunk, length);
+                        mProbe.mTrackNames.set(
+                            mProbe.mTrackNames.size() - 1, name);
+                        if (mProbe.mTrackNames.size() == 1) {
+                            mProbe.mTitle = name;
+                        }
+                    }
+                    break;
+                case MetaEvent.COPYRIGHT:
+                    if (mProbe.mCopyright == null) {
+                        mProbe.mCopyright = getText(chunk, length);
+                    }
+                    break;
+                case MetaEvent.TIME_SIGNATURE:
+                    if (mProbe.mTimeSignature == null && length >= 2) {
+                        int num = chunk.get() & 0xff;
+                        int den = chunk.get() & 0xff;
+                        if (den < 31) {
+                            mProbe.mTimeSignature
+                                = num + "/" + (1 << den); // NOI18N
+                        }
+                    }
+                    break;
+                case MetaEvent.KEY_SIGNATURE:
+                    if (mProbe.mKeySignature == null && length >= 2) {
+                        byte[] data = {chunk.get(), chunk.get()};
+                        if (data[0] >= -7 && data[0] <= 7
+                            && (data[1] == 0 || data[1] == 1)) {
+                            mProbe.mKeySignature
+                                = KeySignatures.getKeyName(data);
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void sysexEvent(long tick, int status, ByteBuffer chunk, int length) {
+            mTick = tick;
+        }
+
+        private static String getText(ByteBuffer chunk, int length) {
+            byte[] data = new byte[length];
+            chunk.get(data);
+            return MetaEvent.metaDataToText(data);
+        }
     }
 }
@@ -0,0 +1,558 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.KeySignatures;
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+
+/**
+ * An index of the song info, track names, tempo, key and length of
+ * all the midi files in a library.
+ * <p>
+ * <code>scan()</code> walks a directory tree and reads, in parallel,
+ * only the files that are new or whose size or modification time has
+ * changed since they were indexed. The tracks are read lazily so
+ * nothing is decoded. The index is saved to and loaded from a compact
+ * binary file.
+ * <p>
+ * The queries use sorted maps that are built after a scan or load,
+ * so a lookup does not look at every entry.
+ */
+public class MidiLibraryIndex
+{
+
+    private static final int MAGIC = 0x4d514649; // "MQFI"
+    private static final int VERSION = 1;
+    /**
+     * The tempo of a sequence without a TEMPO event.
+     */
+    public static final int DEFAULT_BPM = 120;
+
+    /**
+     * The indexed information about one file.
+     */
+    public static class Entry
+    {
+
+        private final String mPath;
+        private final long mSize;
+        private final long mModified;
+        private final String mTitle;
+        private final String[] mTrackNames;
+        private final Map<String, String> mSongInfo;
+        private final int mBpm;
+        private final String mKey;
+        private final String mTimeSignature;
+        private final long mMicrosecondLength;
+        private final long mTickLength;
+
+        Entry(String path, long size, long modified, String title,
+            String[] trackNames, Map<String, String> songInfo, int bpm,
+            String key, String timeSignature, long microsecondLength,
+            long tickLength) {
+            mPath = path;
+            mSize = size;
+            mModified = modified;
+            mTitle = title;
+            mTrackNames = trackNames;
+            mSongInfo = songInfo;
+            mBpm = bpm;
+            mKey = key;
+            mTimeSignature = timeSignature;
+            mMicrosecondLength = microsecondLength;
+            mTickLength = tickLength;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public long getModified() {
+            return mModified;
+        }
+
+        /**
+         * @return the Title song info item, or the name of the first
+         * track, or the file name
+         */
+        public String getTitle() {
+            return mTitle;
+        }
+
+        /**
+         * @return the name of each track, null for a track with no name
+         */
+        public String[] getTrackNames() {
+            return mTrackNames.clone();
+        }
+
+        public int getTrackCount() {
+            return mTrackNames.length;
+        }
+
+        public Map<String, String> getSongInfo() {
+            return Collections.unmodifiableMap(mSongInfo);
+        }
+
+        /**
+         * @return the tempo at tick zero in beats per minute
+         */
+        public int getBpm() {
+            return mBpm;
+        }
+
+        /**
+         * @return the key signature at tick zero, for example "Eb"
+         * or "Cm", or null if there is none
+         */
+        public String getKey() {
+            return mKey;
+        }
+
+        /**
+         * @return the time signature at tick zero, for example "3/4",
+         * or null if there is none
+         */
+        public String getTimeSignature() {
+            return mTimeSignature;
+        }
+
+        public long getMicrosecondLength() {
+            return mMicrosecondLength;
+        }
+
+        public long getTickLength() {
+            return mTickLength;
+        }
+
+        boolean isCurrent(long size, long modified) {
+            return mSize == size && mModified == modified;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> mEntries
+        = new ConcurrentHashMap<>();
+
+    // The query maps, rebuilt when the entries have changed.
+    private boolean mQueryMapsValid = false;
+    private final TreeMap<String, List<Entry>> mByTitle = new TreeMap<>();
+    private final TreeMap<Integer, List<Entry>> mByBpm = new TreeMap<>();
+    private final Map<String, List<Entry>> mByKey = new HashMap<>();
+    private final TreeMap<Integer, List<Entry>> mByTrackCount = new TreeMap<>();
+
+    /**
+     * Create an empty index
+     */
+    public MidiLibraryIndex() {
+    }
+
+    /**
+     * Index all the midi files below <code>root</code>. Files that are
+     * already indexed and have not changed are not read again. Entries
+     * for files below <code>root</code> that no longer exist are removed.
+     *
+     * @param root the directory to scan
+     * @return the number of files that were read
+     * @throws IOException if the directory can not be walked
+     */
+    public int scan(Path root) throws IOException {
+        root = root.toAbsolutePath().normalize();
+        MidiFileFilter filter = new MidiFileFilter();
+        Map<String, BasicFileAttributes> found = new HashMap<>();
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.filter(p -> !Files.isDirectory(p) && filter.accept(p.toFile()))
+                .forEach(p -> {
+                    BasicFileAttributes attrs = attributes(p);
+                    if (attrs != null) {
+                        found.put(p.toString(), attrs);
+                    }
+                });
+        }
+
+        // Forget files that have gone
+        Path scanRoot = root;
+        mEntries.keySet().removeIf(path
+            -> Paths.get(path).startsWith(scanRoot) && !found.containsKey(path));
+
+        List<Map.Entry<String, BasicFileAttributes>> changed = found.entrySet()
+            .stream()
+            .filter(e -> {
+                Entry old = mEntries.get(e.getKey());
+                return old == null || !old.isCurrent(e.getValue().size(),
+                    e.getValue().lastModifiedTime().toMillis());
+            })
+            .collect(Collectors.toList());
+
+        Charset charset = StringConverter.getCharset();
+        changed.parallelStream().forEach(e -> {
+            BasicFileAttributes attrs = e.getValue();
+            try {
+                mEntries.put(e.getKey(), readEntry(Paths.get(e.getKey()),
+                    attrs.size(), attrs.lastModifiedTime().toMillis(), charset));
+            } catch (IOException | InvalidMidiDataException | RuntimeException ex) {
+                mEntries.remove(e.getKey());
+                TraceDialog.addTrace("MidiLibraryIndex can not read " // NOI18N
+                    + e.getKey() + " : " + ex.getMessage()); // NOI18N
+            }
+        });
+
+        synchronized (this) {
+            mQueryMapsValid = false;
+        }
+        return changed.size();
+    }
+
+    private static BasicFileAttributes attributes(Path p) {
+        try {
+            return Files.readAttributes(p, BasicFileAttributes.class);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Read the information about a file
+     */
+    static Entry readEntry(Path path, long size, long modified, Charset charset)
+        throws IOException, InvalidMidiDataException {
+        MqfSequence seq = SmfReader.read(path.toFile(), true);
+
+        String[] trackNames = new String[seq.getTrackCount()];
+        for (int i = 0; i < trackNames.length; ++i) {
+            trackNames[i] = seq.getTrackName(i);
+        }
+
+        Map<String, String> songInfo = SongInfo.findSongInfo(seq, charset);
+
+        int bpm = DEFAULT_BPM;
+        MetaMessage tempo = seq.findTickZeroMeta(MetaEvent.TEMPO);
+        if (tempo != null && tempo.getData().length == 3) {
+            bpm = MetaEvent.microSecsToBpm(tempo.getData());
+        }
+        String key = null;
+        MetaMessage keySig = seq.findTickZeroMeta(MetaEvent.KEY_SIGNATURE);
+        if (keySig != null && keySig.getData().length == 2) {
+            key = KeySignatures.getKeyName(keySig.getData());
+        }
+        String timeSig = null;
+        MetaMessage time = seq.findTickZeroMeta(MetaEvent.TIME_SIGNATURE);
+        if (time != null && time.getData().length == 4) {
+            byte[] data = time.getData();
+            timeSig = data[0] + "/" + (1 << data[1]); // NOI18N
+        }
+
+        String title = null;
+        for (Map.Entry<String, String> e : songInfo.entrySet()) {
+            if (e.getKey().equalsIgnoreCase("title")) { // NOI18N
+                title = e.getValue();
+            }
+        }
+        if (title == null && trackNames.length > 0) {
+            title = trackNames[0];
+        }
+        if (title == null || title.trim().isEmpty()) {
+            title = path.getFileName().toString();
+        }
+
+        return new Entry(path.toString(), size, modified, title.trim(),
+            trackNames, songInfo, bpm, key, timeSig,
+            seq.getMicrosecondLength(), seq.getTickLength());
+    }
+
+    /**
+     * @return the number of files in the index
+     */
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Get the entry for a file.
+     *
+     * @param path the path of the file
+     * @return the entry or null if the file is not indexed
+     */
+    public Entry get(Path path) {
+        return mEntries.get(path.toAbsolutePath().normalize().toString());
+    }
+
+    /**
+     * Find the files with the given title, ignoring case.
+     *
+     * @param title the title to find
+     * @return the matching entries
+     */
+    public synchronized List<Entry> findByTitle(String title) {
+        buildQueryMaps();
+        List<Entry> found = mByTitle.get(title.toLowerCase(Locale.ROOT));
+        return found == null ? Collections.emptyList() : new ArrayList<>(found);
+    }
+
+    /**
+     * Find the files whose title starts with the given text, ignoring case.
+     *
+     * @param prefix the start of the title
+     * @return the matching entries
+     */
+    public synchronized List<Entry> findByTitlePrefix(String prefix) {
+        buildQueryMaps();
+        String lower = prefix.toLowerCase(Locale.ROOT);
+        return flatten(mByTitle.subMap(lower, true, lower + Character.MAX_VALUE, false));
+    }
+
+    /**
+     * Find the files with a tempo in the given range.
+     *
+     * @param minBpm the lowest tempo
+     * @param maxBpm the highest tempo
+     * @return the matching entries
+     */
+    public synchronized List<Entry> findByTempo(int minBpm, int maxBpm) {
+        buildQueryMaps();
+        return flatten(mByBpm.subMap(minBpm, true, maxBpm, true));
+    }
+
+    /**
+     * Find the files in the given key.
+     *
+     * @param key the key name as returned by KeySignatures.getKeyName()
+     * @return the matching entries
+     */
+    public synchronized List<Entry> findByKey(String key) {
+        buildQueryMaps();
+        List<Entry> found = mByKey.get(key);
+        return found == null ? Collections.emptyList() : new ArrayList<>(found);
+    }
+
+    /**
+     * Find the files with a number of tracks in the given range.
+     *
+     * @param minTracks the fewest tracks
+     * @param maxTracks the most tracks
+     * @return the matching entries
+     */
+    public synchronized List<Entry> findByTrackCount(int minTracks, int maxTracks) {
+        buildQueryMaps();
+        return flatten(mByTrackCount.subMap(minTracks, true, maxTracks, true));
+    }
+
+    private static <K> List<Entry> flatten(NavigableMap<K, List<Entry>> map) {
+        List<Entry> result = new ArrayList<>();
+        for (List<Entry> entries : map.values()) {
+            result.addAll(entries);
+        }
+        return result;
+    }
+
+    private void buildQueryMaps() {
+        if (mQueryMapsValid) {
+            return;
+        }
+        mByTitle.clear();
+        mByBpm.clear();
+        mByKey.clear();
+        mByTrackCount.clear();
+        for (Entry e : mEntries.values()) {
+            mByTitle.computeIfAbsent(e.getTitle().toLowerCase(Locale.ROOT),
+                k -> new ArrayList<>(1)).add(e);
+            mByBpm.computeIfAbsent(e.getBpm(), k -> new ArrayList<>()).add(e);
+            if (e.getKey() != null) {
+                mByKey.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).add(e);
+            }
+            mByTrackCount.computeIfAbsent(e.getTrackCount(),
+                k -> new ArrayList<>()).add(e);
+        }
+        mQueryMapsValid = true;
+    }
+
+    /**
+     * Save the index. The file is replaced atomically.
+     *
+     * @param file the file to write
+     * @throws IOException if the file can not be written
+     */
+    public void save(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, ".mqfindex", ".tmp"); // NOI18N
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(mEntries.size());
+                for (Entry e : mEntries.values()) {
+                    writeEntry(out, e);
+                }
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Load an index that was written by <code>save()</code>,
+     * replacing any entries in this index.
+     * A missing file leaves the index empty.
+     *
+     * @param file the file to read
+     * @throws IOException if the file can not be read or is not an index
+     */
+    public void load(Path file) throws IOException {
+        mEntries.clear();
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a MidiQuickFix library index : " + file); // NOI18N
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                Entry e = readEntry(in);
+                mEntries.put(e.getPath(), e);
+            }
+        } catch (NoSuchFileException ex) {
+            // A new index
+        }
+        synchronized (this) {
+            mQueryMapsValid = false;
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry e) throws IOException {
+        out.writeUTF(e.mPath);
+        out.writeLong(e.mSize);
+        out.writeLong(e.mModified);
+        writeString(out, e.mTitle);
+        out.writeShort(e.mTrackNames.length);
+        for (String name : e.mTrackNames) {
+            writeString(out, name);
+        }
+        out.writeShort(e.mSongInfo.size());
+        for (Map.Entry<String, String> info : e.mSongInfo.entrySet()) {
+            writeString(out, info.getKey());
+            writeString(out, info.getValue());
+        }
+        out.writeInt(e.mBpm);
+        writeString(out, e.mKey);
+        writeString(out, e.mTimeSignature);
+        out.writeLong(e.mMicrosecondLength);
+        out.writeLong(e.mTickLength);
+    }
+
+    private static Entry readEntry(DataInputStream in) throws IOException {
+        String path = in.readUTF();
+        long size = in.readLong();
+        long modified = in.readLong();
+        String title = readString(in);
+        String[] trackNames = new String[in.readUnsignedShort()];
+        for (int i = 0; i < trackNames.length; ++i) {
+            trackNames[i] = readString(in);
+        }
+        int infoCount = in.readUnsignedShort();
+        Map<String, String> songInfo = new HashMap<>(infoCount * 2);
+        for (int i = 0; i < infoCount; ++i) {
+            songInfo.put(readString(in), readString(in));
+        }
+        int bpm = in.readInt();
+        String key = readString(in);
+        String timeSig = readString(in);
+        long micros = in.readLong();
+        long ticks = in.readLong();
+        return new Entry(path, size, modified, title, trackNames, songInfo,
+            bpm, key, timeSig, micros, ticks);
+    }
+
+    /**
+     * Write a String that may be null.
+     * Long strings are shortened to fit writeUTF().
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s.length() > 16384 ? s.substring(0, 16384) : s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Update an index file with the files below the given directories.
+     * <pre>
+     * MidiLibraryIndex indexFile dir ...
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: MidiLibraryIndex indexFile dir ..."); // NOI18N
+            System.exit(2);
+        }
+        System.setProperty("java.awt.headless", "true"); // NOI18N
+        MidiLibraryIndex index = new MidiLibraryIndex();
+        Path indexFile = Paths.get(args[0]);
+        index.load(indexFile);
+        long start = System.nanoTime();
+        int read = 0;
+        for (int i = 1; i < args.length; ++i) {
+            read += index.scan(Paths.get(args[i]));
+        }
+        index.save(indexFile);
+        System.out.printf("%d files indexed, %d read in %.2f s%n", // NOI18N
+            index.size(), read, (System.nanoTime() - start) / 1e9);
+    }
+}
@@ -47,6 +47,7 @@ public class MqfProperties
     public static final String LAST_PATH_KEY = "lastpath"; //NOI18N
     public static final String LAST_SOUNDBANK_PATH_KEY = "last_soundbank_path"; //NOI18N
     public static final String LAST_SOUNDBANK_FILE_KEY = "last_soundbank_file"; //NOI18N
+    public static final String LAZY_LOADING = "lazy_loading"; //NOI18N
     public static final String LOOK_AND_FEEL_NAME = "laf_name"; //NOI18N
     public static final String LYRIC_FONT = "lyric_font"; //NOI18N
     public static final String LYRIC_RUBY_FONT_SCALE = "lyric_ruby_font_scale"; //NOI18N
@@ -56,6 +57,7 @@ public class MqfProperties
     public static final String LYRIC_HIGHLIGHT_COLOUR = "lyric_highlight"; //NOI18N
     public static final String RECENT_FILES = "recent_files"; //NOI18N
     public static final String SHOW_TRACE = "show_trace"; //NOI18N
+    public static final String UNDO_MEMORY_LIMIT = "undo_memory_mb"; //NOI18N
 
     public static String getProperty(String key) {
         return mProps.getProperty(key);
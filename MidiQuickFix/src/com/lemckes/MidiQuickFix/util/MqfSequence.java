@@ -25,9 +25,16 @@ package com.lemckes.MidiQuickFix.util;
 import com.lemckes.MidiQuickFix.MetaEvent;
 import static com.lemckes.MidiQuickFix.ShortEvent.isChannelMessage;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiEvent;
@@ -49,6 +56,13 @@ import javax.sound.midi.Track;
  *
  * Any Song Information (as defined by http://www.midi.org/techspecs/rp26.php)
  * is also stored in this class.
+ *
+ * When a sequence is read lazily the events of a Track are not decoded
+ * until the Track is first used. Until then the Track in the sequence
+ * contains only its End of Track event, at the correct tick, and the
+ * TrackInfo holds the events in a PackedTrack. <code>getTrack(int)</code>
+ * decodes just the requested Track, <code>getTracks()</code> decodes
+ * them all.
  */
 public class MqfSequence
     extends Sequence
@@ -57,7 +71,7 @@ public class MqfSequence
     /**
      * The info about a track
      */
-    private class TrackInfo
+    static class TrackInfo
     {
 
         String mName;
@@ -72,6 +86,56 @@ public class MqfSequence
         boolean mMuted;
         boolean mHasLyrics;
         boolean mShowLyrics;
+        int mNoteCount;
+        /**
+         * The peak polyphony, or -1 if an edit has made it unknown.
+         */
+        int mMaxPolyphony;
+        int mProgramChangeCount;
+        int mProgram;
+        /**
+         * The ticks of the last events that set mProgram, mVolume,
+         * mChannel and mName, or -1 if there is no such event.
+         * Removing that event, or adding one at the same tick, means
+         * the Track must be searched for the event that now sets the value.
+         */
+        long mProgramTick;
+        long mVolumeTick;
+        long mChannelTick;
+        long mNameTick;
+        int mLyricCount;
+        int mTextCount;
+        /**
+         * The number of NOTE_ONs at mFirstTick.
+         */
+        int mFirstTickNotes;
+        /**
+         * The number of NOTE_ONs for each note number, so that
+         * mLowestNote and mHighestNote can be found when a note is removed.
+         */
+        final int[] mNoteHistogram = new int[128];
+        /**
+         * The number of channel messages for each channel.
+         */
+        final int[] mChannelCounts = new int[16];
+        /**
+         * The number of CONTROL_CHANGEs for each controller.
+         */
+        final int[] mControllerCounts = new int[128];
+        /**
+         * The events of a Track that has not been decoded yet.
+         */
+        PackedTrack mPackedTrack;
+        /**
+         * The number of times the track has been analysed again
+         * by trackChanged().
+         */
+        int mVersion;
+        /**
+         * The notes of the Track, made when they are first asked for
+         * and dropped by an edit that it cannot follow.
+         */
+        NoteIndex mNoteIndex;
 
         TrackInfo() {
             mName = null;
@@ -86,6 +150,17 @@ public class MqfSequence
             mMuted = false;
             mHasLyrics = false;
             mShowLyrics = false;
+            mNoteCount = 0;
+            mMaxPolyphony = 0;
+            mProgramChangeCount = 0;
+            mProgram = -1;
+            mProgramTick = -1;
+            mVolumeTick = -1;
+            mChannelTick = -1;
+            mNameTick = -1;
+            mLyricCount = 0;
+            mTextCount = 0;
+            mFirstTickNotes = 0;
         }
     }
 
@@ -95,6 +170,10 @@ public class MqfSequence
     transient private List<TrackInfo> mTrackInfos;
 
     private final Map<String, String> mSongInfo = new LinkedHashMap<>(4);
+    /** The edits made since the last call to takeChange(). */
+    transient private SequenceChange mChange = new SequenceChange();
+    /** The undo history, created when it is first used. */
+    transient private EditHistory mHistory;
 
     /**
      * Construct an MqfSequence from the given Sequence
@@ -113,13 +192,45 @@ public class MqfSequence
         buildTrackInfos();
     }
 
-    private void buildTrackInfos() {
+    /**
+     * Construct an MqfSequence from the given Sequence using TrackInfos
+     * that have already been created by <code>analyseTrack()</code>
+     *
+     * @param seq
+     * @param trackInfos the info for each track in <code>seq</code>
+     * @throws InvalidMidiDataException
+     */
+    MqfSequence(Sequence seq, List<TrackInfo> trackInfos) throws
+        InvalidMidiDataException {
+        super(seq.getDivisionType(), seq.getResolution());
+
+        for (Track t : seq.getTracks()) {
+            tracks.addElement(t);
+        }
 
-        mTrackInfos = new ArrayList<>(getTracks().length);
+        mTrackInfos = new ArrayList<>(trackInfos);
+        setLastTicks();
+    }
 
-        int index = 0;
-        for (Track t : getTracks()) {
-            createTrackInfo(t, index++);
+    /**
+     * Analyse all the tracks concurrently on the common ForkJoin pool.
+     */
+    private void buildTrackInfos() {
+        mTrackInfos = tracks.parallelStream()
+            .map(MqfSequence::analyseTrack)
+            .collect(Collectors.toCollection(ArrayList::new));
+        setLastTicks();
+    }
+
+    /**
+     * The last tick of any track with notes is the end of the sequence.
+     */
+    private void setLastTicks() {
+        long tickLength = getTickLength();
+        for (TrackInfo ti : mTrackInfos) {
+            if (ti.mHasNotes) {
+                ti.mLastTick = tickLength;
+            }
         }
     }
 
@@ -142,20 +253,281 @@ public class MqfSequence
             tracks.remove(tracks.size() - 1);
 
             createTrackInfo(track, index);
+            mChange.tracksChanged();
+            if (mHistory != null) {
+                mHistory.trackCreated(index);
+            }
 
             return track;
         }
     }
 
+    /**
+     * Create a new Track at the end of the sequence.
+     *
+     * @return the newly created Track
+     */
+    @Override
+    public Track createTrack() {
+        synchronized (this) {
+            Track track = super.createTrack();
+            // Keep a TrackInfo for every Track.
+            mTrackInfos.add(new TrackInfo());
+            mChange.tracksChanged();
+            if (mHistory != null) {
+                mHistory.trackCreated(tracks.size() - 1);
+            }
+            return track;
+        }
+    }
+
     @Override
     public boolean deleteTrack(Track track) {
-        boolean deleted = super.deleteTrack(track);
+        synchronized (this) {
+            int index = tracks.indexOf(track);
+            if (index >= 0 && mHistory != null) {
+                mHistory.trackDeleted(index, track);
+            }
+            boolean deleted = super.deleteTrack(track);
+
+            if (deleted) {
+                // Don't rebuild the infos, that would decode any lazy tracks.
+                mTrackInfos.remove(index);
+                setLastTicks();
+                mChange.tracksChanged();
+            }
+
+            return deleted;
+        }
+    }
+
+    /**
+     * Get the number of Tracks in the sequence without decoding them.
+     *
+     * @return the number of Tracks
+     */
+    public int getTrackCount() {
+        return tracks.size();
+    }
+
+    /**
+     * Get a single Track, decoding its events if it was read lazily.
+     *
+     * @param trackIndex the index of the Track
+     * @return the Track
+     */
+    public Track getTrack(int trackIndex) {
+        return materializeTrack(trackIndex);
+    }
+
+    /**
+     * Get all the Tracks, decoding any that were read lazily.
+     *
+     * @return the Tracks
+     */
+    @Override
+    public Track[] getTracks() {
+        if (hasLazyTracks()) {
+            IntStream.range(0, getTrackCount())
+                .parallel()
+                .forEach(this::materializeTrack);
+        }
+        return super.getTracks();
+    }
+
+    /**
+     * @return true if any Track has not been decoded yet
+     */
+    public boolean hasLazyTracks() {
+        for (TrackInfo ti : mTrackInfos) {
+            if (ti.mPackedTrack != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decode the events of a Track that was read lazily.
+     *
+     * @param trackIndex the index of the Track
+     * @return the Track
+     */
+    private Track materializeTrack(int trackIndex) {
+        Track track = tracks.get(trackIndex);
+        TrackInfo ti = mTrackInfos.get(trackIndex);
+        synchronized (ti) {
+            if (ti.mPackedTrack != null) {
+                ti.mPackedTrack.toTrack(track);
+                ti.mPackedTrack = null;
+            }
+        }
+        return track;
+    }
+
+    /**
+     * Get the events of a Track that has not been decoded.
+     *
+     * @param trackIndex the index of the Track
+     * @return the events or null if the Track has been decoded
+     */
+    PackedTrack getPackedTrack(int trackIndex) {
+        TrackInfo ti = mTrackInfos.get(trackIndex);
+        synchronized (ti) {
+            return ti.mPackedTrack;
+        }
+    }
+
+    /**
+     * Find the first META event of the given type at tick zero,
+     * searching the Tracks in order.
+     * Tracks that have not been decoded are not decoded.
+     *
+     * @param type the META event type
+     * @return the message or null if there is none
+     */
+    public MetaMessage findTickZeroMeta(int type) {
+        for (int i = 0; i < getTrackCount(); ++i) {
+            for (MidiEvent ev : getMetaEvents(i)) {
+                if (ev.getTick() > 0) {
+                    break;
+                }
+                MidiMessage mess = ev.getMessage();
+                if (mess.getStatus() == MetaMessage.META
+                    && ((MetaMessage)mess).getType() == type) {
+                    return (MetaMessage)mess;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the length of a bar in the time signature at the start of
+     * the sequence, or of a 4/4 bar if there is no time signature.
+     *
+     * @return the number of ticks in a bar
+     */
+    public int getTicksPerBar() {
+        int resolution = getResolution();
+        MetaMessage timeSig = findTickZeroMeta(MetaEvent.TIME_SIGNATURE);
+        if (timeSig != null) {
+            return new TimeSignature(timeSig).getTicksPerBar(resolution);
+        }
+        return resolution * 4;
+    }
+
+    /**
+     * Get the events of a Track that may be needed without decoding it.
+     * That is all the events of a decoded Track, or the tempo events and
+     * the time and key signatures at tick zero of a Track that has not
+     * been decoded.
+     */
+    private List<MidiEvent> getMetaEvents(int trackIndex) {
+        PackedTrack packed = getPackedTrack(trackIndex);
+        if (packed != null) {
+            List<MidiEvent> events = new ArrayList<>(4);
+            for (int e = 0; e < packed.size(); ++e) {
+                long tick = packed.getTick(e);
+                if (packed.isMeta(e, MetaEvent.TEMPO)
+                    || (tick == 0 && (packed.isMeta(e, MetaEvent.TIME_SIGNATURE)
+                    || packed.isMeta(e, MetaEvent.KEY_SIGNATURE)))) {
+                    events.add(packed.getMidiEvent(e));
+                }
+            }
+            return events;
+        }
+        Track t = tracks.get(trackIndex);
+        List<MidiEvent> events = new ArrayList<>(t.size());
+        for (int e = 0; e < t.size(); ++e) {
+            events.add(t.get(e));
+        }
+        return events;
+    }
+
+    /**
+     * Get the length of the sequence in microseconds.
+     * When there are Tracks that have not been decoded the length is
+     * calculated from the tempo events found when the file was read.
+     *
+     * @return the length in microseconds
+     */
+    @Override
+    public long getMicrosecondLength() {
+        if (!hasLazyTracks()) {
+            return super.getMicrosecondLength();
+        }
+        long tickLength = getTickLength();
+        if (getDivisionType() != PPQ) {
+            return (long)(tickLength * 1000000.0
+                / (getDivisionType() * getResolution()));
+        }
 
-        if (deleted) {
-            buildTrackInfos();
+        // Collect the tempo changes from all tracks, in tick order.
+        TreeMap<Long, Integer> tempos = new TreeMap<>();
+        for (int i = getTrackCount() - 1; i >= 0; --i) {
+            // Work backwards so the first track wins at the same tick.
+            List<MidiEvent> events = getMetaEvents(i);
+            for (int e = events.size() - 1; e >= 0; --e) {
+                MidiMessage mess = events.get(e).getMessage();
+                if (mess.getStatus() == MetaMessage.META
+                    && ((MetaMessage)mess).getType() == MetaEvent.TEMPO) {
+                    byte[] data = ((MetaMessage)mess).getData();
+                    if (data.length >= 3) {
+                        int mpq = ((data[0] & 0xff) << 16)
+                            | ((data[1] & 0xff) << 8) | (data[2] & 0xff);
+                        tempos.put(events.get(e).getTick(), mpq);
+                    }
+                }
+            }
         }
 
-        return deleted;
+        double micros = 0;
+        long tick = 0;
+        int mpq = 500000; // The default of 120 bpm
+        for (Map.Entry<Long, Integer> tempo : tempos.entrySet()) {
+            long changeTick = Math.min(tempo.getKey(), tickLength);
+            micros += (changeTick - tick) * (double)mpq / getResolution();
+            tick = changeTick;
+            mpq = tempo.getValue();
+        }
+        micros += (tickLength - tick) * (double)mpq / getResolution();
+        return (long)micros;
+    }
+
+    /**
+     * Get the number of times a Track has been changed by bulk edits.
+     * A view that was built from the Track can compare the version with
+     * the one it was built from to find out whether it is out of date.
+     *
+     * @param trackIndex the index of the Track
+     * @return the version of the Track
+     * @see #trackChanged(int)
+     */
+    public int getTrackVersion(int trackIndex) {
+        return mTrackInfos.get(trackIndex).mVersion;
+    }
+
+    /**
+     * Get the notes of a Track, pairing each NOTE_ON with the event that
+     * ends it. The index is made the first time it is asked for, from the
+     * packed events if the Track has not been decoded, and is then kept
+     * until an edit of the Track changes the notes or the event indexes.
+     * An edit of the velocity of a note is made to the index in place.
+     *
+     * @param trackIndex the index of the Track
+     * @return the notes of the Track
+     */
+    public NoteIndex getNoteIndex(int trackIndex) {
+        TrackInfo ti = mTrackInfos.get(trackIndex);
+        synchronized (ti) {
+            if (ti.mNoteIndex == null) {
+                ti.mNoteIndex = ti.mPackedTrack != null
+                    ? NoteIndex.build(ti.mPackedTrack)
+                    : NoteIndex.build(tracks.get(trackIndex));
+            }
+            return ti.mNoteIndex;
+        }
     }
 
     public String getTrackName(int trackIndex) {
@@ -250,77 +622,1003 @@ public class MqfSequence
         mTrackInfos.get(trackIndex).mVolume = volume;
     }
 
-    private void createTrackInfo(Track t, int index) {
-        TrackInfo ti = new TrackInfo();
+    /**
+     * @return the number of notes played by the track
+     */
+    public int getTrackNoteCount(int trackIndex) {
+        return mTrackInfos.get(trackIndex).mNoteCount;
+    }
 
-        int textEventCount = 0;
-        for (int e = 0; e < t.size(); ++e) {
-            MidiEvent me = t.get(e);
+    /**
+     * @return the greatest number of notes sounding at once in the track
+     */
+    public int getTrackMaxPolyphony(int trackIndex) {
+        TrackInfo ti = mTrackInfos.get(trackIndex);
+        if (ti.mMaxPolyphony < 0) {
+            // An edit has changed the notes, count them again.
+            ti.mMaxPolyphony = analyseTrack(getTrack(trackIndex)).mMaxPolyphony;
+        }
+        return ti.mMaxPolyphony;
+    }
 
-            MidiMessage mm = me.getMessage();
+    /**
+     * @return whether the track contains any CONTROL_CHANGE
+     * for the given controller
+     */
+    public boolean trackUsesController(int trackIndex, int controller) {
+        return mTrackInfos.get(trackIndex).mControllerCounts[controller] > 0;
+    }
+
+    public int getTrackProgramChangeCount(int trackIndex) {
+        return mTrackInfos.get(trackIndex).mProgramChangeCount;
+    }
 
-            if (mm.getStatus() == MetaMessage.META) {
-                handleMetaMessage(ti, (MetaMessage)mm, textEventCount);
+    /**
+     * @return the program set by the last PROGRAM_CHANGE in the track
+     * or -1 if there is none
+     */
+    public int getTrackProgram(int trackIndex) {
+        return mTrackInfos.get(trackIndex).mProgram;
+    }
+
+    public int getTrackLyricCount(int trackIndex) {
+        return mTrackInfos.get(trackIndex).mLyricCount;
+    }
+
+    /**
+     * Update the TrackInfo after an event has been added to a Track.
+     *
+     * @param trackIndex the index of the Track
+     * @param event the event that was added
+     */
+    public void eventInserted(int trackIndex, MidiEvent event) {
+        TrackInfo ti = mTrackInfos.get(trackIndex);
+        synchronized (ti) {
+            NoteIndex notes = ti.mNoteIndex;
+            if (notes != null) {
+                Track track = tracks.get(trackIndex);
+                int index = indexOfEvent(track, event);
+                if (index >= 0) {
+                    notes.eventInserted(index, event.getTick(), event.getMessage());
+                    notes.setLength(track.ticks());
+                } else {
+                    ti.mNoteIndex = null;
+                }
             }
+        }
+        addMessage(trackIndex, ti, event.getMessage(), event.getTick());
+        setLastTicks();
+        mChange.eventChanged(trackIndex, event.getTick(), event.getMessage(), true);
+    }
 
-            if (mm instanceof ShortMessage) {
-                handleShortMessage(ti, (ShortMessage)mm, me.getTick());
+    /**
+     * Update the TrackInfo after an event has been removed from a Track.
+     * The place that the event had is not known so the note index of
+     * the Track is made again when it is next used.
+     *
+     * @param trackIndex the index of the Track
+     * @param event the event that was removed
+     * @see #eventDeleted(int, int, MidiEvent)
+     */
+    public void eventDeleted(int trackIndex, MidiEvent event) {
+        mTrackInfos.get(trackIndex).mNoteIndex = null;
+        eventDeleted(trackIndex, -1, event);
+    }
+
+    /**
+     * Update the TrackInfo after an event has been removed from a Track.
+     *
+     * @param trackIndex the index of the Track
+     * @param index the index that the event had in the Track
+     * @param event the event that was removed
+     */
+    public void eventDeleted(int trackIndex, int index, MidiEvent event) {
+        TrackInfo ti = mTrackInfos.get(trackIndex);
+        synchronized (ti) {
+            NoteIndex notes = ti.mNoteIndex;
+            if (notes != null) {
+                notes.eventDeleted(index, event.getMessage());
+                notes.setLength(tracks.get(trackIndex).ticks());
             }
         }
+        removeMessage(trackIndex, ti, event.getMessage(), event.getTick(), null);
+        setLastTicks();
+        mChange.eventChanged(trackIndex, event.getTick(), event.getMessage(), true);
+    }
 
-        if (ti.mFirstTick != -1) {
-            ti.mLastTick = getTickLength();
-            ti.mHasNotes = true;
+    /**
+     * Update the TrackInfo after the tick of an event has been changed.
+     * The event may have been moved in the Track so the note index of
+     * the Track is made again when it is next used.
+     *
+     * @param trackIndex the index of the Track
+     * @param event the event that was moved
+     * @param oldTick the tick of the event before it was moved
+     * @see #eventTickChanged(int, int, MidiEvent, long)
+     */
+    public void eventTickChanged(int trackIndex, MidiEvent event, long oldTick) {
+        mTrackInfos.get(trackIndex).mNoteIndex = null;
+        eventTickChanged(trackIndex, -1, event, oldTick);
+    }
+
+    /**
+     * Update the TrackInfo after the tick of an event has been changed
+     * and the event has kept its place in the Track.
+     *
+     * @param trackIndex the index of the Track
+     * @param index the index of the event in the Track
+     * @param event the event that was moved
+     * @param oldTick the tick of the event before it was moved
+     */
+    public void eventTickChanged(int trackIndex, int index,
+        MidiEvent event, long oldTick) {
+        TrackInfo ti = mTrackInfos.get(trackIndex);
+        synchronized (ti) {
+            NoteIndex notes = ti.mNoteIndex;
+            if (notes != null) {
+                notes.eventChanged(index, event.getMessage(),
+                    event.getTick(), event.getMessage());
+                notes.setLength(tracks.get(trackIndex).ticks());
+            }
         }
+        MidiMessage mm = event.getMessage();
+        removeMessage(trackIndex, ti, mm, oldTick, event);
+        addMessage(trackIndex, ti, mm, event.getTick());
+        setLastTicks();
+        mChange.eventChanged(trackIndex, oldTick, mm, true);
+        mChange.eventChanged(trackIndex, event.getTick(), mm, true);
+    }
 
+    /**
+     * Update the TrackInfo after the message of an event has been changed.
+     *
+     * @param trackIndex the index of the Track
+     * @param event the event that was changed
+     * @param oldMessage a copy of the message before it was changed
+     */
+    public void eventMessageChanged(
+        int trackIndex, MidiEvent event, MidiMessage oldMessage) {
+        TrackInfo ti = mTrackInfos.get(trackIndex);
+        long tick = event.getTick();
+        synchronized (ti) {
+            NoteIndex notes = ti.mNoteIndex;
+            if (notes != null) {
+                int index = indexOfEvent(tracks.get(trackIndex), event);
+                if (index >= 0) {
+                    notes.eventChanged(index, oldMessage, tick, event.getMessage());
+                } else {
+                    ti.mNoteIndex = null;
+                }
+            }
+        }
+        removeMessage(trackIndex, ti, oldMessage, tick, event);
+        addMessage(trackIndex, ti, event.getMessage(), tick);
+        setLastTicks();
+        mChange.eventChanged(trackIndex, tick, oldMessage, false);
+        mChange.eventChanged(trackIndex, tick, event.getMessage(), false);
+    }
+
+    /**
+     * Find the index of an event in a Track, looking first among the
+     * events at its tick.
+     *
+     * @return the index of the event, or -1 if it is not in the Track
+     */
+    private static int indexOfEvent(Track track, MidiEvent event) {
+        long tick = event.getTick();
+        int low = 0;
+        int high = track.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (track.get(mid).getTick() <= tick) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int i = low - 1; i >= 0 && track.get(i).getTick() == tick; --i) {
+            if (track.get(i) == event) {
+                return i;
+            }
+        }
+        for (int i = track.size() - 1; i >= 0; --i) {
+            if (track.get(i) == event) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Analyse a Track again after many of its events have been changed.
+     * The mute, solo and lyric display settings are kept.
+     * A Track that has not been decoded is analysed from its packed
+     * events and stays packed.
+     *
+     * @param trackIndex the index of the Track
+     */
+    public void trackChanged(int trackIndex) {
+        mTrackInfos.set(trackIndex, reanalyseTrack(trackIndex));
+        setLastTicks();
+        mChange.trackChanged(trackIndex);
+    }
+
+    /**
+     * Analyse several Tracks again after many of their events have been
+     * changed. The Tracks are analysed concurrently on the common
+     * ForkJoin pool and the changes are then notified in order.
+     *
+     * @param trackIndexes the indexes of the Tracks
+     */
+    public void tracksChanged(int[] trackIndexes) {
+        TrackInfo[] infos = Arrays.stream(trackIndexes)
+            .parallel()
+            .mapToObj(this::reanalyseTrack)
+            .toArray(TrackInfo[]::new);
+        for (int i = 0; i < trackIndexes.length; ++i) {
+            mTrackInfos.set(trackIndexes[i], infos[i]);
+        }
+        setLastTicks();
+        for (int trackIndex : trackIndexes) {
+            mChange.trackChanged(trackIndex);
+        }
+    }
+
+    /**
+     * Make a new TrackInfo for a Track, keeping the mute, solo and
+     * lyric display settings of the old one.
+     */
+    private TrackInfo reanalyseTrack(int trackIndex) {
+        TrackInfo old = mTrackInfos.get(trackIndex);
+        PackedTrack packed = getPackedTrack(trackIndex);
+        TrackInfo ti;
+        if (packed != null) {
+            ti = analyseTrack(packed);
+            ti.mPackedTrack = packed;
+        } else {
+            ti = analyseTrack(getTrack(trackIndex));
+        }
+        ti.mMuted = old.mMuted;
+        ti.mSoloing = old.mSoloing;
+        ti.mShowLyrics = ti.mHasLyrics && old.mShowLyrics;
+        ti.mVersion = old.mVersion + 1;
+        return ti;
+    }
+
+    /**
+     * Get the parts of the sequence that have been changed by the edits
+     * notified since the last call, and start recording a new change.
+     *
+     * @return the change
+     */
+    public SequenceChange takeChange() {
+        SequenceChange change = mChange;
+        mChange = new SequenceChange();
+        return change;
+    }
+
+    /**
+     * Get the undo history of the edits made to the sequence.
+     * Edits are recorded from the time the history is first asked for,
+     * the memory it may use is set by the UNDO_MEMORY_LIMIT property.
+     *
+     * @return the history
+     */
+    public EditHistory getHistory() {
+        if (mHistory == null) {
+            long megabytes = MqfProperties.getIntegerProperty(
+                MqfProperties.UNDO_MEMORY_LIMIT,
+                EditHistory.DEFAULT_MEMORY_LIMIT_MB);
+            mHistory = new EditHistory(this, megabytes * 1024L * 1024L);
+        }
+        return mHistory;
+    }
+
+    /**
+     * Remove many events from a Track.
+     * Track.remove() searches the whole Track for each event, so rather
+     * than removing the events one at a time the Track is rebuilt from
+     * the events that remain, in a single pass.
+     * The rebuilt Track replaces the original, any reference to the
+     * original must be refreshed from the returned Track.
+     *
+     * @param trackIndex the index of the Track
+     * @param eventIndexes the indexes in the Track of the events to remove,
+     * in ascending order
+     * @return the rebuilt Track
+     */
+    public Track removeEvents(int trackIndex, int[] eventIndexes) {
+        Track track = getTrack(trackIndex);
+        int size = track.size();
+        List<MidiEvent> events = new ArrayList<>(size);
+        int[] removedIndexes = new int[eventIndexes.length];
+        MidiEvent[] removed = new MidiEvent[eventIndexes.length];
+        int count = 0;
+        int r = 0;
+        for (int i = 0; i < size; ++i) {
+            while (r < eventIndexes.length && eventIndexes[r] < i) {
+                ++r;
+            }
+            if (r == eventIndexes.length || eventIndexes[r] != i) {
+                events.add(track.get(i));
+            } else {
+                removedIndexes[count] = i;
+                removed[count++] = track.get(i);
+            }
+        }
+        if (mHistory != null) {
+            mHistory.eventsDeleted(trackIndex, removedIndexes, removed, count);
+        }
+        return rebuildTrack(trackIndex, events);
+    }
+
+    /**
+     * Remove all the events that match the filter from a Track,
+     * rebuilding the Track in a single pass.
+     *
+     * @param trackIndex the index of the Track
+     * @param filter returns true for the events to remove
+     * @return the rebuilt Track
+     * @see #removeEvents(int, int[])
+     */
+    public Track removeEvents(int trackIndex, Predicate<MidiEvent> filter) {
+        Track track = getTrack(trackIndex);
+        int size = track.size();
+        List<MidiEvent> events = new ArrayList<>(size);
+        int[] removedIndexes = new int[size];
+        MidiEvent[] removed = new MidiEvent[size];
+        int count = 0;
+        for (int i = 0; i < size; ++i) {
+            MidiEvent event = track.get(i);
+            if (!filter.test(event)) {
+                events.add(event);
+            } else {
+                removedIndexes[count] = i;
+                removed[count++] = event;
+            }
+        }
+        if (mHistory != null) {
+            mHistory.eventsDeleted(trackIndex, removedIndexes, removed, count);
+        }
+        return rebuildTrack(trackIndex, events);
+    }
+
+    /**
+     * Add many events to a Track.
+     * The events are sorted and merged with the events of the Track
+     * in a single pass instead of each one being inserted separately.
+     * As with Track.add() an event goes after any existing events
+     * at the same tick.
+     *
+     * @param trackIndex the index of the Track
+     * @param newEvents the events to add, in any order
+     * @return the rebuilt Track
+     * @see #removeEvents(int, int[])
+     */
+    public Track addEvents(int trackIndex, Collection<MidiEvent> newEvents) {
+        Track track = getTrack(trackIndex);
+        List<MidiEvent> added = new ArrayList<>(newEvents);
+        // A stable sort keeps the given order of events at the same tick.
+        added.sort((e1, e2) -> Long.compare(e1.getTick(), e2.getTick()));
+
+        int size = track.size();
+        List<MidiEvent> events = new ArrayList<>(size + added.size());
+        int i = 0;
+        int n = 0;
+        while (i < size && n < added.size()) {
+            if (track.get(i).getTick() <= added.get(n).getTick()) {
+                events.add(track.get(i++));
+            } else {
+                events.add(added.get(n++));
+            }
+        }
+        while (i < size) {
+            events.add(track.get(i++));
+        }
+        while (n < added.size()) {
+            events.add(added.get(n++));
+        }
+        Track rebuilt = rebuildTrack(trackIndex, events);
+        if (mHistory != null) {
+            recordInserted(trackIndex, rebuilt, added);
+        }
+        return rebuilt;
+    }
+
+    /**
+     * Add events to a Track at the given positions, for instance to
+     * put back events that were removed.
+     *
+     * @param trackIndex the index of the Track
+     * @param indexes the index of each event in the Track after they
+     * have been added, in ascending order
+     * @param newEvents the events to add
+     * @return the rebuilt Track
+     * @see #removeEvents(int, int[])
+     */
+    public Track insertEvents(int trackIndex, int[] indexes,
+        MidiEvent[] newEvents) {
+        Track track = getTrack(trackIndex);
+        int size = track.size();
+        List<MidiEvent> events = new ArrayList<>(size + newEvents.length);
+        int i = 0;
+        int n = 0;
+        while (i < size || n < newEvents.length) {
+            if (n < newEvents.length
+                && (indexes[n] <= events.size() || i == size)) {
+                events.add(newEvents[n++]);
+            } else {
+                events.add(track.get(i++));
+            }
+        }
+        Track rebuilt = rebuildTrack(trackIndex, events);
+        if (mHistory != null) {
+            recordInserted(trackIndex, rebuilt, Arrays.asList(newEvents));
+        }
+        return rebuilt;
+    }
+
+    /**
+     * Put the events at tick zero of a Track into the order given by
+     * TickZeroOrder. The Track is rebuilt in a single pass, and only
+     * if the events are not already in order.
+     *
+     * @param trackIndex the index of the Track
+     * @return the Track, rebuilt if the events were not in order
+     * @see TickZeroOrder
+     */
+    public Track orderTickZeroEvents(int trackIndex) {
+        Track track = getTrack(trackIndex);
+        int count = TickZeroOrder.countTickZero(track);
+        if (TickZeroOrder.isOrdered(track, count)) {
+            return track;
+        }
+        List<MidiEvent> events = new ArrayList<>(track.size());
+        for (int i = 0; i < track.size(); ++i) {
+            events.add(track.get(i));
+        }
+        // List.sort is stable, events with the same priority keep their order.
+        events.subList(0, count).sort(TickZeroOrder.COMPARATOR);
+        return rebuildTrack(trackIndex, events);
+    }
+
+    /**
+     * Add an event at tick zero of a Track straight into its place
+     * in the order given by TickZeroOrder.
+     * The place is found with a binary search of the tick zero events,
+     * which are first put in order if they are not already.
+     *
+     * @param trackIndex the index of the Track
+     * @param event the event to add, at tick zero
+     * @return the index of the event in the rebuilt Track
+     * @see #insertEvents(int, int[], MidiEvent[])
+     */
+    public int insertTickZeroEvent(int trackIndex, MidiEvent event) {
+        Track track = orderTickZeroEvents(trackIndex);
+        int index = TickZeroOrder.insertionPoint(
+            track, TickZeroOrder.countTickZero(track), event);
+        insertEvents(trackIndex, new int[]{index}, new MidiEvent[]{event});
+        return index;
+    }
+
+    /**
+     * Record the indexes that added events have in a rebuilt Track.
+     * They are found by searching rather than from the merge as the
+     * End of Track event is always moved to the end.
+     */
+    private void recordInserted(int trackIndex, Track track,
+        List<MidiEvent> added) {
+        Map<MidiEvent, Boolean> wanted = new IdentityHashMap<>(added.size());
+        for (MidiEvent event : added) {
+            wanted.put(event, Boolean.TRUE);
+        }
+        int[] indexes = new int[added.size()];
+        MidiEvent[] events = new MidiEvent[added.size()];
+        int count = 0;
+        for (int i = 0; i < track.size() && count < indexes.length; ++i) {
+            MidiEvent event = track.get(i);
+            if (wanted.containsKey(event)) {
+                indexes[count] = i;
+                events[count++] = event;
+            }
+        }
+        mHistory.eventsInserted(trackIndex, indexes, events, count);
+    }
+
+    /**
+     * Replace a Track with a new one containing the given events
+     * and analyse it.
+     * The events must be in tick order so that each one is appended
+     * to the new Track without searching.
+     */
+    private Track rebuildTrack(int trackIndex, List<MidiEvent> events) {
+        Track track;
+        synchronized (this) {
+            // See createTrack(int) for why the Track is made this way.
+            track = super.createTrack();
+            tracks.remove(tracks.size() - 1);
+            for (MidiEvent event : events) {
+                // The End of Track event of the old Track just sets
+                // the length of the new one.
+                track.add(event);
+            }
+            tracks.set(trackIndex, track);
+        }
+        trackChanged(trackIndex);
+        return track;
+    }
+
+    /**
+     * Add the effect of a message to the TrackInfo.
+     * The values that are set by the last event of their kind are only
+     * changed by a message that is later in the Track.
+     */
+    private void addMessage(
+        int trackIndex, TrackInfo ti, MidiMessage mm, long tick) {
+        if (mm instanceof ShortMessage) {
+            ShortMessage sm = (ShortMessage)mm;
+            if (isChannelMessage(sm)) {
+                int command = sm.getCommand();
+                if (command == ShortMessage.NOTE_ON) {
+                    if (ti.mFirstTick == -1 || tick < ti.mFirstTick) {
+                        ti.mFirstTick = tick;
+                        ti.mFirstTickNotes = 0;
+                    }
+                    if (tick == ti.mFirstTick) {
+                        ++ti.mFirstTickNotes;
+                    }
+                    ++ti.mNoteHistogram[sm.getData1()];
+                    ti.mLowestNote = Math.min(sm.getData1(), ti.mLowestNote);
+                    ti.mHighestNote = Math.max(sm.getData1(), ti.mHighestNote);
+                    ti.mHasNotes = true;
+                    if (sm.getData2() > 0) {
+                        ++ti.mNoteCount;
+                    }
+                    ti.mMaxPolyphony = -1;
+                } else if (command == ShortMessage.NOTE_OFF) {
+                    ti.mMaxPolyphony = -1;
+                } else if (command == ShortMessage.CONTROL_CHANGE) {
+                    ++ti.mControllerCounts[sm.getData1()];
+                    if (sm.getData1() == 7) {
+                        if (tick > ti.mVolumeTick) {
+                            ti.mVolume = sm.getData2();
+                            ti.mVolumeTick = tick;
+                        } else if (tick == ti.mVolumeTick) {
+                            findVolume(trackIndex, ti, null);
+                        }
+                    }
+                } else if (command == ShortMessage.PROGRAM_CHANGE) {
+                    ++ti.mProgramChangeCount;
+                    if (tick > ti.mProgramTick) {
+                        ti.mProgram = sm.getData1();
+                        ti.mProgramTick = tick;
+                    } else if (tick == ti.mProgramTick) {
+                        findProgram(trackIndex, ti, null);
+                    }
+                }
+                ++ti.mChannelCounts[sm.getChannel()];
+                if (tick > ti.mChannelTick) {
+                    ti.mChannel = sm.getChannel();
+                    ti.mChannelTick = tick;
+                } else if (tick == ti.mChannelTick) {
+                    findChannel(trackIndex, ti, null);
+                }
+            }
+        } else if (mm.getStatus() == MetaMessage.META) {
+            MetaMessage meta = (MetaMessage)mm;
+            switch (meta.getType()) {
+                case MetaEvent.TRACK_NAME:
+                    if (tick > ti.mNameTick) {
+                        ti.mName = MetaEvent.metaDataToText(meta.getData());
+                        ti.mNameTick = tick;
+                    } else if (tick == ti.mNameTick) {
+                        findName(trackIndex, ti, null);
+                    }
+                    break;
+                case MetaEvent.LYRIC:
+                    ++ti.mLyricCount;
+                    updateHasLyrics(ti);
+                    break;
+                case MetaEvent.TEXT:
+                    ++ti.mTextCount;
+                    updateHasLyrics(ti);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Remove the effect of a message from the TrackInfo.
+     * Only the summary values that depend on the message are recalculated.
+     *
+     * @param ignore an event that is still in the Track but must not be
+     * found when looking for the events that now set the summary values,
+     * or null
+     */
+    private void removeMessage(int trackIndex, TrackInfo ti,
+        MidiMessage mm, long tick, MidiEvent ignore) {
+        if (mm instanceof ShortMessage) {
+            ShortMessage sm = (ShortMessage)mm;
+            if (isChannelMessage(sm)) {
+                int command = sm.getCommand();
+                if (command == ShortMessage.NOTE_ON) {
+                    removeNote(ti, sm.getData1());
+                    if (sm.getData2() > 0) {
+                        --ti.mNoteCount;
+                    }
+                    if (tick == ti.mFirstTick && --ti.mFirstTickNotes == 0) {
+                        findFirstNote(trackIndex, ti, ignore);
+                    }
+                    ti.mMaxPolyphony = -1;
+                } else if (command == ShortMessage.NOTE_OFF) {
+                    ti.mMaxPolyphony = -1;
+                } else if (command == ShortMessage.CONTROL_CHANGE) {
+                    --ti.mControllerCounts[sm.getData1()];
+                    if (sm.getData1() == 7 && tick == ti.mVolumeTick) {
+                        findVolume(trackIndex, ti, ignore);
+                    }
+                } else if (command == ShortMessage.PROGRAM_CHANGE) {
+                    --ti.mProgramChangeCount;
+                    if (tick == ti.mProgramTick) {
+                        findProgram(trackIndex, ti, ignore);
+                    }
+                }
+                --ti.mChannelCounts[sm.getChannel()];
+                if (tick == ti.mChannelTick) {
+                    findChannel(trackIndex, ti, ignore);
+                }
+            }
+        } else if (mm.getStatus() == MetaMessage.META) {
+            switch (((MetaMessage)mm).getType()) {
+                case MetaEvent.TRACK_NAME:
+                    if (tick == ti.mNameTick) {
+                        findName(trackIndex, ti, ignore);
+                    }
+                    break;
+                case MetaEvent.LYRIC:
+                    --ti.mLyricCount;
+                    updateHasLyrics(ti);
+                    break;
+                case MetaEvent.TEXT:
+                    --ti.mTextCount;
+                    updateHasLyrics(ti);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Remove a note from the histogram and update the note range.
+     */
+    private static void removeNote(TrackInfo ti, int note) {
+        int[] histogram = ti.mNoteHistogram;
+        if (--histogram[note] > 0) {
+            return;
+        }
+        if (note == ti.mLowestNote) {
+            int n = note;
+            while (n < 128 && histogram[n] == 0) {
+                ++n;
+            }
+            ti.mLowestNote = n < 128 ? n : Integer.MAX_VALUE;
+        }
+        if (note == ti.mHighestNote) {
+            int n = note;
+            while (n >= 0 && histogram[n] == 0) {
+                --n;
+            }
+            ti.mHighestNote = n >= 0 ? n : Integer.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Find the first NOTE_ON after the previous first note was removed.
+     * The Track is sorted by tick so the search starts at the old first
+     * tick and only looks at the events after it.
+     */
+    private void findFirstNote(int trackIndex, TrackInfo ti, MidiEvent ignore) {
+        Track track = tracks.get(trackIndex);
+        long oldFirst = ti.mFirstTick;
+        int low = 0;
+        int high = track.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (track.get(mid).getTick() < oldFirst) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        ti.mFirstTick = -1;
+        ti.mFirstTickNotes = 0;
+        for (int e = low; e < track.size(); ++e) {
+            MidiEvent me = track.get(e);
+            if (me == ignore) {
+                continue;
+            }
+            MidiMessage mm = me.getMessage();
+            if (mm instanceof ShortMessage
+                && ((ShortMessage)mm).getCommand() == ShortMessage.NOTE_ON) {
+                if (ti.mFirstTick == -1) {
+                    ti.mFirstTick = me.getTick();
+                } else if (me.getTick() != ti.mFirstTick) {
+                    break;
+                }
+                ++ti.mFirstTickNotes;
+            }
+        }
+        if (ti.mFirstTick == -1) {
+            ti.mHasNotes = false;
+            ti.mLastTick = -1;
+        }
+    }
+
+    /**
+     * Find the last event in a Track that sets a summary value.
+     * The Track is searched from the end as the event is usually near it.
+     *
+     * @param ignore an event that must not be found, or null
+     * @param sets true for the messages that set the value
+     * @return the event or null if there is none
+     */
+    private MidiEvent findLast(int trackIndex, MidiEvent ignore,
+        Predicate<MidiMessage> sets) {
+        Track track = tracks.get(trackIndex);
+        for (int e = track.size() - 1; e >= 0; --e) {
+            MidiEvent me = track.get(e);
+            if (me != ignore && sets.test(me.getMessage())) {
+                return me;
+            }
+        }
+        return null;
+    }
+
+    private void findVolume(int trackIndex, TrackInfo ti, MidiEvent ignore) {
+        MidiEvent me = findLast(trackIndex, ignore,
+            mm -> isChannelCommand(mm, ShortMessage.CONTROL_CHANGE)
+            && ((ShortMessage)mm).getData1() == 7);
+        ti.mVolume = me == null ? 100 : ((ShortMessage)me.getMessage()).getData2();
+        ti.mVolumeTick = me == null ? -1 : me.getTick();
+    }
+
+    private void findProgram(int trackIndex, TrackInfo ti, MidiEvent ignore) {
+        MidiEvent me = findLast(trackIndex, ignore,
+            mm -> isChannelCommand(mm, ShortMessage.PROGRAM_CHANGE));
+        ti.mProgram = me == null ? -1 : ((ShortMessage)me.getMessage()).getData1();
+        ti.mProgramTick = me == null ? -1 : me.getTick();
+    }
+
+    private void findChannel(int trackIndex, TrackInfo ti, MidiEvent ignore) {
+        MidiEvent me = findLast(trackIndex, ignore,
+            mm -> mm instanceof ShortMessage
+            && isChannelMessage((ShortMessage)mm));
+        ti.mChannel = me == null ? -1 : ((ShortMessage)me.getMessage()).getChannel();
+        ti.mChannelTick = me == null ? -1 : me.getTick();
+    }
+
+    private void findName(int trackIndex, TrackInfo ti, MidiEvent ignore) {
+        MidiEvent me = findLast(trackIndex, ignore,
+            mm -> mm.getStatus() == MetaMessage.META
+            && ((MetaMessage)mm).getType() == MetaEvent.TRACK_NAME);
+        ti.mName = me == null ? null
+            : MetaEvent.metaDataToText(((MetaMessage)me.getMessage()).getData());
+        ti.mNameTick = me == null ? -1 : me.getTick();
+    }
+
+    private static boolean isChannelCommand(MidiMessage mm, int command) {
+        return mm instanceof ShortMessage
+            && isChannelMessage((ShortMessage)mm)
+            && ((ShortMessage)mm).getCommand() == command;
+    }
+
+    private static void updateHasLyrics(TrackInfo ti) {
+        boolean hasLyrics = ti.mLyricCount > 0 || ti.mTextCount > 8;
+        if (hasLyrics != ti.mHasLyrics) {
+            ti.mHasLyrics = hasLyrics;
+            ti.mShowLyrics = hasLyrics;
+        }
+    }
+
+    private void createTrackInfo(Track t, int index) {
+        TrackInfo ti = analyseTrack(t);
+        if (ti.mHasNotes) {
+            ti.mLastTick = getTickLength();
+        }
         mTrackInfos.add(index, ti);
     }
 
-    private void handleMetaMessage(TrackInfo ti, MetaMessage mm, int textEventCount) {
-        Object[] str = MetaEvent.getMetaStrings((MetaMessage)mm);
-        if (str[0].equals("M:TrackName")) {
-            ti.mName = (String)str[2];
-        } else if (str[0].equals("M:Lyric")) {
-            ti.mHasLyrics = true;
-            ti.mShowLyrics = true;
-        } else if (str[0].equals("M:Text")) {
-            ++textEventCount;
-            if (textEventCount > 8) {
-                ti.mHasLyrics = true;
-                ti.mShowLyrics = true;
+    /**
+     * Create the TrackInfo for a Track.
+     * Only the contents of the Track are used so this may be called
+     * concurrently for different Tracks.
+     * The mLastTick of a Track with notes depends on the whole sequence
+     * and is not set.
+     *
+     * @param t the Track to analyse
+     * @return the info about the Track
+     */
+    static TrackInfo analyseTrack(Track t) {
+        TrackAnalyser analyser = new TrackAnalyser();
+        for (int e = 0; e < t.size(); ++e) {
+            MidiEvent me = t.get(e);
+            MidiMessage mm = me.getMessage();
+
+            if (mm instanceof ShortMessage) {
+                ShortMessage sm = (ShortMessage)mm;
+                if (isChannelMessage(sm)) {
+                    analyser.shortEvent(sm.getStatus(),
+                        sm.getData1(), sm.getData2(), me.getTick());
+                }
+            } else if (mm.getStatus() == MetaMessage.META) {
+                // getData() copies the data so only call it when needed.
+                MetaMessage meta = (MetaMessage)mm;
+                int type = meta.getType();
+                analyser.metaEvent(type,
+                    type == MetaEvent.TRACK_NAME ? meta.getData() : null,
+                    me.getTick());
             }
         }
+        return analyser.finish();
     }
 
-    private void handleShortMessage(TrackInfo ti, ShortMessage sm, long tick) {
-        if (isChannelMessage(sm)) {
-            ti.mChannel = sm.getChannel();
+    /**
+     * Create the TrackInfo for a Track that is held in a PackedTrack.
+     * The mLastTick of a Track with notes is not set.
+     *
+     * @param packed the events of the Track
+     * @return the info about the Track
+     */
+    static TrackInfo analyseTrack(PackedTrack packed) {
+        TrackAnalyser analyser = new TrackAnalyser();
+        for (int e = 0; e < packed.size(); ++e) {
+            switch (packed.getKind(e)) {
+                case PackedTrack.KIND_META:
+                    int type = packed.getData1(e);
+                    analyser.metaEvent(type,
+                        type == MetaEvent.TRACK_NAME ? packed.getData(e) : null,
+                        packed.getTick(e));
+                    break;
+                case PackedTrack.KIND_SHORT:
+                    analyser.shortEvent(packed.getStatus(e),
+                        packed.getData1(e), packed.getData2(e),
+                        packed.getTick(e));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return analyser.finish();
+    }
+
+    /**
+     * Builds a TrackInfo in a single pass over the events of a Track.
+     * Events are identified by their status and type bytes so nothing
+     * is allocated for each event, apart from the track name.
+     */
+    private static class TrackAnalyser
+    {
+
+        private final TrackInfo mInfo = new TrackInfo();
+        /**
+         * The number of NOTE_ONs sounding for each channel and note.
+         */
+        private final int[] mSounding = new int[16 * 128];
+        private int mPolyphony = 0;
 
-            switch (sm.getCommand()) {
+        /**
+         * Update the TrackInfo with a META event.
+         *
+         * @param type the META event type
+         * @param data the event data, only required for a TRACK_NAME event
+         * @param tick the tick of the event
+         */
+        void metaEvent(int type, byte[] data, long tick) {
+            TrackInfo ti = mInfo;
+            switch (type) {
+                case MetaEvent.TRACK_NAME:
+                    ti.mName = MetaEvent.metaDataToText(data);
+                    ti.mNameTick = tick;
+                    break;
+                case MetaEvent.LYRIC:
+                    ++ti.mLyricCount;
+                    ti.mHasLyrics = true;
+                    ti.mShowLyrics = true;
+                    break;
+                case MetaEvent.TEXT:
+                    // Many text events probably means they are lyrics.
+                    ++ti.mTextCount;
+                    if (ti.mTextCount > 8) {
+                        ti.mHasLyrics = true;
+                        ti.mShowLyrics = true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Update the TrackInfo with a channel message.
+         *
+         * @param status the status byte, including the channel
+         * @param d1 the first data byte
+         * @param d2 the second data byte
+         * @param tick the tick of the event
+         */
+        void shortEvent(int status, int d1, int d2, long tick) {
+            TrackInfo ti = mInfo;
+            int channel = status & 0x0f;
+            ti.mChannel = channel;
+            ti.mChannelTick = tick;
+            ++ti.mChannelCounts[channel];
+
+            switch (status & 0xf0) {
                 case ShortMessage.NOTE_ON:
                     // Treat the first NOTE_ON as the start of the track.
                     if (ti.mFirstTick == -1) {
                         ti.mFirstTick = tick;
                     }
-                    int noteNum = sm.getData1();
+                    if (tick == ti.mFirstTick) {
+                        ++ti.mFirstTickNotes;
+                    }
+                    ++ti.mNoteHistogram[d1];
                     ti.mLowestNote
-                        = Math.min(noteNum, ti.mLowestNote);
+                        = Math.min(d1, ti.mLowestNote);
                     ti.mHighestNote
-                        = Math.max(noteNum, ti.mHighestNote);
+                        = Math.max(d1, ti.mHighestNote);
+                    if (d2 > 0) {
+                        ++ti.mNoteCount;
+                        ++mSounding[channel * 128 + d1];
+                        ++mPolyphony;
+                        ti.mMaxPolyphony
+                            = Math.max(mPolyphony, ti.mMaxPolyphony);
+                    } else {
+                        noteOff(channel, d1);
+                    }
+                    break;
+
+                case ShortMessage.NOTE_OFF:
+                    noteOff(channel, d1);
                     break;
 
                 case ShortMessage.CONTROL_CHANGE:
-                    int d1 = sm.getData1();
-                    int d2 = sm.getData2();
+                    ++ti.mControllerCounts[d1];
                     if (d1 == 7) {
                         ti.mVolume = d2;
+                        ti.mVolumeTick = tick;
                     }
                     break;
+
+                case ShortMessage.PROGRAM_CHANGE:
+                    ++ti.mProgramChangeCount;
+                    ti.mProgram = d1;
+                    ti.mProgramTick = tick;
+                    break;
+
                 default:
                     // Ignore other messages
                     break;
             }
         }
+
+        private void noteOff(int channel, int note) {
+            int index = channel * 128 + note;
+            if (mSounding[index] > 0) {
+                --mSounding[index];
+                --mPolyphony;
+            }
+        }
+
+        TrackInfo finish() {
+            if (mInfo.mFirstTick != -1) {
+                mInfo.mHasNotes = true;
+            }
+            return mInfo;
+        }
     }
 
     public void putSongInfo(String key, String value) {
@@ -0,0 +1,981 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * The notes of a Track, made by pairing each NOTE_ON with its NOTE_OFF
+ * (or NOTE_ON with zero velocity), held in primitive arrays.
+ * <p>
+ * A NOTE_OFF ends the earliest unfinished note of the same pitch and
+ * channel, so stacked notes of the same pitch are ended in the order
+ * that they started. A note that is never ended lasts until the end of
+ * the Track. The notes are numbered in the order that they start.
+ * <p>
+ * The notes that overlap a range of ticks are found in
+ * O(log n + k) time. Those that start in the range are found by a binary
+ * search of the start ticks, those that are still sounding at the start
+ * of the range are found in a centered interval tree. Each node of the
+ * tree holds the notes that contain its center tick, sorted by start and
+ * by end, and the notes wholly before or after the center are passed to
+ * its children.
+ * <p>
+ * A NoteIndex for a Track of an MqfSequence is got from
+ * MqfSequence.getNoteIndex(), which keeps it up to date as the Track is
+ * edited. An edit of a single event shifts the event indexes after it
+ * and pairs again only the notes of the channel and pitch of the event.
+ * The notes whose end changes are moved in the tree, which is only built
+ * again when many edits have been made to it.
+ */
+public class NoteIndex
+{
+
+    private int mCount;
+    private long[] mStart;
+    private long[] mEnd;
+    private byte[] mPitch;
+    private byte[] mVelocity;
+    private byte[] mChannel;
+    private int[] mOnIndex;
+    private int[] mOffIndex;
+    private long mLength;
+    private int mLowestPitch = 127;
+    private int mHighestPitch = 0;
+    /** The number of notes of each pitch. */
+    private final int[] mPitchCounts = new int[128];
+
+    /** The NOTE_OFFs that end no note, which may end a note that is
+     * added before them. */
+    private int mOrphanCount;
+    private int[] mOrphanIndex = new int[16];
+    private long[] mOrphanTick = new long[16];
+    private short[] mOrphanKey = new short[16];
+
+    /** The unfinished notes of each channel and pitch while pairing,
+     * as a list from the earliest through mNextPending. */
+    private int[] mPendingHead;
+    private int[] mPendingTail;
+    private int[] mNextPending;
+
+    private int mRoot = -1;
+    private int mNodeCount;
+    private long[] mNodeCenter;
+    private int[] mNodeLeft;
+    private int[] mNodeRight;
+    /** The notes of node i are mByStart[mNodeFirst[i]] up to
+     * mByStart[mNodeFirst[i + 1]], and the same in mByEnd. */
+    private int[] mNodeFirst;
+    private int[] mByStart;
+    private int[] mByEnd;
+    /** The number of notes moved in the tree since it was built. */
+    private int mTreeEdits;
+    /** True if the tree must be built again before it is used. */
+    private boolean mTreeStale;
+
+    /** More changed notes than this in one edit build the tree again. */
+    private static final int TREE_EDIT_LIMIT = 32;
+
+    private NoteIndex(int size, long length) {
+        mLength = length;
+        int capacity = Math.max(16, size / 2);
+        mStart = new long[capacity];
+        mEnd = new long[capacity];
+        mPitch = new byte[capacity];
+        mVelocity = new byte[capacity];
+        mChannel = new byte[capacity];
+        mOnIndex = new int[capacity];
+        mOffIndex = new int[capacity];
+        mPendingHead = new int[16 * 128];
+        mPendingTail = new int[16 * 128];
+        Arrays.fill(mPendingHead, -1);
+        mNextPending = new int[capacity];
+    }
+
+    /**
+     * Pair the notes of a Track and index them.
+     *
+     * @param track the Track
+     * @return the index
+     */
+    public static NoteIndex build(Track track) {
+        int size = track.size();
+        NoteIndex index = new NoteIndex(size, size > 0 ? track.ticks() : 0);
+        for (int i = 0; i < size; ++i) {
+            MidiEvent ev = track.get(i);
+            MidiMessage mess = ev.getMessage();
+            if (mess instanceof ShortMessage) {
+                ShortMessage sm = (ShortMessage)mess;
+                index.shortEvent(i, ev.getTick(),
+                    sm.getStatus(), sm.getData1(), sm.getData2());
+            }
+        }
+        index.finish();
+        return index;
+    }
+
+    /**
+     * Pair the notes of a Track that has not been decoded and index them.
+     * The event indexes are those that the decoded Track will have.
+     *
+     * @param packed the events of the Track
+     * @return the index
+     */
+    public static NoteIndex build(PackedTrack packed) {
+        int size = packed.size();
+        NoteIndex index = new NoteIndex(size, packed.getEndTick());
+        for (int i = 0; i < size; ++i) {
+            if (packed.getKind(i) == PackedTrack.KIND_SHORT) {
+                index.shortEvent(i, packed.getTick(i),
+                    packed.getStatus(i), packed.getData1(i), packed.getData2(i));
+            }
+        }
+        index.finish();
+        return index;
+    }
+
+    private void shortEvent(int eventIndex, long tick,
+        int status, int data1, int data2) {
+        int command = status & 0xF0;
+        if (command != ShortMessage.NOTE_ON
+            && command != ShortMessage.NOTE_OFF) {
+            return;
+        }
+        int channel = status & 0x0F;
+        int key = (channel << 7) | data1;
+        if (command == ShortMessage.NOTE_ON && data2 > 0) {
+            if (mCount == mStart.length) {
+                grow();
+            }
+            int n = mCount++;
+            mStart[n] = tick;
+            mEnd[n] = mLength;
+            mPitch[n] = (byte)data1;
+            mVelocity[n] = (byte)data2;
+            mChannel[n] = (byte)channel;
+            ++mPitchCounts[data1];
+            mLowestPitch = Math.min(mLowestPitch, data1);
+            mHighestPitch = Math.max(mHighestPitch, data1);
+            mOnIndex[n] = eventIndex;
+            mOffIndex[n] = -1;
+            mNextPending[n] = -1;
+            if (mPendingHead[key] < 0) {
+                mPendingHead[key] = n;
+            } else {
+                mNextPending[mPendingTail[key]] = n;
+            }
+            mPendingTail[key] = n;
+        } else {
+            int n = mPendingHead[key];
+            if (n >= 0) {
+                mEnd[n] = tick;
+                mOffIndex[n] = eventIndex;
+                mPendingHead[key] = mNextPending[n];
+            } else {
+                addOrphan(eventIndex, tick, key);
+            }
+        }
+    }
+
+    private void addOrphan(int eventIndex, long tick, int key) {
+        if (mOrphanCount == mOrphanIndex.length) {
+            int capacity = mOrphanCount * 2;
+            mOrphanIndex = Arrays.copyOf(mOrphanIndex, capacity);
+            mOrphanTick = Arrays.copyOf(mOrphanTick, capacity);
+            mOrphanKey = Arrays.copyOf(mOrphanKey, capacity);
+        }
+        mOrphanIndex[mOrphanCount] = eventIndex;
+        mOrphanTick[mOrphanCount] = tick;
+        mOrphanKey[mOrphanCount] = (short)key;
+        ++mOrphanCount;
+    }
+
+    private void grow() {
+        int capacity = mStart.length * 2;
+        mStart = Arrays.copyOf(mStart, capacity);
+        mEnd = Arrays.copyOf(mEnd, capacity);
+        mPitch = Arrays.copyOf(mPitch, capacity);
+        mVelocity = Arrays.copyOf(mVelocity, capacity);
+        mChannel = Arrays.copyOf(mChannel, capacity);
+        mOnIndex = Arrays.copyOf(mOnIndex, capacity);
+        mOffIndex = Arrays.copyOf(mOffIndex, capacity);
+        if (mNextPending != null) {
+            mNextPending = Arrays.copyOf(mNextPending, capacity);
+        }
+    }
+
+    /**
+     * Drop the pairing state and build the interval tree.
+     */
+    private void finish() {
+        mPendingHead = null;
+        mPendingTail = null;
+        mNextPending = null;
+        buildTree();
+    }
+
+    /**
+     * Build the interval tree from the notes.
+     */
+    private void buildTree() {
+        mTreeStale = false;
+        mTreeEdits = 0;
+        mNodeCount = 0;
+        mNodeCenter = new long[mCount];
+        mNodeLeft = new int[mCount];
+        mNodeRight = new int[mCount];
+        mNodeFirst = new int[mCount + 1];
+        mByStart = new int[mCount];
+        mByEnd = new int[mCount];
+        int[] notes = new int[mCount];
+        for (int n = 0; n < mCount; ++n) {
+            notes[n] = n;
+        }
+        mRoot = buildNode(notes, mCount);
+    }
+
+    /**
+     * Build the node of the interval tree for some notes.
+     *
+     * @param notes the numbers of the notes, in order of start
+     * @param count the number of notes
+     * @return the number of the node, or -1 if there are no notes
+     */
+    private int buildNode(int[] notes, int count) {
+        if (count == 0) {
+            return -1;
+        }
+        // The middle note contains the center so every node
+        // takes at least one note, and each child at most half.
+        long center = mStart[notes[count / 2]];
+        int[] before = new int[count];
+        int[] after = new int[count];
+        int beforeCount = 0;
+        int afterCount = 0;
+        int node = mNodeCount++;
+        int first = mNodeFirst[node];
+        int here = first;
+        for (int i = 0; i < count; ++i) {
+            int n = notes[i];
+            if (end(n) <= center) {
+                before[beforeCount++] = n;
+            } else if (mStart[n] > center) {
+                after[afterCount++] = n;
+            } else {
+                mByStart[here++] = n;
+            }
+        }
+        mNodeCenter[node] = center;
+        mNodeFirst[node + 1] = here;
+        System.arraycopy(mByStart, first, mByEnd, first, here - first);
+        sortByEndDescending(first, here);
+        // The children are built after this node has taken its notes.
+        mNodeLeft[node] = buildNode(before, beforeCount);
+        mNodeRight[node] = buildNode(after, afterCount);
+        return node;
+    }
+
+    /**
+     * Sort a range of mByEnd by the end of the notes, latest first.
+     */
+    private void sortByEndDescending(int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sortByEndDescending(from, middle);
+        sortByEndDescending(middle, to);
+        if (end(mByEnd[middle - 1]) >= end(mByEnd[middle])) {
+            return;
+        }
+        int[] merged = new int[to - from];
+        int a = from;
+        int b = middle;
+        for (int i = 0; i < merged.length; ++i) {
+            if (b == to || (a < middle && end(mByEnd[a]) >= end(mByEnd[b]))) {
+                merged[i] = mByEnd[a++];
+            } else {
+                merged[i] = mByEnd[b++];
+            }
+        }
+        System.arraycopy(merged, 0, mByEnd, from, merged.length);
+    }
+
+    /**
+     * @return the end of a note, taking a note with no length
+     * to last for one tick
+     */
+    private long end(int note) {
+        return Math.max(mEnd[note], mStart[note] + 1);
+    }
+
+    /**
+     * Find the notes that overlap a range of ticks.
+     * A note with no length is taken to last for one tick.
+     * Each note is found once.
+     *
+     * @param fromTick the start of the range
+     * @param toTick the end of the range, exclusive
+     * @param found is given the number of each note found
+     */
+    public void findNotes(long fromTick, long toTick, IntConsumer found) {
+        findNotes(fromTick, toTick, 0, 127, found);
+    }
+
+    /**
+     * Find the notes that overlap a range of ticks and pitches.
+     * A note with no length is taken to last for one tick.
+     * Each note is found once. The notes that start before the range
+     * are found first, then those that start in it in the order that
+     * they start, so that later notes can be drawn over earlier ones.
+     *
+     * @param fromTick the start of the range
+     * @param toTick the end of the range, exclusive
+     * @param lowPitch the lowest pitch
+     * @param highPitch the highest pitch
+     * @param found is given the number of each note found
+     */
+    public void findNotes(long fromTick, long toTick,
+        int lowPitch, int highPitch, IntConsumer found) {
+        if (mCount == 0 || toTick <= fromTick) {
+            return;
+        }
+        // The notes that start before the range and are still sounding.
+        int node = mRoot;
+        while (node >= 0) {
+            int first = mNodeFirst[node];
+            int last = mNodeFirst[node + 1];
+            if (fromTick < mNodeCenter[node]) {
+                // Every note here ends after the center.
+                for (int i = first; i < last; ++i) {
+                    int n = mByStart[i];
+                    if (mStart[n] >= fromTick) {
+                        break;
+                    }
+                    report(n, lowPitch, highPitch, found);
+                }
+                node = mNodeLeft[node];
+            } else {
+                // Every note here starts at or before the center.
+                for (int i = first; i < last; ++i) {
+                    int n = mByEnd[i];
+                    if (end(n) <= fromTick) {
+                        break;
+                    }
+                    if (mStart[n] < fromTick) {
+                        report(n, lowPitch, highPitch, found);
+                    }
+                }
+                node = mNodeRight[node];
+            }
+        }
+        // The notes that start in the range.
+        for (int n = firstStartingAt(fromTick);
+            n < mCount && mStart[n] < toTick; ++n) {
+            report(n, lowPitch, highPitch, found);
+        }
+    }
+
+    private void report(int note, int lowPitch, int highPitch,
+        IntConsumer found) {
+        int pitch = mPitch[note];
+        if (pitch >= lowPitch && pitch <= highPitch) {
+            found.accept(note);
+        }
+    }
+
+    /**
+     * @param tick the tick to look for
+     * @return the number of the first note that starts at or after
+     * <code>tick</code>, or size() if there is none
+     */
+    public int firstStartingAt(long tick) {
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mStart[middle] < tick) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Follow the addition of an event to the Track.
+     *
+     * @param index the index of the new event in the Track
+     * @param tick the tick of the event
+     * @param message the message of the event
+     */
+    void eventInserted(int index, long tick, MidiMessage message) {
+        shiftEvents(index, 1);
+        int key = noteKey(message);
+        if (key >= 0) {
+            pairAgain(key, -1, index, tick, onVelocity(message));
+        }
+        finishEdit();
+    }
+
+    /**
+     * Follow the removal of an event from the Track.
+     *
+     * @param index the index that the event had in the Track
+     * @param message the message of the event
+     */
+    void eventDeleted(int index, MidiMessage message) {
+        int key = noteKey(message);
+        if (key >= 0) {
+            pairAgain(key, index, -1, 0, 0);
+        }
+        shiftEvents(index + 1, -1);
+        finishEdit();
+    }
+
+    /**
+     * Follow a change of the tick or message of an event that has kept
+     * its place in the Track.
+     *
+     * @param index the index of the event in the Track
+     * @param oldMessage the message of the event before the change
+     * @param tick the tick of the event
+     * @param message the message of the event
+     */
+    void eventChanged(int index, MidiMessage oldMessage,
+        long tick, MidiMessage message) {
+        int oldKey = noteKey(oldMessage);
+        int key = noteKey(message);
+        if (oldKey >= 0 && oldKey != key) {
+            pairAgain(oldKey, index, -1, 0, 0);
+        }
+        if (key >= 0) {
+            pairAgain(key, oldKey == key ? index : -1,
+                index, tick, onVelocity(message));
+        }
+        finishEdit();
+    }
+
+    /**
+     * Follow a change of the length of the Track,
+     * which is the end of the notes that are never ended.
+     *
+     * @param length the length of the Track in ticks
+     */
+    void setLength(long length) {
+        if (length == mLength) {
+            return;
+        }
+        mLength = length;
+        for (int n = 0; n < mCount; ++n) {
+            if (mOffIndex[n] < 0) {
+                setEnd(n, length, -1);
+            }
+        }
+        finishEdit();
+    }
+
+    /**
+     * @return the channel and pitch of a NOTE_ON or NOTE_OFF,
+     * or -1 for any other message
+     */
+    private static int noteKey(MidiMessage message) {
+        if (message instanceof ShortMessage) {
+            ShortMessage sm = (ShortMessage)message;
+            int command = sm.getCommand();
+            if (command == ShortMessage.NOTE_ON
+                || command == ShortMessage.NOTE_OFF) {
+                return (sm.getChannel() << 7) | sm.getData1();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the velocity of a NOTE_ON, or 0 for a message that ends
+     * a note
+     */
+    private static int onVelocity(MidiMessage message) {
+        ShortMessage sm = (ShortMessage)message;
+        return sm.getCommand() == ShortMessage.NOTE_ON ? sm.getData2() : 0;
+    }
+
+    /**
+     * Add delta to the event indexes at or after an index.
+     */
+    private void shiftEvents(int from, int delta) {
+        for (int n = 0; n < mCount; ++n) {
+            if (mOnIndex[n] >= from) {
+                mOnIndex[n] += delta;
+            }
+            if (mOffIndex[n] >= from) {
+                mOffIndex[n] += delta;
+            }
+        }
+        for (int o = 0; o < mOrphanCount; ++o) {
+            if (mOrphanIndex[o] >= from) {
+                mOrphanIndex[o] += delta;
+            }
+        }
+    }
+
+    /**
+     * Pair the events of one channel and pitch again after one of them
+     * has been removed or one has been added, or both.
+     * The events are taken from the notes and the orphans rather than
+     * from the Track.
+     *
+     * @param key the channel and pitch
+     * @param removeIndex the index of the event to remove, or -1
+     * @param addIndex the index of the event to add, or -1
+     * @param addTick the tick of the event to add
+     * @param addVelocity the velocity of the event to add,
+     * 0 for an event that ends a note
+     */
+    private void pairAgain(int key, int removeIndex, int addIndex,
+        long addTick, int addVelocity) {
+        int channel = key >> 7;
+        int pitch = key & 0x7F;
+        int size = 1;
+        for (int n = 0; n < mCount; ++n) {
+            if (mChannel[n] == channel && mPitch[n] == pitch) {
+                size += 2;
+            }
+        }
+        for (int o = 0; o < mOrphanCount; ++o) {
+            if (mOrphanKey[o] == key) {
+                ++size;
+            }
+        }
+        // The events of the run and the note that each NOTE_ON starts.
+        int[] index = new int[size];
+        long[] tick = new long[size];
+        int[] velocity = new int[size];
+        int[] note = new int[size];
+        int count = 0;
+        int removedNote = -1;
+        for (int n = 0; n < mCount; ++n) {
+            if (mChannel[n] != channel || mPitch[n] != pitch) {
+                continue;
+            }
+            if (mOnIndex[n] == removeIndex) {
+                removedNote = n;
+            } else {
+                index[count] = mOnIndex[n];
+                tick[count] = mStart[n];
+                velocity[count] = mVelocity[n];
+                note[count++] = n;
+            }
+            if (mOffIndex[n] >= 0 && mOffIndex[n] != removeIndex) {
+                index[count] = mOffIndex[n];
+                tick[count] = mEnd[n];
+                note[count++] = -1;
+            }
+        }
+        int kept = 0;
+        for (int o = 0; o < mOrphanCount; ++o) {
+            if (mOrphanKey[o] != key) {
+                mOrphanIndex[kept] = mOrphanIndex[o];
+                mOrphanTick[kept] = mOrphanTick[o];
+                mOrphanKey[kept++] = mOrphanKey[o];
+            } else if (mOrphanIndex[o] != removeIndex) {
+                index[count] = mOrphanIndex[o];
+                tick[count] = mOrphanTick[o];
+                note[count++] = -1;
+            }
+        }
+        mOrphanCount = kept;
+        if (addIndex >= 0) {
+            index[count] = addIndex;
+            tick[count] = addTick;
+            velocity[count] = addVelocity;
+            note[count] = -1;
+            if (removedNote >= 0 && addIndex == removeIndex
+                && addVelocity > 0 && addTick == mStart[removedNote]) {
+                // Only the velocity has changed so the note is kept.
+                mVelocity[removedNote] = (byte)addVelocity;
+                note[count] = removedNote;
+                removedNote = -1;
+            }
+            ++count;
+        }
+
+        // Pair the events in Track order, first in first out.
+        long[] order = new long[count];
+        for (int i = 0; i < count; ++i) {
+            order[i] = ((long)index[i] << 32) | i;
+        }
+        Arrays.sort(order);
+        int[] pending = new int[count];
+        int head = 0;
+        int tail = 0;
+        int[] ender = new int[count];
+        for (int k = 0; k < count; ++k) {
+            int e = (int)order[k];
+            if (velocity[e] > 0) {
+                ender[e] = -1;
+                pending[tail++] = e;
+            } else if (head < tail) {
+                ender[pending[head++]] = e;
+            } else {
+                addOrphan(index[e], tick[e], key);
+            }
+        }
+
+        int changed = 0;
+        for (int e = 0; e < count; ++e) {
+            if (velocity[e] > 0 && note[e] >= 0
+                && mOffIndex[note[e]] != (ender[e] < 0 ? -1 : index[ender[e]])) {
+                ++changed;
+            }
+        }
+        if (changed > TREE_EDIT_LIMIT) {
+            mTreeStale = true;
+        }
+        int added = -1;
+        for (int e = 0; e < count; ++e) {
+            if (velocity[e] > 0) {
+                if (note[e] < 0) {
+                    added = e;
+                } else {
+                    int end = ender[e];
+                    setEnd(note[e], end < 0 ? mLength : tick[end],
+                        end < 0 ? -1 : index[end]);
+                }
+            }
+        }
+        if (removedNote >= 0) {
+            removeNote(removedNote);
+        }
+        if (added >= 0) {
+            int end = ender[added];
+            insertNote(tick[added], end < 0 ? mLength : tick[end],
+                pitch, velocity[added], channel,
+                index[added], end < 0 ? -1 : index[end]);
+        }
+    }
+
+    /**
+     * Change the end of a note, moving it in the tree if it has changed.
+     */
+    private void setEnd(int note, long end, int offIndex) {
+        if (mEnd[note] == end && mOffIndex[note] == offIndex) {
+            return;
+        }
+        treeRemove(note);
+        mEnd[note] = end;
+        mOffIndex[note] = offIndex;
+        treeInsert(note);
+    }
+
+    /**
+     * Add a note, numbered in the order that the notes start.
+     */
+    private void insertNote(long start, long end, int pitch, int velocity,
+        int channel, int onIndex, int offIndex) {
+        int n = firstStartingAt(start);
+        while (n < mCount && mStart[n] == start && mOnIndex[n] < onIndex) {
+            ++n;
+        }
+        if (mCount == mStart.length) {
+            grow();
+        }
+        int move = mCount - n;
+        System.arraycopy(mStart, n, mStart, n + 1, move);
+        System.arraycopy(mEnd, n, mEnd, n + 1, move);
+        System.arraycopy(mPitch, n, mPitch, n + 1, move);
+        System.arraycopy(mVelocity, n, mVelocity, n + 1, move);
+        System.arraycopy(mChannel, n, mChannel, n + 1, move);
+        System.arraycopy(mOnIndex, n, mOnIndex, n + 1, move);
+        System.arraycopy(mOffIndex, n, mOffIndex, n + 1, move);
+        ++mCount;
+        mStart[n] = start;
+        mEnd[n] = end;
+        mPitch[n] = (byte)pitch;
+        mVelocity[n] = (byte)velocity;
+        mChannel[n] = (byte)channel;
+        mOnIndex[n] = onIndex;
+        mOffIndex[n] = offIndex;
+        ++mPitchCounts[pitch];
+        mLowestPitch = Math.min(mLowestPitch, pitch);
+        mHighestPitch = Math.max(mHighestPitch, pitch);
+        renumber(n, 1);
+        treeInsert(n);
+    }
+
+    /**
+     * Remove a note, moving the later notes down by one.
+     */
+    private void removeNote(int note) {
+        treeRemove(note);
+        int pitch = mPitch[note];
+        int move = mCount - note - 1;
+        System.arraycopy(mStart, note + 1, mStart, note, move);
+        System.arraycopy(mEnd, note + 1, mEnd, note, move);
+        System.arraycopy(mPitch, note + 1, mPitch, note, move);
+        System.arraycopy(mVelocity, note + 1, mVelocity, note, move);
+        System.arraycopy(mChannel, note + 1, mChannel, note, move);
+        System.arraycopy(mOnIndex, note + 1, mOnIndex, note, move);
+        System.arraycopy(mOffIndex, note + 1, mOffIndex, note, move);
+        --mCount;
+        renumber(note + 1, -1);
+        if (--mPitchCounts[pitch] == 0) {
+            mLowestPitch = 127;
+            mHighestPitch = 0;
+            for (int p = 0; p < 128; ++p) {
+                if (mPitchCounts[p] > 0) {
+                    mLowestPitch = Math.min(mLowestPitch, p);
+                    mHighestPitch = p;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add delta to the note numbers in the tree at or after a number.
+     */
+    private void renumber(int from, int delta) {
+        if (mTreeStale) {
+            return;
+        }
+        int used = mNodeFirst[mNodeCount];
+        for (int i = 0; i < used; ++i) {
+            if (mByStart[i] >= from) {
+                mByStart[i] += delta;
+            }
+            if (mByEnd[i] >= from) {
+                mByEnd[i] += delta;
+            }
+        }
+    }
+
+    /**
+     * @return the node of the tree that holds, or would hold, a note
+     */
+    private int findNode(int note) {
+        long start = mStart[note];
+        long end = end(note);
+        int node = mRoot;
+        while (node >= 0) {
+            if (end <= mNodeCenter[node]) {
+                node = mNodeLeft[node];
+            } else if (start > mNodeCenter[node]) {
+                node = mNodeRight[node];
+            } else {
+                break;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Add a note to the tree, making a new node for it if there is no
+     * node whose center it contains.
+     */
+    private void treeInsert(int note) {
+        if (mTreeStale) {
+            return;
+        }
+        long start = mStart[note];
+        long end = end(note);
+        int parent = -1;
+        int node = mRoot;
+        while (node >= 0) {
+            parent = node;
+            if (end <= mNodeCenter[node]) {
+                node = mNodeLeft[node];
+            } else if (start > mNodeCenter[node]) {
+                node = mNodeRight[node];
+            } else {
+                break;
+            }
+        }
+        if (node < 0) {
+            node = addNode(start);
+            if (parent < 0) {
+                mRoot = node;
+            } else if (end <= mNodeCenter[parent]) {
+                mNodeLeft[parent] = node;
+            } else {
+                mNodeRight[parent] = node;
+            }
+        }
+        int first = mNodeFirst[node];
+        int last = mNodeFirst[node + 1];
+        int used = mNodeFirst[mNodeCount];
+        if (used == mByStart.length) {
+            int capacity = Math.max(16, used * 2);
+            mByStart = Arrays.copyOf(mByStart, capacity);
+            mByEnd = Arrays.copyOf(mByEnd, capacity);
+        }
+        int s = first;
+        while (s < last && mStart[mByStart[s]] <= start) {
+            ++s;
+        }
+        System.arraycopy(mByStart, s, mByStart, s + 1, used - s);
+        mByStart[s] = note;
+        int e = first;
+        while (e < last && end(mByEnd[e]) >= end) {
+            ++e;
+        }
+        System.arraycopy(mByEnd, e, mByEnd, e + 1, used - e);
+        mByEnd[e] = note;
+        for (int i = node + 1; i <= mNodeCount; ++i) {
+            ++mNodeFirst[i];
+        }
+        ++mTreeEdits;
+    }
+
+    /**
+     * Add an empty node to the tree, after all the others.
+     */
+    private int addNode(long center) {
+        if (mNodeCount == mNodeCenter.length) {
+            int capacity = Math.max(16, mNodeCount * 2);
+            mNodeCenter = Arrays.copyOf(mNodeCenter, capacity);
+            mNodeLeft = Arrays.copyOf(mNodeLeft, capacity);
+            mNodeRight = Arrays.copyOf(mNodeRight, capacity);
+            mNodeFirst = Arrays.copyOf(mNodeFirst, capacity + 1);
+        }
+        int node = mNodeCount++;
+        mNodeCenter[node] = center;
+        mNodeLeft[node] = -1;
+        mNodeRight[node] = -1;
+        mNodeFirst[node + 1] = mNodeFirst[node];
+        return node;
+    }
+
+    /**
+     * Remove a note from the tree.
+     * The tree is built again if the note can not be found.
+     */
+    private void treeRemove(int note) {
+        if (mTreeStale) {
+            return;
+        }
+        int node = findNode(note);
+        int s = -1;
+        int e = -1;
+        if (node >= 0) {
+            for (int i = mNodeFirst[node]; i < mNodeFirst[node + 1]; ++i) {
+                if (mByStart[i] == note) {
+                    s = i;
+                }
+                if (mByEnd[i] == note) {
+                    e = i;
+                }
+            }
+        }
+        if (s < 0 || e < 0) {
+            mTreeStale = true;
+            return;
+        }
+        int used = mNodeFirst[mNodeCount];
+        System.arraycopy(mByStart, s + 1, mByStart, s, used - s - 1);
+        System.arraycopy(mByEnd, e + 1, mByEnd, e, used - e - 1);
+        for (int i = node + 1; i <= mNodeCount; ++i) {
+            --mNodeFirst[i];
+        }
+    }
+
+    /**
+     * Build the tree again if an edit has left it out of date, or if
+     * enough notes have been moved that it may be out of balance.
+     */
+    private void finishEdit() {
+        if (mTreeStale || mTreeEdits > Math.max(64, mCount)) {
+            buildTree();
+        }
+    }
+
+    /**
+     * @return the number of notes
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return the length of the Track in ticks
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return the lowest pitch of the notes, or 127 if there are none
+     */
+    public int getLowestPitch() {
+        return mLowestPitch;
+    }
+
+    /**
+     * @return the highest pitch of the notes, or 0 if there are none
+     */
+    public int getHighestPitch() {
+        return mHighestPitch;
+    }
+
+    public long getStart(int note) {
+        return mStart[note];
+    }
+
+    public long getEnd(int note) {
+        return mEnd[note];
+    }
+
+    public int getPitch(int note) {
+        return mPitch[note];
+    }
+
+    public int getVelocity(int note) {
+        return mVelocity[note];
+    }
+
+    public int getChannel(int note) {
+        return mChannel[note];
+    }
+
+    /**
+     * @param note the number of the note
+     * @return the index of the NOTE_ON event in the Track
+     */
+    public int getOnIndex(int note) {
+        return mOnIndex[note];
+    }
+
+    /**
+     * @param note the number of the note
+     * @return the index of the event that ends the note in the Track,
+     * or -1 if the note is never ended
+     */
+    public int getOffIndex(int note) {
+        return mOffIndex[note];
+    }
+}
@@ -0,0 +1,447 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+
+/**
+ * A compact store for the events of a track.
+ * <p>
+ * The events are held in parallel primitive arrays, the tick of each
+ * event in a <code>long[]</code> and the status and data bytes packed
+ * into an <code>int[]</code>. The data of META and SYSEX events is held
+ * in one shared byte array, indexed by an offset table.
+ * This takes about 16 bytes per event rather than the 80 or more bytes
+ * needed for a <code>MidiEvent</code> and its <code>MidiMessage</code>.
+ * <p>
+ * <code>javax.sound.midi.Track</code> can not be extended outside its
+ * package so a PackedTrack is used by the sequencer and the editor through
+ * a real Track, created with <code>toTrack()</code>, or by creating
+ * individual events with <code>getMidiEvent()</code>.
+ * <p>
+ * Events must be added in tick order when the PackedTrack holds a track.
+ * The undo history uses a PackedTrack as a pool of events in any order.
+ */
+public class PackedTrack
+{
+
+    /** The kind of a channel or system message. */
+    public static final int KIND_SHORT = 0;
+    /** The kind of a META message. */
+    public static final int KIND_META = 1;
+    /** The kind of a SYSEX message. */
+    public static final int KIND_SYSEX = 2;
+
+    private int mSize;
+    /** The tick of each event. */
+    private long[] mTicks;
+    /**
+     * The kind, status, data1 and data2 of each event, one per byte.
+     * For a META event data1 is the type.
+     */
+    private int[] mMessages;
+    /**
+     * The start of the data of each event in mData.
+     * The data of event i ends at the start of event i + 1.
+     */
+    private int[] mDataOffsets;
+    /** The data of the META and SYSEX events. */
+    private byte[] mData;
+
+    public PackedTrack() {
+        this(64);
+    }
+
+    /**
+     * Create an empty PackedTrack.
+     *
+     * @param capacity the expected number of events
+     */
+    public PackedTrack(int capacity) {
+        capacity = Math.max(capacity, 4);
+        mTicks = new long[capacity];
+        mMessages = new int[capacity];
+        mDataOffsets = new int[capacity + 1];
+        mData = new byte[64];
+    }
+
+    /**
+     * Create a PackedTrack containing the events of a Track.
+     *
+     * @param track the Track to pack
+     * @return the PackedTrack
+     */
+    public static PackedTrack fromTrack(Track track) {
+        int size = track.size();
+        PackedTrack packed = new PackedTrack(size);
+        for (int i = 0; i < size; ++i) {
+            MidiEvent ev = track.get(i);
+            packed.addMessage(ev.getTick(), ev.getMessage());
+        }
+        packed.trimToSize();
+        return packed;
+    }
+
+    /**
+     * Create a PackedTrack from the data of an MTrk chunk.
+     *
+     * @param chunk the chunk data, without the chunk type and length
+     * @return the PackedTrack
+     * @throws InvalidMidiDataException if the chunk contains invalid data
+     * @see SmfReader#parseTrack(ByteBuffer, SmfReader.TrackHandler)
+     */
+    public static PackedTrack fromChunk(ByteBuffer chunk)
+        throws InvalidMidiDataException {
+        // Most events take three bytes or less in a file.
+        final PackedTrack packed = new PackedTrack(chunk.remaining() / 3);
+        SmfReader.parseTrack(chunk, new SmfReader.TrackHandler()
+        {
+            @Override
+            public void shortEvent(long tick, int status, int data1, int data2) {
+                packed.addShort(tick, status, data1, data2);
+            }
+
+            @Override
+            public void metaEvent(long tick, int type, ByteBuffer chunk, int length) {
+                packed.addEvent(tick, KIND_META, MetaMessage.META, type, 0);
+                packed.appendData(chunk, length);
+            }
+
+            @Override
+            public void sysexEvent(long tick, int status, ByteBuffer chunk, int length) {
+                packed.addEvent(tick, KIND_SYSEX, status, 0, 0);
+                packed.appendData(chunk, length);
+            }
+        });
+        packed.trimToSize();
+        return packed;
+    }
+
+    /**
+     * Add any kind of message.
+     *
+     * @param tick the tick of the event
+     * @param mm the message, its bytes are copied
+     */
+    public void addMessage(long tick, MidiMessage mm) {
+        int status = mm.getStatus();
+        if (mm instanceof ShortMessage) {
+            ShortMessage sm = (ShortMessage)mm;
+            addShort(tick, status, sm.getData1(), sm.getData2());
+        } else if (mm instanceof MetaMessage) {
+            MetaMessage meta = (MetaMessage)mm;
+            byte[] data = meta.getData();
+            addMeta(tick, meta.getType(), data, 0, data.length);
+        } else {
+            byte[] data = ((SysexMessage)mm).getData();
+            addSysex(tick, status, data, 0, data.length);
+        }
+    }
+
+    /**
+     * Add a channel or system message.
+     */
+    public void addShort(long tick, int status, int data1, int data2) {
+        addEvent(tick, KIND_SHORT, status, data1, data2);
+    }
+
+    /**
+     * Add a META message.
+     */
+    public void addMeta(long tick, int type, byte[] data, int offset, int length) {
+        addEvent(tick, KIND_META, MetaMessage.META, type, 0);
+        appendData(data, offset, length);
+    }
+
+    /**
+     * Add a SYSEX message.
+     *
+     * @param tick the tick of the event
+     * @param status SYSTEM_EXCLUSIVE or SPECIAL_SYSTEM_EXCLUSIVE
+     * @param data the data, not including the status byte
+     * @param offset the start of the data in the array
+     * @param length the length of the data
+     */
+    public void addSysex(long tick, int status, byte[] data, int offset, int length) {
+        addEvent(tick, KIND_SYSEX, status, 0, 0);
+        appendData(data, offset, length);
+    }
+
+    private void addEvent(long tick, int kind, int status, int data1, int data2) {
+        if (mSize == mTicks.length) {
+            int capacity = mSize + (mSize >> 1) + 16;
+            mTicks = Arrays.copyOf(mTicks, capacity);
+            mMessages = Arrays.copyOf(mMessages, capacity);
+            mDataOffsets = Arrays.copyOf(mDataOffsets, capacity + 1);
+        }
+        mTicks[mSize] = tick;
+        mMessages[mSize] = (kind << 24) | ((status & 0xff) << 16)
+            | ((data1 & 0xff) << 8) | (data2 & 0xff);
+        ++mSize;
+        // No data unless some is appended
+        mDataOffsets[mSize] = mDataOffsets[mSize - 1];
+    }
+
+    private void appendData(byte[] data, int offset, int length) {
+        int start = ensureDataCapacity(length);
+        System.arraycopy(data, offset, mData, start, length);
+        mDataOffsets[mSize] = start + length;
+    }
+
+    private void appendData(ByteBuffer data, int length) {
+        int start = ensureDataCapacity(length);
+        data.get(mData, start, length);
+        mDataOffsets[mSize] = start + length;
+    }
+
+    private int ensureDataCapacity(int length) {
+        int start = mDataOffsets[mSize];
+        if (start + length > mData.length) {
+            mData = Arrays.copyOf(mData,
+                Math.max(start + length, mData.length * 2));
+        }
+        return start;
+    }
+
+    /**
+     * Release any unused space.
+     */
+    public void trimToSize() {
+        if (mTicks.length > mSize) {
+            mTicks = Arrays.copyOf(mTicks, mSize);
+            mMessages = Arrays.copyOf(mMessages, mSize);
+            mDataOffsets = Arrays.copyOf(mDataOffsets, mSize + 1);
+        }
+        if (mData.length > mDataOffsets[mSize]) {
+            mData = Arrays.copyOf(mData, mDataOffsets[mSize]);
+        }
+    }
+
+    /**
+     * Remove the events from <code>size</code> onwards.
+     *
+     * @param size the number of events to keep
+     */
+    public void truncate(int size) {
+        if (size < mSize) {
+            mSize = size;
+        }
+    }
+
+    /**
+     * Remove the first <code>count</code> events.
+     * The remaining events keep their order.
+     *
+     * @param count the number of events to remove
+     */
+    public void removeFirst(int count) {
+        if (count <= 0) {
+            return;
+        }
+        count = Math.min(count, mSize);
+        int dataStart = mDataOffsets[count];
+        int dataLength = mDataOffsets[mSize] - dataStart;
+        mSize -= count;
+        System.arraycopy(mTicks, count, mTicks, 0, mSize);
+        System.arraycopy(mMessages, count, mMessages, 0, mSize);
+        for (int i = 0; i <= mSize; ++i) {
+            mDataOffsets[i] = mDataOffsets[i + count] - dataStart;
+        }
+        System.arraycopy(mData, dataStart, mData, 0, dataLength);
+    }
+
+    /**
+     * @return the number of events
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the tick of the last event, or zero if there are no events
+     */
+    public long getEndTick() {
+        return mSize == 0 ? 0 : mTicks[mSize - 1];
+    }
+
+    public long getTick(int index) {
+        return mTicks[index];
+    }
+
+    /**
+     * @param index the event index
+     * @return KIND_SHORT, KIND_META or KIND_SYSEX
+     */
+    public int getKind(int index) {
+        return mMessages[index] >>> 24;
+    }
+
+    /**
+     * @param index the event index
+     * @return the status byte, 0xFF for a META event
+     */
+    public int getStatus(int index) {
+        return (mMessages[index] >> 16) & 0xff;
+    }
+
+    /**
+     * @param index the event index
+     * @return the first data byte of a short message or the type
+     * of a META event
+     */
+    public int getData1(int index) {
+        return (mMessages[index] >> 8) & 0xff;
+    }
+
+    public int getData2(int index) {
+        return mMessages[index] & 0xff;
+    }
+
+    /**
+     * Change the status and data bytes of a channel or system message
+     * in place.
+     *
+     * @param index the event index, which must be a KIND_SHORT event
+     * @param status the new status byte
+     * @param data1 the new first data byte
+     * @param data2 the new second data byte
+     */
+    public void setShort(int index, int status, int data1, int data2) {
+        if (getKind(index) != KIND_SHORT) {
+            throw new IllegalArgumentException(
+                "Not a short message at " + index); // NOI18N
+        }
+        mMessages[index] = (KIND_SHORT << 24) | ((status & 0xff) << 16)
+            | ((data1 & 0xff) << 8) | (data2 & 0xff);
+    }
+
+    /**
+     * @param index the event index
+     * @return true if the event is a META event of the given type
+     */
+    public boolean isMeta(int index, int type) {
+        return getKind(index) == KIND_META && getData1(index) == type;
+    }
+
+    /**
+     * @param index the event index
+     * @return the length of the data of a META or SYSEX event
+     */
+    public int getDataLength(int index) {
+        return mDataOffsets[index + 1] - mDataOffsets[index];
+    }
+
+    /**
+     * @param index the event index
+     * @return a copy of the data of a META or SYSEX event
+     */
+    public byte[] getData(int index) {
+        return Arrays.copyOfRange(
+            mData, mDataOffsets[index], mDataOffsets[index + 1]);
+    }
+
+    /**
+     * Put the data of a META or SYSEX event into a buffer.
+     *
+     * @param index the event index
+     * @param buf the buffer to receive the data
+     */
+    public void putData(int index, ByteBuffer buf) {
+        buf.put(mData, mDataOffsets[index], getDataLength(index));
+    }
+
+    /**
+     * Create a MidiEvent for one event.
+     *
+     * @param index the event index
+     * @return a new MidiEvent
+     */
+    public MidiEvent getMidiEvent(int index) {
+        int status = getStatus(index);
+        MidiMessage mm;
+        try {
+            switch (getKind(index)) {
+                case KIND_META:
+                    mm = new MetaMessage(getData1(index),
+                        getData(index), getDataLength(index));
+                    break;
+                case KIND_SYSEX:
+                    // SysexMessage expects the status byte in the data.
+                    int length = getDataLength(index);
+                    byte[] data = new byte[length + 1];
+                    data[0] = (byte)status;
+                    System.arraycopy(mData, mDataOffsets[index], data, 1, length);
+                    mm = new SysexMessage(data, length + 1);
+                    break;
+                default:
+                    mm = new ShortMessage(status,
+                        getData1(index), getData2(index));
+                    break;
+            }
+        } catch (InvalidMidiDataException ex) {
+            // The message was valid when it was added.
+            throw new IllegalStateException(ex);
+        }
+        return new MidiEvent(mm, mTicks[index]);
+    }
+
+    /**
+     * Add all the events to a Track.
+     * Any End of Track events are merged into the Track's own.
+     *
+     * @param track the Track to receive the events
+     */
+    public void toTrack(Track track) {
+        for (int i = 0; i < mSize; ++i) {
+            track.add(getMidiEvent(i));
+        }
+    }
+
+    /**
+     * @return the approximate number of bytes used to store the events
+     */
+    public long getStorageSize() {
+        return mTicks.length * 8L + mMessages.length * 4L
+            + mDataOffsets.length * 4L + mData.length;
+    }
+
+    /**
+     * Get the number of bytes used by the events from <code>from</code>
+     * onwards, not counting any unused space.
+     *
+     * @param from the index of the first event
+     * @return the approximate number of bytes
+     */
+    public long getUsedSize(int from) {
+        return (mSize - from) * 16L
+            + mDataOffsets[mSize] - mDataOffsets[from];
+    }
+}
@@ -0,0 +1,300 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Count how far the NOTE_ON, NOTE_OFF and LYRIC events of each Track of a
+ * sequence fall after the start of their beat.
+ * <p>
+ * The counts for a Track are kept in arrays with one element for each tick
+ * of a beat, so element n is the number of events that are n ticks after
+ * a beat. A NOTE_ON with zero velocity is counted as a NOTE_OFF.
+ * <p>
+ * The counts for any grid that divides the beat are folded from these
+ * arrays without looking at the events again. The ticks of the events
+ * are kept as well for the few grids that do not divide the beat,
+ * such as quarter note triplets.
+ */
+public class QuantiseAnalysis
+{
+
+    /** The type of a NOTE_ON event. */
+    public static final int NOTE_ON = 0;
+    /** The type of a NOTE_OFF event, or a NOTE_ON with zero velocity. */
+    public static final int NOTE_OFF = 1;
+    /** The type of a LYRIC event. */
+    public static final int LYRIC = 2;
+    private static final int TYPE_COUNT = 3;
+
+    private final int mResolution;
+    private final TrackCounts[] mTracks;
+
+    /**
+     * The counts and the event ticks for one Track.
+     */
+    private static class TrackCounts
+    {
+
+        final int[][] mCounts;
+        long[] mTicks = new long[16];
+        byte[] mTypes = new byte[16];
+        int mSize;
+
+        TrackCounts(int resolution) {
+            mCounts = new int[TYPE_COUNT][resolution];
+        }
+
+        void add(long tick, int type) {
+            if (mSize == mTicks.length) {
+                mTicks = Arrays.copyOf(mTicks, mSize * 2);
+                mTypes = Arrays.copyOf(mTypes, mSize * 2);
+            }
+            mTicks[mSize] = tick;
+            mTypes[mSize] = (byte)type;
+            ++mSize;
+            ++mCounts[type][(int)(tick % mCounts[type].length)];
+        }
+    }
+
+    /**
+     * How many events move, and how far, when Tracks are quantised.
+     */
+    public static class Moves
+    {
+
+        private int mEventCount;
+        private int mMovedCount;
+        private long mTotalTicks;
+        private int mMaxTicks;
+
+        /**
+         * Add the events of a Track, counted by their offset from
+         * the previous grid point.
+         */
+        private void add(int[] gridCounts) {
+            int gridTicks = gridCounts.length;
+            for (int offset = 0; offset < gridTicks; ++offset) {
+                int count = gridCounts[offset];
+                if (count == 0) {
+                    continue;
+                }
+                mEventCount += count;
+                // As in Quantiser.quantiseTick() an event half way
+                // between grid points moves to the earlier one.
+                int distance = offset > gridTicks / 2
+                    ? gridTicks - offset : offset;
+                if (distance != 0) {
+                    mMovedCount += count;
+                    mTotalTicks += (long)distance * count;
+                    mMaxTicks = Math.max(mMaxTicks, distance);
+                }
+            }
+        }
+
+        /**
+         * @return the number of notes and lyrics looked at
+         */
+        public int getEventCount() {
+            return mEventCount;
+        }
+
+        /**
+         * @return the number of notes and lyrics that move
+         */
+        public int getMovedCount() {
+            return mMovedCount;
+        }
+
+        /**
+         * @return the furthest that an event moves, in ticks
+         */
+        public int getMaxTicks() {
+            return mMaxTicks;
+        }
+
+        /**
+         * @return the average distance in ticks that the events which
+         * move are moved, or zero if none move
+         */
+        public double getAverageTicks() {
+            return mMovedCount == 0 ? 0 : (double)mTotalTicks / mMovedCount;
+        }
+    }
+
+    /**
+     * Count the event offsets of every Track of a sequence.
+     * The Tracks are counted in parallel.
+     *
+     * @param seq the sequence to analyse
+     */
+    public QuantiseAnalysis(MqfSequence seq) {
+        mResolution = Math.max(1, seq.getResolution());
+        Track[] tracks = seq.getTracks();
+        mTracks = IntStream.range(0, tracks.length)
+            .parallel()
+            .mapToObj(trackIndex -> countTrack(tracks[trackIndex], mResolution))
+            .toArray(TrackCounts[]::new);
+    }
+
+    /**
+     * Count the event offsets of one Track.
+     */
+    private static TrackCounts countTrack(Track t, int resolution) {
+        TrackCounts counts = new TrackCounts(resolution);
+        for (int i = 0; i < t.size(); ++i) {
+            MidiEvent ev = t.get(i);
+            int type = typeOf(ev.getMessage());
+            if (type >= 0) {
+                counts.add(ev.getTick(), type);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * @return the type of an event with this message,
+     * or -1 if it is not counted
+     */
+    private static int typeOf(MidiMessage mess) {
+        int status = mess.getStatus();
+        int command = status & 0xF0;
+        if (command == ShortMessage.NOTE_ON) {
+            // Only the velocity is needed, avoid copying the message.
+            return ((ShortMessage)mess).getData2() != 0 ? NOTE_ON : NOTE_OFF;
+        }
+        if (command == ShortMessage.NOTE_OFF) {
+            return NOTE_OFF;
+        }
+        if (status == MetaMessage.META
+            && ((MetaMessage)mess).getType() == MetaEvent.LYRIC) {
+            return LYRIC;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of ticks in a beat, which is the length
+     * of each array of counts
+     */
+    public int getResolution() {
+        return mResolution;
+    }
+
+    /**
+     * @return the number of Tracks that were analysed
+     */
+    public int getTrackCount() {
+        return mTracks.length;
+    }
+
+    /**
+     * @param trackIndex the index of the Track
+     * @param type one of NOTE_ON, NOTE_OFF or LYRIC
+     * @return the number of events of the type at each offset in a beat
+     */
+    public int[] getCounts(int trackIndex, int type) {
+        return mTracks[trackIndex].mCounts[type];
+    }
+
+    /**
+     * @param trackIndex the index of the Track
+     * @return the number of NOTE_ON events at each offset in a beat
+     */
+    public int[] getNoteOnCounts(int trackIndex) {
+        return getCounts(trackIndex, NOTE_ON);
+    }
+
+    /**
+     * @param trackIndex the index of the Track
+     * @return the number of NOTE_OFF events at each offset in a beat
+     */
+    public int[] getNoteOffCounts(int trackIndex) {
+        return getCounts(trackIndex, NOTE_OFF);
+    }
+
+    /**
+     * @param trackIndex the index of the Track
+     * @return the number of LYRIC events at each offset in a beat
+     */
+    public int[] getLyricCounts(int trackIndex) {
+        return getCounts(trackIndex, LYRIC);
+    }
+
+    /**
+     * Count the events of a type in a Track by their offset from the
+     * previous point of a grid. When the grid divides the beat this
+     * takes one step for each tick of the beat, otherwise one step
+     * for each event.
+     *
+     * @param trackIndex the index of the Track
+     * @param type one of NOTE_ON, NOTE_OFF or LYRIC
+     * @param gridTicks the number of ticks between grid points
+     * @return the number of events at each offset from a grid point
+     */
+    public int[] getGridCounts(int trackIndex, int type, int gridTicks) {
+        int[] gridCounts = new int[gridTicks];
+        TrackCounts tc = mTracks[trackIndex];
+        if (mResolution % gridTicks == 0) {
+            int[] counts = tc.mCounts[type];
+            for (int offset = 0; offset < mResolution; ++offset) {
+                gridCounts[offset % gridTicks] += counts[offset];
+            }
+        } else {
+            for (int i = 0; i < tc.mSize; ++i) {
+                if (tc.mTypes[i] == type) {
+                    ++gridCounts[(int)(tc.mTicks[i] % gridTicks)];
+                }
+            }
+        }
+        return gridCounts;
+    }
+
+    /**
+     * Find how many of the notes and lyrics in some Tracks would move,
+     * and how far, if the Tracks were quantised to a grid.
+     * Nothing in the sequence is changed.
+     *
+     * @param trackIndexes the indexes of the Tracks
+     * @param gridTicks the number of ticks between grid points
+     * @return the moves
+     * @see Quantiser#quantiseToGrid(MqfSequence, int[], int)
+     */
+    public Moves getMoves(int[] trackIndexes, int gridTicks) {
+        Moves moves = new Moves();
+        for (int trackIndex : trackIndexes) {
+            for (int type = 0; type < TYPE_COUNT; ++type) {
+                moves.add(getGridCounts(trackIndex, type, gridTicks));
+            }
+        }
+        return moves;
+    }
+}
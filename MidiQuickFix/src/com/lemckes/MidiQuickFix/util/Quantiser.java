@@ -0,0 +1,430 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Move the notes and lyrics of a Track to the nearest point on a grid.
+ */
+public class Quantiser
+{
+
+    /**
+     * Cannot create a new instance of Quantiser
+     */
+    private Quantiser() {
+    }
+
+    /**
+     * Get the grid spacing in ticks.
+     *
+     * @param resolution the ticks per beat of the sequence
+     * @param divisions the number of grid points in each beat
+     * @return the number of ticks between grid points
+     */
+    public static int getGridTicks(int resolution, int divisions) {
+        return Math.max(1, resolution / divisions);
+    }
+
+    /**
+     * Get the tick of the grid point nearest to <code>tick</code>.
+     * A tick half way between grid points moves to the earlier point.
+     *
+     * @param tick the tick to move
+     * @param gridTicks the number of ticks between grid points
+     * @return the quantised tick
+     */
+    public static long quantiseTick(long tick, int gridTicks) {
+        long adjustment = tick % gridTicks;
+        if (adjustment > gridTicks / 2) {
+            adjustment -= gridTicks;
+        }
+        return tick - adjustment;
+    }
+
+    /**
+     * Quantise the NOTE_ON, NOTE_OFF and LYRIC events in a Track.
+     * Events that move are removed and added again so that
+     * the Track stays in tick order, in the order given by
+     * quantisedOrder().
+     *
+     * @param track the track to quantise
+     * @param resolution the ticks per beat of the sequence
+     * @param divisions the number of grid points in each beat,
+     * for example 4 to quantise to sixteenth notes
+     * @return the number of events that were moved
+     */
+    public static int quantise(Track track, int resolution, int divisions) {
+        return quantiseToGrid(track, getGridTicks(resolution, divisions));
+    }
+
+    /**
+     * Quantise the NOTE_ON, NOTE_OFF and LYRIC events in a Track
+     * to a grid that need not divide the beat, such as a triplet grid.
+     *
+     * @param track the track to quantise
+     * @param gridTicks the number of ticks between grid points
+     * @return the number of events that were moved
+     * @see #quantise(Track, int, int)
+     */
+    public static int quantiseToGrid(Track track, int gridTicks) {
+        if (gridTicks <= 1) {
+            return 0;
+        }
+
+        long[] ticks = new long[track.size()];
+        int[] order = quantisedOrder(track, gridTicks, ticks);
+        if (order == null) {
+            return 0;
+        }
+
+        // Track.add() puts an event after those at the same tick, so the
+        // events that end up after an unmoved event at their tick are
+        // taken out and added again in their new order.
+        boolean[] readd = new boolean[ticks.length];
+        int moved = 0;
+        for (int e = 0; e < ticks.length; ++e) {
+            if (ticks[e] != track.get(e).getTick()) {
+                readd[e] = true;
+                ++moved;
+            }
+        }
+        for (int k = 1; k < order.length; ++k) {
+            int e = order[k];
+            int before = order[k - 1];
+            if (readd[before] && !readd[e] && ticks[e] == ticks[before]
+                && !isEndOfTrack(track.get(e).getMessage())) {
+                readd[e] = true;
+            }
+        }
+        ArrayList<MidiEvent> events = new ArrayList<>();
+        for (int e : order) {
+            if (readd[e]) {
+                events.add(track.get(e));
+            }
+        }
+        int k = 0;
+        for (int e : order) {
+            if (readd[e]) {
+                track.remove(events.get(k++));
+            }
+        }
+        k = 0;
+        for (int e : order) {
+            if (readd[e]) {
+                MidiEvent ev = events.get(k++);
+                ev.setTick(ticks[e]);
+                track.add(ev);
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Work out the ticks and order of the events of a Track after the
+     * NOTE_ON, NOTE_OFF and LYRIC events have been quantised.
+     * <p>
+     * The events that do not move keep their order. An event that moves
+     * goes after the events already at its new tick, as with Track.add(),
+     * except that a NOTE_OFF, or NOTE_ON with zero velocity, that ends
+     * a note which now starts at an earlier tick goes before the first
+     * NOTE_ON at its new tick. Otherwise a late NOTE_OFF that moves onto
+     * the start of the next note of the same pitch would cut it off.
+     *
+     * @param track the Track
+     * @param gridTicks the number of ticks between grid points
+     * @param ticks is given the new tick of each event of the Track
+     * @return the indexes of the events in their new order,
+     * or null if no event moves
+     */
+    static int[] quantisedOrder(Track track, int gridTicks, long[] ticks) {
+        int size = track.size();
+        int movedCount = 0;
+        for (int e = 0; e < size; ++e) {
+            MidiEvent ev = track.get(e);
+            ticks[e] = ev.getTick();
+            if (gridTicks > 1 && isQuantisable(ev.getMessage())) {
+                ticks[e] = quantiseTick(ev.getTick(), gridTicks);
+                if (ticks[e] != ev.getTick()) {
+                    ++movedCount;
+                }
+            }
+        }
+        if (movedCount == 0) {
+            return null;
+        }
+
+        // Pair the notes as a sequencer does, first in first out for
+        // each channel and pitch, to find the ends of the earlier notes.
+        boolean[] endsEarlier = new boolean[size];
+        int[] head = new int[16 * 128];
+        int[] tail = new int[16 * 128];
+        int[] next = new int[size];
+        Arrays.fill(head, -1);
+        for (int e = 0; e < size; ++e) {
+            MidiMessage mm = track.get(e).getMessage();
+            if (!(mm instanceof ShortMessage)) {
+                continue;
+            }
+            ShortMessage sm = (ShortMessage)mm;
+            int key = (sm.getChannel() << 7) | sm.getData1();
+            if (isNoteOn(sm)) {
+                next[e] = -1;
+                if (head[key] < 0) {
+                    head[key] = e;
+                } else {
+                    next[tail[key]] = e;
+                }
+                tail[key] = e;
+            } else if (isNoteEnd(sm)) {
+                int on = head[key];
+                if (on >= 0) {
+                    head[key] = next[on];
+                }
+                endsEarlier[e] = on < 0 || ticks[on] < ticks[e];
+            }
+        }
+
+        // The End of Track event stays last.
+        int endOfTrack = -1;
+        int[] unmoved = new int[size - movedCount];
+        Integer[] moved = new Integer[movedCount];
+        int u = 0;
+        int m = 0;
+        for (int e = 0; e < size; ++e) {
+            if (isEndOfTrack(track.get(e).getMessage())) {
+                endOfTrack = e;
+            } else if (ticks[e] == track.get(e).getTick()) {
+                unmoved[u++] = e;
+            } else {
+                moved[m++] = e;
+            }
+        }
+        // Stable, so the moved events keep their order at each tick
+        // apart from the note ends going first.
+        Arrays.sort(moved, (e1, e2) -> {
+            int c = Long.compare(ticks[e1], ticks[e2]);
+            if (c == 0) {
+                c = Boolean.compare(!endsEarlier[e1], !endsEarlier[e2]);
+            }
+            return c;
+        });
+
+        int unmovedCount = u;
+        int[] order = new int[size];
+        int k = 0;
+        u = 0;
+        for (int e : moved) {
+            long tick = ticks[e];
+            while (u < unmovedCount && (ticks[unmoved[u]] < tick
+                || (ticks[unmoved[u]] == tick && !(endsEarlier[e]
+                && isNoteOn(track.get(unmoved[u]).getMessage()))))) {
+                order[k++] = unmoved[u++];
+            }
+            order[k++] = e;
+        }
+        while (u < unmovedCount) {
+            order[k++] = unmoved[u++];
+        }
+        if (endOfTrack >= 0) {
+            order[k++] = endOfTrack;
+        }
+        return order;
+    }
+
+    /**
+     * Quantise the NOTE_ON, NOTE_OFF and LYRIC events in a Track of a
+     * sequence, recording the change as one edit in its EditHistory.
+     * The events that move are removed and put back at their places in
+     * the order given by quantisedOrder() in a single pass each, the
+     * Track is rebuilt as by MqfSequence.removeEvents().
+     *
+     * @param seq the sequence
+     * @param trackIndex the index of the track to quantise
+     * @param divisions the number of grid points in each beat
+     * @return the number of events that were moved
+     * @see #quantise(Track, int, int)
+     */
+    public static int quantise(MqfSequence seq, int trackIndex, int divisions) {
+        return quantiseToGrid(seq, trackIndex,
+            getGridTicks(seq.getResolution(), divisions));
+    }
+
+    /**
+     * Quantise the NOTE_ON, NOTE_OFF and LYRIC events in a Track of a
+     * sequence to a grid, recording the change as one edit.
+     *
+     * @param seq the sequence
+     * @param trackIndex the index of the track to quantise
+     * @param gridTicks the number of ticks between grid points
+     * @return the number of events that were moved
+     * @see #quantise(MqfSequence, int, int)
+     */
+    public static int quantiseToGrid(MqfSequence seq, int trackIndex,
+        int gridTicks) {
+        if (gridTicks <= 1) {
+            return 0;
+        }
+
+        Track track = seq.getTrack(trackIndex);
+        long[] ticks = new long[track.size()];
+        int[] order = quantisedOrder(track, gridTicks, ticks);
+        if (order == null) {
+            return 0;
+        }
+        int[] removed = new int[order.length];
+        int[] added = new int[order.length];
+        MidiEvent[] moved = new MidiEvent[order.length];
+        int count = 0;
+        for (int e = 0; e < ticks.length; ++e) {
+            if (ticks[e] != track.get(e).getTick()) {
+                removed[count++] = e;
+            }
+        }
+        // The events go back at their places in the new order.
+        int m = 0;
+        for (int k = 0; k < order.length; ++k) {
+            int e = order[k];
+            if (ticks[e] != track.get(e).getTick()) {
+                added[m] = k;
+                moved[m++] = track.get(e);
+            }
+        }
+
+        EditHistory history = seq.getHistory();
+        history.beginEdit();
+        try {
+            seq.removeEvents(trackIndex, Arrays.copyOf(removed, count));
+            for (int i = 0; i < count; ++i) {
+                moved[i].setTick(quantiseTick(moved[i].getTick(), gridTicks));
+            }
+            seq.insertEvents(trackIndex, Arrays.copyOf(added, count),
+                Arrays.copyOf(moved, count));
+        } finally {
+            history.endEdit();
+        }
+        return count;
+    }
+
+    /**
+     * Quantise several Tracks of a sequence to a grid,
+     * recording the change as one edit.
+     *
+     * @param seq the sequence
+     * @param trackIndexes the indexes of the tracks to quantise
+     * @param gridTicks the number of ticks between grid points
+     * @return the number of events that were moved
+     */
+    public static int quantiseToGrid(MqfSequence seq, int[] trackIndexes,
+        int gridTicks) {
+        int moved = 0;
+        EditHistory history = seq.getHistory();
+        history.beginEdit();
+        try {
+            for (int trackIndex : trackIndexes) {
+                moved += quantiseToGrid(seq, trackIndex, gridTicks);
+            }
+        } finally {
+            history.endEdit();
+        }
+        return moved;
+    }
+
+    /**
+     * Make a copy of a sequence in which some of the Tracks are quantised,
+     * to be played in place of the sequence before it is changed.
+     * The copy shares the messages of the sequence but has its own events,
+     * in the order given by quantisedOrder(),
+     * the sequence itself is not changed.
+     *
+     * @param seq the sequence to copy
+     * @param trackIndexes the indexes of the tracks to quantise
+     * @param gridTicks the number of ticks between grid points
+     * @return the copy
+     * @throws InvalidMidiDataException if the sequence cannot be copied
+     */
+    public static Sequence quantisedCopy(Sequence seq, int[] trackIndexes,
+        int gridTicks) throws InvalidMidiDataException {
+        Sequence copy = new Sequence(seq.getDivisionType(), seq.getResolution());
+        boolean[] quantised = new boolean[seq.getTracks().length];
+        for (int trackIndex : trackIndexes) {
+            quantised[trackIndex] = gridTicks > 1;
+        }
+        Track[] tracks = seq.getTracks();
+        for (int t = 0; t < tracks.length; ++t) {
+            Track from = tracks[t];
+            Track to = copy.createTrack();
+            long[] ticks = new long[from.size()];
+            int[] order = quantised[t]
+                ? quantisedOrder(from, gridTicks, ticks) : null;
+            for (int k = 0; k < from.size(); ++k) {
+                int e = order != null ? order[k] : k;
+                MidiEvent ev = from.get(e);
+                long tick = order != null ? ticks[e] : ev.getTick();
+                // The events are added in their new order, each one
+                // at the end of the Track.
+                to.add(new MidiEvent(ev.getMessage(), tick));
+            }
+        }
+        return copy;
+    }
+
+    private static boolean isEndOfTrack(MidiMessage mm) {
+        return mm.getStatus() == MetaMessage.META
+            && ((MetaMessage)mm).getType() == MetaEvent.END_OF_TRACK;
+    }
+
+    private static boolean isNoteOn(MidiMessage mm) {
+        return mm instanceof ShortMessage
+            && ((ShortMessage)mm).getCommand() == ShortMessage.NOTE_ON
+            && ((ShortMessage)mm).getData2() > 0;
+    }
+
+    private static boolean isNoteEnd(ShortMessage sm) {
+        return sm.getCommand() == ShortMessage.NOTE_OFF
+            || (sm.getCommand() == ShortMessage.NOTE_ON && sm.getData2() == 0);
+    }
+
+    /**
+     * @return true if the message is a note or a lyric
+     */
+    static boolean isQuantisable(MidiMessage mm) {
+        if (mm instanceof ShortMessage) {
+            int command = ((ShortMessage)mm).getCommand();
+            return command == ShortMessage.NOTE_ON
+                || command == ShortMessage.NOTE_OFF;
+        }
+        return mm.getStatus() == MetaMessage.META
+            && ((MetaMessage)mm).getType() == MetaEvent.LYRIC;
+    }
+}
@@ -0,0 +1,188 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+
+/**
+ * The parts of an MqfSequence that have been changed by edits.
+ * The sequence records each edit as it is notified of it, so that
+ * the views and the sequencer only need to update the tracks and
+ * tick ranges that have actually changed.
+ *
+ * @see MqfSequence#takeChange()
+ */
+public class SequenceChange
+{
+
+    /** The changed tick range, {from, to}, of each changed track. */
+    private final TreeMap<Integer, long[]> mTrackRanges = new TreeMap<>();
+    /** The earliest tick at which events were added or removed. */
+    private long mReindexTick = Long.MAX_VALUE;
+    private boolean mTempoChanged;
+    private boolean mLyricsChanged;
+    private boolean mTracksChanged;
+
+    SequenceChange() {
+    }
+
+    /**
+     * Record a change to an event.
+     *
+     * @param trackIndex the index of the track containing the event
+     * @param tick the tick of the event
+     * @param mm the message of the event
+     * @param moved true if the event was added, removed or moved,
+     * false if only its message was changed
+     */
+    void eventChanged(int trackIndex, long tick, MidiMessage mm, boolean moved) {
+        addRange(trackIndex, tick, tick);
+        if (moved) {
+            mReindexTick = Math.min(mReindexTick, tick);
+        }
+        if (mm instanceof MetaMessage) {
+            int type = ((MetaMessage)mm).getType();
+            if (type == MetaEvent.TEMPO) {
+                mTempoChanged = true;
+            } else if (type == MetaEvent.LYRIC || type == MetaEvent.TEXT) {
+                mLyricsChanged = true;
+            }
+        }
+    }
+
+    /**
+     * Record that any part of a track may have changed.
+     *
+     * @param trackIndex the index of the track
+     */
+    void trackChanged(int trackIndex) {
+        addRange(trackIndex, 0, Long.MAX_VALUE);
+        mReindexTick = 0;
+        mTempoChanged = true;
+        mLyricsChanged = true;
+    }
+
+    /**
+     * Record that tracks have been added or removed,
+     * so the track indexes may have changed.
+     */
+    void tracksChanged() {
+        mTracksChanged = true;
+        mReindexTick = 0;
+        mTempoChanged = true;
+        mLyricsChanged = true;
+    }
+
+    private void addRange(int trackIndex, long from, long to) {
+        long[] range = mTrackRanges.get(trackIndex);
+        if (range == null) {
+            mTrackRanges.put(trackIndex, new long[]{from, to});
+        } else {
+            range[0] = Math.min(range[0], from);
+            range[1] = Math.max(range[1], to);
+        }
+    }
+
+    /**
+     * @return true if nothing has been changed
+     */
+    public boolean isEmpty() {
+        return !mTracksChanged && mTrackRanges.isEmpty();
+    }
+
+    /**
+     * @return true if tracks have been added or removed
+     */
+    public boolean isTracksChanged() {
+        return mTracksChanged;
+    }
+
+    /**
+     * @return true if a tempo event may have been changed
+     */
+    public boolean isTempoChanged() {
+        return mTempoChanged;
+    }
+
+    /**
+     * @return true if a lyric or text event may have been changed
+     */
+    public boolean isLyricsChanged() {
+        return mLyricsChanged;
+    }
+
+    /**
+     * @return the indexes of the tracks that have been changed
+     */
+    public Set<Integer> getChangedTracks() {
+        return Collections.unmodifiableSet(mTrackRanges.keySet());
+    }
+
+    /**
+     * @return the first changed tick in any track
+     */
+    public long getFromTick() {
+        if (mTracksChanged) {
+            return 0;
+        }
+        long from = Long.MAX_VALUE;
+        for (long[] range : mTrackRanges.values()) {
+            from = Math.min(from, range[0]);
+        }
+        return from;
+    }
+
+    /**
+     * @return the last changed tick in any track
+     */
+    public long getToTick() {
+        if (mTracksChanged) {
+            return Long.MAX_VALUE;
+        }
+        long to = -1;
+        for (long[] range : mTrackRanges.values()) {
+            to = Math.max(to, range[1]);
+        }
+        return to;
+    }
+
+    /**
+     * Check whether a sequencer playing the sequence must re-read it.
+     * The sequencer reads events from the tracks as it plays so a
+     * changed message is picked up without any help. It does need to
+     * find its place in the tracks again if events have been added or
+     * removed before the play position, and to re-read the tempo map
+     * and the tracks themselves if they have been changed.
+     *
+     * @param tickPosition the sequencer's position
+     * @return true if the sequencer must re-read the sequence
+     */
+    public boolean needsResync(long tickPosition) {
+        return mTracksChanged || mTempoChanged || mReindexTick <= tickPosition;
+    }
+}
@@ -0,0 +1,138 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import javax.swing.Timer;
+import javax.swing.event.EventListenerList;
+
+/**
+ * Collects the edits made to a sequence and passes them on to the
+ * views in a single notification.
+ * An operation such as a transpose followed by a velocity change
+ * notifies the bus after each step, the views are only updated once,
+ * when the bus has been quiet for the delay.
+ * The edits are accumulated by the sequence itself, so the tick
+ * ranges of all the edits to a track are merged into one range.
+ * The bus is intended to be used on the event dispatch thread.
+ */
+public class SequenceChangeBus
+{
+
+    /** The default delay, in milliseconds, about one frame. */
+    public static final int DEFAULT_DELAY = 40;
+
+    private final EventListenerList mListenerList = new EventListenerList();
+    private final Timer mTimer;
+    private MqfSequence mSequence;
+
+    /**
+     * Create a SequenceChangeBus with the default delay
+     */
+    public SequenceChangeBus() {
+        this(DEFAULT_DELAY);
+    }
+
+    /**
+     * Create a SequenceChangeBus
+     *
+     * @param delay the time in milliseconds to wait for further edits
+     * before the listeners are notified
+     */
+    public SequenceChangeBus(int delay) {
+        mTimer = new Timer(delay, (java.awt.event.ActionEvent evt) -> {
+            flush();
+        });
+        mTimer.setRepeats(false);
+    }
+
+    /**
+     * Set the sequence whose edits are passed on.
+     * Any edits to the previous sequence that have not been passed on
+     * are discarded, the views are expected to be given the new
+     * sequence directly.
+     *
+     * @param seq the sequence
+     */
+    public void setSequence(MqfSequence seq) {
+        mTimer.stop();
+        mSequence = seq;
+        if (mSequence != null) {
+            mSequence.takeChange();
+        }
+    }
+
+    /**
+     * Notify the bus that the sequence has been edited.
+     * The listeners are notified after the delay, the delay starts
+     * again if there is another edit before it has expired.
+     */
+    public void post() {
+        mTimer.restart();
+    }
+
+    /**
+     * @return true if there are edits waiting to be passed on
+     */
+    public boolean isPending() {
+        return mTimer.isRunning();
+    }
+
+    /**
+     * Notify the listeners of the edits straight away, rather than
+     * waiting for the delay.
+     * Nothing is done if the sequence has not been edited.
+     */
+    public void flush() {
+        mTimer.stop();
+        if (mSequence == null) {
+            return;
+        }
+        SequenceChange change = mSequence.takeChange();
+        if (change.isEmpty()) {
+            return;
+        }
+        SequenceChangeListener[] listeners
+            = mListenerList.getListeners(SequenceChangeListener.class);
+        for (SequenceChangeListener l : listeners) {
+            l.sequenceChanged(change);
+        }
+    }
+
+    /**
+     * Add a SequenceChangeListener
+     *
+     * @param l the SequenceChangeListener to be added
+     */
+    public void addSequenceChangeListener(SequenceChangeListener l) {
+        mListenerList.add(SequenceChangeListener.class, l);
+    }
+
+    /**
+     * Remove a SequenceChangeListener
+     *
+     * @param l the SequenceChangeListener to be removed
+     */
+    public void removeSequenceChangeListener(SequenceChangeListener l) {
+        mListenerList.remove(SequenceChangeListener.class, l);
+    }
+}
@@ -0,0 +1,39 @@
+/**************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ **************************************************************/
+package com.lemckes.MidiQuickFix.util;
+
+import java.util.EventListener;
+
+/**
+ * The listener interface for receiving the coalesced edits to a sequence
+ * @see SequenceChangeBus
+ */
+public interface SequenceChangeListener extends EventListener
+{
+    /**
+     * Invoked once for all the edits made to a sequence since the
+     * previous notification
+     * @param change the parts of the sequence that have been changed
+     */
+    public void sequenceChanged(SequenceChange change);
+}
@@ -0,0 +1,499 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Read a Standard MIDI File into an MqfSequence.
+ * <p>
+ * The file is memory mapped and the MThd and MTrk chunks are decoded
+ * directly from the mapped buffer, so no intermediate streams or copies
+ * of the file data are created.
+ * The chunk boundaries are found first then the tracks are decoded,
+ * and analysed, concurrently.
+ * When reading lazily the events are stored in PackedTracks and are
+ * decoded by the MqfSequence when each track is first used.
+ * Files that do not start with an MThd chunk (e.g. RIFF RMID files)
+ * are handed to <code>MidiSystem.getSequence()</code>.
+ */
+public class SmfReader
+{
+
+    /** The MThd chunk type. */
+    static final int MTHD = 0x4d546864;
+    /** The MTrk chunk type. */
+    static final int MTRK = 0x4d54726b;
+
+    private SmfReader() {
+    }
+
+    /**
+     * Read the given file, decoding all the tracks.
+     *
+     * @param file the file to read
+     * @return the sequence read from the file
+     * @throws InvalidMidiDataException if the file is not a valid MIDI file
+     * @throws IOException if the file cannot be read
+     */
+    public static MqfSequence read(File file)
+        throws InvalidMidiDataException, IOException {
+        return read(file, false);
+    }
+
+    /**
+     * Read the given file.
+     *
+     * @param file the file to read
+     * @param lazy if true the events of each track are not decoded
+     * until the track is used
+     * @return the sequence read from the file
+     * @throws InvalidMidiDataException if the file is not a valid MIDI file
+     * @throws IOException if the file cannot be read
+     */
+    public static MqfSequence read(File file, boolean lazy)
+        throws InvalidMidiDataException, IOException {
+        ByteBuffer buffer = mapFile(file);
+        if (buffer.remaining() < 4 || buffer.getInt(0) != MTHD) {
+            // Not a plain SMF, let the MidiSystem providers try it.
+            return new MqfSequence(MidiSystem.getSequence(file));
+        }
+        return read(buffer, lazy);
+    }
+
+    /**
+     * Read a Standard MIDI File from the buffer, decoding all the tracks.
+     * The buffer's position is advanced past the data that was read.
+     *
+     * @param buffer the data, starting with the MThd chunk
+     * @return the sequence read from the buffer
+     * @throws InvalidMidiDataException if the data is not a valid MIDI file
+     */
+    public static MqfSequence read(ByteBuffer buffer)
+        throws InvalidMidiDataException {
+        return read(buffer, false);
+    }
+
+    /**
+     * Read a Standard MIDI File from the buffer.
+     * The buffer's position is advanced past the data that was read.
+     *
+     * @param buffer the data, starting with the MThd chunk
+     * @param lazy if true the events of each track are not decoded
+     * until the track is used
+     * @return the sequence read from the buffer
+     * @throws InvalidMidiDataException if the data is not a valid MIDI file
+     */
+    public static MqfSequence read(ByteBuffer buffer, boolean lazy)
+        throws InvalidMidiDataException {
+        try {
+            if (buffer.remaining() < 14 || buffer.getInt() != MTHD) {
+                throw new InvalidMidiDataException("Missing MThd header"); // NOI18N
+            }
+            int headerLength = buffer.getInt();
+            if (headerLength < 6 || headerLength > buffer.remaining()) {
+                throw new InvalidMidiDataException(
+                    "Invalid MThd length " + headerLength); // NOI18N
+            }
+            int headerEnd = buffer.position() + headerLength;
+            int type = buffer.getShort() & 0xffff;
+            if (type > 2) {
+                throw new InvalidMidiDataException(
+                    "Unsupported MIDI file type " + type); // NOI18N
+            }
+            int numTracks = buffer.getShort() & 0xffff;
+            int timing = buffer.getShort() & 0xffff;
+            buffer.position(headerEnd);
+
+            Sequence seq = new Sequence(
+                getDivisionType(timing), getResolution(timing));
+
+            List<ByteBuffer> chunks = findTrackChunks(buffer, numTracks);
+            return new MqfSequence(seq, decodeTracks(seq, chunks, lazy));
+        } catch (BufferUnderflowException e) {
+            throw new InvalidMidiDataException(
+                "Unexpected end of MIDI data"); // NOI18N
+        }
+    }
+
+    /**
+     * Find the MTrk chunks that follow the header.
+     * Each chunk is returned as a separate buffer containing
+     * just the chunk data.
+     *
+     * @param buffer the data, positioned after the MThd chunk
+     * @param numTracks the number of tracks given in the MThd chunk
+     * @return the track chunks
+     */
+    static List<ByteBuffer> findTrackChunks(ByteBuffer buffer, int numTracks) {
+        List<ByteBuffer> chunks = new ArrayList<>(numTracks);
+        while (chunks.size() < numTracks && buffer.remaining() >= 8) {
+            int chunkType = buffer.getInt();
+            int chunkLength = buffer.getInt();
+            // Truncated files are common, read as much as there is.
+            if (chunkLength < 0 || chunkLength > buffer.remaining()) {
+                chunkLength = buffer.remaining();
+            }
+            int chunkEnd = buffer.position() + chunkLength;
+            if (chunkType == MTRK) {
+                ByteBuffer chunk = buffer.slice();
+                chunk.limit(chunkLength);
+                chunks.add(chunk);
+            }
+            // Unknown chunks are skipped.
+            buffer.position(chunkEnd);
+        }
+        return chunks;
+    }
+
+    /**
+     * Decode the track chunks into new Tracks in the sequence and
+     * analyse each Track.
+     * The chunks are independent so when there is more than one they
+     * are decoded concurrently on the common ForkJoin pool.
+     *
+     * @param seq the sequence to receive the tracks
+     * @param chunks the track chunks
+     * @param lazy if true only analyse the chunks, leaving the events
+     * to be decoded when they are needed
+     * @return the info for each track
+     * @throws InvalidMidiDataException if any chunk contains invalid data
+     */
+    static List<MqfSequence.TrackInfo> decodeTracks(
+        Sequence seq, List<ByteBuffer> chunks, boolean lazy)
+        throws InvalidMidiDataException {
+        List<MqfSequence.TrackInfo> infos = new ArrayList<>(chunks.size());
+        if (chunks.size() == 1) {
+            infos.add(loadTrack(chunks.get(0), seq.createTrack(), lazy));
+            return infos;
+        }
+
+        List<ForkJoinTask<MqfSequence.TrackInfo>> tasks
+            = new ArrayList<>(chunks.size());
+        for (ByteBuffer chunk : chunks) {
+            // Create the tracks here to keep them in the file order.
+            final Track track = seq.createTrack();
+            tasks.add(ForkJoinPool.commonPool().submit(
+                () -> loadTrack(chunk, track, lazy)));
+        }
+
+        try {
+            for (ForkJoinTask<MqfSequence.TrackInfo> task : tasks) {
+                infos.add(task.get());
+            }
+        } catch (ExecutionException e) {
+            for (ForkJoinTask<MqfSequence.TrackInfo> task : tasks) {
+                task.cancel(false);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof InvalidMidiDataException) {
+                throw (InvalidMidiDataException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InvalidMidiDataException(
+                "Interrupted while reading MIDI data"); // NOI18N
+        }
+        return infos;
+    }
+
+    /**
+     * Load a track chunk into the Track and analyse it.
+     * When loading lazily the events are stored in a PackedTrack and
+     * the Track only receives an End of Track event at the correct tick.
+     *
+     * @param chunk the chunk data
+     * @param track the Track to receive the events
+     * @param lazy if true do not decode the events
+     * @return the info for the track
+     * @throws InvalidMidiDataException if the chunk contains invalid data
+     */
+    static MqfSequence.TrackInfo loadTrack(
+        ByteBuffer chunk, Track track, boolean lazy)
+        throws InvalidMidiDataException {
+        if (lazy) {
+            PackedTrack packed = PackedTrack.fromChunk(chunk);
+            MqfSequence.TrackInfo ti = MqfSequence.analyseTrack(packed);
+            ti.mPackedTrack = packed;
+            track.add(new MidiEvent(
+                new MetaMessage(MetaEvent.END_OF_TRACK, new byte[0], 0),
+                packed.getEndTick()));
+            return ti;
+        }
+        decodeTrack(chunk, track);
+        return MqfSequence.analyseTrack(track);
+    }
+
+    /**
+     * Receives the events parsed from an MTrk chunk.
+     * The event data of meta and sysex events is passed as the chunk
+     * buffer, positioned at the start of the data. The handler may read
+     * the data, the chunk position is restored after the call.
+     */
+    interface TrackHandler
+    {
+
+        void shortEvent(long tick, int status, int data1, int data2)
+            throws InvalidMidiDataException;
+
+        void metaEvent(long tick, int type, ByteBuffer chunk, int length)
+            throws InvalidMidiDataException;
+
+        void sysexEvent(long tick, int status, ByteBuffer chunk, int length)
+            throws InvalidMidiDataException;
+    }
+
+    /**
+     * Parse the events in an MTrk chunk, passing each one to the handler.
+     * The buffer must contain just the chunk data, without
+     * the chunk type and length.
+     * A chunk that ends part way through an event is accepted, the
+     * incomplete event is discarded.
+     *
+     * @param chunk the chunk data
+     * @param handler the handler to receive the events
+     * @return true if the whole chunk was parsed, false if the last
+     * event was incomplete
+     * @throws InvalidMidiDataException if the chunk contains invalid data
+     */
+    static boolean parseTrack(ByteBuffer chunk, TrackHandler handler)
+        throws InvalidMidiDataException {
+        long tick = 0;
+        int runningStatus = -1;
+        try {
+            while (chunk.hasRemaining()) {
+                tick += readVariableLength(chunk);
+                int status = chunk.get() & 0xff;
+                int data1 = -1;
+                if (status < 0x80) {
+                    // Running status, this is the first data byte.
+                    if (runningStatus < 0) {
+                        throw new InvalidMidiDataException(
+                            "Missing status byte at offset " // NOI18N
+                            + (chunk.position() - 1));
+                    }
+                    data1 = status;
+                    status = runningStatus;
+                }
+
+                if (status < 0xf0) {
+                    runningStatus = status;
+                    if (data1 < 0) {
+                        data1 = chunk.get() & 0xff;
+                    }
+                    int data2 = 0;
+                    int command = status & 0xf0;
+                    if (command != ShortMessage.PROGRAM_CHANGE
+                        && command != ShortMessage.CHANNEL_PRESSURE) {
+                        data2 = chunk.get() & 0xff;
+                    }
+                    if (((data1 | data2) & 0x80) != 0) {
+                        throw new InvalidMidiDataException(
+                            "Invalid data byte at offset " // NOI18N
+                            + (chunk.position() - 1));
+                    }
+                    handler.shortEvent(tick, status, data1, data2);
+                } else if (status == MetaMessage.META) {
+                    int type = chunk.get() & 0xff;
+                    if (type > 127) {
+                        throw new InvalidMidiDataException(
+                            "Invalid meta event type 0x" // NOI18N
+                            + Integer.toHexString(type));
+                    }
+                    int length = readVariableLength(chunk);
+                    if (length > chunk.remaining()) {
+                        return false;
+                    }
+                    int start = chunk.position();
+                    handler.metaEvent(tick, type, chunk, length);
+                    chunk.position(start + length);
+                } else if (status == SysexMessage.SYSTEM_EXCLUSIVE
+                    || status == SysexMessage.SPECIAL_SYSTEM_EXCLUSIVE) {
+                    int length = readVariableLength(chunk);
+                    if (length > chunk.remaining()) {
+                        return false;
+                    }
+                    int start = chunk.position();
+                    handler.sysexEvent(tick, status, chunk, length);
+                    chunk.position(start + length);
+                } else {
+                    throw new InvalidMidiDataException(
+                        "Invalid status byte 0x" // NOI18N
+                        + Integer.toHexString(status)
+                        + " at offset " + (chunk.position() - 1)); // NOI18N
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decode the events in an MTrk chunk and add them to the track.
+     *
+     * @param chunk the chunk data
+     * @param track the track to receive the events
+     * @throws InvalidMidiDataException if the chunk contains invalid data
+     * @see #parseTrack(ByteBuffer, TrackHandler)
+     */
+    static void decodeTrack(ByteBuffer chunk, final Track track)
+        throws InvalidMidiDataException {
+        parseTrack(chunk, new TrackHandler()
+        {
+            @Override
+            public void shortEvent(long tick, int status, int data1, int data2)
+                throws InvalidMidiDataException {
+                track.add(new MidiEvent(
+                    new ShortMessage(status, data1, data2), tick));
+            }
+
+            @Override
+            public void metaEvent(long tick, int type, ByteBuffer chunk, int length)
+                throws InvalidMidiDataException {
+                byte[] data = new byte[length];
+                chunk.get(data);
+                track.add(new MidiEvent(
+                    new MetaMessage(type, data, length), tick));
+            }
+
+            @Override
+            public void sysexEvent(long tick, int status, ByteBuffer chunk, int length)
+                throws InvalidMidiDataException {
+                // SysexMessage expects the status byte in the data.
+                byte[] data = new byte[length + 1];
+                data[0] = (byte)status;
+                chunk.get(data, 1, length);
+                track.add(new MidiEvent(
+                    new SysexMessage(data, length + 1), tick));
+            }
+        });
+    }
+
+    /**
+     * Read a variable length quantity.
+     *
+     * @param buffer the buffer to read from
+     * @return the value
+     * @throws InvalidMidiDataException if the quantity is more than four bytes
+     */
+    static int readVariableLength(ByteBuffer buffer)
+        throws InvalidMidiDataException {
+        int value = 0;
+        for (int i = 0; i < 4; ++i) {
+            int b = buffer.get();
+            value = (value << 7) | (b & 0x7f);
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new InvalidMidiDataException(
+            "Variable length quantity too long at offset " // NOI18N
+            + (buffer.position() - 4));
+    }
+
+    /**
+     * Map the whole file into memory.
+     *
+     * @param file the file to map
+     * @return the mapped buffer
+     * @throws IOException if the file cannot be read or is too large
+     */
+    static MappedByteBuffer mapFile(File file) throws IOException {
+        try (FileChannel channel
+            = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(
+                    "File too large to be a MIDI file : " + file); // NOI18N
+            }
+            // The mapping remains valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * Get the division type from the MThd timing word.
+     *
+     * @param timing the timing word
+     * @return the division type
+     * @throws InvalidMidiDataException if the SMPTE format is not valid
+     */
+    static float getDivisionType(int timing)
+        throws InvalidMidiDataException {
+        if ((timing & 0x8000) == 0) {
+            return Sequence.PPQ;
+        }
+        int frames = -(byte)(timing >> 8);
+        switch (frames) {
+            case 24:
+                return Sequence.SMPTE_24;
+            case 25:
+                return Sequence.SMPTE_25;
+            case 29:
+                return Sequence.SMPTE_30DROP;
+            case 30:
+                return Sequence.SMPTE_30;
+            default:
+                throw new InvalidMidiDataException(
+                    "Unknown SMPTE frame rate " + frames); // NOI18N
+        }
+    }
+
+    /**
+     * Get the resolution from the MThd timing word.
+     *
+     * @param timing the timing word
+     * @return ticks per quarter note or ticks per frame
+     */
+    static int getResolution(int timing) {
+        if ((timing & 0x8000) == 0) {
+            return timing & 0x7fff;
+        }
+        return timing & 0xff;
+    }
+}
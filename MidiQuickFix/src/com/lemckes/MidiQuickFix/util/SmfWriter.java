@@ -0,0 +1,548 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.IntToLongFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Write a Sequence as a Standard MIDI File.
+ * <p>
+ * Each Track is encoded into its own MTrk chunk buffer, concurrently
+ * on the common ForkJoin pool, using running status where possible.
+ * The header and chunk buffers are then written with a single
+ * gathering write to a temporary file which is renamed over the
+ * destination, so an existing file is never left partly written.
+ * <p>
+ * The events at tick zero of each track may be written in the order
+ * given by TickZeroOrder, however they were added to the Track,
+ * otherwise every event is written in the order of its Track.
+ */
+public class SmfWriter
+{
+
+    private SmfWriter() {
+    }
+
+    /**
+     * Write the sequence to the given file.
+     * A sequence with a single track is written as a type 0 file,
+     * otherwise it is written as type 1.
+     *
+     * @param seq the sequence to write
+     * @param file the destination file
+     * @return the number of bytes written
+     * @throws IOException if the file cannot be written
+     */
+    public static long write(Sequence seq, File file) throws IOException {
+        return write(seq, file, false);
+    }
+
+    /**
+     * Write the sequence to the given file.
+     *
+     * @param seq the sequence to write
+     * @param file the destination file
+     * @param orderTickZero if true the events at tick zero of each track
+     * are written in the order given by TickZeroOrder
+     * @return the number of bytes written
+     * @throws IOException if the file cannot be written
+     * @see #write(Sequence, File)
+     */
+    public static long write(Sequence seq, File file, boolean orderTickZero)
+        throws IOException {
+        return write(encode(seq, orderTickZero), file);
+    }
+
+    /**
+     * Get the simplest file type that can hold the sequence.
+     *
+     * @param seq the sequence
+     * @return 0 for a single track sequence, otherwise 1
+     */
+    public static int getFileType(Sequence seq) {
+        return getTrackCount(seq) == 1 ? 0 : 1;
+    }
+
+    /**
+     * Get the number of tracks without decoding any lazy tracks.
+     */
+    private static int getTrackCount(Sequence seq) {
+        if (seq instanceof MqfSequence) {
+            return ((MqfSequence)seq).getTrackCount();
+        }
+        return seq.getTracks().length;
+    }
+
+    /**
+     * Encode the sequence.
+     * The first buffer is the MThd chunk followed by one MTrk chunk
+     * buffer per track.
+     * Any track in an MqfSequence that has not been decoded is encoded
+     * directly from its PackedTrack.
+     *
+     * @param seq the sequence to encode
+     * @return the buffers, ready to be written
+     */
+    public static ByteBuffer[] encode(Sequence seq) {
+        return encode(seq, false);
+    }
+
+    /**
+     * Encode the sequence.
+     *
+     * @param seq the sequence to encode
+     * @param orderTickZero if true the events at tick zero of each track
+     * are encoded in the order given by TickZeroOrder
+     * @return the buffers, ready to be written
+     * @see #encode(Sequence)
+     */
+    public static ByteBuffer[] encode(Sequence seq, boolean orderTickZero) {
+        final MqfSequence mqfSeq
+            = seq instanceof MqfSequence ? (MqfSequence)seq : null;
+        final Track[] tracks = mqfSeq == null ? seq.getTracks() : null;
+        int numTracks = getTrackCount(seq);
+        ByteBuffer[] buffers = new ByteBuffer[numTracks + 1];
+        buffers[0] = encodeHeader(seq, getFileType(seq), numTracks);
+
+        ByteBuffer[] chunks = IntStream.range(0, numTracks)
+            .parallel()
+            .mapToObj(i -> {
+                if (mqfSeq == null) {
+                    return encodeTrack(tracks[i], orderTickZero);
+                }
+                PackedTrack packed = mqfSeq.getPackedTrack(i);
+                if (packed != null) {
+                    return encodeTrack(packed, orderTickZero);
+                }
+                return encodeTrack(mqfSeq.getTrack(i), orderTickZero);
+            })
+            .toArray(ByteBuffer[]::new);
+        System.arraycopy(chunks, 0, buffers, 1, chunks.length);
+        return buffers;
+    }
+
+    /**
+     * Write the buffers to the file through a temporary file
+     * in the same directory.
+     * Each call uses its own temporary file so saves of the same file
+     * that overlap can not write over each other.
+     *
+     * @param buffers the buffers to write, as returned by encode
+     * @param file the destination file
+     * @return the number of bytes written
+     * @throws IOException if the file cannot be written
+     * @see #encode(Sequence, boolean)
+     */
+    public static long write(ByteBuffer[] buffers, File file)
+        throws IOException {
+        Path target = file.getAbsoluteFile().toPath();
+        Path temp = Files.createTempFile(target.getParent(),
+            "." + target.getFileName(), ".tmp"); // NOI18N
+        long written = 0;
+        try {
+            copyPermissions(target, temp);
+            try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.WRITE)) {
+                long total = 0;
+                for (ByteBuffer b : buffers) {
+                    total += b.remaining();
+                }
+                while (written < total) {
+                    written += channel.write(buffers);
+                }
+                channel.force(false);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return written;
+    }
+
+    /**
+     * Give the temporary file the permissions of the file it replaces,
+     * or the usual permissions of a new file, rather than the owner only
+     * permissions of a temporary file.
+     */
+    private static void copyPermissions(Path target, Path temp)
+        throws IOException {
+        try {
+            Files.setPosixFilePermissions(temp, Files.exists(target)
+                ? Files.getPosixFilePermissions(target)
+                : PosixFilePermissions.fromString("rw-r--r--")); // NOI18N
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system, the defaults will do.
+        }
+    }
+
+    /**
+     * Encode the MThd chunk.
+     */
+    static ByteBuffer encodeHeader(Sequence seq, int type, int numTracks) {
+        ByteBuffer header = ByteBuffer.allocate(14);
+        header.putInt(SmfReader.MTHD);
+        header.putInt(6);
+        header.putShort((short)type);
+        header.putShort((short)numTracks);
+        header.putShort((short)getTiming(seq));
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Get the MThd timing word for the sequence.
+     *
+     * @param seq the sequence
+     * @return the timing word
+     */
+    static int getTiming(Sequence seq) {
+        float divisionType = seq.getDivisionType();
+        int resolution = seq.getResolution();
+        if (divisionType == Sequence.PPQ) {
+            return resolution & 0x7fff;
+        }
+        int frames;
+        if (divisionType == Sequence.SMPTE_24) {
+            frames = 24;
+        } else if (divisionType == Sequence.SMPTE_25) {
+            frames = 25;
+        } else if (divisionType == Sequence.SMPTE_30DROP) {
+            frames = 29;
+        } else {
+            frames = 30;
+        }
+        return ((-frames & 0xff) << 8) | (resolution & 0xff);
+    }
+
+    /**
+     * Encode a Track as an MTrk chunk, including the chunk type
+     * and length.
+     *
+     * @param track the Track to encode
+     * @return the chunk
+     */
+    static ByteBuffer encodeTrack(Track track) {
+        return encodeTrack(track, false);
+    }
+
+    /**
+     * Encode a Track as an MTrk chunk, including the chunk type
+     * and length.
+     * The Track itself is not changed. Events moved with setTick() may
+     * be out of tick order, they are encoded in stable tick order.
+     *
+     * @param track the Track to encode
+     * @param orderTickZero if true the events at tick zero are encoded
+     * in the order given by TickZeroOrder
+     * @return the chunk
+     */
+    static ByteBuffer encodeTrack(Track track, boolean orderTickZero) {
+        int size = track.size();
+        ChunkEncoder encoder = new ChunkEncoder(size);
+        int[] order = tickOrder(size, i -> track.get(i).getTick());
+        if (order == null) {
+            order = orderTickZero ? TickZeroOrder.order(track) : null;
+        } else if (orderTickZero) {
+            orderTickZero(order, i -> track.get(i).getTick(),
+                i -> TickZeroOrder.getPriority(track.get(i).getMessage()));
+        }
+        for (int i = 0; i < size; ++i) {
+            MidiEvent event = track.get(
+                order != null && i < order.length ? order[i] : i);
+            MidiMessage mm = event.getMessage();
+            int status = mm.getStatus();
+            long tick = event.getTick();
+
+            if (status < 0xf0) {
+                ShortMessage sm = (ShortMessage)mm;
+                encoder.putShort(tick, status, sm.getData1(), sm.getData2(),
+                    mm.getLength() > 2);
+            } else if (status == MetaMessage.META) {
+                MetaMessage meta = (MetaMessage)mm;
+                if (meta.getType() != MetaEvent.END_OF_TRACK) {
+                    byte[] data = meta.getData();
+                    encoder.putMetaHeader(tick, meta.getType(), data.length)
+                        .put(data);
+                }
+            } else if (status == SysexMessage.SYSTEM_EXCLUSIVE
+                || status == SysexMessage.SPECIAL_SYSTEM_EXCLUSIVE) {
+                byte[] data = ((SysexMessage)mm).getData();
+                encoder.putSysexHeader(tick, status, data.length).put(data);
+            }
+            // System common and real time messages
+            // can not be stored in a file.
+        }
+        return encoder.finish(track.ticks());
+    }
+
+    /**
+     * Encode a PackedTrack as an MTrk chunk, including the chunk type
+     * and length.
+     *
+     * @param packed the events to encode
+     * @return the chunk
+     */
+    static ByteBuffer encodeTrack(PackedTrack packed) {
+        return encodeTrack(packed, false);
+    }
+
+    /**
+     * Encode a PackedTrack as an MTrk chunk, including the chunk type
+     * and length.
+     *
+     * @param packed the events to encode
+     * @param orderTickZero if true the events at tick zero are encoded
+     * in the order given by TickZeroOrder
+     * @return the chunk
+     */
+    static ByteBuffer encodeTrack(PackedTrack packed, boolean orderTickZero) {
+        int size = packed.size();
+        ChunkEncoder encoder = new ChunkEncoder(size);
+        int[] order = tickOrder(size, packed::getTick);
+        if (order == null) {
+            order = orderTickZero ? TickZeroOrder.order(packed) : null;
+        } else if (orderTickZero) {
+            orderTickZero(order, packed::getTick,
+                i -> TickZeroOrder.getPriority(packed, i));
+        }
+        for (int e = 0; e < size; ++e) {
+            int i = order != null && e < order.length ? order[e] : e;
+            int status = packed.getStatus(i);
+            long tick = packed.getTick(i);
+            switch (packed.getKind(i)) {
+                case PackedTrack.KIND_SHORT:
+                    if (status < 0xf0) {
+                        int command = status & 0xf0;
+                        encoder.putShort(tick, status,
+                            packed.getData1(i), packed.getData2(i),
+                            command != ShortMessage.PROGRAM_CHANGE
+                            && command != ShortMessage.CHANNEL_PRESSURE);
+                    }
+                    break;
+                case PackedTrack.KIND_META:
+                    int type = packed.getData1(i);
+                    if (type != MetaEvent.END_OF_TRACK) {
+                        packed.putData(i, encoder.putMetaHeader(
+                            tick, type, packed.getDataLength(i)));
+                    }
+                    break;
+                default:
+                    packed.putData(i, encoder.putSysexHeader(
+                        tick, status, packed.getDataLength(i)));
+                    break;
+            }
+        }
+        return encoder.finish(packed.getEndTick());
+    }
+
+    /**
+     * Get the order in which to write events that are out of tick order.
+     *
+     * @param size the number of events
+     * @param tick the tick of each event
+     * @return the indexes of the events in stable tick order,
+     * or null if they are already in order
+     */
+    private static int[] tickOrder(int size, IntToLongFunction tick) {
+        for (int i = 1; i < size; ++i) {
+            if (tick.applyAsLong(i) < tick.applyAsLong(i - 1)) {
+                // A sequential stream sorts stably.
+                return IntStream.range(0, size)
+                    .boxed()
+                    .sorted(Comparator.comparingLong(tick::applyAsLong))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Put the events at tick zero at the start of an order into the
+     * order given by TickZeroOrder.
+     *
+     * @param order the indexes of the events in tick order
+     * @param tick the tick of each event
+     * @param priority the TickZeroOrder priority of each event
+     */
+    private static void orderTickZero(int[] order, IntToLongFunction tick,
+        IntUnaryOperator priority) {
+        int count = 0;
+        while (count < order.length && tick.applyAsLong(order[count]) == 0) {
+            ++count;
+        }
+        Integer[] zero = IntStream.of(order).limit(count)
+            .boxed()
+            .toArray(Integer[]::new);
+        // Arrays.sort is stable for objects.
+        Arrays.sort(zero, Comparator.comparingInt(priority::applyAsInt));
+        for (int i = 0; i < count; ++i) {
+            order[i] = zero[i];
+        }
+    }
+
+    /**
+     * Builds an MTrk chunk, using running status where possible.
+     */
+    private static class ChunkEncoder
+    {
+
+        private ByteBuffer mBuf;
+        private long mLastTick = 0;
+        private int mRunningStatus = -1;
+
+        ChunkEncoder(int numEvents) {
+            mBuf = ByteBuffer.allocate(8 + numEvents * 4 + 16);
+            mBuf.putInt(SmfReader.MTRK);
+            mBuf.putInt(0); // Filled in by finish()
+        }
+
+        /**
+         * Write the delta time for an event and make sure there is
+         * space for the rest of the event.
+         */
+        private void putDelta(long tick, int needed) {
+            mBuf = ensureCapacity(mBuf, needed + 4);
+            putVariableLength(mBuf, tick - mLastTick);
+            mLastTick = tick;
+        }
+
+        void putShort(long tick, int status, int data1, int data2, boolean hasData2) {
+            putDelta(tick, 3);
+            if (status != mRunningStatus) {
+                mBuf.put((byte)status);
+                mRunningStatus = status;
+            }
+            mBuf.put((byte)data1);
+            if (hasData2) {
+                mBuf.put((byte)data2);
+            }
+        }
+
+        /**
+         * Write the start of a META event.
+         *
+         * @return the buffer, ready for the <code>length</code> bytes of data
+         */
+        ByteBuffer putMetaHeader(long tick, int type, int length) {
+            putDelta(tick, 6 + length);
+            mBuf.put((byte)MetaMessage.META);
+            mBuf.put((byte)type);
+            putVariableLength(mBuf, length);
+            mRunningStatus = -1;
+            return mBuf;
+        }
+
+        /**
+         * Write the start of a SYSEX event.
+         *
+         * @return the buffer, ready for the <code>length</code> bytes of data
+         */
+        ByteBuffer putSysexHeader(long tick, int status, int length) {
+            putDelta(tick, 5 + length);
+            mBuf.put((byte)status);
+            putVariableLength(mBuf, length);
+            mRunningStatus = -1;
+            return mBuf;
+        }
+
+        /**
+         * Add the End of Track event and fill in the chunk length.
+         *
+         * @param endTick the tick of the End of Track
+         * @return the chunk
+         */
+        ByteBuffer finish(long endTick) {
+            // An event moved with setTick() may be later than the
+            // End of Track, which must come last.
+            putMetaHeader(Math.max(endTick, mLastTick),
+                MetaEvent.END_OF_TRACK, 0);
+            mBuf.putInt(4, mBuf.position() - 8);
+            mBuf.flip();
+            return mBuf;
+        }
+    }
+
+    /**
+     * Make sure there is space for at least <code>needed</code> more bytes.
+     *
+     * @param buf the buffer
+     * @param needed the number of bytes to be added
+     * @return the buffer or a larger copy of the buffer
+     */
+    private static ByteBuffer ensureCapacity(ByteBuffer buf, int needed) {
+        if (buf.remaining() >= needed) {
+            return buf;
+        }
+        int capacity = Math.max(buf.capacity() * 2, buf.position() + needed);
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        buf.flip();
+        bigger.put(buf);
+        return bigger;
+    }
+
+    /**
+     * Write a variable length quantity.
+     *
+     * @param buf the buffer
+     * @param value the value, which must be less than 2^28
+     */
+    static void putVariableLength(ByteBuffer buf, long value) {
+        if (value >= 0x200000) {
+            buf.put((byte)(((value >> 21) & 0x7f) | 0x80));
+        }
+        if (value >= 0x4000) {
+            buf.put((byte)(((value >> 14) & 0x7f) | 0x80));
+        }
+        if (value >= 0x80) {
+            buf.put((byte)(((value >> 7) & 0x7f) | 0x80));
+        }
+        buf.put((byte)(value & 0x7f));
+    }
+}
@@ -0,0 +1,111 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Find the Song Information (as defined by
+ * http://www.midi.org/techspecs/rp26.php) in the text of LYRIC
+ * and TEXT events. Each item is written as <code>{#key=value}</code>.
+ */
+public class SongInfo
+{
+
+    private static final Pattern SONG_INFO_PATTERN = Pattern.compile(
+        "\\{\\#(.*?)\\}", Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE); // NOI18N
+
+    /**
+     * Cannot create a new instance of SongInfo
+     */
+    private SongInfo() {
+    }
+
+    /**
+     * Find the song info items in a lyric or text string.
+     *
+     * @param text the text to search
+     * @param consumer given the key and value of each item
+     */
+    public static void findSongInfo(String text, BiConsumer<String, String> consumer) {
+        if (text.indexOf('{') < 0) {
+            return;
+        }
+        Matcher m = SONG_INFO_PATTERN.matcher(text);
+        while (m.find()) {
+            for (int i = 1; i <= m.groupCount(); ++i) {
+                String info = m.group(i);
+                String[] keyValue = info.split("="); // NOI18N
+                if (keyValue.length > 1) {
+                    consumer.accept(keyValue[0].trim(), keyValue[1].trim());
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the song info in all the LYRIC and TEXT events of a sequence.
+     * Tracks that have not been decoded are searched without decoding them.
+     *
+     * @param seq the sequence to search
+     * @param charset the character set of the text
+     * @return the song info items, in the order they were found
+     */
+    public static Map<String, String> findSongInfo(MqfSequence seq, Charset charset) {
+        Map<String, String> info = new LinkedHashMap<>(4);
+        BiConsumer<String, String> put = info::put;
+        for (int t = 0; t < seq.getTrackCount(); ++t) {
+            PackedTrack packed = seq.getPackedTrack(t);
+            if (packed != null) {
+                for (int e = 0; e < packed.size(); ++e) {
+                    if (packed.isMeta(e, MetaEvent.LYRIC)
+                        || packed.isMeta(e, MetaEvent.TEXT)) {
+                        findSongInfo(new String(packed.getData(e), charset), put);
+                    }
+                }
+            } else {
+                Track track = seq.getTrack(t);
+                for (int e = 0; e < track.size(); ++e) {
+                    MidiMessage mm = track.get(e).getMessage();
+                    if (mm.getStatus() == MetaMessage.META) {
+                        int type = ((MetaMessage)mm).getType();
+                        if (type == MetaEvent.LYRIC || type == MetaEvent.TEXT) {
+                            findSongInfo(new String(
+                                ((MetaMessage)mm).getData(), charset), put);
+                        }
+                    }
+                }
+            }
+        }
+        return info;
+    }
+}
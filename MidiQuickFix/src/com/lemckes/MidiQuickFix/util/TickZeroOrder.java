@@ -0,0 +1,299 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+
+/**
+ * The order of the events that occur at tick zero.<br>
+ * The order is :
+ * <ol>
+ * <li>MetaMessage.TRACK_NAME</li>
+ * <li>MetaMessage.TEXT</li>
+ * <li>MetaMessage.COPYRIGHT</li>
+ * <li>Other MetaMessages</li>
+ * <li>System Exclusive messages</li>
+ * <li>ShortMessage System messages</li>
+ * <li>Other ShortMessages</li>
+ * <li>MetaMessage.KEY_SIGNATURE</li>
+ * <li>MetaMessage.TIME_SIGNATURE</li>
+ * <li>MetaMessage.TEMPO</li>
+ * <li>ShortMessage.PROGRAM_CHANGE</li>
+ * <li>ShortMessage.NOTE_ON</li>
+ * <li>ShortMessage.NOTE_OFF (or NOTE_ON/0)</li>
+ * <li>MetaMessage.LYRIC</li>
+ * <li>Anything else ...</li>
+ * </ol>
+ * Events with the same priority keep their order. The End of Track
+ * event is always last.
+ * <p>
+ * Once the tick zero events are in order a new one can be put straight
+ * into its place, found by a binary search, instead of the events being
+ * sorted again.
+ */
+public class TickZeroOrder
+{
+
+    private static final int TRACK_NAME_PRIORITY = 101;
+    private static final int TEXT_PRIORITY = 102;
+    private static final int COPYRIGHT_PRIORITY = 103;
+    private static final int OTHER_META_PRIORITY = 200;
+    private static final int SYSEX_PRIORITY = 210;
+    private static final int SHORT_SYSTEM_PRIORITY = 301;
+    private static final int OTHER_SHORT_PRIORITY = 302;
+    private static final int KEY_SIGNATURE_PRIORITY = 401;
+    private static final int TIME_SIGNATURE_PRIORITY = 402;
+    private static final int TEMPO_PRIORITY = 403;
+    private static final int PROGRAM_CHANGE_PRIORITY = 501;
+    private static final int NOTE_ON_PRIORITY = 511;
+    private static final int NOTE_OFF_PRIORITY = 512;
+    private static final int LYRIC_PRIORITY = 521;
+    private static final int OTHER_PRIORITY = Integer.MAX_VALUE;
+
+    /**
+     * Compares events by their tick zero priority only.
+     */
+    public static final Comparator<MidiEvent> COMPARATOR
+        = Comparator.comparingInt(e -> getPriority(e.getMessage()));
+
+    /**
+     * Cannot create a new instance of TickZeroOrder
+     */
+    private TickZeroOrder() {
+    }
+
+    /**
+     * Get the priority of a message, lower priorities go first.
+     *
+     * @param mess the message
+     * @return the priority
+     */
+    public static int getPriority(MidiMessage mess) {
+        if (mess instanceof MetaMessage) {
+            return getMetaPriority(((MetaMessage)mess).getType());
+        } else if (mess instanceof SysexMessage) {
+            return SYSEX_PRIORITY;
+        } else if (mess instanceof ShortMessage) {
+            return getShortPriority(mess.getStatus(),
+                ((ShortMessage)mess).getData2());
+        }
+        return OTHER_PRIORITY;
+    }
+
+    /**
+     * Get the priority of an event in a PackedTrack without decoding it.
+     *
+     * @param packed the events
+     * @param index the index of the event
+     * @return the priority
+     */
+    public static int getPriority(PackedTrack packed, int index) {
+        switch (packed.getKind(index)) {
+            case PackedTrack.KIND_SHORT:
+                return getShortPriority(
+                    packed.getStatus(index), packed.getData2(index));
+            case PackedTrack.KIND_META:
+                return getMetaPriority(packed.getData1(index));
+            default:
+                return SYSEX_PRIORITY;
+        }
+    }
+
+    private static int getMetaPriority(int type) {
+        switch (type) {
+            case MetaEvent.TRACK_NAME:
+                return TRACK_NAME_PRIORITY;
+            case MetaEvent.TEXT:
+                return TEXT_PRIORITY;
+            case MetaEvent.COPYRIGHT:
+                return COPYRIGHT_PRIORITY;
+            case MetaEvent.KEY_SIGNATURE:
+                return KEY_SIGNATURE_PRIORITY;
+            case MetaEvent.TIME_SIGNATURE:
+                return TIME_SIGNATURE_PRIORITY;
+            case MetaEvent.TEMPO:
+                return TEMPO_PRIORITY;
+            case MetaEvent.LYRIC:
+                return LYRIC_PRIORITY;
+            case MetaEvent.END_OF_TRACK:
+                return OTHER_PRIORITY;
+            default:
+                return OTHER_META_PRIORITY;
+        }
+    }
+
+    private static int getShortPriority(int status, int data2) {
+        if (status >= 0xf0) {
+            return SHORT_SYSTEM_PRIORITY;
+        }
+        switch (status & 0xf0) {
+            case ShortMessage.PROGRAM_CHANGE:
+                return PROGRAM_CHANGE_PRIORITY;
+            case ShortMessage.NOTE_ON:
+                return data2 != 0 ? NOTE_ON_PRIORITY : NOTE_OFF_PRIORITY;
+            case ShortMessage.NOTE_OFF:
+                return NOTE_OFF_PRIORITY;
+            default:
+                return OTHER_SHORT_PRIORITY;
+        }
+    }
+
+    /**
+     * Count the events at tick zero, not including the End of Track event.
+     *
+     * @param track the Track
+     * @return the number of events at the start of the Track at tick zero
+     */
+    public static int countTickZero(Track track) {
+        // The End of Track event is always the last.
+        int low = 0;
+        int high = track.size() - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (track.get(mid).getTick() > 0) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Count the events at tick zero.
+     *
+     * @param packed the events
+     * @return the number of events at the start of the track at tick zero
+     */
+    public static int countTickZero(PackedTrack packed) {
+        int low = 0;
+        int high = packed.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (packed.getTick(mid) > 0) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Check whether the events at tick zero are in order.
+     *
+     * @param track the Track
+     * @param count the number of events at tick zero
+     * @return true if they are in order
+     */
+    public static boolean isOrdered(Track track, int count) {
+        int last = Integer.MIN_VALUE;
+        for (int i = 0; i < count; ++i) {
+            int priority = getPriority(track.get(i).getMessage());
+            if (priority < last) {
+                return false;
+            }
+            last = priority;
+        }
+        return true;
+    }
+
+    /**
+     * Find where an event belongs among the tick zero events.
+     * It goes after any events with the same priority.
+     *
+     * @param track the Track, with its tick zero events in order
+     * @param count the number of events at tick zero
+     * @param event the event to place
+     * @return the index that the event should have in the Track
+     */
+    public static int insertionPoint(Track track, int count, MidiEvent event) {
+        int priority = getPriority(event.getMessage());
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getPriority(track.get(mid).getMessage()) > priority) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Get the order in which to write the tick zero events of a Track.
+     *
+     * @param track the Track
+     * @return the indexes of the tick zero events in order,
+     * or null if they are already in order
+     */
+    static int[] order(Track track) {
+        int count = countTickZero(track);
+        if (isOrdered(track, count)) {
+            return null;
+        }
+        int[] priorities = new int[count];
+        for (int i = 0; i < count; ++i) {
+            priorities[i] = getPriority(track.get(i).getMessage());
+        }
+        return order(priorities);
+    }
+
+    /**
+     * Get the order in which to write the tick zero events
+     * of a PackedTrack.
+     *
+     * @param packed the events
+     * @return the indexes of the tick zero events in order,
+     * or null if they are already in order
+     */
+    static int[] order(PackedTrack packed) {
+        int count = countTickZero(packed);
+        int[] priorities = new int[count];
+        boolean ordered = true;
+        for (int i = 0; i < count; ++i) {
+            priorities[i] = getPriority(packed, i);
+            ordered &= i == 0 || priorities[i - 1] <= priorities[i];
+        }
+        return ordered ? null : order(priorities);
+    }
+
+    private static int[] order(int[] priorities) {
+        // A sequential stream sorts stably.
+        return IntStream.range(0, priorities.length)
+            .boxed()
+            .sorted(Comparator.comparingInt(i -> priorities[i]))
+            .mapToInt(Integer::intValue)
+            .toArray();
+    }
+}
@@ -54,7 +54,8 @@ public class TraceDialog extends javax.swing.JDialog
     }
 
     public static void addTrace(final String message) {
-        if (INSTANCE.isVisible()) {
+        // There is no dialog when running without the user interface.
+        if (INSTANCE != null && INSTANCE.isVisible()) {
             EventQueue.invokeLater(() -> {
                 traceText.append(message + "\n");
             });
@@ -0,0 +1,395 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * An index of the events in a Track for finding the events that pass
+ * an EventFilter.
+ * <p>
+ * The index holds a bit set of event indexes for each type of event,
+ * each channel and each controller number that is used, and the tick
+ * of every event. The sets of the filter's types, channels and
+ * controllers are combined a word at a time and the tick range is found
+ * by a binary search of the ticks, so only the events in the result are
+ * looked at. Only the note, velocity and text criteria need the events
+ * themselves to be tested.
+ * <p>
+ * The index is built once from the Track and is then kept up to date
+ * as single events are inserted, removed and changed.
+ *
+ * @see EventFilter
+ */
+public class TrackEventIndex
+{
+
+    /** More removed events than this are removed in a single pass. */
+    private static final int BULK_REMOVE = 8;
+
+    private int mSize;
+    private long[] mTicks;
+    /** Whether mTicks is in ascending order. */
+    private boolean mOrdered = true;
+    private final long[][] mTypeBits = new long[EventFilter.TYPE_COUNT][];
+    private final long[][] mChannelBits = new long[16][];
+    /** The sets for the controller numbers that are used, others are null */
+    private final long[][] mControllerBits = new long[128][];
+
+    /**
+     * Build the index of a Track.
+     *
+     * @param track the Track
+     */
+    public TrackEventIndex(Track track) {
+        mSize = track.size();
+        mTicks = new long[Math.max(mSize, 16)];
+        int words = wordsFor(mTicks.length);
+        for (int t = 0; t < mTypeBits.length; ++t) {
+            mTypeBits[t] = new long[words];
+        }
+        for (int c = 0; c < mChannelBits.length; ++c) {
+            mChannelBits[c] = new long[words];
+        }
+        long lastTick = Long.MIN_VALUE;
+        for (int i = 0; i < mSize; ++i) {
+            MidiEvent event = track.get(i);
+            mTicks[i] = event.getTick();
+            mOrdered &= mTicks[i] >= lastTick;
+            lastTick = mTicks[i];
+            setBits(i, event.getMessage());
+        }
+    }
+
+    private static int wordsFor(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    /**
+     * @return the number of events in the index
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Set the bits for the event at an index, whose bits must be clear.
+     */
+    private void setBits(int index, MidiMessage mess) {
+        int type = EventFilter.getType(mess);
+        set(mTypeBits[Integer.numberOfTrailingZeros(type)], index);
+        if (type == EventFilter.META || type == EventFilter.SYSEX
+            || type == EventFilter.SYSTEM) {
+            return;
+        }
+        ShortMessage sm = (ShortMessage)mess;
+        set(mChannelBits[sm.getChannel()], index);
+        if (type == EventFilter.CONTROLLERS) {
+            int controller = sm.getData1();
+            if (mControllerBits[controller] == null) {
+                mControllerBits[controller] = new long[mTypeBits[0].length];
+            }
+            set(mControllerBits[controller], index);
+        }
+    }
+
+    private static void set(long[] words, int index) {
+        words[index >>> 6] |= 1L << index;
+    }
+
+    /**
+     * Apply an operation to each of the bit sets of the index.
+     */
+    private void forEachSet(Consumer<long[]> op) {
+        for (long[] words : mTypeBits) {
+            op.accept(words);
+        }
+        for (long[] words : mChannelBits) {
+            op.accept(words);
+        }
+        for (long[] words : mControllerBits) {
+            if (words != null) {
+                op.accept(words);
+            }
+        }
+    }
+
+    /**
+     * Make room for one more event.
+     */
+    private void ensureCapacity() {
+        if (mSize < mTicks.length) {
+            return;
+        }
+        mTicks = Arrays.copyOf(mTicks, mTicks.length * 2);
+        int words = wordsFor(mTicks.length);
+        for (int t = 0; t < mTypeBits.length; ++t) {
+            mTypeBits[t] = Arrays.copyOf(mTypeBits[t], words);
+        }
+        for (int c = 0; c < mChannelBits.length; ++c) {
+            mChannelBits[c] = Arrays.copyOf(mChannelBits[c], words);
+        }
+        for (int c = 0; c < mControllerBits.length; ++c) {
+            if (mControllerBits[c] != null) {
+                mControllerBits[c] = Arrays.copyOf(mControllerBits[c], words);
+            }
+        }
+    }
+
+    /**
+     * Update the index for an event inserted in the Track.
+     *
+     * @param index the index of the new event in the Track
+     * @param event the new event
+     */
+    public void eventInserted(int index, MidiEvent event) {
+        ensureCapacity();
+        System.arraycopy(mTicks, index, mTicks, index + 1, mSize - index);
+        ++mSize;
+        int used = wordsFor(mSize);
+        forEachSet(words -> insertBit(words, index, used));
+        mTicks[index] = event.getTick();
+        checkOrder(index);
+        setBits(index, event.getMessage());
+    }
+
+    /**
+     * Shift the bits at and above index up by one, leaving the bit
+     * at index clear.
+     */
+    private static void insertBit(long[] words, int index, int used) {
+        int w = index >>> 6;
+        for (int i = used - 1; i > w; --i) {
+            words[i] = (words[i] << 1) | (words[i - 1] >>> 63);
+        }
+        long low = (1L << index) - 1;
+        words[w] = (words[w] & low) | ((words[w] & ~low) << 1);
+    }
+
+    /**
+     * Remove the bit at index, shifting the bits above it down by one.
+     */
+    private static void removeBit(long[] words, int index, int used) {
+        int w = index >>> 6;
+        long low = (1L << index) - 1;
+        words[w] = (words[w] & low) | ((words[w] >>> 1) & ~low);
+        for (int i = w; i < used - 1; ++i) {
+            words[i] |= words[i + 1] << 63;
+            words[i + 1] >>>= 1;
+        }
+    }
+
+    /**
+     * Update the index for events removed from the Track.
+     *
+     * @param removed the indexes the events had before any of them
+     * were removed, in ascending order
+     * @param count the number of entries of removed to use
+     */
+    public void eventsRemoved(int[] removed, int count) {
+        if (count == 0) {
+            return;
+        }
+        int used = wordsFor(mSize);
+        if (count <= BULK_REMOVE) {
+            for (int r = count - 1; r >= 0; --r) {
+                int index = removed[r];
+                forEachSet(words -> removeBit(words, index, used));
+            }
+        } else {
+            forEachSet(words -> compact(words, removed, count, used));
+        }
+        int out = removed[0];
+        int r = 0;
+        for (int i = removed[0]; i < mSize; ++i) {
+            if (r < count && removed[r] == i) {
+                ++r;
+            } else {
+                mTicks[out++] = mTicks[i];
+            }
+        }
+        mSize = out;
+    }
+
+    /**
+     * Remove many bits in a single pass over the bits that are set.
+     */
+    private static void compact(long[] words, int[] removed, int count,
+        int used) {
+        long[] old = Arrays.copyOf(words, used);
+        Arrays.fill(words, 0, used, 0);
+        int r = 0;
+        for (int w = 0; w < used; ++w) {
+            long bits = old[w];
+            while (bits != 0) {
+                int index = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                while (r < count && removed[r] < index) {
+                    ++r;
+                }
+                if (r < count && removed[r] == index) {
+                    continue;
+                }
+                // r events before this one have gone
+                set(words, index - r);
+            }
+        }
+    }
+
+    /**
+     * Update the index for an event whose message or tick has been
+     * changed in place.
+     *
+     * @param index the index of the event in the Track
+     * @param event the event
+     */
+    public void eventChanged(int index, MidiEvent event) {
+        long mask = ~(1L << index);
+        forEachSet(words -> words[index >>> 6] &= mask);
+        mTicks[index] = event.getTick();
+        checkOrder(index);
+        setBits(index, event.getMessage());
+    }
+
+    /**
+     * Note if the tick at index is out of order with its neighbours.
+     * The tick range of a filter is then checked for each event.
+     */
+    private void checkOrder(int index) {
+        if ((index > 0 && mTicks[index - 1] > mTicks[index])
+            || (index < mSize - 1 && mTicks[index + 1] < mTicks[index])) {
+            mOrdered = false;
+        }
+    }
+
+    /**
+     * Find the first event at or after a tick.
+     */
+    private int findTick(long tick) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mTicks[mid] < tick) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Find the events in the Track that pass a filter.
+     *
+     * @param track the Track that was indexed
+     * @param filter the filter
+     * @param hiddenTypes the types of event not to find, as well as those
+     * that do not pass the filter, for instance EventFilter.NOTES
+     * @param found is given the index of each event found, in ascending order
+     */
+    public void select(Track track, EventFilter filter, int hiddenTypes,
+        IntConsumer found) {
+        int from = 0;
+        int to = mSize;
+        if (mOrdered) {
+            from = findTick(filter.getFromTick());
+            to = filter.getToTick() == Long.MAX_VALUE
+                ? mSize : findTick(filter.getToTick());
+        }
+        if (from >= to) {
+            return;
+        }
+        boolean testEach = filter.hasEventCriteria() || !mOrdered;
+        long[][] types = selectSets(mTypeBits,
+            filter.getTypes() & ~hiddenTypes, EventFilter.TYPE_COUNT);
+        long[][] channels = filter.getChannels() == EventFilter.ALL_CHANNELS
+            ? null : selectSets(mChannelBits, filter.getChannels(), 16);
+        long[][] controllers = null;
+        BitSet wanted = filter.getControllers();
+        if (wanted != null) {
+            controllers = new long[wanted.cardinality()][];
+            int n = 0;
+            for (int c = wanted.nextSetBit(0); c >= 0 && c < 128;
+                c = wanted.nextSetBit(c + 1)) {
+                if (mControllerBits[c] != null) {
+                    controllers[n++] = mControllerBits[c];
+                }
+            }
+            controllers = Arrays.copyOf(controllers, n);
+        }
+
+        int lastWord = (to - 1) >>> 6;
+        for (int w = from >>> 6; w <= lastWord; ++w) {
+            long bits = union(types, w);
+            if (channels != null) {
+                bits &= union(channels, w);
+            }
+            if (controllers != null) {
+                bits &= union(controllers, w);
+            }
+            if (w == from >>> 6) {
+                bits &= -1L << from;
+            }
+            if (w == lastWord && (to & 63) != 0) {
+                bits &= (1L << to) - 1;
+            }
+            while (bits != 0) {
+                int index = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (!testEach || filter.test(track.get(index))) {
+                    found.accept(index);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the sets whose bits are set in the mask
+     */
+    private static long[][] selectSets(long[][] sets, int mask, int count) {
+        long[][] selected = new long[Integer.bitCount(mask)][];
+        int n = 0;
+        for (int i = 0; i < count; ++i) {
+            if ((mask & (1 << i)) != 0) {
+                selected[n++] = sets[i];
+            }
+        }
+        return selected;
+    }
+
+    private static long union(long[][] sets, int word) {
+        long bits = 0;
+        for (long[] words : sets) {
+            bits |= words[word];
+        }
+        return bits;
+    }
+}
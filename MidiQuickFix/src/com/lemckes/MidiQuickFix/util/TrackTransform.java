@@ -0,0 +1,605 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * A series of changes to the events of a Track, applied together in
+ * a single pass over each Track.
+ * <p>
+ * Each change is a Stage. The channel messages are unpacked once and
+ * handed from stage to stage as an int packed as by EditHistory.pack(),
+ * so adding a stage costs a method call per message rather than another
+ * pass with its own <code>instanceof</code> and channel message tests.
+ * The Tracks of a sequence are transformed concurrently and all the
+ * changes are recorded as one edit in the sequence's EditHistory.
+ * <pre>
+ * TrackTransform.Result result = new TrackTransform()
+ *     .convertNoteOnZeroToNoteOff()
+ *     .adjustNoteOnVelocity(0.8f)
+ *     .apply(seq);
+ * </pre>
+ */
+public class TrackTransform
+{
+
+    /**
+     * Returned by a Stage to remove the event.
+     */
+    public static final int REMOVE = -1;
+
+    /**
+     * The stages are timed for one in this many channel messages,
+     * timing every message would cost more than most stages.
+     */
+    private static final int TIMING_INTERVAL = 256;
+    /**
+     * The time taken to read the clock, which is taken off each
+     * sampled time as it is often longer than the stage itself.
+     */
+    private static final long CLOCK_NANOS = clockNanos();
+    /**
+     * A sampled time longer than this is a pause of the whole thread,
+     * for garbage collection for instance, rather than time in the stage.
+     */
+    private static final long MAX_SAMPLE_NANOS = 20000;
+
+    /**
+     * One change made by a TrackTransform.
+     */
+    public abstract static class Stage
+    {
+
+        private final String mName;
+
+        /**
+         * @param name the name of the stage in the Result
+         */
+        protected Stage(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Change a channel message.
+         *
+         * @param message the message packed as by EditHistory.pack()
+         * @return the changed message, the same message to leave it
+         * or REMOVE to remove the event
+         */
+        public int apply(int message) {
+            return message;
+        }
+
+        /**
+         * Change the tick of an event.
+         * The order of the events in the Track must not be changed.
+         *
+         * @param tick the tick of the event
+         * @return the new tick
+         */
+        public long applyTick(long tick) {
+            return tick;
+        }
+
+        /**
+         * @return true if applyTick() changes the ticks,
+         * the ticks are only passed to the stages that do
+         */
+        public boolean changesTicks() {
+            return false;
+        }
+    }
+
+    /**
+     * The number of events that each stage changed and the time it took.
+     */
+    public static class Result
+    {
+
+        private final String[] mNames;
+        private final int[] mChanged;
+        private final long[] mNanos;
+        private int mTracks;
+        private long mEvents;
+        private long mElapsedNanos;
+
+        Result(List<Stage> stages) {
+            mNames = new String[stages.size()];
+            for (int s = 0; s < mNames.length; ++s) {
+                mNames[s] = stages.get(s).getName();
+            }
+            mChanged = new int[mNames.length];
+            mNanos = new long[mNames.length];
+        }
+
+        private void add(Result other) {
+            for (int s = 0; s < mNames.length; ++s) {
+                mChanged[s] += other.mChanged[s];
+                mNanos[s] += other.mNanos[s];
+            }
+            mTracks += other.mTracks;
+            mEvents += other.mEvents;
+        }
+
+        public int getStageCount() {
+            return mNames.length;
+        }
+
+        public String getStageName(int stage) {
+            return mNames[stage];
+        }
+
+        /**
+         * @return the number of events that the stage changed or removed
+         */
+        public int getChanged(int stage) {
+            return mChanged[stage];
+        }
+
+        /**
+         * @return the number of events that any stage changed or removed
+         */
+        public int getTotalChanged() {
+            int total = 0;
+            for (int changed : mChanged) {
+                total += changed;
+            }
+            return total;
+        }
+
+        /**
+         * @return an estimate of the time spent in the stage, summed over
+         * the Tracks, from timing a sample of the messages
+         */
+        public long getNanos(int stage) {
+            return mNanos[stage];
+        }
+
+        /**
+         * @return the number of Tracks transformed
+         */
+        public int getTrackCount() {
+            return mTracks;
+        }
+
+        /**
+         * @return the number of events looked at
+         */
+        public long getEventCount() {
+            return mEvents;
+        }
+
+        /**
+         * @return the time taken to transform all the Tracks
+         */
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%d events in %d tracks in %.2f ms", // NOI18N
+                mEvents, mTracks, mElapsedNanos / 1e6));
+            for (int s = 0; s < mNames.length; ++s) {
+                sb.append(String.format("%n  %s : %d changed, %.2f ms", // NOI18N
+                    mNames[s], mChanged[s], mNanos[s] / 1e6));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The changes made to one Track, to be recorded once
+     * all the Tracks have been transformed.
+     */
+    private static class TrackChanges
+    {
+
+        final Result mResult;
+        /** Index, old message and new message of each changed message. */
+        int[] mMessages = new int[0];
+        int mMessageCount;
+        /** Index of each event whose tick was changed. */
+        int[] mTickIndexes = new int[0];
+        /** Old and new tick of each event whose tick was changed. */
+        long[] mTicks = new long[0];
+        int mTickCount;
+        int[] mRemoved = new int[0];
+        int mRemovedCount;
+
+        TrackChanges(Result result) {
+            mResult = result;
+        }
+
+        void messageChanged(int index, int oldMessage, int newMessage) {
+            if ((mMessageCount + 1) * 3 > mMessages.length) {
+                mMessages = Arrays.copyOf(mMessages,
+                    Math.max(16, mMessageCount * 2) * 3);
+            }
+            mMessages[mMessageCount * 3] = index;
+            mMessages[mMessageCount * 3 + 1] = oldMessage;
+            mMessages[mMessageCount * 3 + 2] = newMessage;
+            ++mMessageCount;
+        }
+
+        void tickChanged(int index, long oldTick, long newTick) {
+            if (mTickCount == mTickIndexes.length) {
+                int capacity = Math.max(16, mTickCount * 2);
+                mTickIndexes = Arrays.copyOf(mTickIndexes, capacity);
+                mTicks = Arrays.copyOf(mTicks, capacity * 2);
+            }
+            mTickIndexes[mTickCount] = index;
+            mTicks[mTickCount * 2] = oldTick;
+            mTicks[mTickCount * 2 + 1] = newTick;
+            ++mTickCount;
+        }
+
+        void removed(int index) {
+            if (mRemovedCount == mRemoved.length) {
+                mRemoved = Arrays.copyOf(mRemoved, Math.max(16, mRemovedCount * 2));
+            }
+            mRemoved[mRemovedCount++] = index;
+        }
+
+        boolean isChanged() {
+            return mMessageCount > 0 || mTickCount > 0 || mRemovedCount > 0;
+        }
+    }
+
+    private final List<Stage> mStages = new ArrayList<>();
+
+    /**
+     * Add a stage. The stages are applied in the order they are added.
+     *
+     * @param stage the stage
+     * @return this TrackTransform
+     */
+    public TrackTransform add(Stage stage) {
+        mStages.add(stage);
+        return this;
+    }
+
+    /**
+     * @return true if there are no stages
+     */
+    public boolean isEmpty() {
+        return mStages.isEmpty();
+    }
+
+    /**
+     * Convert all NOTE_ON events with a velocity of zero to NOTE_OFF events.
+     *
+     * @return this TrackTransform
+     */
+    public TrackTransform convertNoteOnZeroToNoteOff() {
+        return add(new Stage("noteoff") // NOI18N
+        {
+            @Override
+            public int apply(int message) {
+                if ((message >> 16 & 0xf0) == ShortMessage.NOTE_ON
+                    && (message & 0xff) == 0) {
+                    return message & ~(0x10 << 16);
+                }
+                return message;
+            }
+        });
+    }
+
+    /**
+     * Set the velocity of all NOTE_ON events with a velocity greater
+     * than zero.
+     *
+     * @param velocity the new velocity, 1 to 127
+     * @return this TrackTransform
+     * @throws IllegalArgumentException if the velocity is out of range
+     */
+    public TrackTransform setNoteOnVelocity(int velocity) {
+        if (velocity < 1 || velocity > 127) {
+            throw new IllegalArgumentException(
+                "Can't set NOTE_ON velocity < 1 or > 127"); // NOI18N
+        }
+        return add(new Stage("velocity") // NOI18N
+        {
+            @Override
+            public int apply(int message) {
+                if (isNoteOn(message)) {
+                    return (message & ~0xff) | velocity;
+                }
+                return message;
+            }
+        });
+    }
+
+    /**
+     * Multiply the velocity of all NOTE_ON events with a velocity greater
+     * than zero, keeping the velocities in the range 1 to 127.
+     *
+     * @param factor the factor, greater than 0.0 and at most 4.0
+     * @return this TrackTransform
+     * @throws IllegalArgumentException if the factor is out of range
+     */
+    public TrackTransform adjustNoteOnVelocity(float factor) {
+        if (factor <= 0.0f || factor > 4.0f) {
+            throw new IllegalArgumentException(
+                "Can't set NOTE_ON factor <= 0.0 or > 4.0"); // NOI18N
+        }
+        return add(new Stage("scale-velocity") // NOI18N
+        {
+            @Override
+            public int apply(int message) {
+                if (isNoteOn(message)) {
+                    int velocity = Math.round((message & 0xff) * factor);
+                    velocity = Math.min(127, Math.max(1, velocity));
+                    return (message & ~0xff) | velocity;
+                }
+                return message;
+            }
+        });
+    }
+
+    /**
+     * Remove all NOTE_ON and NOTE_OFF events.
+     *
+     * @return this TrackTransform
+     */
+    public TrackTransform removeNotes() {
+        return add(new Stage("remove-notes") // NOI18N
+        {
+            @Override
+            public int apply(int message) {
+                int command = message >> 16 & 0xf0;
+                if (command == ShortMessage.NOTE_ON
+                    || command == ShortMessage.NOTE_OFF) {
+                    return REMOVE;
+                }
+                return message;
+            }
+        });
+    }
+
+    /**
+     * Move every event by a number of ticks.
+     * An event that would be moved before the start is put at tick zero.
+     *
+     * @param offset the number of ticks to move the events
+     * @return this TrackTransform
+     */
+    public TrackTransform shift(long offset) {
+        return add(new Stage("shift") // NOI18N
+        {
+            @Override
+            public long applyTick(long tick) {
+                return Math.max(0, tick + offset);
+            }
+
+            @Override
+            public boolean changesTicks() {
+                return offset != 0;
+            }
+        });
+    }
+
+    /**
+     * @return the shortest time between two readings of the clock
+     */
+    private static long clockNanos() {
+        long shortest = Long.MAX_VALUE;
+        for (int i = 0; i < 1000; ++i) {
+            long start = System.nanoTime();
+            shortest = Math.min(shortest, System.nanoTime() - start);
+        }
+        return shortest;
+    }
+
+    private static boolean isNoteOn(int message) {
+        return (message >> 16 & 0xf0) == ShortMessage.NOTE_ON
+            && (message & 0xff) > 0;
+    }
+
+    /**
+     * Transform all the Tracks of a sequence.
+     *
+     * @param seq the sequence
+     * @return the number of events changed by each stage
+     */
+    public Result apply(MqfSequence seq) {
+        return apply(seq, IntStream.range(0, seq.getTrackCount()).toArray());
+    }
+
+    /**
+     * Transform some of the Tracks of a sequence concurrently.
+     * The changes are recorded as one edit in the sequence's EditHistory
+     * and the changed Tracks are analysed again.
+     * A Track from which events are removed is rebuilt, as by
+     * MqfSequence.removeEvents(), so any reference to it must be
+     * refreshed from the sequence.
+     *
+     * @param seq the sequence
+     * @param trackIndexes the indexes of the Tracks
+     * @return the number of events changed by each stage
+     */
+    public Result apply(MqfSequence seq, int... trackIndexes) {
+        long start = System.nanoTime();
+        EditHistory history = seq.getHistory();
+        boolean recording = history.isRecording();
+        TrackChanges[] changes = Arrays.stream(trackIndexes)
+            .parallel()
+            .mapToObj(trackIndex -> transform(seq.getTrack(trackIndex), recording))
+            .toArray(TrackChanges[]::new);
+
+        Result result = new Result(mStages);
+        int[] changed = new int[trackIndexes.length];
+        int changedCount = 0;
+        history.beginEdit();
+        try {
+            for (int t = 0; t < trackIndexes.length; ++t) {
+                int trackIndex = trackIndexes[t];
+                TrackChanges tc = changes[t];
+                result.add(tc.mResult);
+                if (!tc.isChanged()) {
+                    continue;
+                }
+                if (recording) {
+                    for (int i = 0; i < tc.mTickCount; ++i) {
+                        history.tickChanged(trackIndex, tc.mTickIndexes[i],
+                            tc.mTicks[i * 2], tc.mTicks[i * 2 + 1]);
+                    }
+                    for (int i = 0; i < tc.mMessageCount * 3; i += 3) {
+                        history.shortMessageChanged(trackIndex,
+                            tc.mMessages[i], tc.mMessages[i + 1],
+                            tc.mMessages[i + 2]);
+                    }
+                }
+                if (tc.mRemovedCount > 0) {
+                    // Rebuilding the Track analyses it again.
+                    seq.removeEvents(trackIndex,
+                        Arrays.copyOf(tc.mRemoved, tc.mRemovedCount));
+                } else {
+                    changed[changedCount++] = trackIndex;
+                }
+            }
+        } finally {
+            history.endEdit();
+        }
+        seq.tracksChanged(Arrays.copyOf(changed, changedCount));
+        result.mElapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Transform a Track that is not part of a sequence. Nothing is recorded.
+     * Each event removed costs a search of the Track, so a Track of a
+     * sequence should be transformed with apply(MqfSequence, int...),
+     * which rebuilds it once.
+     *
+     * @param track the Track
+     * @return the number of events changed by each stage
+     */
+    public Result apply(Track track) {
+        long start = System.nanoTime();
+        TrackChanges tc = transform(track, false);
+        // Remove from the end so the indexes stay valid.
+        for (int i = tc.mRemovedCount - 1; i >= 0; --i) {
+            track.remove(track.get(tc.mRemoved[i]));
+        }
+        tc.mResult.mElapsedNanos = System.nanoTime() - start;
+        return tc.mResult;
+    }
+
+    /**
+     * Pass every event of a Track through the stages, changing the
+     * messages and ticks in place and listing the events to remove.
+     */
+    private TrackChanges transform(Track track, boolean record) {
+        Stage[] stages = mStages.toArray(new Stage[0]);
+        Stage[] tickStages = mStages.stream()
+            .filter(Stage::changesTicks)
+            .toArray(Stage[]::new);
+        Result result = new Result(mStages);
+        TrackChanges tc = new TrackChanges(result);
+        int[] changed = result.mChanged;
+        long[] nanos = result.mNanos;
+        int messages = 0;
+
+        int size = track.size();
+        for (int e = 0; e < size; ++e) {
+            MidiEvent ev = track.get(e);
+            if (tickStages.length > 0) {
+                long oldTick = ev.getTick();
+                long tick = oldTick;
+                for (Stage stage : tickStages) {
+                    tick = stage.applyTick(tick);
+                }
+                if (tick != oldTick) {
+                    ev.setTick(tick);
+                    if (record) {
+                        tc.tickChanged(e, oldTick, tick);
+                    }
+                    for (int s = 0; s < stages.length; ++s) {
+                        if (stages[s].changesTicks()) {
+                            ++changed[s];
+                        }
+                    }
+                }
+            }
+            MidiMessage mm = ev.getMessage();
+            if (!(mm instanceof ShortMessage)) {
+                continue;
+            }
+            ShortMessage sm = (ShortMessage)mm;
+            int status = sm.getStatus();
+            if (status < 0x80 || status >= 0xf0) {
+                continue;
+            }
+            int old = (status << 16) | (sm.getData1() << 8) | sm.getData2();
+            int message = old;
+            boolean timed = messages++ % TIMING_INTERVAL == 0;
+            long time = timed ? System.nanoTime() : 0;
+            for (int s = 0; s < stages.length && message != REMOVE; ++s) {
+                int next = stages[s].apply(message);
+                if (next != message) {
+                    ++changed[s];
+                    message = next;
+                }
+                if (timed) {
+                    long now = System.nanoTime();
+                    long sample = now - time - CLOCK_NANOS;
+                    if (sample > 0 && sample < MAX_SAMPLE_NANOS) {
+                        nanos[s] += sample * TIMING_INTERVAL;
+                    }
+                    time = now;
+                }
+            }
+            if (message == REMOVE) {
+                tc.removed(e);
+            } else if (message != old) {
+                try {
+                    sm.setMessage(message >> 16 & 0xff, message >> 8 & 0xff,
+                        message & 0xff);
+                } catch (InvalidMidiDataException ex) {
+                    throw new IllegalArgumentException(ex);
+                }
+                if (record) {
+                    tc.messageChanged(e, old, message);
+                }
+            }
+        }
+        result.mTracks = 1;
+        result.mEvents = size;
+        return tc;
+    }
+}
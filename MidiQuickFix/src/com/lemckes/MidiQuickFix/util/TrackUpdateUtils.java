@@ -25,13 +25,13 @@
 package com.lemckes.MidiQuickFix.util;
 
 import com.lemckes.MidiQuickFix.MetaEvent;
-import com.lemckes.MidiQuickFix.ShortEvent;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiEvent;
 import javax.sound.midi.MidiMessage;
-import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Track;
 
 /**
@@ -46,28 +46,19 @@ public class TrackUpdateUtils
      * @param track the track to convert
      */
     public static void convertNoteOnZeroToNoteOff(Track track) {
-        for (int e = 0; e < track.size(); ++e) {
-            MidiEvent event = track.get(e);
+        new TrackTransform().convertNoteOnZeroToNoteOff().apply(track);
+    }
 
-            MidiMessage message = event.getMessage();
-            if (message instanceof ShortMessage) {
-                ShortMessage sm = (ShortMessage)message;
-                if (ShortEvent.isChannelMessage(sm)) {
-                    int channel = sm.getChannel();
-                    if (sm.getCommand() == ShortMessage.NOTE_ON) {
-                        int noteNum = sm.getData1();
-                        int velocity = sm.getData2();
-                        if (velocity == 0) {
-                            try {
-                                sm.setMessage(ShortMessage.NOTE_OFF, channel, noteNum, 0);
-                            } catch (InvalidMidiDataException ex) {
-                                System.err.println("Can't convert to NOTE_OFF");
-                            }
-                        }
-                    }
-                }
-            }
-        }
+    /**
+     * Convert all NOTE_ON events with a velocity of zero to NOTE_OFF events
+     * recording the changes as one edit in the sequence's EditHistory.
+     * The track is analysed again.
+     *
+     * @param seq the sequence
+     * @param trackIndex the index of the track to convert
+     */
+    public static void convertNoteOnZeroToNoteOff(MqfSequence seq, int trackIndex) {
+        new TrackTransform().convertNoteOnZeroToNoteOff().apply(seq, trackIndex);
     }
 
     /**
@@ -78,33 +69,29 @@ public class TrackUpdateUtils
      * @param track the track to convert
      */
     public static void setNoteOnVelocity(Track track, int velocity) {
-        if (velocity < 1 || velocity > 127) {
-            System.err.println(
-                "Can't set NOTE_ON velocity < 1 or > 127");
-            return;
+        try {
+            new TrackTransform().setNoteOnVelocity(velocity).apply(track);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
         }
-        for (int e = 0; e < track.size(); ++e) {
-            MidiEvent event = track.get(e);
+    }
 
-            MidiMessage message = event.getMessage();
-            if (message instanceof ShortMessage) {
-                ShortMessage sm = (ShortMessage)message;
-                if (ShortEvent.isChannelMessage(sm)) {
-                    int channel = sm.getChannel();
-                    if (sm.getCommand() == ShortMessage.NOTE_ON) {
-                        int noteNum = sm.getData1();
-                        if (sm.getData2() > 0) {
-                            try {
-                                sm.setMessage(ShortMessage.NOTE_ON, channel, noteNum, velocity);
-                            } catch (InvalidMidiDataException ex) {
-                                System.err.println(
-                                    "Can't set NOTE_ON velocity (channel=" + channel
-                                    + ", note=" + noteNum + ", velocity=" + velocity + ")");
-                            }
-                        }
-                    }
-                }
-            }
+    /**
+     * Set the velocity of all NOTE_ON events with a velocity greater than zero
+     * recording the changes as one edit in the sequence's EditHistory.
+     * The track is analysed again.
+     *
+     * @param seq the sequence
+     * @param trackIndex the index of the track to convert
+     * @param velocity the new velocity
+     * @see #setNoteOnVelocity(Track, int)
+     */
+    public static void setNoteOnVelocity(MqfSequence seq, int trackIndex,
+        int velocity) {
+        try {
+            new TrackTransform().setNoteOnVelocity(velocity).apply(seq, trackIndex);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
         }
     }
 
@@ -117,39 +104,29 @@ public class TrackUpdateUtils
      * @param track the track to convert
      */
     public static void adjustNoteOnVelocity(Track track, float factor) {
-        if (factor <= 0.0f || factor > 4.0f) {
-            System.err.println(
-                "Can't set NOTE_ON factor <= 0.0 or > 4.0");
-            return;
+        try {
+            new TrackTransform().adjustNoteOnVelocity(factor).apply(track);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
         }
+    }
 
-        for (int e = 0; e < track.size(); ++e) {
-            MidiEvent event = track.get(e);
-
-            MidiMessage message = event.getMessage();
-            if (message instanceof ShortMessage) {
-                ShortMessage sm = (ShortMessage)message;
-                if (ShortEvent.isChannelMessage(sm)) {
-                    int channel = sm.getChannel();
-                    if (sm.getCommand() == ShortMessage.NOTE_ON) {
-                        int noteNum = sm.getData1();
-                        int velocity = sm.getData2();
-                        if (velocity > 0) {
-                            try {
-                                // Adjust velocity and clamp to valid values
-                                velocity = Math.round(velocity * factor);
-                                velocity = Math.max(1, velocity);
-                                velocity = Math.min(127, velocity);
-                                sm.setMessage(ShortMessage.NOTE_ON, channel, noteNum, velocity);
-                            } catch (InvalidMidiDataException ex) {
-                                System.err.println(
-                                    "Can't set NOTE_ON velocity (channel=" + channel
-                                    + ", note=" + noteNum + ", velocity=" + velocity + ")");
-                            }
-                        }
-                    }
-                }
-            }
+    /**
+     * Adjust the velocity of all NOTE_ON events with a velocity greater than
+     * zero recording the changes as one edit in the sequence's EditHistory.
+     * The track is analysed again.
+     *
+     * @param seq the sequence
+     * @param trackIndex the index of the track to convert
+     * @param factor the factor to apply to the velocities
+     * @see #adjustNoteOnVelocity(Track, float)
+     */
+    public static void adjustNoteOnVelocity(MqfSequence seq, int trackIndex,
+        float factor) {
+        try {
+            new TrackTransform().adjustNoteOnVelocity(factor).apply(seq, trackIndex);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
         }
     }
 
@@ -162,6 +139,31 @@ public class TrackUpdateUtils
      * @param eventIndices the event indices in <code>track</code>
      */
     public static void convertTextToLyric(Track track, int[] eventIndices) {
+        convertTextToLyric(track, eventIndices, null, -1);
+    }
+
+    /**
+     * Convert any TEXT events at the positions in
+     * <code>eventIndices</code> into LYRIC events
+     * recording the changes as one edit in the sequence's EditHistory.
+     *
+     * @param seq the sequence
+     * @param trackIndex the index of the track to convert
+     * @param eventIndices the event indices in the track
+     */
+    public static void convertTextToLyric(MqfSequence seq, int trackIndex,
+        int[] eventIndices) {
+        EditHistory history = seq.getHistory();
+        history.beginEdit();
+        try {
+            convertTextToLyric(seq.getTrack(trackIndex), eventIndices, history, trackIndex);
+        } finally {
+            history.endEdit();
+        }
+    }
+
+    private static void convertTextToLyric(Track track, int[] eventIndices,
+        EditHistory history, int trackIndex) {
         for (int e : eventIndices) {
             MidiEvent event = track.get(e);
 
@@ -171,8 +173,12 @@ public class TrackUpdateUtils
                 Object[] str = MetaEvent.getMetaStrings((MetaMessage)message);
                 if (str[0].equals("M:Text")) {
                     try {
+                        MidiMessage old = (MidiMessage)metaMess.clone();
                         metaMess.setMessage(MetaEvent.LYRIC, metaMess.getData(), metaMess.
                             getData().length);
+                        if (history != null) {
+                            history.messageChanged(trackIndex, e, old, metaMess);
+                        }
                     } catch (InvalidMidiDataException ex) {
                         System.err.println("Can't convert TEXT to LYRIC");
                     }
@@ -189,6 +195,31 @@ public class TrackUpdateUtils
      * @param eventIndices the event indices in <code>track</code>
      */
     public static void addSpaceToLyric(Track track, int[] eventIndices) {
+        addSpaceToLyric(track, eventIndices, null, -1);
+    }
+
+    /**
+     * Add a space to any LYRIC events at the positions in
+     * <code>eventIndices</code>
+     * recording the changes as one edit in the sequence's EditHistory.
+     *
+     * @param seq the sequence
+     * @param trackIndex the index of the track to change
+     * @param eventIndices the event indices in the track
+     */
+    public static void addSpaceToLyric(MqfSequence seq, int trackIndex,
+        int[] eventIndices) {
+        EditHistory history = seq.getHistory();
+        history.beginEdit();
+        try {
+            addSpaceToLyric(seq.getTrack(trackIndex), eventIndices, history, trackIndex);
+        } finally {
+            history.endEdit();
+        }
+    }
+
+    private static void addSpaceToLyric(Track track, int[] eventIndices,
+        EditHistory history, int trackIndex) {
         for (int e : eventIndices) {
             MidiEvent event = track.get(e);
 
@@ -202,7 +233,11 @@ public class TrackUpdateUtils
                         byte[] newLyric = Arrays.copyOf(lyric, lyric.length + 1);
                         newLyric[lyric.length] = ' ';
                         try {
+                            MidiMessage old = (MidiMessage)metaMess.clone();
                             metaMess.setMessage(MetaEvent.LYRIC, newLyric, newLyric.length);
+                            if (history != null) {
+                                history.messageChanged(trackIndex, e, old, metaMess);
+                            }
                         } catch (InvalidMidiDataException ex) {
                             System.err.println("Can't add space to LYRIC");
                         }
@@ -219,21 +254,21 @@ public class TrackUpdateUtils
      * @param track the track from which to remove the notes
      */
     public static void removeNotesFromTrack(Track track) {
-        for (int e = track.size() - 1; e >= 0; --e) {
-            MidiEvent event = track.get(e);
+        new TrackTransform().removeNotes().apply(track);
+    }
 
-            MidiMessage message = event.getMessage();
-            if (message instanceof ShortMessage) {
-                ShortMessage sm = (ShortMessage)message;
-                if (ShortEvent.isChannelMessage(sm)) {
-                    int command = sm.getCommand();
-                    if (command == ShortMessage.NOTE_ON
-                        || command == ShortMessage.NOTE_OFF) {
-                        track.remove(event);
-                    }
-                }
-            }
-        }
+    /**
+     * Remove all NOTE_ON and NOTE_OFF events from a track of the sequence
+     * in a single pass, recording them in the sequence's EditHistory.
+     * The track is rebuilt, see MqfSequence.removeEvents().
+     *
+     * @param seq the sequence
+     * @param trackIndex the index of the track from which to remove the notes
+     * @return the rebuilt track
+     */
+    public static Track removeNotesFromTrack(MqfSequence seq, int trackIndex) {
+        new TrackTransform().removeNotes().apply(seq, trackIndex);
+        return seq.getTrack(trackIndex);
     }
 
     /**
@@ -258,4 +293,45 @@ public class TrackUpdateUtils
             event.setTick(newTick);
         }
     }
+
+    /**
+     * Shift any events at the positions in
+     * <code>eventIndices</code> so that the first is at
+     * <code>targetTick</code>, recording the change as one edit in the
+     * sequence's EditHistory.
+     * The events are removed and added again so that the track stays in
+     * tick order, the track is rebuilt as by MqfSequence.removeEvents().
+     *
+     * @param seq the sequence
+     * @param trackIndex the index of the track to change
+     * @param eventIndices the event indices in the track
+     * @param targetTick the new position for the first event.
+     * @return the rebuilt track
+     */
+    public static Track shiftEvents(MqfSequence seq, int trackIndex,
+        int[] eventIndices, long targetTick) {
+        Track track = seq.getTrack(trackIndex);
+        long offset = targetTick - track.get(eventIndices[0]).getTick();
+        if (offset == 0) {
+            return track;
+        }
+
+        int[] indexes = eventIndices.clone();
+        Arrays.sort(indexes);
+        List<MidiEvent> moved = new ArrayList<>(indexes.length);
+        for (int i : indexes) {
+            moved.add(track.get(i));
+        }
+        EditHistory history = seq.getHistory();
+        history.beginEdit();
+        try {
+            seq.removeEvents(trackIndex, indexes);
+            for (MidiEvent event : moved) {
+                event.setTick(event.getTick() + offset);
+            }
+            return seq.addEvents(trackIndex, moved);
+        } finally {
+            history.endEdit();
+        }
+    }
 }
@@ -25,7 +25,8 @@
 package com.lemckes.MidiQuickFix.util;
 
 import com.lemckes.MidiQuickFix.MetaEvent;
-import com.lemckes.MidiQuickFix.ShortEvent;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiEvent;
@@ -82,6 +83,10 @@ public class Transposer
      * If the transposition would cause a note to be outside the valid range
      * for a midi note [0, 127] then the value is adjusted up or down by
      * enough octaves to bring it back into range.
+     * <p>
+     * The transpose is recorded in the sequence's EditHistory as a single
+     * edit, with the notes that were moved by octaves and the key
+     * signatures that transposing back would not restore.
      *
      * @return <code>true</code> if the value of any note would have
      * over/underflowed the valid range [0, 127]
@@ -92,60 +97,160 @@ public class Transposer
      */
     public static boolean transpose(MqfSequence seq, int semitones,
         boolean doDrums) {
+        EditHistory history = seq.getHistory();
+        boolean recording = history.isRecording();
+        Track[] tracks = seq.getTracks();
+        // The Tracks share no events so each can be transposed on its own,
+        // the results are gathered in track order.
+        TrackResult[] results = IntStream.range(0, tracks.length)
+            .parallel()
+            .mapToObj(trackIndex -> transposeTrack(tracks[trackIndex],
+                trackIndex, semitones, doDrums, recording))
+            .toArray(TrackResult[]::new);
+
         boolean overflow = false;
-        for (Track t : seq.getTracks()) {
-            for (int i = 0; i < t.size(); ++i) {
-                MidiEvent ev = t.get(i);
-                MidiMessage message = ev.getMessage();
-                if (message instanceof ShortMessage) {
-                    ShortMessage sm = (ShortMessage)message;
-                    int d1 = sm.getData1();
-                    int d2 = sm.getData2();
-                    if (ShortEvent.isChannelMessage(sm)
-                        && (doDrums || sm.getChannel() != 9)) {
-                        int cmd = sm.getCommand();
-                        switch (cmd) {
-                            case ShortMessage.NOTE_OFF:
-                            case ShortMessage.NOTE_ON:
-                                d1 += semitones;
-                                while (d1 < 0) {
-                                    d1 += 12;
-                                    overflow = true;
-                                }
-                                while (d1 > 127) {
-                                    d1 -= 12;
-                                    overflow = true;
-                                }
-                                try {
-                                    int channel = sm.getChannel() & 0xff;
-                                    sm.setMessage(cmd, channel, d1, d2);
-                                } catch (InvalidMidiDataException e) {
-                                    TraceDialog.addTrace(
-                                        "Transposer invalid note: "
-                                        + e.getMessage());
-                                }
-                                break;
-                            default:
-                            // DO NOTHING
-                            }
+        int[] changed = new int[tracks.length];
+        int changedCount = 0;
+        // The track, index and old message of the events to fix up on undo.
+        int[] fixUps = new int[0];
+        int fixUpCount = 0;
+        for (int trackIndex = 0; trackIndex < tracks.length; ++trackIndex) {
+            TrackResult result = results[trackIndex];
+            overflow |= result.mOverflow;
+            if (result.mChanged) {
+                changed[changedCount++] = trackIndex;
+            }
+            if (result.mFixUpCount > 0) {
+                fixUps = Arrays.copyOf(fixUps,
+                    (fixUpCount + result.mFixUpCount) * 3);
+                System.arraycopy(result.mFixUps, 0, fixUps, fixUpCount * 3,
+                    result.mFixUpCount * 3);
+                fixUpCount += result.mFixUpCount;
+            }
+        }
+        // Bring the summary info up to date and record the change.
+        seq.tracksChanged(Arrays.copyOf(changed, changedCount));
+        if (recording) {
+            history.transposed(semitones, doDrums, fixUps, fixUpCount);
+        }
+        return overflow;
+    }
+
+    /**
+     * What transposing one Track did.
+     */
+    private static class TrackResult
+    {
+
+        boolean mChanged;
+        boolean mOverflow;
+        int[] mFixUps = new int[0];
+        int mFixUpCount;
+    }
+
+    /**
+     * Transpose the notes and key signatures of one Track.
+     */
+    private static TrackResult transposeTrack(Track t, int trackIndex,
+        int semitones, boolean doDrums, boolean recording) {
+        TrackResult result = new TrackResult();
+        for (int i = 0; i < t.size(); ++i) {
+            MidiEvent ev = t.get(i);
+            MidiMessage message = ev.getMessage();
+            if (message instanceof ShortMessage) {
+                ShortMessage sm = (ShortMessage)message;
+                if (!isTransposed(sm, doDrums)) {
+                    continue;
+                }
+                int d1 = sm.getData1() + semitones;
+                int note = transposeNote(sm.getData1(), semitones);
+                if (note != d1) {
+                    result.mOverflow = true;
+                    if (recording) {
+                        result.mFixUps = addFixUp(result.mFixUps,
+                            result.mFixUpCount++,
+                            trackIndex, i, EditHistory.pack(sm));
+                    }
+                }
+                try {
+                    int channel = sm.getChannel() & 0xff;
+                    sm.setMessage(sm.getCommand(), channel, note, sm.getData2());
+                    result.mChanged = true;
+                } catch (InvalidMidiDataException e) {
+                    TraceDialog.addTrace(
+                        "Transposer invalid note: "
+                        + e.getMessage());
+                }
+            } else if (message instanceof MetaMessage) {
+                MetaMessage mess = (MetaMessage)message;
+                int type = mess.getType();
+                byte[] data = mess.getData();
+                if (type == MetaEvent.KEY_SIGNATURE) {
+                    byte sharps = data[0];
+                    data[0] = adjustKeySig(sharps, semitones);
+                    if (recording
+                        && adjustKeySig(data[0], -semitones) != sharps) {
+                        // Transposing back would change sharps to flats.
+                        result.mFixUps = addFixUp(result.mFixUps,
+                            result.mFixUpCount++,
+                            trackIndex, i, EditHistory.KEY_SIGNATURE_FIX
+                            | (sharps & 0xff) << 8 | (data[1] & 0xff));
                     }
-                } else if (message instanceof MetaMessage) {
-                    MetaMessage mess = (MetaMessage)message;
-                    int type = mess.getType();
-                    byte[] data = mess.getData();
-                    if (type == MetaEvent.KEY_SIGNATURE) {
-                        data[0] = adjustKeySig(data[0], semitones);
-                        try {
-                            mess.setMessage(type, data, 2);
-                        } catch (InvalidMidiDataException e) {
-                            TraceDialog.addTrace(
-                                "Transposer invalid key sig: " + e.getMessage());
-                        }
+                    try {
+                        mess.setMessage(type, data, 2);
+                        result.mChanged = true;
+                    } catch (InvalidMidiDataException e) {
+                        TraceDialog.addTrace(
+                            "Transposer invalid key sig: " + e.getMessage());
                     }
                 }
             }
         }
-        return overflow;
+        return result;
+    }
+
+    /**
+     * Whether a message is a note that is moved by transposing.
+     *
+     * @param sm the message
+     * @param doDrums whether the drum channel, channel 9, is transposed
+     * @return true if the message is a NOTE_ON or NOTE_OFF that
+     * would be transposed
+     */
+    public static boolean isTransposed(ShortMessage sm, boolean doDrums) {
+        int cmd = sm.getCommand();
+        return (cmd == ShortMessage.NOTE_ON || cmd == ShortMessage.NOTE_OFF)
+            && (doDrums || sm.getChannel() != 9);
+    }
+
+    /**
+     * Transpose a note, moving it by octaves as needed to keep it
+     * in the valid range [0, 127].
+     *
+     * @param note the note
+     * @param semitones the number of semitones to transpose
+     * @return the transposed note
+     */
+    public static int transposeNote(int note, int semitones) {
+        note += semitones;
+        while (note < 0) {
+            note += 12;
+        }
+        while (note > 127) {
+            note -= 12;
+        }
+        return note;
+    }
+
+    private static int[] addFixUp(int[] fixUps, int count,
+        int trackIndex, int eventIndex, int oldMessage) {
+        if ((count + 1) * 3 > fixUps.length) {
+            fixUps = Arrays.copyOf(fixUps, Math.max(16, count * 2) * 3);
+        }
+        fixUps[count * 3] = trackIndex;
+        fixUps[count * 3 + 1] = eventIndex;
+        fixUps[count * 3 + 2] = oldMessage;
+        return fixUps;
     }
 
     static byte adjustKeySig(byte sharps, int semitones) {
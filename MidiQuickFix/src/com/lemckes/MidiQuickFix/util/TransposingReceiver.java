@@ -0,0 +1,135 @@
+/**
+ * ************************************************************
+ *
+ * MidiQuickFix - A Simple Midi file editor and player
+ *
+ * Copyright (C) 2004-2023 John Lemcke
+ * jostle@users.sourceforge.net
+ *
+ * This program is free software; you can redistribute it
+ * and/or modify it under the terms of the Artistic License
+ * as published by Larry Wall, either version 2.0,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the Artistic License for more details.
+ *
+ * You should have received a copy of the Artistic License with this Kit,
+ * in the file named "Artistic.clarified".
+ * If not, I'll be glad to provide one.
+ *
+ *************************************************************
+ */
+package com.lemckes.MidiQuickFix.util;
+
+import java.util.Arrays;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * A Receiver that transposes the notes passing through it on their
+ * way to another Receiver, so that the sequence can be heard transposed
+ * without changing it.
+ * <p>
+ * The notes are transposed as <code>Transposer</code> would transpose
+ * them. Only the messages that are moved are copied, everything else
+ * is passed on unchanged. Each note is ended at the pitch that it was
+ * started at, so the transposition can be changed while notes are
+ * sounding without leaving any of them hanging.
+ */
+public class TransposingReceiver
+    implements Receiver
+{
+
+    private final Receiver mReceiver;
+    /** The semitones in the high bits and doDrums in the lowest bit. */
+    private volatile int mTransposition = 0;
+    /** The pitch that each sounding note of each channel was sent at,
+     * or -1 if the note is not sounding. */
+    private final byte[] mSentPitch = new byte[16 * 128];
+
+    /**
+     * Create a TransposingReceiver that does not transpose.
+     *
+     * @param receiver the Receiver that is sent the messages
+     */
+    public TransposingReceiver(Receiver receiver) {
+        mReceiver = receiver;
+        Arrays.fill(mSentPitch, (byte)-1);
+    }
+
+    /**
+     * Set the transposition applied to the notes that are sent from now on.
+     *
+     * @param semitones the number of semitones to transpose,
+     * zero to pass the notes unchanged
+     * @param doDrums if <code>true</code> then the drum channel,
+     * channel 9, is transposed
+     */
+    public void setTransposition(int semitones, boolean doDrums) {
+        mTransposition = (semitones << 1) | (doDrums ? 1 : 0);
+    }
+
+    /**
+     * @return the number of semitones that the notes are transposed
+     */
+    public int getSemitones() {
+        return mTransposition >> 1;
+    }
+
+    /**
+     * @return whether the drum channel is transposed
+     */
+    public boolean getDoDrums() {
+        return (mTransposition & 1) != 0;
+    }
+
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        if (message instanceof ShortMessage) {
+            message = transpose((ShortMessage)message);
+        }
+        mReceiver.send(message, timeStamp);
+    }
+
+    private MidiMessage transpose(ShortMessage sm) {
+        int transposition = mTransposition;
+        int cmd = sm.getCommand();
+        if (cmd != ShortMessage.NOTE_ON && cmd != ShortMessage.NOTE_OFF) {
+            return sm;
+        }
+        int key = (sm.getChannel() << 7) | sm.getData1();
+        int pitch;
+        if (cmd == ShortMessage.NOTE_ON && sm.getData2() > 0) {
+            pitch = Transposer.isTransposed(sm, (transposition & 1) != 0)
+                ? Transposer.transposeNote(sm.getData1(), transposition >> 1)
+                : sm.getData1();
+            mSentPitch[key] = (byte)pitch;
+        } else {
+            pitch = mSentPitch[key];
+            mSentPitch[key] = -1;
+            if (pitch < 0) {
+                return sm;
+            }
+        }
+        if (pitch == sm.getData1()) {
+            return sm;
+        }
+        try {
+            return new ShortMessage(cmd, sm.getChannel(), pitch, sm.getData2());
+        } catch (InvalidMidiDataException e) {
+            TraceDialog.addTrace(
+                "TransposingReceiver invalid note: " + e.getMessage());
+            return sm;
+        }
+    }
+
+    @Override
+    public void close() {
+        mReceiver.close();
+    }
+}
@@ -0,0 +1,486 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix;
+
+import com.lemckes.MidiQuickFix.util.EventFilter;
+import com.lemckes.MidiQuickFix.util.Formats;
+import com.lemckes.MidiQuickFix.util.MqfSequence;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import javax.swing.event.TableModelEvent;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author john
+ */
+public class TrackTableModelTest
+{
+
+    /** The columns of the table, in the default order. */
+    private static final int BEAT_TICK_COLUMN = 0;
+    private static final int VALUE_COLUMN = 3;
+
+    public TrackTableModelTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Create a sequence with a track of notes, lyrics and controllers.
+     * There is no PROGRAM_CHANGE as naming it needs a synthesizer.
+     */
+    static MqfSequence createSequence() throws Exception {
+        Sequence seq = new Sequence(Sequence.PPQ, 480);
+        seq.createTrack();
+        Track t = seq.createTrack();
+        t.add(new MidiEvent(
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 100), 0));
+        for (int i = 0; i < 20; ++i) {
+            long tick = i * 240;
+            t.add(new MidiEvent(
+                new ShortMessage(ShortMessage.NOTE_ON, 0, 60 + i % 12, 90), tick));
+            t.add(new MidiEvent(
+                new ShortMessage(ShortMessage.NOTE_ON, 0, 60 + i % 12, 0), tick + 200));
+            byte[] lyric = ("la" + i).getBytes();
+            t.add(new MidiEvent(
+                new MetaMessage(MetaEvent.LYRIC, lyric, lyric.length), tick));
+            if (i % 4 == 0) {
+                t.add(new MidiEvent(
+                    new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 10, i), tick + 10));
+            }
+        }
+        t.add(new MidiEvent(
+            new ShortMessage(ShortMessage.PITCH_BEND, 0, 0, 64), 6000));
+        return new MqfSequence(seq);
+    }
+
+    /**
+     * Fill the row cache with the values of every row.
+     */
+    private static void cacheAllRows(TrackTableModel model) {
+        for (int row = 0; row < model.getRowCount(); ++row) {
+            model.getValueAt(row, 0);
+        }
+    }
+
+    /**
+     * Test of RowCache, of class TrackTableModel.
+     * The least recently used row is evicted and events are compared
+     * by identity.
+     */
+    @Test
+    public void testRowCacheEviction() throws Exception {
+        System.out.println("RowCache eviction");
+        TrackTableModel.RowCache cache = new TrackTableModel.RowCache(3);
+        MidiEvent[] events = new MidiEvent[4];
+        for (int i = 0; i < events.length; ++i) {
+            // Every event is the same, only their identities differ.
+            events[i] = new MidiEvent(
+                new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 90), 0);
+        }
+        cache.put(events[0], new Object[]{0});
+        cache.put(events[1], new Object[]{1});
+        cache.put(events[2], new Object[]{2});
+        assertEquals(3, cache.size());
+
+        // Reading a row makes it the most recently used.
+        assertEquals(0, cache.get(events[0])[0]);
+        cache.put(events[3], new Object[]{3});
+        assertEquals(3, cache.size());
+        assertFalse(cache.containsKey(events[1]));
+        assertTrue(cache.containsKey(events[0]));
+        assertTrue(cache.containsKey(events[2]));
+        assertTrue(cache.containsKey(events[3]));
+
+        cache.put(events[1], new Object[]{1});
+        assertFalse(cache.containsKey(events[2]));
+    }
+
+    /**
+     * Test of the row cache of class TrackTableModel, which holds
+     * no more than ROW_CACHE_SIZE rows.
+     */
+    @Test
+    public void testRowCacheSize() throws Exception {
+        System.out.println("RowCache size");
+        Sequence s = new Sequence(Sequence.PPQ, 480);
+        Track t = s.createTrack();
+        for (int i = 0; i < TrackTableModel.ROW_CACHE_SIZE + 100; ++i) {
+            t.add(new MidiEvent(
+                new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, i % 128), i));
+        }
+        TrackTableModel model = new TrackTableModel(new MqfSequence(s), 0, true, true);
+        cacheAllRows(model);
+        assertEquals(TrackTableModel.ROW_CACHE_SIZE, model.mRowCache.size());
+        // The first rows were the least recently used.
+        assertFalse(model.mRowCache.containsKey(t.get(0)));
+        assertTrue(model.mRowCache.containsKey(t.get(t.size() - 1)));
+    }
+
+    /**
+     * Test of setValueAt method, of class TrackTableModel.
+     * Only the edited row is dropped from the cache and the new value
+     * is shown.
+     */
+    @Test
+    public void testRowCacheSetValueAt() throws Exception {
+        System.out.println("RowCache setValueAt");
+        MqfSequence seq = createSequence();
+        TrackTableModel model = new TrackTableModel(seq, 1, true, true);
+        Track t = seq.getTrack(1);
+        cacheAllRows(model);
+        int cached = model.mRowCache.size();
+
+        // The volume controller at row 0.
+        MidiEvent volume = t.get(0);
+        Object[] before = model.getRowValues(t.get(1));
+        model.setValueAt(64, 0, VALUE_COLUMN);
+        assertFalse(model.mRowCache.containsKey(volume));
+        assertEquals(cached - 1, model.mRowCache.size());
+        assertSame(before, model.getRowValues(t.get(1)));
+        assertEquals("64", model.getValueAt(0, VALUE_COLUMN).toString());
+
+        // Moving the pitch bend keeps it in place in the track.
+        int row = t.size() - 2;
+        MidiEvent bend = t.get(row);
+        String beatTick = Formats.formatBeatsTicks(6100, 480, true);
+        model.setValueAt(beatTick, row, BEAT_TICK_COLUMN);
+        assertEquals(6100, bend.getTick());
+        assertFalse(model.mRowCache.containsKey(bend));
+        assertEquals(beatTick, model.getValueAt(row, BEAT_TICK_COLUMN).toString());
+    }
+
+    /**
+     * Test of insertEvent method, of class TrackTableModel.
+     * The other rows stay cached unless the End of Track moves.
+     */
+    @Test
+    public void testRowCacheInsertEvent() throws Exception {
+        System.out.println("RowCache insertEvent");
+        MqfSequence seq = createSequence();
+        TrackTableModel model = new TrackTableModel(seq, 1, true, true);
+        Track t = seq.getTrack(1);
+        cacheAllRows(model);
+        int cached = model.mRowCache.size();
+        MidiEvent first = t.get(0);
+        Object[] firstValues = model.getRowValues(first);
+
+        model.insertEvent(new MidiEvent(
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 11, 50), 1000));
+        assertEquals(cached, model.mRowCache.size());
+        assertSame(firstValues, model.getRowValues(first));
+
+        // An event after the End of Track moves it.
+        MidiEvent eot = t.get(t.size() - 1);
+        assertTrue(model.mRowCache.containsKey(eot));
+        model.insertEvent(new MidiEvent(
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 11, 60), 9000));
+        assertSame(eot, t.get(t.size() - 1));
+        assertFalse(model.mRowCache.containsKey(eot));
+        assertSame(firstValues, model.getRowValues(first));
+        assertEquals(Formats.formatBeatsTicks(9000, 480, true),
+            model.getValueAt(t.size() - 1, BEAT_TICK_COLUMN).toString());
+    }
+
+    /**
+     * Test of deleteEvents method, of class TrackTableModel.
+     * Deleted rows leave the cache and the other rows stay cached.
+     */
+    @Test
+    public void testRowCacheDeleteEvents() throws Exception {
+        System.out.println("RowCache deleteEvents");
+        MqfSequence seq = createSequence();
+        TrackTableModel model = new TrackTableModel(seq, 1, true, true);
+        Track t = seq.getTrack(1);
+        cacheAllRows(model);
+        int cached = model.mRowCache.size();
+        MidiEvent first = t.get(0);
+        Object[] firstValues = model.getRowValues(first);
+        MidiEvent[] deleted = {t.get(3), t.get(5)};
+
+        model.deleteEvents(new int[]{5, 3});
+        assertEquals(cached - 2, model.mRowCache.size());
+        assertFalse(model.mRowCache.containsKey(deleted[0]));
+        assertFalse(model.mRowCache.containsKey(deleted[1]));
+        assertSame(firstValues, model.getRowValues(first));
+
+        // A bulk delete rebuilds the track from the same events,
+        // so the rows that are left stay cached.
+        int rowCount = model.getRowCount();
+        int[] rows = new int[TrackTableModel.BULK_EDIT_ROWS + 1];
+        for (int i = 0; i < rows.length; ++i) {
+            rows[i] = i + 1;
+        }
+        model.deleteEvents(rows);
+        assertEquals(rowCount - rows.length, model.getRowCount());
+        assertSame(firstValues, model.getRowValues(first));
+        MidiEvent next = model.mTrack.get(1);
+        assertSame(model.getRowValues(next), model.getRowValues(next));
+        assertEquals(Formats.formatBeatsTicks(next.getTick(), 480, true),
+            model.getValueAt(1, BEAT_TICK_COLUMN).toString());
+    }
+
+    /**
+     * Test of trackModified method, of class TrackTableModel.
+     * Any event may have been changed so nothing stays cached.
+     */
+    @Test
+    public void testRowCacheTrackModified() throws Exception {
+        System.out.println("RowCache trackModified");
+        MqfSequence seq = createSequence();
+        TrackTableModel model = new TrackTableModel(seq, 1, true, true);
+        Track t = seq.getTrack(1);
+        cacheAllRows(model);
+        assertTrue(model.mRowCache.size() > 0);
+
+        ShortMessage volume = (ShortMessage)t.get(0).getMessage();
+        volume.setMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 33);
+        model.trackModified();
+        assertEquals(0, model.mRowCache.size());
+        assertEquals("33", model.getValueAt(0, VALUE_COLUMN).toString());
+    }
+
+    /**
+     * Test of RowMap, of class TrackTableModel.
+     */
+    @Test
+    public void testRowMap() throws Exception {
+        System.out.println("RowMap");
+        TrackTableModel.RowMap map = new TrackTableModel.RowMap();
+        map.add(2);
+        map.add(5);
+        map.add(9);
+        assertEquals(0, map.findRow(0));
+        assertEquals(1, map.findRow(5));
+        assertEquals(2, map.findRow(6));
+        assertEquals(3, map.findRow(10));
+
+        map.eventInserted(5, false);
+        assertRows(map, 2, 5, 6, 10);
+        map.eventInserted(0, true);
+        assertRows(map, 3, 6, 7, 11);
+        // Index 4 was hidden.
+        map.eventsRemoved(new int[]{3, 4, 11}, 3);
+        assertRows(map, 4, 5);
+        try {
+            map.get(2);
+            fail("Row 2 of 2 was found");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+
+        // The map grows past its initial size.
+        map.clear();
+        for (int i = 0; i < 100; ++i) {
+            map.eventInserted(0, false);
+        }
+        assertEquals(100, map.size());
+        assertEquals(99, map.get(99));
+    }
+
+    private static void assertRows(TrackTableModel.RowMap map, int... indexes) {
+        assertEquals(indexes.length, map.size());
+        for (int row = 0; row < indexes.length; ++row) {
+            assertEquals("Row " + row, indexes[row], map.get(row));
+        }
+    }
+
+    /**
+     * A filter that hides the pitch bends and the events from
+     * tick 7000, which is after the End of Track.
+     */
+    private static EventFilter createFilter() {
+        EventFilter filter = new EventFilter();
+        filter.setTypes(EventFilter.CONTROLLERS | EventFilter.META);
+        filter.setTickRange(0, 7000);
+        return filter;
+    }
+
+    /**
+     * Check that the rows kept up to date by the model are those that
+     * buildRowMap() finds for the track.
+     */
+    private static void assertRowMap(TrackTableModel model) {
+        TrackTableModel rebuilt = new TrackTableModel(
+            model.mSequence, model.mTrackIndex, model.mShowNotes, true);
+        rebuilt.setFilter(model.getFilter());
+        assertEquals(rebuilt.getRowCount(), model.getRowCount());
+        for (int row = 0; row < rebuilt.getRowCount(); ++row) {
+            assertEquals("Row " + row,
+                rebuilt.mRowMap.get(row), model.mRowMap.get(row));
+        }
+    }
+
+    /**
+     * Insert an event and check the rows against a full rebuild.
+     *
+     * @return the row inserted, or -1 if none was
+     */
+    private static int insertEvent(TrackTableModel model,
+        List<TableModelEvent> fired, MidiEvent event) {
+        fired.clear();
+        model.insertEvent(event);
+        assertRowMap(model);
+        for (TableModelEvent e : fired) {
+            if (e.getType() == TableModelEvent.INSERT) {
+                assertEquals(e.getFirstRow(), e.getLastRow());
+                int index = model.mRowMap.get(e.getFirstRow());
+                assertSame(event, model.mTrack.get(index));
+                return e.getFirstRow();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Test of insertEvent method, of class TrackTableModel, with the
+     * notes hidden and a filter set.
+     * The rows are updated in place and each shown event is
+     * inserted at its own row.
+     */
+    @Test
+    public void testRowMapInsertEventFiltered() throws Exception {
+        System.out.println("RowMap insertEvent filtered");
+        MqfSequence seq = createSequence();
+        TrackTableModel model = new TrackTableModel(seq, 1, false, true);
+        model.setFilter(createFilter());
+        List<TableModelEvent> fired = new ArrayList<>();
+        model.addTableModelListener(fired::add);
+        assertRowMap(model);
+
+        assertTrue(insertEvent(model, fired, new MidiEvent(
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 11, 50), 1000)) >= 0);
+        assertEquals(-1, insertEvent(model, fired, new MidiEvent(
+            new ShortMessage(ShortMessage.PITCH_BEND, 0, 0, 50), 1000)));
+        assertEquals(-1, insertEvent(model, fired, new MidiEvent(
+            new ShortMessage(ShortMessage.NOTE_ON, 0, 70, 90), 1100)));
+        byte[] lyric = "ta".getBytes();
+        assertTrue(insertEvent(model, fired, new MidiEvent(
+            new MetaMessage(MetaEvent.LYRIC, lyric, lyric.length), 1100)) >= 0);
+
+        // A tempo goes between the controller and the note at tick zero.
+        byte[] tempo = {0x07, (byte)0xa1, 0x20};
+        assertEquals(1, insertEvent(model, fired, new MidiEvent(
+            new MetaMessage(MetaEvent.TEMPO, tempo, 3), 0)));
+        assertEquals(1, model.mRowMap.get(1));
+        assertEquals(3, model.mRowMap.get(2));
+
+        // An event after the filter's range moves the End of Track
+        // out of view.
+        int rows = model.getRowCount();
+        assertEquals(-1, insertEvent(model, fired, new MidiEvent(
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 90), 8000)));
+        assertEquals(rows - 1, model.getRowCount());
+    }
+
+    /**
+     * Test of insertEvent method, of class TrackTableModel, with the
+     * notes hidden.
+     * When the End of Track moves its row is updated.
+     */
+    @Test
+    public void testRowMapInsertEvent() throws Exception {
+        System.out.println("RowMap insertEvent");
+        MqfSequence seq = createSequence();
+        TrackTableModel model = new TrackTableModel(seq, 1, false, true);
+        List<TableModelEvent> fired = new ArrayList<>();
+        model.addTableModelListener(fired::add);
+        assertRowMap(model);
+
+        assertTrue(insertEvent(model, fired, new MidiEvent(
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 10, 50), 1000)) >= 0);
+        assertEquals(-1, insertEvent(model, fired, new MidiEvent(
+            new ShortMessage(ShortMessage.NOTE_ON, 0, 70, 90), 0)));
+        byte[] tempo = {0x07, (byte)0xa1, 0x20};
+        assertEquals(1, insertEvent(model, fired, new MidiEvent(
+            new MetaMessage(MetaEvent.TEMPO, tempo, 3), 0)));
+
+        int row = insertEvent(model, fired, new MidiEvent(
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 90), 8000));
+        int eotRow = model.getRowCount() - 1;
+        assertEquals(eotRow - 1, row);
+        TableModelEvent last = fired.get(fired.size() - 1);
+        assertEquals(TableModelEvent.UPDATE, last.getType());
+        assertEquals(eotRow, last.getFirstRow());
+        assertEquals(eotRow, last.getLastRow());
+    }
+
+    /**
+     * Test of deleteEvents method, of class TrackTableModel, with the
+     * notes hidden and a filter set.
+     * A rows deleted event is fired for each run of rows, last first.
+     */
+    @Test
+    public void testRowMapDeleteEvents() throws Exception {
+        System.out.println("RowMap deleteEvents");
+        MqfSequence seq = createSequence();
+        TrackTableModel model = new TrackTableModel(seq, 1, false, true);
+        model.setFilter(createFilter());
+        List<TableModelEvent> fired = new ArrayList<>();
+        model.addTableModelListener(fired::add);
+        int rows = model.getRowCount();
+        MidiEvent kept = model.mTrack.get(model.mRowMap.get(1));
+
+        model.deleteEvents(new int[]{5, 0, 2, 3});
+        assertRowMap(model);
+        assertEquals(rows - 4, model.getRowCount());
+        assertSame(kept, model.mTrack.get(model.mRowMap.get(0)));
+        int[][] expected = {{5, 5}, {2, 3}, {0, 0}};
+        assertEquals(expected.length, fired.size());
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals(TableModelEvent.DELETE, fired.get(i).getType());
+            assertEquals(expected[i][0], fired.get(i).getFirstRow());
+            assertEquals(expected[i][1], fired.get(i).getLastRow());
+        }
+
+        // Without the filter the notes are still hidden.
+        model.setFilter(null);
+        model.deleteEvents(new int[]{1, model.getRowCount() - 2});
+        assertRowMap(model);
+    }
+}
@@ -0,0 +1,181 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author john
+ */
+public class BatchProcessorTest
+{
+
+    public BatchProcessorTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of parseOperation method, of class BatchProcessor.
+     */
+    @Test
+    public void testParseOperation() {
+        System.out.println("parseOperation");
+        assertNotNull(BatchProcessor.parseOperation("transpose=-3"));
+        assertNotNull(BatchProcessor.parseOperation("noteoff"));
+        assertNotNull(BatchProcessor.parseOperation("quantise=4"));
+        assertNotNull(BatchProcessor.parseOperation("channel=3"));
+        assertNotNull(BatchProcessor.parseOperation("map-channel=0:9"));
+        assertNotNull(BatchProcessor.parseOperation("map-program=24:25"));
+        // The runs of track operations are fused.
+        assertEquals(3, BatchProcessor.parseOperations(
+            "noteoff,velocity=90,transpose=2,scale-velocity=0.5,remove-notes")
+            .size());
+        boolean thrown = false;
+        try {
+            BatchProcessor.parseOperation("unknown");
+        } catch (IllegalArgumentException ex) {
+            thrown = true;
+        }
+        assertTrue(thrown);
+    }
+
+    /**
+     * Test of the quantise operation of class BatchProcessor.
+     * Every track is quantised and repeated notes are kept apart.
+     */
+    @Test
+    public void testQuantise() throws Exception {
+        System.out.println("quantise");
+        Sequence s = new Sequence(Sequence.PPQ, 96);
+        QuantiserTest.repeatedNotes(s);
+        QuantiserTest.repeatedNotes(s);
+        MqfSequence seq = new MqfSequence(s);
+        BatchProcessor.parseOperation("quantise=4").apply(seq);
+        QuantiserTest.assertRepeatedNotes(seq.getTrack(0));
+        QuantiserTest.assertRepeatedNotes(seq.getTrack(1));
+    }
+
+    /**
+     * Test of the remove-notes operation of class BatchProcessor.
+     * The notes are removed from every track and the other events kept.
+     */
+    @Test
+    public void testRemoveNotes() throws Exception {
+        System.out.println("removeNotes");
+        MqfSequence seq = new MqfSequence(SmfReaderTest.createTestSequence());
+        int size = seq.getTrack(1).size();
+        for (BatchProcessor.Operation op
+            : BatchProcessor.parseOperations("velocity=90,remove-notes")) {
+            op.apply(seq);
+        }
+        for (int t = 1; t < seq.getTrackCount(); ++t) {
+            Track track = seq.getTrack(t);
+            assertEquals(size - 100, track.size());
+            for (int i = 0; i < track.size(); ++i) {
+                if (track.get(i).getMessage() instanceof ShortMessage) {
+                    int command = ((ShortMessage)track.get(i).getMessage())
+                        .getCommand();
+                    assertTrue(command != ShortMessage.NOTE_ON
+                        && command != ShortMessage.NOTE_OFF);
+                }
+            }
+            assertEquals(0, seq.getNoteIndex(t).size());
+        }
+    }
+
+    /**
+     * Test of submit method, of class BatchProcessor.
+     * Every file in the directory must be processed and written
+     * to the output directory.
+     */
+    @Test
+    public void testSubmit() throws Exception {
+        System.out.println("submit");
+        Path dir = Files.createTempDirectory("BatchProcessorTest");
+        Path out = Files.createTempDirectory("BatchProcessorTestOut");
+        for (int i = 0; i < 5; ++i) {
+            File f = dir.resolve("song" + i + ".mid").toFile();
+            f.deleteOnExit();
+            MidiSystem.write(SmfReaderTest.createTestSequence(), 1, f);
+        }
+        Files.write(dir.resolve("notes.txt"), new byte[]{1, 2, 3});
+        dir.resolve("notes.txt").toFile().deleteOnExit();
+
+        BatchProcessor bp = new BatchProcessor(Arrays.asList(
+            BatchProcessor.parseOperation("transpose=2"),
+            BatchProcessor.parseOperation("noteoff")), out, 2);
+        bp.submit(dir.toString());
+        bp.finish();
+
+        assertEquals(5, bp.getFileCount());
+        assertEquals(0, bp.getFailureCount());
+        Sequence result = MidiSystem.getSequence(out.resolve("song3.mid").toFile());
+        Track t = result.getTracks()[1];
+        boolean foundNote = false;
+        for (int i = 0; i < t.size(); ++i) {
+            if (t.get(i).getMessage() instanceof ShortMessage) {
+                ShortMessage sm = (ShortMessage)t.get(i).getMessage();
+                if (sm.getCommand() == ShortMessage.NOTE_ON) {
+                    assertTrue(sm.getData2() > 0);
+                    if (!foundNote) {
+                        assertEquals(62, sm.getData1());
+                        foundNote = true;
+                    }
+                }
+            }
+        }
+        assertTrue(foundNote);
+        for (File f : out.toFile().listFiles()) {
+            f.delete();
+        }
+    }
+}
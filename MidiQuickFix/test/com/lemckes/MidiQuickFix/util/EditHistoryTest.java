@@ -0,0 +1,286 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author john
+ */
+public class EditHistoryTest
+{
+
+    public EditHistoryTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private static MqfSequence createSequence() throws Exception {
+        Sequence seq = SmfReaderTest.createTestSequence();
+        // Transposing back from Ab gives G# rather than Gb.
+        seq.getTracks()[0].add(new MidiEvent(
+            new MetaMessage(MetaEvent.KEY_SIGNATURE, new byte[]{-6, 0}, 2), 0));
+        return new MqfSequence(seq);
+    }
+
+    /**
+     * Make one edit of each kind.
+     */
+    private static void edit(MqfSequence seq) throws Exception {
+        seq.removeEvents(1, new int[]{2, 5, 6});
+        TrackUpdateUtils.setNoteOnVelocity(seq, 1, 64);
+        TrackUpdateUtils.addSpaceToLyric(seq, 2, new int[]{3, 6});
+        TrackUpdateUtils.shiftEvents(seq, 2, new int[]{10, 11}, 3000);
+        List<MidiEvent> added = new ArrayList<>();
+        added.add(new MidiEvent(
+            new ShortMessage(ShortMessage.NOTE_ON, 1, 40, 90), 0));
+        added.add(new MidiEvent(
+            new ShortMessage(ShortMessage.NOTE_ON, 1, 40, 0), 5000));
+        seq.addEvents(2, added);
+        Quantiser.quantise(seq, 2, 1);
+        // Move an event without changing its place in the track.
+        MidiEvent event = seq.getTrack(1).get(20);
+        long tick = event.getTick();
+        event.setTick(tick + 10);
+        seq.getHistory().tickChanged(1, 20, tick, tick + 10);
+    }
+
+    /**
+     * Undoing the edits restores the sequence and redoing them
+     * makes the same changes again.
+     */
+    @Test
+    public void testUndoRedo() throws Exception {
+        System.out.println("undoRedo");
+        MqfSequence original = createSequence();
+        MqfSequence edited = createSequence();
+        edit(edited);
+
+        MqfSequence seq = createSequence();
+        EditHistory history = seq.getHistory();
+        assertFalse(history.canUndo());
+        edit(seq);
+        SmfReaderTest.assertSameEvents(edited, seq);
+        assertEquals(7, history.getUndoCount());
+
+        while (history.canUndo()) {
+            assertTrue(history.undo());
+        }
+        SmfReaderTest.assertSameEvents(original, seq);
+        assertEquals(7, history.getRedoCount());
+
+        while (history.canRedo()) {
+            assertTrue(history.redo());
+        }
+        SmfReaderTest.assertSameEvents(edited, seq);
+
+        // A new edit replaces the edits that were undone.
+        history.undo();
+        assertTrue(history.canRedo());
+        TrackUpdateUtils.convertNoteOnZeroToNoteOff(seq, 1);
+        assertFalse(history.canRedo());
+    }
+
+    /**
+     * A transpose is a single record, the notes that were moved to
+     * stay in range and the key signature are put back on undo.
+     */
+    @Test
+    public void testTranspose() throws Exception {
+        System.out.println("transpose");
+        MqfSequence original = createSequence();
+        MqfSequence transposed = createSequence();
+        assertTrue(Transposer.transpose(transposed, 62));
+
+        MqfSequence seq = createSequence();
+        EditHistory history = seq.getHistory();
+        long before = history.getMemoryUsed();
+        assertTrue(Transposer.transpose(seq, 62));
+        assertEquals(1, history.getUndoCount());
+        // Much less than a copy of every note.
+        assertTrue(history.getMemoryUsed() - before < 2000);
+
+        assertTrue(history.undo());
+        SmfReaderTest.assertSameEvents(original, seq);
+        assertTrue(history.redo());
+        SmfReaderTest.assertSameEvents(transposed, seq);
+    }
+
+    /**
+     * Created and deleted tracks are restored with their events.
+     */
+    @Test
+    public void testTracks() throws Exception {
+        System.out.println("tracks");
+        MqfSequence original = createSequence();
+        MqfSequence seq = createSequence();
+        EditHistory history = seq.getHistory();
+
+        history.beginEdit();
+        Track track = seq.createTrack(1);
+        track.add(new MidiEvent(
+            new ShortMessage(ShortMessage.PROGRAM_CHANGE, 3, 10, 0), 0));
+        track.add(new MidiEvent(
+            new ShortMessage(ShortMessage.NOTE_ON, 3, 50, 80), 100));
+        seq.trackChanged(1);
+        history.endEdit();
+        seq.deleteTrack(seq.getTrack(3));
+        assertEquals(3, seq.getTrackCount());
+        assertEquals(2, history.getUndoCount());
+
+        history.undo();
+        assertEquals(4, seq.getTrackCount());
+        history.undo();
+        SmfReaderTest.assertSameEvents(original, seq);
+
+        history.redo();
+        assertEquals(4, seq.getTrackCount());
+        assertEquals(3, seq.getTrack(1).size());
+        assertEquals(100, seq.getTrack(1).get(1).getTick());
+        history.redo();
+        assertEquals(3, seq.getTrackCount());
+        assertEquals(3, seq.getTrack(1).size());
+    }
+
+    /**
+     * Changes of the same kind within an edit are merged into one record.
+     */
+    @Test
+    public void testMerging() throws Exception {
+        System.out.println("merging");
+        MqfSequence seq = createSequence();
+        EditHistory history = seq.getHistory();
+
+        long before = history.getMemoryUsed();
+        history.beginEdit();
+        history.tickChanged(1, 3, 0, 0);
+        long one = history.getMemoryUsed() - before;
+        for (int i = 4; i < 20; ++i) {
+            history.tickChanged(1, i, 0, 0);
+        }
+        history.endEdit();
+        // Each further change only adds its index and ticks.
+        assertEquals(one + 16 * 20, history.getMemoryUsed() - before);
+        assertEquals(1, history.getUndoCount());
+
+        // Changes outside beginEdit() are separate edits.
+        history.tickChanged(1, 3, 0, 0);
+        history.tickChanged(1, 4, 0, 0);
+        assertEquals(3, history.getUndoCount());
+    }
+
+    /**
+     * Make an edit of several records and then change the sequence
+     * without recording it so that only some of the records match.
+     */
+    private static MqfSequence editAndChange() throws Exception {
+        MqfSequence seq = createSequence();
+        EditHistory history = seq.getHistory();
+        history.beginEdit();
+        TrackUpdateUtils.setNoteOnVelocity(seq, 1, 64);
+        seq.removeEvents(2, new int[]{5, 6});
+        TrackUpdateUtils.setNoteOnVelocity(seq, 2, 64);
+        history.endEdit();
+        ShortMessage note = (ShortMessage)seq.getTrack(1).get(2).getMessage();
+        note.setMessage(note.getCommand(), note.getChannel(), note.getData1(), 1);
+        return seq;
+    }
+
+    /**
+     * An edit that does not match the sequence is not half undone,
+     * the records already undone are redone before the history is cleared.
+     */
+    @Test
+    public void testUndoMismatch() throws Exception {
+        System.out.println("undoMismatch");
+        MqfSequence expected = editAndChange();
+        MqfSequence seq = editAndChange();
+        EditHistory history = seq.getHistory();
+        assertEquals(1, history.getUndoCount());
+
+        assertFalse(history.undo());
+        SmfReaderTest.assertSameEvents(expected, seq);
+        assertFalse(history.canUndo());
+        assertFalse(history.canRedo());
+        assertEquals(expected.getNoteIndex(2).size(),
+            seq.getNoteIndex(2).size());
+    }
+
+    /**
+     * The oldest edits are discarded to keep within the memory limit.
+     */
+    @Test
+    public void testMemoryLimit() throws Exception {
+        System.out.println("memoryLimit");
+        MqfSequence seq = createSequence();
+        EditHistory history = seq.getHistory();
+        history.setMemoryLimit(3000);
+
+        for (int velocity = 1; velocity <= 20; ++velocity) {
+            TrackUpdateUtils.setNoteOnVelocity(seq, 1, velocity);
+            assertTrue(history.getMemoryUsed() <= 3000);
+        }
+        int kept = history.getUndoCount();
+        assertTrue(kept > 0 && kept < 20);
+
+        while (history.canUndo()) {
+            assertTrue(history.undo());
+        }
+        // Back to the velocity before the oldest edit that was kept.
+        ShortMessage note = (ShortMessage)seq.getTrack(1).get(2).getMessage();
+        assertEquals(ShortMessage.NOTE_ON, note.getCommand());
+        assertEquals(20 - kept, note.getData2());
+
+        history.setMemoryLimit(0);
+        assertFalse(history.canUndo());
+        assertFalse(history.canRedo());
+    }
+}
@@ -0,0 +1,134 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import java.io.File;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author john
+ */
+public class MessageRewriterTest
+{
+
+    public MessageRewriterTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private static void assertChannel(Track track, int channel) {
+        for (int e = 0; e < track.size(); ++e) {
+            if (track.get(e).getMessage() instanceof ShortMessage) {
+                ShortMessage sm = (ShortMessage)track.get(e).getMessage();
+                assertEquals(channel, sm.getChannel());
+            }
+        }
+    }
+
+    /**
+     * Test of setChannel method, of class MessageRewriter.
+     */
+    @Test
+    public void testSetChannel() throws Exception {
+        System.out.println("setChannel");
+        MqfSequence original = new MqfSequence(SmfReaderTest.createTestSequence());
+        MqfSequence seq = new MqfSequence(SmfReaderTest.createTestSequence());
+        Track track = seq.getTrack(1);
+        MidiEvent first = track.get(0);
+        int version = seq.getTrackVersion(1);
+
+        assertEquals(104, MessageRewriter.setChannel(seq, 1, 5));
+        assertChannel(seq.getTrack(1), 5);
+        // Changed in place, analysed once.
+        assertSame(track, seq.getTrack(1));
+        assertSame(first, track.get(0));
+        assertEquals(version + 1, seq.getTrackVersion(1));
+        assertEquals(5, seq.getTrackChannel(1));
+        // Nothing left to change.
+        assertEquals(0, MessageRewriter.setChannel(seq, 1, 5));
+
+        EditHistory history = seq.getHistory();
+        assertEquals(1, history.getUndoCount());
+        assertTrue(history.undo());
+        SmfReaderTest.assertSameEvents(original, seq);
+    }
+
+    /**
+     * A Track that has not been decoded is rewritten in its packed form.
+     */
+    @Test
+    public void testPackedTrack() throws Exception {
+        System.out.println("packedTrack");
+        File file = File.createTempFile("MessageRewriterTest", ".mid");
+        file.deleteOnExit();
+        MidiSystem.write(SmfReaderTest.createTestSequence(), 1, file);
+
+        MqfSequence seq = SmfReader.read(file, true);
+        assertEquals(104, MessageRewriter.mapChannel(seq, 2, 1, 9));
+        assertEquals(1, MessageRewriter.remapPrograms(
+            seq, 2, MessageRewriter.programMap(25, 40)));
+        assertNotNull(seq.getPackedTrack(2));
+        assertEquals(9, seq.getTrackChannel(2));
+        assertEquals(40, seq.getTrackProgram(2));
+        // Channel 0 is not on track 2.
+        assertEquals(0, MessageRewriter.mapChannel(seq, 2, 0, 3));
+
+        Track track = seq.getTrack(2);
+        assertChannel(track, 9);
+        ShortMessage program = (ShortMessage)track.get(0).getMessage();
+        assertEquals(ShortMessage.PROGRAM_CHANGE, program.getCommand());
+        assertEquals(40, program.getData1());
+
+        // Undo works on the decoded track.
+        EditHistory history = seq.getHistory();
+        assertTrue(history.undo());
+        assertTrue(history.undo());
+        Sequence expected = MidiSystem.getSequence(file);
+        SmfReaderTest.assertSameEvents(expected, seq);
+    }
+}
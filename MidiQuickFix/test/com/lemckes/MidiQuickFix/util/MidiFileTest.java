@@ -0,0 +1,158 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.io.File;
+import java.nio.ByteBuffer;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author john
+ */
+public class MidiFileTest
+{
+
+    public MidiFileTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * The probe must agree with the fully read sequence.
+     */
+    @Test
+    public void testProbe() throws Exception {
+        System.out.println("probe");
+        Sequence seq = SmfReaderTest.createTestSequence();
+        byte[] copyright = "(C) Someone".getBytes();
+        seq.getTracks()[0].add(new MidiEvent(new MetaMessage(
+            MetaEvent.COPYRIGHT, copyright, copyright.length), 0));
+        byte[] timeSig = {3, 2, 24, 8};
+        seq.getTracks()[0].add(new MidiEvent(
+            new MetaMessage(MetaEvent.TIME_SIGNATURE, timeSig, 4), 0));
+        byte[] key = {-2, 1};
+        seq.getTracks()[0].add(new MidiEvent(
+            new MetaMessage(MetaEvent.KEY_SIGNATURE, key, 2), 0));
+        // Halve the tempo part way through.
+        byte[] tempo = {0x0f, 0x42, 0x40};
+        seq.getTracks()[0].add(new MidiEvent(
+            new MetaMessage(MetaEvent.TEMPO, tempo, 3), 4800));
+
+        File file = File.createTempFile("MidiFileTest", ".mid");
+        file.deleteOnExit();
+        MidiSystem.write(seq, 1, file);
+
+        MqfSequence expected = SmfReader.read(file);
+        MidiFile.Probe probe = MidiFile.probe(file);
+        assertEquals(1, probe.getType());
+        assertEquals(Sequence.PPQ, probe.getDivisionType(), 0.0);
+        assertEquals(480, probe.getResolution());
+        assertEquals("Track Zero", probe.getTitle());
+        assertEquals("(C) Someone", probe.getCopyright());
+        assertEquals(120, probe.getBpm());
+        assertEquals("3/4", probe.getTimeSignature());
+        assertEquals("Gm", probe.getKeySignature());
+        assertEquals(expected.getTrackCount(), probe.getTrackCount());
+        for (int i = 0; i < probe.getTrackCount(); ++i) {
+            assertEquals(expected.getTrackName(i),
+                probe.getTrackNames().get(i));
+        }
+        assertEquals(expected.getTickLength(), probe.getTickLength());
+        assertEquals(expected.getMicrosecondLength(),
+            probe.getMicrosecondLength());
+    }
+
+    /**
+     * A file without tick zero meta events gets the defaults.
+     */
+    @Test
+    public void testProbeDefaults() throws Exception {
+        System.out.println("probeDefaults");
+        byte[] smf = {
+            0x4d, 0x54, 0x68, 0x64, 0, 0, 0, 6, 0, 0, 0, 1, 0, 96,
+            0x4d, 0x54, 0x72, 0x6b, 0, 0, 0, 12,
+            0, (byte)0x90, 60, 100,
+            96, 60, 0,
+            0, (byte)0xff, 0x2f, 0};
+        MidiFile.Probe probe = MidiFile.probe(ByteBuffer.wrap(smf));
+        assertEquals(0, probe.getType());
+        assertNull(probe.getTitle());
+        assertNull(probe.getTimeSignature());
+        assertNull(probe.getKeySignature());
+        assertEquals(120, probe.getBpm());
+        assertEquals(1, probe.getTrackCount());
+        assertEquals(96, probe.getTickLength());
+        assertEquals(500000, probe.getMicrosecondLength());
+    }
+
+    @Test
+    public void testProbeNotMidi() throws Exception {
+        System.out.println("probeNotMidi");
+        try {
+            MidiFile.probe(ByteBuffer.wrap("RIFF not a midi file".getBytes()));
+            fail("Expected InvalidMidiDataException");
+        } catch (InvalidMidiDataException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testProbeHeaderTooLong() throws Exception {
+        System.out.println("probeHeaderTooLong");
+        byte[] smf = {
+            'M', 'T', 'h', 'd', 0, 0, 0, 100, 0, 0, 0, 1, 0, 96
+        };
+        try {
+            MidiFile.probe(ByteBuffer.wrap(smf));
+            fail("Expected InvalidMidiDataException");
+        } catch (InvalidMidiDataException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author john
+ */
+public class MidiLibraryIndexTest
+{
+
+    private Path mDir;
+
+    public MidiLibraryIndexTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = Files.createTempDirectory("MidiLibraryIndexTest");
+        mDir.toFile().deleteOnExit();
+        for (int i = 0; i < 4; ++i) {
+            Sequence seq = SmfReaderTest.createTestSequence();
+            String text = "{#Title=Song " + i + "}{#Artist=Someone}";
+            seq.getTracks()[1].add(new MidiEvent(new MetaMessage(
+                MetaEvent.TEXT, text.getBytes(), text.length()), 0));
+            // 0x07a120 is 120bpm, make each file slower
+            byte[] tempo = {(byte)(0x07 + i * 2), (byte)0xa1, 0x20};
+            MetaMessage tempoMessage
+                = (MetaMessage)seq.getTracks()[0].get(0).getMessage();
+            tempoMessage.setMessage(MetaEvent.TEMPO, tempo, 3);
+            byte[] key = {(byte)(i - 1), 0};
+            seq.getTracks()[0].add(new MidiEvent(
+                new MetaMessage(MetaEvent.KEY_SIGNATURE, key, 2), 0));
+            File f = mDir.resolve("song" + i + ".mid").toFile();
+            f.deleteOnExit();
+            MidiSystem.write(seq, 1, f);
+        }
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of scan method, of class MidiLibraryIndex.
+     * A second scan must only read the files that have changed.
+     */
+    @Test
+    public void testScan() throws Exception {
+        System.out.println("scan");
+        MidiLibraryIndex index = new MidiLibraryIndex();
+        assertEquals(4, index.scan(mDir));
+        assertEquals(4, index.size());
+        assertEquals(0, index.scan(mDir));
+
+        Path changed = mDir.resolve("song2.mid");
+        MidiSystem.write(SmfReaderTest.createTestSequence(), 1, changed.toFile());
+        Files.setLastModifiedTime(changed, java.nio.file.attribute.FileTime
+            .fromMillis(System.currentTimeMillis() + 10000));
+        Files.delete(mDir.resolve("song3.mid"));
+        assertEquals(1, index.scan(mDir));
+        assertEquals(3, index.size());
+        assertEquals("Track Zero", index.get(changed).getTitle());
+    }
+
+    /**
+     * Test of the query methods, of class MidiLibraryIndex.
+     */
+    @Test
+    public void testQueries() throws Exception {
+        System.out.println("queries");
+        MidiLibraryIndex index = new MidiLibraryIndex();
+        index.scan(mDir);
+
+        List<MidiLibraryIndex.Entry> found = index.findByTitle("song 1");
+        assertEquals(1, found.size());
+        MidiLibraryIndex.Entry e = found.get(0);
+        assertEquals("Someone", e.getSongInfo().get("Artist"));
+        assertEquals(3, e.getTrackCount());
+        assertEquals("Track Zero", e.getTrackNames()[0]);
+        assertEquals("C", e.getKey());
+        assertEquals(4, index.findByTitlePrefix("SONG").size());
+        assertEquals(2, index.findByTempo(90, 120).size());
+        assertEquals(1, index.findByKey("F").size());
+        assertEquals(4, index.findByTrackCount(3, 3).size());
+        assertEquals(0, index.findByTrackCount(4, 100).size());
+    }
+
+    /**
+     * Test of save and load methods, of class MidiLibraryIndex.
+     */
+    @Test
+    public void testSaveLoad() throws Exception {
+        System.out.println("save/load");
+        MidiLibraryIndex index = new MidiLibraryIndex();
+        index.scan(mDir);
+        Path file = Files.createTempFile("MidiLibraryIndexTest", ".idx");
+        file.toFile().deleteOnExit();
+        index.save(file);
+
+        MidiLibraryIndex loaded = new MidiLibraryIndex();
+        loaded.load(file);
+        assertEquals(4, loaded.size());
+        MidiLibraryIndex.Entry expected = index.get(mDir.resolve("song0.mid"));
+        MidiLibraryIndex.Entry actual = loaded.get(mDir.resolve("song0.mid"));
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getBpm(), actual.getBpm());
+        assertEquals(expected.getKey(), actual.getKey());
+        assertEquals(expected.getTimeSignature(), actual.getTimeSignature());
+        assertEquals(expected.getMicrosecondLength(), actual.getMicrosecondLength());
+        assertEquals(expected.getSongInfo().get("Artist"),
+            actual.getSongInfo().get("Artist"));
+        // Nothing has changed since the index was saved.
+        assertEquals(0, loaded.scan(mDir));
+    }
+}
@@ -0,0 +1,425 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.util.ArrayList;
+import java.util.List;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author john
+ */
+public class MqfSequenceTest
+{
+
+    public MqfSequenceTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of the summary info created for each track.
+     */
+    @Test
+    public void testTrackSummary() throws Exception {
+        System.out.println("track summary");
+        MqfSequence seq = new MqfSequence(SmfReaderTest.createTestSequence());
+
+        assertEquals("Track Zero", seq.getTrackName(0));
+        assertEquals(0, seq.getTrackNoteCount(0));
+        assertEquals(-1, seq.getTrackProgram(0));
+        assertFalse(seq.trackHasNotes(0));
+
+        for (int t = 1; t < 3; ++t) {
+            assertEquals(50, seq.getTrackNoteCount(t));
+            assertEquals(1, seq.getTrackMaxPolyphony(t));
+            assertTrue(seq.trackUsesController(t, 7));
+            assertFalse(seq.trackUsesController(t, 64));
+            assertEquals(1, seq.getTrackProgramChangeCount(t));
+            assertEquals(24 + t - 1, seq.getTrackProgram(t));
+            assertEquals(50, seq.getTrackLyricCount(t));
+            assertTrue(seq.getTrackHasLyrics(t));
+            assertEquals(100, seq.getTrackVolume(t));
+        }
+    }
+
+    /**
+     * Test of the polyphony and controller info.
+     */
+    @Test
+    public void testPolyphony() throws Exception {
+        System.out.println("polyphony");
+        Sequence s = new Sequence(Sequence.PPQ, 480);
+        Track t = s.createTrack();
+        // A three note chord, one note ended by NOTE_OFF
+        // the others by a zero velocity NOTE_ON.
+        t.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 80), 0));
+        t.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 64, 80), 0));
+        t.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 67, 80), 0));
+        t.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), 480));
+        t.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 64, 0), 480));
+        t.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 67, 0), 480));
+        t.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 72, 80), 480));
+        t.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 72, 0), 960));
+        t.add(new MidiEvent(new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 127, 0), 960));
+
+        MqfSequence seq = new MqfSequence(s);
+        assertEquals(4, seq.getTrackNoteCount(0));
+        assertEquals(3, seq.getTrackMaxPolyphony(0));
+        assertEquals(60, seq.getTrackLowestNote(0));
+        assertEquals(72, seq.getTrackHighestNote(0));
+        assertTrue(seq.trackUsesController(0, 127));
+        assertFalse(seq.trackUsesController(0, 63));
+
+        // The packed analysis must agree.
+        MqfSequence.TrackInfo ti
+            = MqfSequence.analyseTrack(PackedTrack.fromTrack(t));
+        assertEquals(4, ti.mNoteCount);
+        assertEquals(3, ti.mMaxPolyphony);
+    }
+
+    /**
+     * A track with more than 8 TEXT events is treated as having lyrics.
+     */
+    @Test
+    public void testTextLyrics() throws Exception {
+        System.out.println("text lyrics");
+        Sequence s = new Sequence(Sequence.PPQ, 480);
+        Track few = s.createTrack();
+        Track many = s.createTrack();
+        for (int i = 0; i < 9; ++i) {
+            byte[] text = ("la" + i).getBytes();
+            MetaMessage mm = new MetaMessage(MetaEvent.TEXT, text, text.length);
+            if (i < 8) {
+                few.add(new MidiEvent(mm, i * 10));
+            }
+            many.add(new MidiEvent(mm, i * 10));
+        }
+        MqfSequence seq = new MqfSequence(s);
+        assertFalse(seq.getTrackHasLyrics(0));
+        assertTrue(seq.getTrackHasLyrics(1));
+        assertEquals(0, seq.getTrackLyricCount(1));
+    }
+
+    /**
+     * Test of the event change notifications.
+     * After each edit the TrackInfo must match a fresh analysis.
+     */
+    @Test
+    public void testIncrementalUpdate() throws Exception {
+        System.out.println("incremental update");
+        MqfSequence seq = new MqfSequence(SmfReaderTest.createTestSequence());
+        Track t = seq.getTrack(1);
+
+        // Delete the first NOTE_ON.
+        MidiEvent first = null;
+        for (int i = 0; i < t.size() && first == null; ++i) {
+            MidiMessage mm = t.get(i).getMessage();
+            if (mm instanceof ShortMessage
+                && ((ShortMessage)mm).getCommand() == ShortMessage.NOTE_ON) {
+                first = t.get(i);
+            }
+        }
+        t.remove(first);
+        seq.eventDeleted(1, first);
+        assertSameInfo(seq, 1);
+        // The zero velocity NOTE_ON of the deleted note is now first.
+        assertEquals(200, seq.getTrackFirstTick(1));
+
+        // Add a note below the range at the start.
+        MidiEvent low = new MidiEvent(
+            new ShortMessage(ShortMessage.NOTE_ON, 0, 20, 64), 10);
+        t.add(low);
+        seq.eventInserted(1, low);
+        assertSameInfo(seq, 1);
+        assertEquals(20, seq.getTrackLowestNote(1));
+        assertEquals(10, seq.getTrackFirstTick(1));
+
+        // Change it to a note above the range.
+        ShortMessage sm = (ShortMessage)low.getMessage();
+        MidiMessage old = (MidiMessage)sm.clone();
+        sm.setMessage(ShortMessage.NOTE_ON, 0, 100, 64);
+        seq.eventMessageChanged(1, low, old);
+        assertSameInfo(seq, 1);
+        assertEquals(100, seq.getTrackHighestNote(1));
+
+        // Move it to later in the track.
+        t.remove(low);
+        long oldTick = low.getTick();
+        low.setTick(5000);
+        t.add(low);
+        seq.eventTickChanged(1, low, oldTick);
+        assertSameInfo(seq, 1);
+
+        // Remove all the lyrics.
+        for (int i = t.size() - 1; i >= 0; --i) {
+            MidiEvent me = t.get(i);
+            if (me.getMessage() instanceof MetaMessage
+                && ((MetaMessage)me.getMessage()).getType() == MetaEvent.LYRIC) {
+                t.remove(me);
+                seq.eventDeleted(1, me);
+            }
+        }
+        assertSameInfo(seq, 1);
+        assertFalse(seq.getTrackHasLyrics(1));
+    }
+
+    /**
+     * The values that are set by the last event of their kind must be
+     * found again when that event is removed and must not be taken from
+     * an earlier event that is added.
+     */
+    @Test
+    public void testLastEventValues() throws Exception {
+        System.out.println("last event values");
+        Sequence s = new Sequence(Sequence.PPQ, 480);
+        Track t = s.createTrack();
+        MidiEvent nameA = name("A", 0);
+        MidiEvent nameB = name("B", 10);
+        t.add(nameA);
+        t.add(nameB);
+        t.add(new MidiEvent(
+            new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, 5, 0), 0));
+        MidiEvent program = new MidiEvent(
+            new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, 7, 0), 100);
+        t.add(program);
+        t.add(new MidiEvent(
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 80), 0));
+        MidiEvent volume = new MidiEvent(
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 90), 50);
+        t.add(volume);
+        t.add(new MidiEvent(
+            new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 64), 100));
+        MidiEvent last = new MidiEvent(
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 1, 10, 64), 200);
+        t.add(last);
+        MqfSequence seq = new MqfSequence(s);
+        t = seq.getTrack(0);
+        assertEquals("B", seq.getTrackName(0));
+        assertEquals(7, seq.getTrackProgram(0));
+        assertEquals(90, seq.getTrackVolume(0));
+        assertEquals(1, seq.getTrackChannel(0));
+
+        // Delete the last program change.
+        t.remove(program);
+        seq.eventDeleted(0, program);
+        assertSameInfo(seq, 0);
+        assertEquals(5, seq.getTrackProgram(0));
+
+        // Delete one of the two names.
+        t.remove(nameB);
+        seq.eventDeleted(0, nameB);
+        assertSameInfo(seq, 0);
+        assertEquals("A", seq.getTrackName(0));
+
+        // Delete the last volume.
+        t.remove(volume);
+        seq.eventDeleted(0, volume);
+        assertSameInfo(seq, 0);
+        assertEquals(80, seq.getTrackVolume(0));
+
+        // An earlier event on another channel does not set the channel.
+        MidiEvent early = new MidiEvent(
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 2, 10, 64), 10);
+        t.add(early);
+        seq.eventInserted(0, early);
+        assertSameInfo(seq, 0);
+        assertEquals(1, seq.getTrackChannel(0));
+
+        // Moving the last event before the others gives the channel
+        // of the event that is now last.
+        t.remove(last);
+        last.setTick(5);
+        t.add(last);
+        seq.eventTickChanged(0, last, 200);
+        assertSameInfo(seq, 0);
+        assertEquals(0, seq.getTrackChannel(0));
+
+        // A name added at the tick of the current name is after it.
+        MidiEvent nameC = name("C", 0);
+        t.add(nameC);
+        seq.eventInserted(0, nameC);
+        assertSameInfo(seq, 0);
+        assertEquals("C", seq.getTrackName(0));
+    }
+
+    private static MidiEvent name(String name, long tick) throws Exception {
+        byte[] data = name.getBytes("US-ASCII"); // NOI18N
+        return new MidiEvent(new MetaMessage(
+            MetaEvent.TRACK_NAME, data, data.length), tick);
+    }
+
+    /**
+     * The bulk edits must give the same Track as the single event edits.
+     */
+    @Test
+    public void testBulkEdits() throws Exception {
+        System.out.println("bulk edits");
+        MqfSequence seq = new MqfSequence(SmfReaderTest.createTestSequence());
+        Track single = seq.createTrack();
+        Track t = seq.getTrack(1);
+        for (int i = 0; i < t.size(); ++i) {
+            single.add(t.get(i));
+        }
+        long length = t.ticks();
+
+        // Remove every third event by index.
+        int[] indexes = new int[t.size() / 3];
+        for (int i = 0; i < indexes.length; ++i) {
+            indexes[i] = i * 3;
+            single.remove(t.get(i * 3));
+        }
+        Track bulk = seq.removeEvents(1, indexes);
+        assertSame(bulk, seq.getTrack(1));
+        assertNotSame(t, bulk);
+        assertSameEvents(single, bulk);
+        assertEquals(length, bulk.ticks());
+        assertSameInfo(seq, 1);
+
+        // Remove the lyrics.
+        for (int i = single.size() - 1; i >= 0; --i) {
+            if (single.get(i).getMessage() instanceof MetaMessage
+                && ((MetaMessage)single.get(i).getMessage()).getType() == MetaEvent.LYRIC) {
+                single.remove(single.get(i));
+            }
+        }
+        bulk = seq.removeEvents(1, e -> e.getMessage() instanceof MetaMessage
+            && ((MetaMessage)e.getMessage()).getType() == MetaEvent.LYRIC);
+        assertSameEvents(single, bulk);
+        assertFalse(seq.getTrackHasLyrics(1));
+
+        // Add some events, out of order and some at existing ticks.
+        List<MidiEvent> added = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            added.add(new MidiEvent(new ShortMessage(
+                ShortMessage.NOTE_ON, 0, 40 + i, 64), (19 - i) * 480 + i % 2));
+        }
+        added.add(new MidiEvent(new ShortMessage(
+            ShortMessage.NOTE_ON, 0, 30, 64), length + 100));
+        for (MidiEvent e : added) {
+            single.add(e);
+        }
+        bulk = seq.addEvents(1, added);
+        assertSameEvents(single, bulk);
+        assertEquals(length + 100, bulk.ticks());
+        assertSameInfo(seq, 1);
+        assertEquals(30, seq.getTrackLowestNote(1));
+    }
+
+    /**
+     * The edits notified to the sequence are recorded as a SequenceChange.
+     */
+    @Test
+    public void testTakeChange() throws Exception {
+        System.out.println("take change");
+        MqfSequence seq = new MqfSequence(SmfReaderTest.createTestSequence());
+        assertTrue(seq.takeChange().isEmpty());
+
+        // Changing a message needs no resync.
+        Track t = seq.getTrack(1);
+        MidiEvent cc = t.get(1);
+        MidiMessage old = (MidiMessage)cc.getMessage().clone();
+        ((ShortMessage)cc.getMessage()).setMessage(
+            ShortMessage.CONTROL_CHANGE, 1, 7, 80);
+        seq.eventMessageChanged(1, cc, old);
+        // Adding a lyric later in the track.
+        byte[] lyric = "da".getBytes();
+        MidiEvent me = new MidiEvent(
+            new MetaMessage(MetaEvent.LYRIC, lyric, lyric.length), 4000);
+        t.add(me);
+        seq.eventInserted(1, me);
+
+        SequenceChange change = seq.takeChange();
+        assertFalse(change.isEmpty());
+        assertFalse(change.isTracksChanged());
+        assertFalse(change.isTempoChanged());
+        assertTrue(change.isLyricsChanged());
+        assertEquals(1, change.getChangedTracks().size());
+        assertTrue(change.getChangedTracks().contains(1));
+        assertEquals(0, change.getFromTick());
+        assertEquals(4000, change.getToTick());
+        assertFalse(change.needsResync(3999));
+        assertTrue(change.needsResync(4000));
+        assertTrue(seq.takeChange().isEmpty());
+
+        // Adding a track changes everything.
+        seq.createTrack();
+        change = seq.takeChange();
+        assertTrue(change.isTracksChanged());
+        assertTrue(change.needsResync(0));
+    }
+
+    private static void assertSameEvents(Track expected, Track actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size() - 1; ++i) {
+            assertSame("Event " + i, expected.get(i), actual.get(i));
+        }
+        assertEquals(expected.ticks(), actual.ticks());
+    }
+
+    private static void assertSameInfo(MqfSequence seq, int track) {
+        MqfSequence.TrackInfo expected
+            = MqfSequence.analyseTrack(seq.getTrack(track));
+        assertEquals(expected.mName, seq.getTrackName(track));
+        assertEquals(expected.mFirstTick, seq.getTrackFirstTick(track));
+        assertEquals(expected.mLowestNote, seq.getTrackLowestNote(track));
+        assertEquals(expected.mHighestNote, seq.getTrackHighestNote(track));
+        assertEquals(expected.mHasNotes, seq.trackHasNotes(track));
+        assertEquals(expected.mNoteCount, seq.getTrackNoteCount(track));
+        assertEquals(expected.mMaxPolyphony, seq.getTrackMaxPolyphony(track));
+        assertEquals(expected.mProgramChangeCount,
+            seq.getTrackProgramChangeCount(track));
+        assertEquals(expected.mLyricCount, seq.getTrackLyricCount(track));
+        assertEquals(expected.mHasLyrics, seq.getTrackHasLyrics(track));
+        assertEquals(expected.mChannel, seq.getTrackChannel(track));
+        assertEquals(expected.mProgram, seq.getTrackProgram(track));
+        assertEquals(expected.mVolume, seq.getTrackVolume(track));
+    }
+}
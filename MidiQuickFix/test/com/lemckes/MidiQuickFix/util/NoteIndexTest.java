@@ -0,0 +1,351 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author john
+ */
+public class NoteIndexTest
+{
+
+    public NoteIndexTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private static void add(Track t, long tick, int command, int channel,
+        int note, int velocity) throws Exception {
+        t.add(new MidiEvent(
+            new ShortMessage(command, channel, note, velocity), tick));
+    }
+
+    /**
+     * Test the pairing of NOTE_ONs with the events that end them.
+     */
+    @Test
+    public void testPairing() throws Exception {
+        System.out.println("pairing");
+        Track t = new Sequence(Sequence.PPQ, 480).createTrack();
+        // Two stacked C4s, ended in the order they started.
+        add(t, 0, ShortMessage.NOTE_ON, 0, 60, 100);
+        add(t, 10, ShortMessage.NOTE_ON, 0, 60, 90);
+        add(t, 20, ShortMessage.NOTE_OFF, 0, 60, 0);
+        add(t, 30, ShortMessage.NOTE_ON, 0, 60, 0);
+        // The same note on another channel is a different note.
+        add(t, 40, ShortMessage.NOTE_ON, 1, 60, 80);
+        add(t, 50, ShortMessage.NOTE_OFF, 0, 60, 0);
+        // Never ended.
+        add(t, 60, ShortMessage.NOTE_ON, 2, 64, 70);
+        add(t, 70, ShortMessage.NOTE_OFF, 1, 60, 0);
+        t.get(t.size() - 1).setTick(100);
+
+        NoteIndex notes = NoteIndex.build(t);
+        assertEquals(4, notes.size());
+        assertEquals(100, notes.getLength());
+
+        assertEquals(0, notes.getStart(0));
+        assertEquals(20, notes.getEnd(0));
+        assertEquals(100, notes.getVelocity(0));
+        assertEquals(0, notes.getOnIndex(0));
+        assertEquals(2, notes.getOffIndex(0));
+
+        assertEquals(10, notes.getStart(1));
+        assertEquals(30, notes.getEnd(1));
+        assertEquals(3, notes.getOffIndex(1));
+
+        assertEquals(40, notes.getStart(2));
+        assertEquals(70, notes.getEnd(2));
+        assertEquals(1, notes.getChannel(2));
+
+        assertEquals(60, notes.getStart(3));
+        assertEquals(100, notes.getEnd(3));
+        assertEquals(-1, notes.getOffIndex(3));
+        assertEquals(64, notes.getPitch(3));
+
+        assertEquals(60, notes.getLowestPitch());
+        assertEquals(64, notes.getHighestPitch());
+    }
+
+    /**
+     * Test finding the notes in ranges of ticks and pitches
+     * against a search of all the notes.
+     */
+    @Test
+    public void testFindNotes() throws Exception {
+        System.out.println("findNotes");
+        Random rnd = new Random(20);
+        Track t = new Sequence(Sequence.PPQ, 480).createTrack();
+        for (int i = 0; i < 5000; ++i) {
+            long start = rnd.nextInt(200000);
+            // Mostly short notes, a few very long ones and some with
+            // no length at all.
+            int r = rnd.nextInt(100);
+            long length = r < 2 ? rnd.nextInt(100000)
+                : r < 5 ? 0 : rnd.nextInt(2000);
+            int note = 30 + rnd.nextInt(60);
+            add(t, start, ShortMessage.NOTE_ON, 0, note, 1 + rnd.nextInt(127));
+            add(t, start + length, ShortMessage.NOTE_OFF, 0, note, 0);
+        }
+        NoteIndex notes = NoteIndex.build(t);
+        assertEquals(5000, notes.size());
+
+        for (int q = 0; q < 500; ++q) {
+            long from = rnd.nextInt(320000) - 10000;
+            long to = from + rnd.nextInt(q % 10 == 0 ? 100000 : 3000);
+            int low = rnd.nextInt(128);
+            int high = low + rnd.nextInt(128 - low);
+
+            List<Integer> expected = new ArrayList<>();
+            for (int n = 0; n < notes.size(); ++n) {
+                long end = Math.max(notes.getEnd(n), notes.getStart(n) + 1);
+                if (notes.getStart(n) < to && end > from
+                    && notes.getPitch(n) >= low && notes.getPitch(n) <= high) {
+                    expected.add(n);
+                }
+            }
+            List<Integer> found = new ArrayList<>();
+            notes.findNotes(from, to, low, high, found::add);
+            // The notes that start in the range come last, in order.
+            for (int i = 1; i < found.size(); ++i) {
+                if (notes.getStart(found.get(i - 1)) >= from) {
+                    assertTrue(found.get(i - 1) < found.get(i));
+                }
+            }
+            Collections.sort(found);
+            assertEquals("query " + from + "-" + to, expected, found);
+        }
+    }
+
+    /**
+     * Test that an index made from the packed events of a Track is the
+     * same as one made from the Track.
+     */
+    @Test
+    public void testBuildPacked() throws Exception {
+        System.out.println("buildPacked");
+        Random rnd = new Random(3);
+        Track t = new Sequence(Sequence.PPQ, 480).createTrack();
+        for (int i = 0; i < 1000; ++i) {
+            long start = rnd.nextInt(50000);
+            int note = 40 + rnd.nextInt(12);
+            add(t, start, ShortMessage.NOTE_ON, rnd.nextInt(2), note, 64);
+            add(t, start + rnd.nextInt(500), ShortMessage.NOTE_ON,
+                rnd.nextInt(2), note, 0);
+        }
+        NoteIndex fromTrack = NoteIndex.build(t);
+        NoteIndex fromPacked = NoteIndex.build(PackedTrack.fromTrack(t));
+        assertEquals(fromTrack.size(), fromPacked.size());
+        assertEquals(fromTrack.getLength(), fromPacked.getLength());
+        for (int n = 0; n < fromTrack.size(); ++n) {
+            assertEquals(fromTrack.getStart(n), fromPacked.getStart(n));
+            assertEquals(fromTrack.getEnd(n), fromPacked.getEnd(n));
+            assertEquals(fromTrack.getChannel(n), fromPacked.getChannel(n));
+            assertEquals(fromTrack.getOnIndex(n), fromPacked.getOnIndex(n));
+            assertEquals(fromTrack.getOffIndex(n), fromPacked.getOffIndex(n));
+        }
+    }
+
+    /**
+     * Test that MqfSequence keeps the index of a Track up to date in
+     * place as the Track is edited.
+     */
+    @Test
+    public void testSequenceIndex() throws Exception {
+        System.out.println("sequenceIndex");
+        Sequence seq = new Sequence(Sequence.PPQ, 480);
+        Track t = seq.createTrack();
+        add(t, 0, ShortMessage.NOTE_ON, 0, 60, 100);
+        add(t, 480, ShortMessage.NOTE_OFF, 0, 60, 0);
+        add(t, 480, ShortMessage.NOTE_ON, 0, 62, 100);
+        add(t, 960, ShortMessage.NOTE_ON, 0, 62, 0);
+        MqfSequence mqfSeq = new MqfSequence(seq);
+
+        NoteIndex notes = mqfSeq.getNoteIndex(0);
+        assertEquals(2, notes.size());
+        assertSame(notes, mqfSeq.getNoteIndex(0));
+
+        Track track = mqfSeq.getTrack(0);
+        MidiEvent ev = track.get(2);
+        ShortMessage old = (ShortMessage)((ShortMessage)ev.getMessage()).clone();
+        ((ShortMessage)ev.getMessage()).setMessage(
+            ShortMessage.NOTE_ON, 0, 62, 30);
+        mqfSeq.eventMessageChanged(0, ev, old);
+        assertSame(notes, mqfSeq.getNoteIndex(0));
+        assertEquals(30, notes.getVelocity(1));
+
+        // Insert a note, which ends at the end of the Track.
+        MidiEvent added = new MidiEvent(
+            new ShortMessage(ShortMessage.NOTE_ON, 0, 64, 90), 100);
+        track.add(added);
+        mqfSeq.eventInserted(0, added);
+        assertSame(notes, mqfSeq.getNoteIndex(0));
+        assertEquals(3, notes.size());
+        assertEquals(64, notes.getPitch(1));
+        assertEquals(960, notes.getEnd(1));
+        assertEquals(30, notes.getVelocity(2));
+        assertEquals(3, notes.getOnIndex(2));
+        assertSameNotes(NoteIndex.build(track), notes);
+
+        // Delete the NOTE_OFF of the first note.
+        MidiEvent off = track.get(2);
+        track.remove(off);
+        mqfSeq.eventDeleted(0, 2, off);
+        assertSame(notes, mqfSeq.getNoteIndex(0));
+        assertEquals(-1, notes.getOffIndex(0));
+        assertEquals(960, notes.getEnd(0));
+        assertSameNotes(NoteIndex.build(track), notes);
+        List<Integer> found = new ArrayList<>();
+        notes.findNotes(700, 800, found::add);
+        assertEquals(3, found.size());
+    }
+
+    /**
+     * Test that an index kept up to date through many random edits is the
+     * same as one made from the edited Track.
+     */
+    @Test
+    public void testEdits() throws Exception {
+        System.out.println("edits");
+        Random rnd = new Random(11);
+        Sequence seq = new Sequence(Sequence.PPQ, 480);
+        Track t = seq.createTrack();
+        for (int i = 0; i < 300; ++i) {
+            t.add(new MidiEvent(randomMessage(rnd), rnd.nextInt(20000)));
+        }
+        MqfSequence mqfSeq = new MqfSequence(seq);
+        Track track = mqfSeq.getTrack(0);
+        NoteIndex notes = mqfSeq.getNoteIndex(0);
+        for (int edit = 0; edit < 1000; ++edit) {
+            // The End of Track event is not edited.
+            int i = rnd.nextInt(track.size() - 1);
+            MidiEvent ev = track.get(i);
+            switch (rnd.nextInt(4)) {
+                case 0:
+                    MidiEvent added = new MidiEvent(
+                        randomMessage(rnd), rnd.nextInt(21000));
+                    track.add(added);
+                    mqfSeq.eventInserted(0, added);
+                    break;
+                case 1:
+                    track.remove(ev);
+                    mqfSeq.eventDeleted(0, i, ev);
+                    break;
+                case 2:
+                    ShortMessage sm = (ShortMessage)ev.getMessage();
+                    ShortMessage old = (ShortMessage)sm.clone();
+                    ShortMessage changed = randomMessage(rnd);
+                    sm.setMessage(changed.getCommand(), changed.getChannel(),
+                        changed.getData1(), changed.getData2());
+                    mqfSeq.eventMessageChanged(0, ev, old);
+                    break;
+                default:
+                    // Move the event without changing its place.
+                    long low = i > 0 ? track.get(i - 1).getTick() : 0;
+                    long high = track.get(i + 1).getTick();
+                    long oldTick = ev.getTick();
+                    ev.setTick(low + rnd.nextInt((int)(high - low) + 1));
+                    mqfSeq.eventTickChanged(0, i, ev, oldTick);
+                    break;
+            }
+            assertSame(notes, mqfSeq.getNoteIndex(0));
+            NoteIndex expected = NoteIndex.build(track);
+            assertSameNotes(expected, notes);
+            long from = rnd.nextInt(21000);
+            long to = from + rnd.nextInt(3000);
+            List<Integer> expectedFound = new ArrayList<>();
+            expected.findNotes(from, to, expectedFound::add);
+            List<Integer> found = new ArrayList<>();
+            notes.findNotes(from, to, found::add);
+            Collections.sort(expectedFound);
+            Collections.sort(found);
+            assertEquals("edit " + edit, expectedFound, found);
+        }
+    }
+
+    /**
+     * @return a note event on one of a few pitches and channels so that
+     * notes are stacked and some NOTE_OFFs end no note, or a controller
+     */
+    private static ShortMessage randomMessage(Random rnd) throws Exception {
+        int channel = rnd.nextInt(2);
+        int note = 60 + rnd.nextInt(3);
+        switch (rnd.nextInt(5)) {
+            case 0:
+                return new ShortMessage(ShortMessage.NOTE_OFF, channel, note, 0);
+            case 1:
+                return new ShortMessage(ShortMessage.NOTE_ON, channel, note, 0);
+            case 2:
+                return new ShortMessage(
+                    ShortMessage.CONTROL_CHANGE, channel, 7, 100);
+            default:
+                return new ShortMessage(ShortMessage.NOTE_ON, channel, note,
+                    1 + rnd.nextInt(127));
+        }
+    }
+
+    private static void assertSameNotes(NoteIndex expected, NoteIndex actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.getLength(), actual.getLength());
+        assertEquals(expected.getLowestPitch(), actual.getLowestPitch());
+        assertEquals(expected.getHighestPitch(), actual.getHighestPitch());
+        for (int n = 0; n < expected.size(); ++n) {
+            assertEquals(expected.getStart(n), actual.getStart(n));
+            assertEquals(expected.getEnd(n), actual.getEnd(n));
+            assertEquals(expected.getPitch(n), actual.getPitch(n));
+            assertEquals(expected.getVelocity(n), actual.getVelocity(n));
+            assertEquals(expected.getChannel(n), actual.getChannel(n));
+            assertEquals(expected.getOnIndex(n), actual.getOnIndex(n));
+            assertEquals(expected.getOffIndex(n), actual.getOffIndex(n));
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import java.nio.ByteBuffer;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author john
+ */
+public class PackedTrackTest
+{
+
+    public PackedTrackTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of fromTrack and toTrack methods, of class PackedTrack.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        System.out.println("fromTrack/toTrack");
+        Sequence seq = SmfReaderTest.createTestSequence();
+        Sequence copy = new Sequence(seq.getDivisionType(), seq.getResolution());
+        for (Track t : seq.getTracks()) {
+            PackedTrack packed = PackedTrack.fromTrack(t);
+            assertEquals(t.size(), packed.size());
+            assertEquals(t.ticks(), packed.getEndTick());
+            packed.toTrack(copy.createTrack());
+        }
+        SmfReaderTest.assertSameEvents(seq, copy);
+    }
+
+    /**
+     * Test of fromChunk method, of class PackedTrack.
+     * The events must match those decoded by the SmfReader.
+     */
+    @Test
+    public void testFromChunk() throws Exception {
+        System.out.println("fromChunk");
+        Sequence seq = SmfReaderTest.createTestSequence();
+        for (Track t : seq.getTracks()) {
+            ByteBuffer chunk = SmfWriter.encodeTrack(t);
+            chunk.position(8);
+            PackedTrack packed = PackedTrack.fromChunk(chunk.slice());
+            assertEquals(t.size(), packed.size());
+            for (int i = 0; i < t.size(); ++i) {
+                MidiEvent exp = t.get(i);
+                MidiEvent act = packed.getMidiEvent(i);
+                assertEquals(exp.getTick(), act.getTick());
+                assertArrayEquals(exp.getMessage().getMessage(),
+                    act.getMessage().getMessage());
+            }
+        }
+    }
+
+    /**
+     * Test of the accessors of class PackedTrack.
+     */
+    @Test
+    public void testAccessors() {
+        System.out.println("accessors");
+        PackedTrack packed = new PackedTrack(2);
+        packed.addShort(10, ShortMessage.NOTE_ON | 3, 64, 100);
+        byte[] text = "Hello".getBytes();
+        packed.addMeta(20, 0x05, text, 0, text.length);
+        packed.addShort(30, ShortMessage.NOTE_ON | 3, 64, 0);
+
+        assertEquals(3, packed.size());
+        assertEquals(30, packed.getEndTick());
+        assertEquals(PackedTrack.KIND_SHORT, packed.getKind(0));
+        assertEquals(ShortMessage.NOTE_ON | 3, packed.getStatus(0));
+        assertEquals(64, packed.getData1(0));
+        assertEquals(100, packed.getData2(0));
+        assertEquals(PackedTrack.KIND_META, packed.getKind(1));
+        assertTrue(packed.isMeta(1, 0x05));
+        assertFalse(packed.isMeta(0, 0x05));
+        assertEquals(text.length, packed.getDataLength(1));
+        assertArrayEquals(text, packed.getData(1));
+        assertEquals(0, packed.getDataLength(2));
+    }
+
+    /**
+     * Test of getStorageSize method, of class PackedTrack.
+     * A packed track must be much smaller than the MidiEvent objects.
+     */
+    @Test
+    public void testGetStorageSize() throws Exception {
+        System.out.println("getStorageSize");
+        Track t = SmfReaderTest.createTestSequence().getTracks()[1];
+        PackedTrack packed = PackedTrack.fromTrack(t);
+        packed.trimToSize();
+        // At least a MidiEvent, a MidiMessage and its byte array each.
+        long objectSize = t.size() * (24L + 24L + 24L);
+        assertTrue(packed.getStorageSize() < objectSize / 2);
+    }
+
+    /**
+     * Test of SmfWriter.encodeTrack with a PackedTrack.
+     * The chunk must match the one encoded from the Track.
+     */
+    @Test
+    public void testEncodeTrack() throws Exception {
+        System.out.println("encodeTrack");
+        for (Track t : SmfReaderTest.createTestSequence().getTracks()) {
+            ByteBuffer expected = SmfWriter.encodeTrack(t);
+            ByteBuffer actual = SmfWriter.encodeTrack(PackedTrack.fromTrack(t));
+            assertEquals(expected, actual);
+        }
+    }
+}
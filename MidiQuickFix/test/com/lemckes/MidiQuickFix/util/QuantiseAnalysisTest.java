@@ -0,0 +1,162 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.util.Random;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author john
+ */
+public class QuantiseAnalysisTest
+{
+
+    public QuantiseAnalysisTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of the counts made by QuantiseAnalysis.
+     * A NOTE_ON with zero velocity counts as a NOTE_OFF and
+     * other events are not counted.
+     */
+    @Test
+    public void testCounts() throws Exception {
+        System.out.println("counts");
+        Sequence seq = new Sequence(Sequence.PPQ, 96);
+        Track empty = seq.createTrack();
+        Track t = seq.createTrack();
+        t.add(new MidiEvent(
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 100), 5));
+        t.add(new MidiEvent(
+            new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 90), 3));
+        t.add(new MidiEvent(
+            new ShortMessage(ShortMessage.NOTE_ON, 1, 62, 90), 99));
+        t.add(new MidiEvent(
+            new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 0), 48));
+        t.add(new MidiEvent(
+            new ShortMessage(ShortMessage.NOTE_OFF, 1, 62, 0), 144));
+        byte[] text = "la".getBytes();
+        t.add(new MidiEvent(
+            new MetaMessage(MetaEvent.LYRIC, text, text.length), 200));
+
+        QuantiseAnalysis analysis = new QuantiseAnalysis(new MqfSequence(seq));
+        assertEquals(96, analysis.getResolution());
+        assertEquals(2, analysis.getTrackCount());
+
+        int[] noteOns = analysis.getNoteOnCounts(1);
+        assertEquals(96, noteOns.length);
+        assertEquals(2, noteOns[3]);
+        assertEquals(2, sum(noteOns));
+        int[] noteOffs = analysis.getNoteOffCounts(1);
+        assertEquals(2, noteOffs[48]);
+        assertEquals(2, sum(noteOffs));
+        int[] lyrics = analysis.getLyricCounts(1);
+        assertEquals(1, lyrics[8]);
+        assertEquals(1, sum(lyrics));
+
+        assertEquals(0, sum(analysis.getNoteOnCounts(0)));
+        assertEquals(0, sum(analysis.getLyricCounts(0)));
+    }
+
+    /**
+     * Test of getMoves method, of class QuantiseAnalysis.
+     * The moves for a grid that divides the beat, which are folded from
+     * the counts, and for one that does not, which are counted from the
+     * ticks, both agree with Quantiser.quantiseTick().
+     */
+    @Test
+    public void testGetMoves() throws Exception {
+        System.out.println("getMoves");
+        Sequence seq = new Sequence(Sequence.PPQ, 96);
+        Track t = seq.createTrack();
+        Random random = new Random(7);
+        for (int i = 0; i < 500; ++i) {
+            long tick = random.nextInt(96 * 32);
+            t.add(new MidiEvent(new ShortMessage(
+                ShortMessage.NOTE_ON, 0, 60, random.nextInt(2) * 90), tick));
+        }
+        QuantiseAnalysis analysis = new QuantiseAnalysis(new MqfSequence(seq));
+
+        for (int gridTicks : new int[]{96, 32, 24, 64, 7}) {
+            int moved = 0;
+            long maxTicks = 0;
+            for (int i = 0; i < t.size(); ++i) {
+                if (t.get(i).getMessage() instanceof ShortMessage) {
+                    long tick = t.get(i).getTick();
+                    long distance
+                        = Math.abs(Quantiser.quantiseTick(tick, gridTicks) - tick);
+                    if (distance != 0) {
+                        ++moved;
+                        maxTicks = Math.max(maxTicks, distance);
+                    }
+                }
+            }
+            QuantiseAnalysis.Moves moves
+                = analysis.getMoves(new int[]{0}, gridTicks);
+            assertEquals(500, moves.getEventCount());
+            assertEquals(moved, moves.getMovedCount());
+            assertEquals(maxTicks, moves.getMaxTicks());
+            assertTrue(moves.getAverageTicks() <= moves.getMaxTicks());
+            assertEquals(gridTicks, analysis.getGridCounts(
+                0, QuantiseAnalysis.NOTE_ON, gridTicks).length);
+        }
+        assertEquals(0, analysis.getMoves(new int[]{0}, 1).getMovedCount());
+        assertEquals(0, analysis.getMoves(new int[0], 24).getEventCount());
+    }
+
+    private static int sum(int[] counts) {
+        int total = 0;
+        for (int c : counts) {
+            total += c;
+        }
+        return total;
+    }
+}
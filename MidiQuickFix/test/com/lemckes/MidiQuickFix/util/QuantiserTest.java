@@ -0,0 +1,223 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author john
+ */
+public class QuantiserTest
+{
+
+    public QuantiserTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of quantiseTick method, of class Quantiser.
+     */
+    @Test
+    public void testQuantiseTick() {
+        System.out.println("quantiseTick");
+        assertEquals(0, Quantiser.quantiseTick(0, 120));
+        assertEquals(0, Quantiser.quantiseTick(59, 120));
+        assertEquals(0, Quantiser.quantiseTick(60, 120));
+        assertEquals(120, Quantiser.quantiseTick(61, 120));
+        assertEquals(480, Quantiser.quantiseTick(470, 120));
+        assertEquals(120, Quantiser.getGridTicks(480, 4));
+        assertEquals(1, Quantiser.getGridTicks(3, 4));
+    }
+
+    /**
+     * Test of quantise method, of class Quantiser.
+     * Only notes and lyrics move and the track stays in tick order.
+     */
+    @Test
+    public void testQuantise() throws Exception {
+        System.out.println("quantise");
+        Track t = new Sequence(Sequence.PPQ, 480).createTrack();
+        MidiEvent control = new MidiEvent(
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 100), 110);
+        t.add(control);
+        MidiEvent note = new MidiEvent(
+            new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 90), 130);
+        t.add(note);
+        byte[] text = "la".getBytes();
+        MidiEvent lyric = new MidiEvent(
+            new MetaMessage(MetaEvent.LYRIC, text, text.length), 235);
+        t.add(lyric);
+
+        assertEquals(2, Quantiser.quantise(t, 480, 4));
+        assertEquals(120, note.getTick());
+        assertEquals(240, lyric.getTick());
+        assertEquals(110, control.getTick());
+        for (int i = 1; i < t.size(); ++i) {
+            assertTrue(t.get(i - 1).getTick() <= t.get(i).getTick());
+        }
+        assertEquals(0, Quantiser.quantise(t, 480, 4));
+    }
+
+    /**
+     * Test of quantise method, of class Quantiser.
+     * A late NOTE_OFF that moves onto the start of the next note of the
+     * same pitch must go before it rather than cutting it off.
+     */
+    @Test
+    public void testRepeatedNotes() throws Exception {
+        System.out.println("repeatedNotes");
+        Track t = repeatedNotes(new Sequence(Sequence.PPQ, 96));
+        assertEquals(3, Quantiser.quantise(t, 96, 4));
+        assertRepeatedNotes(t);
+
+        Sequence s = new Sequence(Sequence.PPQ, 96);
+        repeatedNotes(s);
+        MqfSequence seq = new MqfSequence(s);
+        assertEquals(3, Quantiser.quantise(seq, 0, 4));
+        assertRepeatedNotes(seq.getTrack(0));
+        assertEquals(3, seq.getNoteIndex(0).size());
+    }
+
+    /**
+     * Three C4 quarter notes, each NOTE_OFF two ticks late.
+     */
+    static Track repeatedNotes(Sequence seq) throws Exception {
+        Track t = seq.createTrack();
+        for (int i = 0; i < 3; ++i) {
+            t.add(new MidiEvent(
+                new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 90), i * 96));
+            t.add(new MidiEvent(
+                new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), i * 96 + 98));
+        }
+        return t;
+    }
+
+    /**
+     * Check that each quantised note ends before the next one starts.
+     */
+    static void assertRepeatedNotes(Track t) {
+        int[] commands = {
+            ShortMessage.NOTE_ON, ShortMessage.NOTE_OFF, ShortMessage.NOTE_ON,
+            ShortMessage.NOTE_OFF, ShortMessage.NOTE_ON, ShortMessage.NOTE_OFF
+        };
+        long[] ticks = {0, 96, 96, 192, 192, 288};
+        assertEquals(commands.length + 1, t.size());
+        for (int i = 0; i < commands.length; ++i) {
+            ShortMessage sm = (ShortMessage)t.get(i).getMessage();
+            assertEquals("event " + i, commands[i], sm.getCommand());
+            assertEquals("event " + i, ticks[i], t.get(i).getTick());
+        }
+        NoteIndex notes = NoteIndex.build(t);
+        assertEquals(3, notes.size());
+        for (int n = 0; n < 3; ++n) {
+            assertEquals(96, notes.getEnd(n) - notes.getStart(n));
+        }
+    }
+
+    /**
+     * Test of quantisedCopy method, of class Quantiser.
+     * Only the chosen tracks of the copy are quantised, to a grid that
+     * does not divide the beat, and the sequence is not changed.
+     */
+    @Test
+    public void testQuantisedCopy() throws Exception {
+        System.out.println("quantisedCopy");
+        Sequence seq = new Sequence(Sequence.PPQ, 480);
+        Track t0 = seq.createTrack();
+        Track t1 = seq.createTrack();
+        t0.add(new MidiEvent(
+            new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 90), 330));
+        t1.add(new MidiEvent(
+            new ShortMessage(ShortMessage.NOTE_ON, 1, 62, 90), 330));
+        t1.add(new MidiEvent(
+            new ShortMessage(ShortMessage.NOTE_ON, 1, 64, 90), 650));
+
+        // A quarter note triplet grid of 320 ticks.
+        Sequence copy = Quantiser.quantisedCopy(seq, new int[]{1}, 320);
+        assertEquals(2, copy.getTracks().length);
+        assertEquals(330, copy.getTracks()[0].get(0).getTick());
+        assertEquals(320, copy.getTracks()[1].get(0).getTick());
+        assertEquals(640, copy.getTracks()[1].get(1).getTick());
+        assertSame(t1.get(0).getMessage(), copy.getTracks()[1].get(0).getMessage());
+        assertEquals(330, t1.get(0).getTick());
+        assertEquals(650, t1.get(1).getTick());
+
+        assertEquals(2, Quantiser.quantiseToGrid(t1, 320));
+        assertEquals(320, t1.get(0).getTick());
+    }
+
+    /**
+     * Test of quantisedCopy and quantiseToGrid for several tracks,
+     * of class Quantiser.
+     * The copy that is auditioned and the tracks that are changed must
+     * both keep repeated notes of the same pitch apart, and the change
+     * must be undone as one edit.
+     */
+    @Test
+    public void testRepeatedNotesCopy() throws Exception {
+        System.out.println("repeatedNotesCopy");
+        Sequence s = new Sequence(Sequence.PPQ, 96);
+        repeatedNotes(s);
+        repeatedNotes(s);
+        MqfSequence seq = new MqfSequence(s);
+
+        Sequence copy = Quantiser.quantisedCopy(seq, new int[]{1}, 24);
+        assertRepeatedNotes(copy.getTracks()[1]);
+        assertEquals(98, copy.getTracks()[0].get(2).getTick());
+        assertEquals(98, seq.getTrack(1).get(2).getTick());
+
+        assertEquals(6, Quantiser.quantiseToGrid(seq, new int[]{0, 1}, 24));
+        assertRepeatedNotes(seq.getTrack(0));
+        assertRepeatedNotes(seq.getTrack(1));
+        seq.getHistory().undo();
+        assertEquals(98, seq.getTrack(0).get(2).getTick());
+        assertEquals(98, seq.getTrack(1).get(2).getTick());
+    }
+}
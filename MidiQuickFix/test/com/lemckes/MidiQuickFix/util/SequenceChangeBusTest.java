@@ -0,0 +1,131 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author john
+ */
+public class SequenceChangeBusTest
+{
+
+    public SequenceChangeBusTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * A series of edits is passed on in a single notification.
+     */
+    @Test
+    public void testCoalescing() throws Exception {
+        System.out.println("coalescing");
+        MqfSequence seq = new MqfSequence(SmfReaderTest.createTestSequence());
+        SequenceChangeBus bus = new SequenceChangeBus(60000);
+        bus.setSequence(seq);
+        List<SequenceChange> received = new ArrayList<>();
+        bus.addSequenceChangeListener(received::add);
+
+        int version = seq.getTrackVersion(1);
+        Transposer.transpose(seq, 2);
+        bus.post();
+        TrackUpdateUtils.setNoteOnVelocity(seq.getTrack(1), 64);
+        seq.trackChanged(1);
+        bus.post();
+        TrackUpdateUtils.convertNoteOnZeroToNoteOff(seq.getTrack(1));
+        seq.trackChanged(1);
+        bus.post();
+        assertTrue(bus.isPending());
+        assertTrue(received.isEmpty());
+
+        bus.flush();
+        assertFalse(bus.isPending());
+        assertEquals(1, received.size());
+        SequenceChange change = received.get(0);
+        assertFalse(change.isTracksChanged());
+        assertEquals(2, change.getChangedTracks().size());
+        assertTrue(change.getChangedTracks().contains(1));
+        assertTrue(change.getChangedTracks().contains(2));
+        assertEquals(version + 3, seq.getTrackVersion(1));
+        assertEquals(version + 1, seq.getTrackVersion(2));
+
+        // Nothing more to pass on.
+        bus.post();
+        bus.flush();
+        assertEquals(1, received.size());
+
+        // Adding a track is passed on as a change to the tracks.
+        seq.createTrack();
+        bus.post();
+        bus.flush();
+        assertEquals(2, received.size());
+        assertTrue(received.get(1).isTracksChanged());
+    }
+
+    /**
+     * Edits to a sequence are discarded when a new one is set.
+     */
+    @Test
+    public void testSetSequence() throws Exception {
+        System.out.println("setSequence");
+        MqfSequence seq = new MqfSequence(SmfReaderTest.createTestSequence());
+        SequenceChangeBus bus = new SequenceChangeBus(60000);
+        List<SequenceChange> received = new ArrayList<>();
+        bus.addSequenceChangeListener(received::add);
+
+        // No sequence, nothing to pass on.
+        bus.post();
+        bus.flush();
+        assertTrue(received.isEmpty());
+
+        seq.trackChanged(1);
+        bus.post();
+        bus.setSequence(seq);
+        assertFalse(bus.isPending());
+        bus.flush();
+        assertTrue(received.isEmpty());
+    }
+}
@@ -0,0 +1,278 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.io.File;
+import java.nio.ByteBuffer;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author john
+ */
+public class SmfReaderTest
+{
+
+    public SmfReaderTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Create a sequence containing a variety of message types.
+     */
+    static Sequence createTestSequence() throws Exception {
+        Sequence seq = new Sequence(Sequence.PPQ, 480);
+        Track t0 = seq.createTrack();
+        byte[] tempo = {0x07, (byte)0xa1, 0x20};
+        t0.add(new MidiEvent(new MetaMessage(MetaEvent.TEMPO, tempo, 3), 0));
+        byte[] name = "Track Zero".getBytes();
+        t0.add(new MidiEvent(
+            new MetaMessage(MetaEvent.TRACK_NAME, name, name.length), 0));
+        byte[] sysex = {(byte)0xf0, 0x7e, 0x7f, 0x09, 0x01, (byte)0xf7};
+        t0.add(new MidiEvent(new SysexMessage(sysex, sysex.length), 0));
+
+        for (int c = 0; c < 2; ++c) {
+            Track t = seq.createTrack();
+            t.add(new MidiEvent(
+                new ShortMessage(ShortMessage.PROGRAM_CHANGE, c, 24 + c, 0), 0));
+            t.add(new MidiEvent(
+                new ShortMessage(ShortMessage.CONTROL_CHANGE, c, 7, 100), 0));
+            for (int i = 0; i < 50; ++i) {
+                long tick = i * 240;
+                t.add(new MidiEvent(
+                    new ShortMessage(ShortMessage.NOTE_ON, c, 60 + i % 12, 90), tick));
+                t.add(new MidiEvent(
+                    new ShortMessage(ShortMessage.NOTE_ON, c, 60 + i % 12, 0), tick + 200));
+                byte[] lyric = ("la" + i).getBytes();
+                t.add(new MidiEvent(
+                    new MetaMessage(MetaEvent.LYRIC, lyric, lyric.length), tick));
+            }
+            t.add(new MidiEvent(
+                new ShortMessage(ShortMessage.PITCH_BEND, c, 0, 64), 12000));
+            t.add(new MidiEvent(
+                new ShortMessage(ShortMessage.CHANNEL_PRESSURE, c, 33, 0), 12010));
+        }
+        return seq;
+    }
+
+    static void assertSameEvents(Sequence expected, Sequence actual) {
+        assertEquals(expected.getDivisionType(), actual.getDivisionType(), 0.0);
+        assertEquals(expected.getResolution(), actual.getResolution());
+        Track[] expTracks = expected.getTracks();
+        Track[] actTracks = actual.getTracks();
+        assertEquals(expTracks.length, actTracks.length);
+        for (int t = 0; t < expTracks.length; ++t) {
+            assertEquals("Track " + t + " size",
+                expTracks[t].size(), actTracks[t].size());
+            for (int e = 0; e < expTracks[t].size(); ++e) {
+                MidiEvent exp = expTracks[t].get(e);
+                MidiEvent act = actTracks[t].get(e);
+                assertEquals("Tick of event " + e, exp.getTick(), act.getTick());
+                assertArrayEquals("Message of event " + e,
+                    exp.getMessage().getMessage(), act.getMessage().getMessage());
+            }
+        }
+    }
+
+    /**
+     * Test of read method, of class SmfReader.
+     * The result must match the sequence read by the MidiSystem.
+     */
+    @Test
+    public void testReadFile() throws Exception {
+        System.out.println("read(File)");
+        File file = File.createTempFile("SmfReaderTest", ".mid");
+        file.deleteOnExit();
+        MidiSystem.write(createTestSequence(), 1, file);
+
+        Sequence expected = MidiSystem.getSequence(file);
+        MqfSequence result = SmfReader.read(file);
+        assertSameEvents(expected, result);
+        assertEquals(expected.getTickLength(), result.getTickLength());
+    }
+
+    /**
+     * The TrackInfos created while decoding must match those created
+     * from a Sequence read by the MidiSystem.
+     */
+    @Test
+    public void testTrackInfo() throws Exception {
+        System.out.println("read(File) track info");
+        File file = File.createTempFile("SmfReaderTest", ".mid");
+        file.deleteOnExit();
+        MidiSystem.write(createTestSequence(), 1, file);
+
+        MqfSequence expected = new MqfSequence(MidiSystem.getSequence(file));
+        MqfSequence result = SmfReader.read(file);
+        for (int t = 0; t < expected.getTracks().length; ++t) {
+            assertEquals(expected.getTrackName(t), result.getTrackName(t));
+            assertEquals(expected.getTrackChannel(t), result.getTrackChannel(t));
+            assertEquals(expected.getTrackFirstTick(t), result.getTrackFirstTick(t));
+            assertEquals(expected.getTrackLastTick(t), result.getTrackLastTick(t));
+            assertEquals(expected.getTrackLowestNote(t), result.getTrackLowestNote(t));
+            assertEquals(expected.getTrackHighestNote(t), result.getTrackHighestNote(t));
+            assertEquals(expected.getTrackVolume(t), result.getTrackVolume(t));
+            assertEquals(expected.getTrackHasLyrics(t), result.getTrackHasLyrics(t));
+        }
+        assertEquals("Track Zero", result.getTrackName(0));
+        assertEquals(12010, result.getTrackLastTick(1));
+    }
+
+    /**
+     * Test of read method, of class SmfReader, reading lazily.
+     */
+    @Test
+    public void testReadLazy() throws Exception {
+        System.out.println("read(File, true)");
+        File file = File.createTempFile("SmfReaderTest", ".mid");
+        file.deleteOnExit();
+        MidiSystem.write(createTestSequence(), 1, file);
+
+        Sequence expected = MidiSystem.getSequence(file);
+        MqfSequence result = SmfReader.read(file, true);
+        assertTrue(result.hasLazyTracks());
+        assertEquals(expected.getTickLength(), result.getTickLength());
+        assertEquals(expected.getMicrosecondLength(),
+            result.getMicrosecondLength());
+        assertEquals("Track Zero", result.getTrackName(0));
+        assertEquals(12010, result.getTrackLastTick(1));
+        assertNotNull(result.findTickZeroMeta(MetaEvent.TEMPO));
+
+        // Decoding one track leaves the others alone
+        Track t1 = result.getTrack(1);
+        assertEquals(expected.getTracks()[1].size(), t1.size());
+        assertTrue(result.getPackedTrack(1) == null);
+        assertNotNull(result.getPackedTrack(2));
+
+        // Saving copies the tracks that have not been decoded
+        File copy = File.createTempFile("SmfReaderTest", ".mid");
+        copy.deleteOnExit();
+        SmfWriter.write(result, copy);
+        assertTrue(result.hasLazyTracks());
+        assertSameEvents(expected, MidiSystem.getSequence(copy));
+
+        // getTracks() decodes everything
+        assertSameEvents(expected, result);
+        assertFalse(result.hasLazyTracks());
+    }
+
+    /**
+     * Test of read method, of class SmfReader, with running status.
+     */
+    @Test
+    public void testRunningStatus() throws Exception {
+        System.out.println("read(ByteBuffer) running status");
+        byte[] smf = {
+            'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, 0, 0, 1, 0, 96,
+            'M', 'T', 'r', 'k', 0, 0, 0, 20,
+            0x00, (byte)0x91, 60, 100,
+            0x10, 62, 100,
+            // A meta event does not cancel the running status
+            0x00, (byte)0xff, 0x01, 0x01, 'x',
+            0x10, 60, 0,
+            0x00, 62, 0,
+            0x00, (byte)0xff, 0x2f, 0x00
+        };
+        MqfSequence result = SmfReader.read(ByteBuffer.wrap(smf));
+        assertEquals(1, result.getTracks().length);
+        Track t = result.getTracks()[0];
+        assertEquals(6, t.size());
+        long[] ticks = {0, 16, 16, 32, 32, 32};
+        for (int i = 0; i < ticks.length; ++i) {
+            assertEquals(ticks[i], t.get(i).getTick());
+        }
+        ShortMessage sm = (ShortMessage)t.get(4).getMessage();
+        assertEquals(ShortMessage.NOTE_ON, sm.getCommand());
+        assertEquals(1, sm.getChannel());
+        assertEquals(62, sm.getData1());
+        assertEquals(0, sm.getData2());
+    }
+
+    /**
+     * Test of read method, of class SmfReader, with SMPTE timing
+     * and a truncated track.
+     */
+    @Test
+    public void testSmpteTruncated() throws Exception {
+        System.out.println("read(ByteBuffer) SMPTE and truncated");
+        byte[] smf = {
+            'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, 0, 0, 1, (byte)0xe7, 40,
+            'M', 'T', 'r', 'k', 0, 0, 0, 100,
+            0x00, (byte)0xc0, 5,
+            (byte)0x81, 0x00, (byte)0x90, 60
+        };
+        MqfSequence result = SmfReader.read(ByteBuffer.wrap(smf));
+        assertEquals(Sequence.SMPTE_25, result.getDivisionType(), 0.0);
+        assertEquals(40, result.getResolution());
+        Track t = result.getTracks()[0];
+        // The program change and the End of Track
+        assertEquals(2, t.size());
+    }
+
+    /**
+     * Test of read method, of class SmfReader, with an MThd length
+     * that is longer than the data.
+     */
+    @Test
+    public void testHeaderTooLong() throws Exception {
+        System.out.println("read(ByteBuffer) MThd too long");
+        byte[] smf = {
+            'M', 'T', 'h', 'd', 0, 0, 0, 100, 0, 0, 0, 1, 0, 96
+        };
+        try {
+            SmfReader.read(ByteBuffer.wrap(smf));
+            fail("The MThd length was not checked");
+        } catch (InvalidMidiDataException e) {
+            // expected
+        }
+    }
+}
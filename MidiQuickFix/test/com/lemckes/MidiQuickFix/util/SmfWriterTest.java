@@ -0,0 +1,207 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author john
+ */
+public class SmfWriterTest
+{
+
+    public SmfWriterTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of write method, of class SmfWriter.
+     * The file must be read back by the MidiSystem unchanged.
+     */
+    @Test
+    public void testWrite() throws Exception {
+        System.out.println("write");
+        File file = File.createTempFile("SmfWriterTest", ".mid");
+        file.deleteOnExit();
+        Sequence seq = SmfReaderTest.createTestSequence();
+        long written = SmfWriter.write(seq, file);
+        assertEquals(file.length(), written);
+
+        SmfReaderTest.assertSameEvents(seq, MidiSystem.getSequence(file));
+        SmfReaderTest.assertSameEvents(seq, SmfReader.read(file));
+        // Running status keeps the file no larger than the JDK's version.
+        File jdkFile = File.createTempFile("SmfWriterTest", ".mid");
+        jdkFile.deleteOnExit();
+        MidiSystem.write(seq, 1, jdkFile);
+        assertTrue(written <= jdkFile.length());
+        // No temporary file is left behind
+        assertNoTempFiles(file);
+    }
+
+    /**
+     * Test of write method, of class SmfWriter.
+     * Saves of the same file that overlap must each leave a complete file.
+     */
+    @Test
+    public void testOverlappingWrites() throws Exception {
+        System.out.println("overlappingWrites");
+        File file = File.createTempFile("SmfWriterTest", ".mid");
+        file.deleteOnExit();
+        Sequence seq = SmfReaderTest.createTestSequence();
+        List<Callable<Long>> saves = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            saves.add(() -> SmfWriter.write(SmfWriter.encode(seq), file));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            for (Future<Long> f : pool.invokeAll(saves)) {
+                assertEquals(file.length(), (long)f.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        SmfReaderTest.assertSameEvents(seq, SmfReader.read(file));
+        assertNoTempFiles(file);
+    }
+
+    private static void assertNoTempFiles(File file) {
+        String[] temps = file.getParentFile().list(
+            (dir, name) -> name.startsWith("." + file.getName()));
+        assertEquals(0, temps.length);
+    }
+
+    /**
+     * Test of encodeTrack method, of class SmfWriter.
+     */
+    @Test
+    public void testEncodeTrack() throws Exception {
+        System.out.println("encodeTrack");
+        Sequence seq = new Sequence(Sequence.PPQ, 96);
+        Track t = seq.createTrack();
+        t.add(new MidiEvent(
+            new ShortMessage(0x91, 60, 100), 0));
+        t.add(new MidiEvent(
+            new ShortMessage(0x91, 60, 0), 200));
+        ByteBuffer chunk = SmfWriter.encodeTrack(t);
+        byte[] expected = {
+            'M', 'T', 'r', 'k', 0, 0, 0, 12,
+            0x00, (byte)0x91, 60, 100,
+            (byte)0x81, 0x48, 60, 0,
+            0x00, (byte)0xff, 0x2f, 0x00
+        };
+        byte[] actual = new byte[chunk.remaining()];
+        chunk.get(actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    /**
+     * Test of write method, of class SmfWriter, with events moved out
+     * of tick order by setTick().
+     * They must be written in tick order at their own ticks.
+     */
+    @Test
+    public void testWriteOutOfOrder() throws Exception {
+        System.out.println("writeOutOfOrder");
+        Sequence seq = new Sequence(Sequence.PPQ, 96);
+        Track t = seq.createTrack();
+        MidiEvent d = new MidiEvent(new ShortMessage(0x90, 50, 100), 0);
+        MidiEvent b = new MidiEvent(new ShortMessage(0x90, 62, 100), 0);
+        MidiEvent p = new MidiEvent(new ShortMessage(0xc0, 5, 0), 0);
+        MidiEvent a = new MidiEvent(new ShortMessage(0x90, 60, 100), 50);
+        t.add(d);
+        t.add(b);
+        t.add(p);
+        t.add(a);
+        b.setTick(200);
+
+        File file = File.createTempFile("SmfWriterTest", ".mid");
+        file.deleteOnExit();
+        SmfWriter.write(seq, file);
+        assertEvents(MidiSystem.getSequence(file), new MidiEvent[]{d, p, a, b});
+
+        SmfWriter.write(seq, file, true);
+        assertEvents(MidiSystem.getSequence(file), new MidiEvent[]{p, d, a, b});
+        // The Track itself is not changed.
+        assertSame(b, t.get(1));
+    }
+
+    private static void assertEvents(Sequence seq, MidiEvent[] expected) {
+        Track t = seq.getTracks()[0];
+        assertEquals(expected.length + 1, t.size());
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals("Tick of event " + i,
+                expected[i].getTick(), t.get(i).getTick());
+            assertArrayEquals("Message of event " + i,
+                expected[i].getMessage().getMessage(),
+                t.get(i).getMessage().getMessage());
+        }
+        assertEquals(200, t.ticks());
+    }
+
+    /**
+     * Test of getTiming method, of class SmfWriter.
+     */
+    @Test
+    public void testGetTiming() throws Exception {
+        System.out.println("getTiming");
+        assertEquals(480, SmfWriter.getTiming(new Sequence(Sequence.PPQ, 480)));
+        int timing = SmfWriter.getTiming(new Sequence(Sequence.SMPTE_25, 40));
+        assertEquals(0xe728, timing);
+        assertEquals(Sequence.SMPTE_25, SmfReader.getDivisionType(timing), 0.0);
+        assertEquals(40, SmfReader.getResolution(timing));
+    }
+}
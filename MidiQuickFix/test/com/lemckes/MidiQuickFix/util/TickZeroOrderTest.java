@@ -0,0 +1,196 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.nio.ByteBuffer;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author john
+ */
+public class TickZeroOrderTest
+{
+
+    public TickZeroOrderTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private static MidiEvent meta(int type, long tick) throws Exception {
+        return new MidiEvent(new MetaMessage(type, new byte[]{'x'}, 1), tick);
+    }
+
+    private static MidiEvent shortEvent(int status, int d1, int d2, long tick)
+        throws Exception {
+        return new MidiEvent(new ShortMessage(status, d1, d2), tick);
+    }
+
+    /**
+     * A track whose tick zero events are not in order.
+     */
+    private static Sequence createSequence() throws Exception {
+        Sequence s = new Sequence(Sequence.PPQ, 96);
+        Track t = s.createTrack();
+        t.add(shortEvent(ShortMessage.NOTE_ON | 1, 60, 100, 0));
+        t.add(shortEvent(ShortMessage.PROGRAM_CHANGE | 1, 5, 0, 0));
+        t.add(shortEvent(ShortMessage.CONTROL_CHANGE | 1, 7, 100, 0));
+        t.add(meta(MetaEvent.TRACK_NAME, 0));
+        t.add(new MidiEvent(new SysexMessage(
+            new byte[]{(byte)0xf0, 0x41, 0x10, (byte)0xf7}, 4), 0));
+        t.add(shortEvent(ShortMessage.CONTROL_CHANGE | 1, 10, 64, 0));
+        t.add(shortEvent(ShortMessage.NOTE_ON | 1, 60, 0, 96));
+        return s;
+    }
+
+    private static void assertOrdered(Track t, int count) {
+        assertEquals(count, TickZeroOrder.countTickZero(t));
+        assertTrue(TickZeroOrder.isOrdered(t, count));
+    }
+
+    /**
+     * Test of getPriority method, of class TickZeroOrder.
+     */
+    @Test
+    public void testGetPriority() throws Exception {
+        System.out.println("getPriority");
+        MidiMessage[] ordered = {
+            meta(MetaEvent.TRACK_NAME, 0).getMessage(),
+            meta(MetaEvent.TEXT, 0).getMessage(),
+            meta(MetaEvent.COPYRIGHT, 0).getMessage(),
+            meta(MetaEvent.MARKER, 0).getMessage(),
+            new SysexMessage(new byte[]{(byte)0xf0, 0x7e, (byte)0xf7}, 3),
+            new ShortMessage(ShortMessage.TUNE_REQUEST),
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 100),
+            meta(MetaEvent.KEY_SIGNATURE, 0).getMessage(),
+            meta(MetaEvent.TIME_SIGNATURE, 0).getMessage(),
+            meta(MetaEvent.TEMPO, 0).getMessage(),
+            new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, 1, 0),
+            new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 1),
+            new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 0),
+            meta(MetaEvent.LYRIC, 0).getMessage(),
+            meta(MetaEvent.END_OF_TRACK, 0).getMessage()
+        };
+        PackedTrack packed = new PackedTrack();
+        for (int i = 0; i < ordered.length; ++i) {
+            packed.addMessage(0, ordered[i]);
+            assertEquals(TickZeroOrder.getPriority(ordered[i]),
+                TickZeroOrder.getPriority(packed, i));
+            if (i > 0) {
+                assertTrue(TickZeroOrder.getPriority(ordered[i - 1])
+                    < TickZeroOrder.getPriority(ordered[i]));
+            }
+        }
+        assertEquals(
+            TickZeroOrder.getPriority(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0)),
+            TickZeroOrder.getPriority(ordered[12]));
+    }
+
+    /**
+     * Test of MqfSequence.insertTickZeroEvent.
+     * The events are put in order once, then each new event goes
+     * straight to its place after those with the same priority.
+     */
+    @Test
+    public void testInsert() throws Exception {
+        System.out.println("insert");
+        MqfSequence seq = new MqfSequence(createSequence());
+        EditHistory history = seq.getHistory();
+        Track t = seq.getTrack(0);
+        assertFalse(TickZeroOrder.isOrdered(t, TickZeroOrder.countTickZero(t)));
+
+        MidiEvent text = meta(MetaEvent.TEXT, 0);
+        assertEquals(1, seq.insertTickZeroEvent(0, text));
+        t = seq.getTrack(0);
+        assertOrdered(t, 7);
+        assertSame(text, t.get(1));
+        assertEquals(MetaEvent.TRACK_NAME,
+            ((MetaMessage)t.get(0).getMessage()).getType());
+
+        // After the other controllers
+        MidiEvent volume = shortEvent(ShortMessage.CONTROL_CHANGE | 1, 7, 90, 0);
+        assertEquals(5, seq.insertTickZeroEvent(0, volume));
+        t = seq.getTrack(0);
+        assertOrdered(t, 8);
+        assertSame(volume, t.get(5));
+        assertEquals(10, ((ShortMessage)t.get(4).getMessage()).getData1());
+        assertEquals(96, t.get(8).getTick());
+
+        assertEquals(2, history.getUndoCount());
+        assertTrue(history.undo());
+        assertEquals(9, seq.getTrack(0).size());
+        assertTrue(history.redo());
+        t = seq.getTrack(0);
+        assertArrayEquals(volume.getMessage().getMessage(),
+            t.get(5).getMessage().getMessage());
+
+        // The Track is only rebuilt when the events are out of order.
+        assertSame(t, seq.orderTickZeroEvents(0));
+    }
+
+    /**
+     * Test of the SmfWriter encoding the tick zero events in order.
+     */
+    @Test
+    public void testEncodeTrack() throws Exception {
+        System.out.println("encodeTrack");
+        Track t = createSequence().getTracks()[0];
+        MqfSequence seq = new MqfSequence(createSequence());
+        Track ordered = seq.orderTickZeroEvents(0);
+
+        ByteBuffer expected = SmfWriter.encodeTrack(ordered);
+        assertEquals(expected, SmfWriter.encodeTrack(t, true));
+        assertEquals(expected,
+            SmfWriter.encodeTrack(PackedTrack.fromTrack(t), true));
+        assertFalse(expected.equals(SmfWriter.encodeTrack(t)));
+        // The Track is not changed.
+        assertFalse(TickZeroOrder.isOrdered(t, TickZeroOrder.countTickZero(t)));
+    }
+}
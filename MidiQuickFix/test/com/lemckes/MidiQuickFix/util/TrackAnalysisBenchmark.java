@@ -0,0 +1,128 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.lang.management.ManagementFactory;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Compare the time taken and memory allocated by the TrackInfo analysis
+ * with the previous analysis that called MetaEvent.getMetaStrings()
+ * for every META event.
+ *
+ * Run the main method with the test classpath. The first rounds are
+ * the warm up for the JIT and should be ignored.
+ */
+public class TrackAnalysisBenchmark
+{
+
+    private static final int ROUNDS = 10;
+    private static final int ITERATIONS = 20;
+
+    public static void main(String[] args) throws Exception {
+        Track track = createTrack(20000);
+        PackedTrack packed = PackedTrack.fromTrack(track);
+        System.out.println("Events in track : " + track.size());
+
+        for (int r = 0; r < ROUNDS; ++r) {
+            measure("getMetaStrings", () -> analyseWithMetaStrings(track));
+            measure("analyseTrack(Track)", () -> MqfSequence.analyseTrack(track));
+            measure("analyseTrack(PackedTrack)", () -> MqfSequence.analyseTrack(packed));
+            System.out.println();
+        }
+    }
+
+    private static void measure(String name, Runnable analysis) {
+        com.sun.management.ThreadMXBean bean
+            = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long bytes = bean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            analysis.run();
+        }
+        long nanos = (System.nanoTime() - start) / ITERATIONS;
+        bytes = (bean.getThreadAllocatedBytes(threadId) - bytes) / ITERATIONS;
+        System.out.printf("%-26s %10.3f ms %12d bytes%n", // NOI18N
+            name, nanos / 1e6, bytes);
+    }
+
+    /**
+     * Create a track with a lyric and a text event for each note.
+     */
+    private static Track createTrack(int notes) throws Exception {
+        Track t = new Sequence(Sequence.PPQ, 480).createTrack();
+        byte[] name = "Benchmark".getBytes();
+        t.add(new MidiEvent(
+            new MetaMessage(MetaEvent.TRACK_NAME, name, name.length), 0));
+        t.add(new MidiEvent(
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 7, 100), 0));
+        for (int i = 0; i < notes; ++i) {
+            long tick = i * 120L;
+            byte[] lyric = ("la" + i).getBytes();
+            t.add(new MidiEvent(
+                new MetaMessage(MetaEvent.LYRIC, lyric, lyric.length), tick));
+            t.add(new MidiEvent(
+                new MetaMessage(MetaEvent.TEXT, lyric, lyric.length), tick));
+            t.add(new MidiEvent(
+                new ShortMessage(ShortMessage.NOTE_ON, 0, 48 + i % 24, 90), tick));
+            t.add(new MidiEvent(
+                new ShortMessage(ShortMessage.NOTE_ON, 0, 48 + i % 24, 0), tick + 100));
+        }
+        return t;
+    }
+
+    /**
+     * The analysis as it was done before, for comparison.
+     */
+    private static int analyseWithMetaStrings(Track t) {
+        int found = 0;
+        for (int e = 0; e < t.size(); ++e) {
+            MidiEvent me = t.get(e);
+            MidiMessage mm = me.getMessage();
+            if (mm.getStatus() == MetaMessage.META) {
+                Object[] str = MetaEvent.getMetaStrings((MetaMessage)mm);
+                if (str[0].equals("M:TrackName")) { // NOI18N
+                    ++found;
+                } else if (str[0].equals("M:Lyric")) { // NOI18N
+                    ++found;
+                } else if (str[0].equals("M:Text")) { // NOI18N
+                    ++found;
+                }
+            }
+            if (mm instanceof ShortMessage) {
+                ShortMessage sm = (ShortMessage)mm;
+                if (sm.getCommand() == ShortMessage.NOTE_ON) {
+                    found += sm.getData1();
+                }
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,263 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import com.lemckes.MidiQuickFix.MetaEvent;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author john
+ */
+public class TrackEventIndexTest
+{
+
+    public TrackEventIndexTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private static MidiMessage randomMessage(Random rnd) throws Exception {
+        int channel = rnd.nextInt(4);
+        switch (rnd.nextInt(8)) {
+            case 0:
+                return new MetaMessage(MetaEvent.TEXT,
+                    new byte[]{(byte)('a' + rnd.nextInt(3))}, 1);
+            case 1:
+                return new SysexMessage(
+                    new byte[]{(byte)0xf0, 0x7e, (byte)0xf7}, 3);
+            case 2:
+                return new ShortMessage(ShortMessage.PROGRAM_CHANGE,
+                    channel, rnd.nextInt(128), 0);
+            case 3:
+                return new ShortMessage(ShortMessage.PITCH_BEND,
+                    channel, 0, 64);
+            case 4:
+            case 5:
+                return new ShortMessage(ShortMessage.CONTROL_CHANGE,
+                    channel, 7 + rnd.nextInt(5), rnd.nextInt(128));
+            default:
+                return new ShortMessage(ShortMessage.NOTE_ON,
+                    channel, 60 + rnd.nextInt(12), rnd.nextInt(128));
+        }
+    }
+
+    private static List<EventFilter> createFilters() {
+        List<EventFilter> filters = new ArrayList<>();
+        filters.add(new EventFilter());
+        EventFilter f = new EventFilter();
+        f.setTypes(EventFilter.CONTROLLERS);
+        BitSet controllers = new BitSet();
+        controllers.set(7);
+        controllers.set(11);
+        f.setControllers(controllers);
+        f.setChannels(1 << 2);
+        f.setTickRange(1000, 3000);
+        filters.add(f);
+        f = new EventFilter();
+        f.setTypes(EventFilter.NOTES | EventFilter.META);
+        f.setTickRange(500, Long.MAX_VALUE);
+        filters.add(f);
+        f = new EventFilter();
+        f.setNoteRange(62, 65);
+        f.setVelocityRange(10, 100);
+        filters.add(f);
+        f = new EventFilter();
+        f.setTextPattern(Pattern.compile("b"));
+        filters.add(f);
+        f = new EventFilter();
+        f.setChannels(0x3);
+        filters.add(f);
+        return filters;
+    }
+
+    /**
+     * Check that the index finds the same events as testing each one.
+     */
+    private static void assertSelects(Track t, TrackEventIndex index,
+        EventFilter filter, int hidden) {
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < t.size(); ++i) {
+            MidiEvent event = t.get(i);
+            if (filter.test(event)
+                && (EventFilter.getType(event.getMessage()) & hidden) == 0) {
+                expected.add(i);
+            }
+        }
+        List<Integer> actual = new ArrayList<>();
+        index.select(t, filter, hidden, actual::add);
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * Test of select method, of class TrackEventIndex, with the index
+     * kept up to date as events are inserted, removed and changed.
+     */
+    @Test
+    public void testSelect() throws Exception {
+        System.out.println("select");
+        Random rnd = new Random(7);
+        Sequence s = new Sequence(Sequence.PPQ, 96);
+        Track t = s.createTrack();
+        for (int i = 0; i < 500; ++i) {
+            t.add(new MidiEvent(randomMessage(rnd), rnd.nextInt(4000)));
+        }
+        List<EventFilter> filters = createFilters();
+        TrackEventIndex index = new TrackEventIndex(t);
+        assertEquals(t.size(), index.size());
+        for (EventFilter filter : filters) {
+            assertSelects(t, index, filter, 0);
+            assertSelects(t, index, filter, EventFilter.NOTES);
+        }
+
+        for (int n = 0; n < 300; ++n) {
+            int op = rnd.nextInt(4);
+            if (op == 0 || t.size() < 20) {
+                MidiEvent event = new MidiEvent(
+                    randomMessage(rnd), rnd.nextInt(4000));
+                t.add(event);
+                int i = t.size() - 1;
+                while (t.get(i) != event) {
+                    --i;
+                }
+                index.eventInserted(i, event);
+            } else if (op == 1) {
+                int count = rnd.nextInt(3) == 0 ? 12 : 1 + rnd.nextInt(3);
+                BitSet chosen = new BitSet();
+                for (int k = 0; k < count; ++k) {
+                    chosen.set(rnd.nextInt(t.size() - 1));
+                }
+                int[] removed = chosen.stream().toArray();
+                MidiEvent[] events = new MidiEvent[removed.length];
+                for (int k = 0; k < removed.length; ++k) {
+                    events[k] = t.get(removed[k]);
+                }
+                for (MidiEvent event : events) {
+                    t.remove(event);
+                }
+                index.eventsRemoved(removed, removed.length);
+            } else if (op == 2) {
+                int i = rnd.nextInt(t.size() - 1);
+                MidiMessage mess = t.get(i).getMessage();
+                if (mess instanceof ShortMessage) {
+                    ShortMessage sm = (ShortMessage)mess;
+                    sm.setMessage(sm.getCommand(), rnd.nextInt(4),
+                        sm.getData1(), sm.getData2());
+                    index.eventChanged(i, t.get(i));
+                }
+            } else {
+                // Moving an event disturbs the order of the ticks
+                int i = rnd.nextInt(t.size() - 1);
+                t.get(i).setTick(t.get(i).getTick() + rnd.nextInt(200));
+                index.eventChanged(i, t.get(i));
+            }
+            assertEquals(t.size(), index.size());
+            assertSelects(t, index, filters.get(n % filters.size()), 0);
+        }
+        for (EventFilter filter : filters) {
+            assertSelects(t, index, filter, 0);
+            assertSelects(t, index, filter, EventFilter.NOTES);
+        }
+    }
+
+    /**
+     * Test of parse method, of class EventFilter.
+     */
+    @Test
+    public void testParse() throws Exception {
+        System.out.println("parse");
+        EventFilter f = EventFilter.parse("cc7,11 ch=3 bar=20-40", 96, 384);
+        assertEquals(EventFilter.CONTROLLERS, f.getTypes());
+        assertEquals(1 << 3, f.getChannels());
+        BitSet controllers = new BitSet();
+        controllers.set(7);
+        controllers.set(11);
+        assertEquals(controllers, f.getControllers());
+        assertEquals(19 * 384, f.getFromTick());
+        assertEquals(40 * 384, f.getToTick());
+        assertTrue(f.test(new MidiEvent(
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 3, 11, 0), 8000)));
+        assertFalse(f.test(new MidiEvent(
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 3, 10, 0), 8000)));
+        assertFalse(f.test(new MidiEvent(
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 2, 11, 0), 8000)));
+        assertFalse(f.test(new MidiEvent(
+            new ShortMessage(ShortMessage.CONTROL_CHANGE, 3, 11, 0), 40 * 384)));
+
+        f = EventFilter.parse("note=C4-E4 vel=1-64", 96, 384);
+        assertEquals(EventFilter.ALL_TYPES, f.getTypes());
+        assertTrue(f.test(new MidiEvent(
+            new ShortMessage(ShortMessage.NOTE_ON, 0, 50, 64), 0)));
+        assertFalse(f.test(new MidiEvent(
+            new ShortMessage(ShortMessage.NOTE_ON, 0, 50, 65), 0)));
+        assertFalse(f.test(new MidiEvent(
+            new MetaMessage(MetaEvent.TEXT, new byte[]{'a'}, 1), 0)));
+
+        f = EventFilter.parse(" /hello world/ meta ", 96, 384);
+        assertEquals(EventFilter.META, f.getTypes());
+        assertTrue(f.test(new MidiEvent(new MetaMessage(MetaEvent.LYRIC,
+            "Hello World".getBytes(), 11), 0)));
+        assertTrue(EventFilter.parse("", 96, 384).passesAll());
+
+        for (String bad : new String[]{"cc=200", "ch=x", "bar=0-2",
+            "tick=5-1", "/abc", "text=[", "colour=red", "note=Q"}) {
+            try {
+                EventFilter.parse(bad, 96, 384);
+                fail(bad);
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+}
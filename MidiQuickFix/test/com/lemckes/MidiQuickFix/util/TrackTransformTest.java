@@ -0,0 +1,163 @@
+/** ************************************************************
+ *
+ *   MidiQuickFix - A Simple Midi file editor and player
+ *
+ *   Copyright (C) 2004-2023 John Lemcke
+ *   jostle@users.sourceforge.net
+ *
+ *   This program is free software; you can redistribute it
+ *   and/or modify it under the terms of the Artistic License
+ *   as published by Larry Wall, either version 2.0,
+ *   or (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ *   See the Artistic License for more details.
+ *
+ *   You should have received a copy of the Artistic License with this Kit,
+ *   in the file named "Artistic.clarified".
+ *   If not, I'll be glad to provide one.
+ *
+ ************************************************************* */
+package com.lemckes.MidiQuickFix.util;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author john
+ */
+public class TrackTransformTest
+{
+
+    public TrackTransformTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private static TrackTransform cleanUp() {
+        return new TrackTransform()
+            .convertNoteOnZeroToNoteOff()
+            .adjustNoteOnVelocity(0.5f)
+            .shift(10);
+    }
+
+    /**
+     * The stages are applied in order to every event in one pass,
+     * counted, and undone as one edit.
+     */
+    @Test
+    public void testApply() throws Exception {
+        System.out.println("apply");
+        MqfSequence original = new MqfSequence(SmfReaderTest.createTestSequence());
+        MqfSequence seq = new MqfSequence(SmfReaderTest.createTestSequence());
+        EditHistory history = seq.getHistory();
+        int events = 0;
+        for (Track t : seq.getTracks()) {
+            events += t.size();
+        }
+
+        TrackTransform.Result result = cleanUp().apply(seq);
+        assertEquals(3, result.getStageCount());
+        assertEquals("noteoff", result.getStageName(0));
+        assertEquals(100, result.getChanged(0));
+        assertEquals(100, result.getChanged(1));
+        assertEquals(events, result.getChanged(2));
+        assertEquals(events, result.getEventCount());
+        assertEquals(3, result.getTrackCount());
+        assertEquals(1, history.getUndoCount());
+
+        for (int t = 0; t < seq.getTrackCount(); ++t) {
+            Track track = seq.getTrack(t);
+            Track expected = original.getTrack(t);
+            assertEquals(expected.size(), track.size());
+            for (int i = 0; i < track.size(); ++i) {
+                MidiEvent ev = track.get(i);
+                assertEquals(expected.get(i).getTick() + 10, ev.getTick());
+                MidiMessage mm = ev.getMessage();
+                if (mm instanceof ShortMessage
+                    && ((ShortMessage)mm).getCommand() == ShortMessage.NOTE_ON) {
+                    assertEquals(45, ((ShortMessage)mm).getData2());
+                }
+            }
+        }
+        assertEquals(original.getTrackNoteCount(1), seq.getTrackNoteCount(1));
+        assertEquals(original.getTrackFirstTick(1) + 10, seq.getTrackFirstTick(1));
+
+        MqfSequence transformed = new MqfSequence(SmfReaderTest.createTestSequence());
+        cleanUp().apply(transformed);
+        assertTrue(history.undo());
+        SmfReaderTest.assertSameEvents(original, seq);
+        assertTrue(history.redo());
+        SmfReaderTest.assertSameEvents(transformed, seq);
+    }
+
+    /**
+     * Removed events are put back on undo, a Track on its own
+     * gives the same result as in a sequence.
+     */
+    @Test
+    public void testRemoveNotes() throws Exception {
+        System.out.println("removeNotes");
+        MqfSequence original = new MqfSequence(SmfReaderTest.createTestSequence());
+        MqfSequence seq = new MqfSequence(SmfReaderTest.createTestSequence());
+        TrackTransform.Result result = new TrackTransform()
+            .convertNoteOnZeroToNoteOff()
+            .removeNotes()
+            .apply(seq, 1, 2);
+        assertEquals(100, result.getChanged(0));
+        assertEquals(200, result.getChanged(1));
+        assertEquals(2, result.getTrackCount());
+        assertFalse(seq.trackHasNotes(1));
+        assertEquals(0, seq.getTrackNoteCount(2));
+
+        Track track = SmfReaderTest.createTestSequence().getTracks()[1];
+        new TrackTransform().removeNotes().apply(track);
+        assertEquals(seq.getTrack(1).size(), track.size());
+        for (int i = 0; i < track.size(); ++i) {
+            assertEquals(seq.getTrack(1).get(i).getTick(), track.get(i).getTick());
+        }
+
+        assertTrue(seq.getHistory().undo());
+        SmfReaderTest.assertSameEvents(original, seq);
+    }
+
+    @Test
+    public void testInvalidStages() {
+        System.out.println("invalidStages");
+        try {
+            new TrackTransform().setNoteOnVelocity(0);
+            fail("Velocity 0 accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new TrackTransform().adjustNoteOnVelocity(4.5f);
+            fail("Factor 4.5 accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -6,11 +6,22 @@
 package com.lemckes.MidiQuickFix.util;
 
 import com.lemckes.MidiQuickFix.KeySignatures;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import static org.junit.Assert.*;
 
 /**
  *
@@ -55,4 +66,100 @@ public class TransposerTest {
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * The tracks are transposed concurrently, each note as it would be
+     * on its own, and the track infos are brought up to date.
+     */
+    @Test
+    public void testTransposeTracks() throws Exception {
+        System.out.println("transpose tracks");
+        Random random = new Random(21);
+        Sequence seq = new Sequence(Sequence.PPQ, 480);
+        List<int[]> expected = new ArrayList<>();
+        for (int t = 0; t < 24; ++t) {
+            Track track = seq.createTrack();
+            int channel = t % 16;
+            for (int i = 0; i < 500; ++i) {
+                int note = random.nextInt(128);
+                long tick = i * 60L;
+                track.add(new MidiEvent(new ShortMessage(
+                    ShortMessage.NOTE_ON, channel, note, 100), tick));
+                track.add(new MidiEvent(new ShortMessage(
+                    ShortMessage.NOTE_OFF, channel, note, 0), tick + 30));
+                int to = channel == 9 ? note : Transposer.transposeNote(note, 7);
+                expected.add(new int[]{t, to});
+            }
+        }
+        MqfSequence mqfSeq = new MqfSequence(seq);
+        assertTrue(Transposer.transpose(mqfSeq, 7));
+
+        int[] lowest = new int[24];
+        Arrays.fill(lowest, 127);
+        int[] next = new int[24];
+        for (int[] e : expected) {
+            Track track = mqfSeq.getTrack(e[0]);
+            for (int k = 0; k < 2; ++k) {
+                ShortMessage sm
+                    = (ShortMessage)track.get(next[e[0]]++).getMessage();
+                assertEquals(e[1], sm.getData1());
+            }
+            lowest[e[0]] = Math.min(lowest[e[0]], e[1]);
+        }
+        for (int t = 0; t < 24; ++t) {
+            assertEquals(lowest[t], mqfSeq.getTrackLowestNote(t));
+        }
+    }
+
+    /**
+     * Notes are played transposed without changing the messages,
+     * and each note ends at the pitch it started at.
+     */
+    @Test
+    public void testTransposingReceiver() throws Exception {
+        System.out.println("transposing receiver");
+        List<MidiMessage> sent = new ArrayList<>();
+        TransposingReceiver receiver = new TransposingReceiver(new Receiver()
+        {
+            @Override
+            public void send(MidiMessage message, long timeStamp) {
+                sent.add(message);
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        ShortMessage on = new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 90);
+        ShortMessage off = new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0);
+        ShortMessage drum = new ShortMessage(ShortMessage.NOTE_ON, 9, 36, 90);
+        ShortMessage program
+            = new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, 5, 0);
+
+        receiver.send(on, -1);
+        assertSame(on, sent.get(0));
+
+        receiver.setTransposition(-3, false);
+        // The sounding note is ended where it started.
+        receiver.send(off, -1);
+        assertSame(off, sent.get(1));
+        receiver.send(on, -1);
+        assertEquals(57, ((ShortMessage)sent.get(2)).getData1());
+        assertEquals(60, on.getData1());
+        receiver.send(drum, -1);
+        assertSame(drum, sent.get(3));
+        receiver.send(program, -1);
+        assertSame(program, sent.get(4));
+
+        receiver.setTransposition(0, false);
+        receiver.send(off, -1);
+        assertEquals(57, ((ShortMessage)sent.get(5)).getData1());
+        assertEquals(ShortMessage.NOTE_OFF, ((ShortMessage)sent.get(5)).getCommand());
+
+        receiver.setTransposition(5, true);
+        receiver.send(drum, -1);
+        assertEquals(41, ((ShortMessage)sent.get(6)).getData1());
+        assertEquals(5, receiver.getSemitones());
+        assertTrue(receiver.getDoDrums());
+    }
+
+}